@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests the journal of the editor's edits, and the patches it encodes.
+ */
+public class EditJournalTest extends TestCase {
+
+    /*
+     * Tests that typing in one place makes one edit, and that the edits apply to the text they
+     * were made to.
+     */
+    public void testTypingMergesEdits() {
+        StringBuilder text = new StringBuilder("Hello world");
+        EditJournal journal = new EditJournal(text.length());
+        type(journal, text, 5, 6, "");
+        type(journal, text, 5, 0, "!");
+        type(journal, text, 6, 0, "?");
+        type(journal, text, 6, 1, "");
+        assertEquals("Hello!", text.toString());
+        assertEquals(6, journal.getLength());
+        assertEquals(1, journal.getInsertedLength());
+        assertEquals("Hello!", journal.apply("Hello world"));
+
+        // An edit elsewhere starts a new one.
+        type(journal, text, 0, 0, ">");
+        assertEquals(2, journal.getInsertedLength());
+        assertEquals(">Hello!", journal.apply("Hello world"));
+    }
+
+    /*
+     * Tests that typing deleted again leaves nothing to patch, and that the next edit doesn't
+     * merge into the edit it undid.
+     */
+    public void testUndoneTypingLeavesNoEdit() {
+        StringBuilder text = new StringBuilder("Hello!");
+        EditJournal journal = new EditJournal(text.length());
+        type(journal, text, 6, 0, "?");
+        type(journal, text, 6, 1, "");
+        assertTrue(journal.isEmpty());
+        assertEquals(6, journal.getLength());
+
+        type(journal, text, 0, 1, "J");
+        assertEquals("Jello!", journal.apply("Hello!"));
+    }
+
+    /*
+     * Tests that a patch carries its edits, its base length and its base version, and that a
+     * patch that doesn't fit a text fails.
+     */
+    public void testEncodeDecode() {
+        StringBuilder text = new StringBuilder("abc");
+        EditJournal journal = new EditJournal(text.length());
+        assertEquals(EditJournal.NO_VERSION, journal.getBaseVersion());
+        type(journal, text, 1, 1, "中文");
+        type(journal, text, 4, 0, "!");
+        journal.setBaseVersion(42);
+
+        EditJournal decoded = EditJournal.decode(journal.encode());
+        assertEquals(3, decoded.getBaseLength());
+        assertEquals(42, decoded.getBaseVersion());
+        assertEquals(text.toString(), decoded.apply("abc"));
+
+        try {
+            decoded.apply("abcd");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // continue
+        }
+        byte[] patch = journal.encode();
+        try {
+            EditJournal.decode(Arrays.copyOf(patch, patch.length - 1));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // continue
+        }
+    }
+
+    /*
+     * Tests that a journal appended to another follows the text it leaves, and keeps the
+     * other's base version.
+     */
+    public void testAppend() {
+        EditJournal first = new EditJournal(3);
+        first.record(3, 0, "abcd", 1);
+        first.setBaseVersion(7);
+        EditJournal second = new EditJournal(4);
+        second.record(0, 1, "bcd", 0);
+        first.append(second);
+        assertEquals(7, first.getBaseVersion());
+        assertEquals("bcd", first.apply("abc"));
+
+        try {
+            first.append(new EditJournal(4));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // continue
+        }
+    }
+
+    /*
+     * Tests that edits apply to a text in parts, changing only the parts they fall in, and
+     * that no part is left ending with half of a supplementary character.
+     */
+    public void testApplyToParts() {
+        List<StringBuilder> parts = new ArrayList<StringBuilder>();
+        parts.add(new StringBuilder("ab\uD83Dx"));
+        parts.add(new StringBuilder("\uDE00fgh"));
+        parts.add(new StringBuilder("ijkl"));
+        EditJournal journal = new EditJournal(12);
+        journal.record(3, 1, "ab\uD83D\uDE00fghijkl", 0);
+        journal.record(7, 0, "ab\uD83D\uDE00fghZijkl", 1);
+
+        boolean[] changed = new boolean[3];
+        journal.apply(parts, changed);
+        assertEquals("ab", parts.get(0).toString());
+        assertEquals("\uD83D\uDE00fghZ", parts.get(1).toString());
+        assertEquals("ijkl", parts.get(2).toString());
+        assertTrue(changed[0]);
+        assertTrue(changed[1]);
+        assertFalse(changed[2]);
+    }
+
+    // Makes an edit to a text, and records it the way the editor's text watcher does.
+    private static void type(EditJournal journal, StringBuilder text, int start, int removed,
+            String inserted) {
+        text.replace(start, start + removed, inserted);
+        journal.record(start, removed, text, inserted.length());
+    }
+}
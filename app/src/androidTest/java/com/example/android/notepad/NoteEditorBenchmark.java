@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.test.AndroidTestCase;
+import android.text.SpannableStringBuilder;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Measures the cost of the note editor's checks on a long note. The timings are written to the
+ * log under the "NotePadBenchmark" tag, with the provider's; the assertions only check that the
+ * compared checks agree.
+ */
+public class NoteEditorBenchmark extends AndroidTestCase {
+
+    // The log tag the measurements are written under.
+    private static final String TAG = "NotePadBenchmark";
+
+    // How many times each measurement runs. The median run is reported.
+    private static final int RUNS = 5;
+
+    // The size in chars of the note, and the number of keystrokes typed into it between checks.
+    private static final int NOTE_LENGTH = 5 * 1024 * 1024;
+    private static final int KEYSTROKES = 200;
+
+    /*
+     * Compares the revert check the editor used to make, which copies the whole text and
+     * compares it with the original, with the text version's, on a 5MB note: after typing, and
+     * after the typing is deleted again.
+     */
+    public void testRevertChecks() {
+        StringBuilder builder = new StringBuilder(NOTE_LENGTH);
+        while (builder.length() < NOTE_LENGTH) {
+            builder.append("The quick brown fox jumps over the lazy dog 0123456789\n");
+        }
+        String original = builder.toString();
+        SpannableStringBuilder text = new SpannableStringBuilder(original);
+        TextVersion version = new TextVersion();
+        version.load(text);
+        version.setReference(original);
+        assertFalse(version.differs(text, original));
+
+        long[] typingNanos = new long[RUNS];
+        long[] copyNanos = new long[RUNS];
+        long[] versionNanos = new long[RUNS];
+        long[] undoneNanos = new long[RUNS];
+        int middle = original.length() / 2;
+        for (int run = 0; run < RUNS; run++) {
+            long start = System.nanoTime();
+            for (int key = 0; key < KEYSTROKES; key++) {
+                edit(text, version, middle + key, 0, "x");
+            }
+            typingNanos[run] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            boolean copyDiffers = !original.equals(text.toString());
+            copyNanos[run] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            boolean versionDiffers = version.differs(text, original);
+            versionNanos[run] = System.nanoTime() - start;
+            assertTrue(copyDiffers);
+            assertTrue(versionDiffers);
+
+            // Deleting the typing gives back the original, which the version then compares.
+            for (int key = KEYSTROKES - 1; key >= 0; key--) {
+                edit(text, version, middle + key, 1, "");
+            }
+            start = System.nanoTime();
+            versionDiffers = version.differs(text, original);
+            undoneNanos[run] = System.nanoTime() - start;
+            assertFalse(versionDiffers);
+            assertFalse(version.differs(text, original));
+        }
+
+        Log.i(TAG, "revert check on a " + NOTE_LENGTH / (1024 * 1024) + "MB note: copy "
+                + medianMicros(copyNanos) + "us, version " + medianMicros(versionNanos)
+                + "us, version after undoing " + medianMicros(undoneNanos) + "us; "
+                + KEYSTROKES + " keystrokes tracked in " + medianMicros(typingNanos) + "us");
+    }
+
+    // Replaces chars of the text, telling the version as the text's watcher would be told.
+    private static void edit(SpannableStringBuilder text, TextVersion version, int start,
+            int removed, String inserted) {
+        version.beforeTextChanged(text, start, removed, inserted.length());
+        text.replace(start, start + removed, inserted);
+        version.onTextChanged(text, start, removed, inserted.length());
+    }
+
+    private static long medianMicros(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2] / 1000;
+    }
+}
@@ -0,0 +1,819 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.res.AssetFileDescriptor;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the cost of the provider's hot paths against collections of different sizes. The
+ * timings are written to the log under the "NotePadBenchmark" tag; the assertions only check
+ * that the compared paths return the same data.
+ */
+public class NotePadProviderBenchmark extends ProviderTestCase2<NotePadProvider> {
+
+    // The log tag the measurements are written under.
+    private static final String TAG = "NotePadBenchmark";
+
+    // How many times each measured query runs. The median run is reported.
+    private static final int RUNS = 5;
+
+    // Words used to build the synthetic note bodies.
+    private static final String[] WORDS = {
+        "meeting", "project", "budget", "review", "draft", "call", "plan", "travel",
+        "invoice", "report", "idea", "list", "groceries", "book", "movie", "weekend"
+    };
+
+    // A word planted in one note out of every NEEDLE_INTERVAL, and searched for.
+    private static final String NEEDLE = "zephyr";
+    private static final int NEEDLE_INTERVAL = 100;
+
+    // Chinese words mixed with the English ones in the bodies of a mixed collection, and the
+    // Chinese word planted in them. No two words put together spell the needle.
+    private static final String[] CJK_WORDS = {
+        "会议", "项目", "预算", "评审", "草稿", "电话", "计划", "旅行",
+        "发票", "报告", "想法", "清单", "购物", "读书", "电影", "周末"
+    };
+    private static final String CJK_NEEDLE = "彗星";
+
+    // The projection and sort order NotesList uses for its list.
+    private static final String[] LIST_PROJECTION = {
+        NotePad.Notes._ID,
+        NotePad.Notes.COLUMN_NAME_TITLE,
+        NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+        NotePad.Notes.COLUMN_NAME_CATEGORY,
+        NotePad.Notes.COLUMN_NAME_PINNED
+    };
+    private static final String LIST_SORT_ORDER = NotePad.Notes.LIST_SORT_ORDER;
+
+    // The number of notes NotesList loads at a time.
+    private static final int PAGE_SIZE = 50;
+
+    // The most the heap may grow by while a note of any size is streamed.
+    private static final long MAX_STREAM_HEAP_BYTES = 16 * 1024 * 1024;
+
+    // Contains a reference to the mocked content resolver for the provider under test.
+    private MockContentResolver mMockResolver;
+
+    // Contains the SQLite database underlying the provider under test.
+    private SQLiteDatabase mDb;
+
+    public NotePadProviderBenchmark() {
+        super(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockResolver = getMockContentResolver();
+        mDb = getProvider().getOpenHelperForTest().getWritableDatabase();
+
+        // The measurements repeat the same queries, which must read the database each time.
+        getProvider().setCachesEnabledForTest(false);
+    }
+
+    /*
+     * Compares the triple LIKE '%term%' selection NotesList used to build with the full-text
+     * search URI, at 1k, 10k and 100k notes.
+     */
+    public void testSearchLikeVersusFts() {
+        final String likeSelection = "(" + NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ? OR "
+                + NotePad.Notes.COLUMN_NAME_NOTE + " LIKE ? OR "
+                + NotePad.Notes.COLUMN_NAME_CATEGORY + " LIKE ?)";
+        final String like = "%" + NEEDLE + "%";
+        final String[] likeArgs = { like, like, like };
+        final Uri searchUri = NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_FILTER, NEEDLE)
+                .build();
+
+        int[] sizes = { 1000, 10000, 100000 };
+        for (int size : sizes) {
+            populate(size);
+
+            long[] likeTimes = new long[RUNS];
+            long[] ftsTimes = new long[RUNS];
+            int likeCount = 0;
+            int ftsCount = 0;
+            for (int run = 0; run < RUNS; run++) {
+                long start = System.nanoTime();
+                Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, LIST_PROJECTION,
+                        likeSelection, likeArgs, LIST_SORT_ORDER);
+                likeCount = cursor.getCount();
+                likeTimes[run] = System.nanoTime() - start;
+                cursor.close();
+
+                start = System.nanoTime();
+                cursor = mMockResolver.query(searchUri, LIST_PROJECTION, null, null,
+                        LIST_SORT_ORDER);
+                ftsCount = cursor.getCount();
+                ftsTimes[run] = System.nanoTime() - start;
+                cursor.close();
+            }
+
+            // Both paths must find the same notes for the comparison to mean anything.
+            assertEquals(size / NEEDLE_INTERVAL, likeCount);
+            assertEquals(likeCount, ftsCount);
+
+            Log.i(TAG, "search " + size + " notes: LIKE " + medianMicros(likeTimes)
+                    + "us, FTS " + medianMicros(ftsTimes) + "us");
+        }
+    }
+
+    /*
+     * Compares loading the whole list, the way NotesList used to, with loading its first page
+     * and then a page from the middle of the list, at 1k, 10k and 100k notes. The page times
+     * should stay flat as the collection grows.
+     */
+    public void testFullListVersusPages() {
+        final Uri firstPageUri = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT,
+                        String.valueOf(PAGE_SIZE))
+                .build();
+
+        int[] sizes = { 1000, 10000, 100000 };
+        for (int size : sizes) {
+            populate(size);
+
+            // The key of the note in the middle of the list, past the pinned notes.
+            Cursor middle = mMockResolver.query(NotePad.Notes.CONTENT_URI, LIST_PROJECTION,
+                    null, null, LIST_SORT_ORDER);
+            assertTrue(middle.moveToPosition(size / 2));
+            final Uri middlePageUri = firstPageUri.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER,
+                            middle.getInt(4) + "," + middle.getLong(2) + "," + middle.getLong(0))
+                    .build();
+            middle.close();
+
+            long[] fullTimes = new long[RUNS];
+            long[] firstPageTimes = new long[RUNS];
+            long[] middlePageTimes = new long[RUNS];
+            for (int run = 0; run < RUNS; run++) {
+                long start = System.nanoTime();
+                Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, LIST_PROJECTION,
+                        null, null, LIST_SORT_ORDER);
+                assertEquals(size, cursor.getCount());
+                fullTimes[run] = System.nanoTime() - start;
+                cursor.close();
+
+                start = System.nanoTime();
+                cursor = mMockResolver.query(firstPageUri, LIST_PROJECTION, null, null, null);
+                assertEquals(PAGE_SIZE, cursor.getCount());
+                firstPageTimes[run] = System.nanoTime() - start;
+                cursor.close();
+
+                start = System.nanoTime();
+                cursor = mMockResolver.query(middlePageUri, LIST_PROJECTION, null, null, null);
+                assertEquals(PAGE_SIZE, cursor.getCount());
+                middlePageTimes[run] = System.nanoTime() - start;
+                cursor.close();
+            }
+
+            Log.i(TAG, "list " + size + " notes: whole list " + medianMicros(fullTimes)
+                    + "us, first page " + medianMicros(firstPageTimes)
+                    + "us, middle page " + medianMicros(middlePageTimes) + "us");
+        }
+    }
+
+    /*
+     * Measures how many list queries per second reader threads complete while a writer thread
+     * saves a note continuously, the way the editor autosaves. In write-ahead logging mode the
+     * readers don't wait for the writer's transactions.
+     */
+    public void testReadThroughputDuringWrites() throws InterruptedException {
+        final int readerCount = 4;
+        final long durationMillis = 3000;
+
+        populate(10000);
+        final Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                firstNoteId());
+        final String text = body(new Random(0), 700, false);
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong reads = new AtomicLong();
+        final AtomicLong writes = new AtomicLong();
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ContentValues values = new ContentValues();
+                    while (running.get()) {
+                        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text + writes.get());
+                        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                                System.currentTimeMillis());
+                        mMockResolver.update(noteUri, values, null, null);
+                        writes.incrementAndGet();
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            }
+        });
+
+        Thread[] readers = new Thread[readerCount];
+        for (int i = 0; i < readerCount; i++) {
+            readers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (running.get()) {
+                            Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                                    LIST_PROJECTION, null, null, LIST_SORT_ORDER);
+                            // Fills the first window, like the list showing its first screen.
+                            cursor.moveToFirst();
+                            cursor.close();
+                            reads.incrementAndGet();
+                        }
+                    } catch (Throwable t) {
+                        failures.add(t);
+                    }
+                }
+            });
+        }
+
+        writer.start();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        Thread.sleep(durationMillis);
+        running.set(false);
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertTrue(writes.get() > 0);
+        assertTrue(reads.get() > 0);
+
+        Log.i(TAG, "concurrent access: " + readerCount + " readers, "
+                + (reads.get() * 1000 / durationMillis) + " reads/s, "
+                + (writes.get() * 1000 / durationMillis) + " writes/s");
+    }
+
+    /*
+     * Compares inserting 10k notes one insert() at a time, each in its own implicit transaction,
+     * with one bulkInsert() call, which commits them in a single transaction.
+     */
+    public void testInsertVersusBulkInsert() {
+        final int count = 10000;
+        ContentValues[] values = new ContentValues[count];
+        Random random = new Random(count);
+        for (int i = 0; i < count; i++) {
+            values[i] = new ContentValues();
+            values[i].put(NotePad.Notes.COLUMN_NAME_TITLE, "Imported " + i);
+            values[i].put(NotePad.Notes.COLUMN_NAME_NOTE, body(random, 30, false));
+        }
+
+        populate(0);
+        long start = System.nanoTime();
+        for (ContentValues rowValues : values) {
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, rowValues);
+        }
+        long singleNanos = System.nanoTime() - start;
+        assertEquals(count, noteCount());
+
+        populate(0);
+        start = System.nanoTime();
+        assertEquals(count, mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, values));
+        long bulkNanos = System.nanoTime() - start;
+        assertEquals(count, noteCount());
+
+        Log.i(TAG, "insert " + count + " notes: insert() " + rowsPerSecond(count, singleNanos)
+                + " rows/s, bulkInsert() " + rowsPerSecond(count, bulkNanos) + " rows/s");
+    }
+
+    /*
+     * Compares the single-note writes the provider used to make, with the note ID concatenated
+     * into a new WHERE clause each time, with the provider's cached statements that bind the ID.
+     * Measures a pin toggle, a body save and a delete, 1000 of each, at 10k notes.
+     */
+    public void testSingleNoteWritesConcatenatedVersusCached() {
+        final int count = 1000;
+        populate(10000);
+        long firstId = firstNoteId();
+        ContentValues pin = new ContentValues();
+        ContentValues save = new ContentValues();
+        String text = body(new Random(0), 100, false);
+
+        // The first half of the notes is written the old way, the second half through the
+        // provider, so each delete finds its note.
+        long[] concatenatedNanos = new long[3];
+        long[] cachedNanos = new long[3];
+        for (int pass = 0; pass < 2; pass++) {
+            long[] nanos = pass == 0 ? concatenatedNanos : cachedNanos;
+            long base = firstId + pass * count;
+
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                pin.put(NotePad.Notes.COLUMN_NAME_PINNED, i % 2);
+                write(pass, base + i, pin);
+            }
+            nanos[0] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                save.put(NotePad.Notes.COLUMN_NAME_NOTE, text + i);
+                save.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
+                write(pass, base + i, save);
+            }
+            nanos[1] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                if (pass == 0) {
+                    assertEquals(1, mDb.delete(NotePad.Notes.TABLE_NAME,
+                            NotePad.Notes._ID + " = " + (base + i), null));
+                } else {
+                    assertEquals(1, mMockResolver.delete(ContentUris.withAppendedId(
+                            NotePad.Notes.CONTENT_ID_URI_BASE, base + i), null, null));
+                }
+            }
+            nanos[2] = System.nanoTime() - start;
+        }
+
+        String[] operations = { "pin toggle", "body save", "delete" };
+        for (int op = 0; op < operations.length; op++) {
+            Log.i(TAG, operations[op] + ": concatenated " + concatenatedNanos[op] / count
+                    + "ns, cached " + cachedNanos[op] / count + "ns per note");
+        }
+    }
+
+    /*
+     * Compares storing note bodies as text with storing the large ones compressed, for typical
+     * notes, pasted logs and huge documents: the size the bodies take in the database, the time
+     * to insert a note, and the time to read a note's text back.
+     */
+    public void testBodyCompression() {
+        final String[] kinds = { "typical", "log", "huge" };
+        final int[] bodySizes = { 600, 20 * 1024, 1024 * 1024 };
+        final int[] noteCounts = { 1000, 200, 10 };
+        final String[] modes = { "text", "compressed" };
+        final int[] thresholds = { Integer.MAX_VALUE, NotePadProvider.BODY_COMPRESSION_THRESHOLD };
+
+        for (int kind = 0; kind < kinds.length; kind++) {
+            int count = noteCounts[kind];
+            Random random = new Random(kind);
+            String[] bodies = new String[count];
+            for (int i = 0; i < count; i++) {
+                bodies[i] = logText(random, bodySizes[kind]);
+            }
+
+            for (int mode = 0; mode < modes.length; mode++) {
+                populate(0);
+                getProvider().setCompressionThresholdForTest(thresholds[mode]);
+                long emptyBytes = databaseBytes();
+
+                long[] insertTimes = new long[count];
+                long[] noteIds = new long[count];
+                ContentValues values = new ContentValues();
+                for (int i = 0; i < count; i++) {
+                    values.put(NotePad.Notes.COLUMN_NAME_NOTE, bodies[i]);
+                    long start = System.nanoTime();
+                    noteIds[i] = ContentUris.parseId(
+                            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values));
+                    insertTimes[i] = System.nanoTime() - start;
+                }
+                long bytes = databaseBytes() - emptyBytes;
+
+                long[] readTimes = new long[count];
+                for (int i = 0; i < count; i++) {
+                    long start = System.nanoTime();
+                    Cursor cursor = mMockResolver.query(ContentUris.withAppendedId(
+                            NotePad.Notes.CONTENT_ID_URI_BASE, noteIds[i]),
+                            new String[] { NotePad.Notes.COLUMN_NAME_NOTE }, null, null, null);
+                    assertTrue(cursor.moveToFirst());
+                    String body = cursor.getString(0);
+                    readTimes[i] = System.nanoTime() - start;
+                    cursor.close();
+                    assertEquals(bodies[i], body);
+                }
+
+                Log.i(TAG, kinds[kind] + " notes (" + bodySizes[kind] + " chars) as "
+                        + modes[mode] + ": " + bytes / count + " bytes per note, insert "
+                        + medianMicros(insertTimes) + "us, read " + medianMicros(readTimes)
+                        + "us");
+            }
+        }
+        getProvider().setCompressionThresholdForTest(NotePadProvider.BODY_COMPRESSION_THRESHOLD);
+    }
+
+    /*
+     * Streams notes of 1MB, 10MB and 50MB as text/plain, the way testWriteDataToPipe in
+     * NotePadProviderTest reads a note, and samples the heap while the stream is read. The peak
+     * should stay flat as the notes grow, since the provider holds at most one chunk of a note
+     * at a time. Besides those chunks, the heap holds the garbage the collector lets pile up
+     * between collections, so the bound is a few megabytes, far under the 100MB of chars the
+     * 50MB note would take whole.
+     */
+    public void testWriteDataToPipeHeap() throws IOException {
+        final int[] megabytes = { 1, 10, 50 };
+        final String title = "Streamed";
+        Runtime runtime = Runtime.getRuntime();
+        byte[] buffer = new byte[64 * 1024];
+
+        for (int size : megabytes) {
+            populate(0);
+            int chunks = size * 1024 * 1024 / NotePad.NoteChunks.MAX_LENGTH;
+            Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                    insertChunkedNote(title, chunks));
+
+            System.gc();
+            long baseline = runtime.totalMemory() - runtime.freeMemory();
+            long peak = baseline;
+            long bytes = 0;
+            long start = System.nanoTime();
+            AssetFileDescriptor descriptor =
+                    mMockResolver.openTypedAssetFileDescriptor(noteUri, "text/plain", null);
+            InputStream in = descriptor.createInputStream();
+            try {
+                for (int length = in.read(buffer); length >= 0; length = in.read(buffer)) {
+                    bytes += length;
+                    peak = Math.max(peak, runtime.totalMemory() - runtime.freeMemory());
+                }
+            } finally {
+                in.close();
+            }
+            long nanos = System.nanoTime() - start;
+
+            // The title, an empty line, and the text with its line end, all ASCII.
+            assertEquals(title.length() + 2 + (long) chunks * NotePad.NoteChunks.MAX_LENGTH + 1,
+                    bytes);
+
+            Log.i(TAG, "stream " + size + "MB note: peak heap +" + (peak - baseline) / 1024
+                    + "KB, " + nanos / 1000000 + "ms");
+            assertTrue("peak heap +" + (peak - baseline) + " bytes",
+                    peak - baseline < MAX_STREAM_HEAP_BYTES);
+        }
+    }
+
+    /*
+     * Measures the search of a collection of notes mixing Chinese and English, at 1k, 10k and
+     * 100k notes: indexing the notes written directly, their text split into bigrams, then a
+     * Chinese word found through the index,
+     * against the LIKE '%term%' scan. The scan finds every note holding the word, so the index
+     * must find the same notes.
+     */
+    public void testCjkSearch() {
+        final String likeSelection = "(" + NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ? OR "
+                + NotePad.Notes.COLUMN_NAME_NOTE + " LIKE ? OR "
+                + NotePad.Notes.COLUMN_NAME_CATEGORY + " LIKE ?)";
+        final String like = "%" + CJK_NEEDLE + "%";
+        final String[] likeArgs = { like, like, like };
+        final Uri searchUri = NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_FILTER, CJK_NEEDLE)
+                .build();
+
+        int[] sizes = { 1000, 10000, 100000 };
+        for (int size : sizes) {
+            populateMixed(size);
+
+            long start = System.nanoTime();
+            getProvider().rebuildSearchIndexForTest();
+            long indexTime = System.nanoTime() - start;
+            Cursor cursor;
+
+            long[] likeTimes = new long[RUNS];
+            long[] ftsTimes = new long[RUNS];
+            int likeCount = 0;
+            int ftsCount = 0;
+            for (int run = 0; run < RUNS; run++) {
+                start = System.nanoTime();
+                cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, LIST_PROJECTION,
+                        likeSelection, likeArgs, LIST_SORT_ORDER);
+                likeCount = cursor.getCount();
+                likeTimes[run] = System.nanoTime() - start;
+                cursor.close();
+
+                start = System.nanoTime();
+                cursor = mMockResolver.query(searchUri, LIST_PROJECTION, null, null,
+                        LIST_SORT_ORDER);
+                ftsCount = cursor.getCount();
+                ftsTimes[run] = System.nanoTime() - start;
+                cursor.close();
+            }
+
+            // The index must recall every note the scan finds.
+            assertEquals(size / NEEDLE_INTERVAL, likeCount);
+            assertEquals(likeCount, ftsCount);
+
+            Log.i(TAG, "CJK search " + size + " notes: indexing "
+                    + indexTime / 1000 + "us, LIKE " + medianMicros(likeTimes) + "us, FTS "
+                    + medianMicros(ftsTimes) + "us");
+        }
+    }
+
+    /*
+     * Compares the first page of a search in list order with the same page ranked by
+     * relevance, at 1k, 10k and 100k notes. Ranking reads the match statistics of every
+     * matching note, but no note's text.
+     */
+    public void testRankedSearch() {
+        final Uri firstPageUri = NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_FILTER, NEEDLE)
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT,
+                        String.valueOf(PAGE_SIZE))
+                .build();
+        final String[] rankedProjection = {
+                NotePad.Notes._ID,
+                NotePad.Notes.COLUMN_NAME_TITLE,
+                NotePad.Notes.COLUMN_NAME_RANK,
+                NotePad.Notes.COLUMN_NAME_SNIPPET,
+                NotePad.Notes.COLUMN_NAME_SNIPPET_HIGHLIGHTS
+        };
+
+        int[] sizes = { 1000, 10000, 100000 };
+        for (int size : sizes) {
+            populate(size);
+
+            long[] listTimes = new long[RUNS];
+            long[] rankedTimes = new long[RUNS];
+            int listCount = 0;
+            int rankedCount = 0;
+            for (int run = 0; run < RUNS; run++) {
+                long start = System.nanoTime();
+                Cursor cursor = mMockResolver.query(firstPageUri, LIST_PROJECTION, null, null,
+                        null);
+                listCount = cursor.getCount();
+                listTimes[run] = System.nanoTime() - start;
+                cursor.close();
+
+                start = System.nanoTime();
+                cursor = mMockResolver.query(firstPageUri, rankedProjection, null, null,
+                        NotePad.Notes.SEARCH_SORT_ORDER);
+                rankedCount = cursor.getCount();
+                rankedTimes[run] = System.nanoTime() - start;
+                cursor.close();
+            }
+
+            // Both orders must page the same notes for the comparison to mean anything.
+            assertEquals(Math.min(PAGE_SIZE, size / NEEDLE_INTERVAL), listCount);
+            assertEquals(listCount, rankedCount);
+
+            Log.i(TAG, "search first page of " + size + " notes: list order "
+                    + medianMicros(listTimes) + "us, ranked with snippets "
+                    + medianMicros(rankedTimes) + "us");
+        }
+    }
+
+    /*
+     * Compares a repeated query of the list's first page, the way the list reloads it when it
+     * comes back to the foreground, read from the database and answered by the result cache,
+     * at 10k notes.
+     */
+    public void testRepeatedFirstPage() {
+        final Uri firstPageUri = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT,
+                        String.valueOf(PAGE_SIZE))
+                .build();
+        populate(10000);
+
+        long[] databaseTimes = new long[RUNS];
+        long[] cachedTimes = new long[RUNS];
+        for (int cached = 0; cached < 2; cached++) {
+            getProvider().setCachesEnabledForTest(cached == 1);
+            long[] times = cached == 1 ? cachedTimes : databaseTimes;
+
+            // The first query of the cached run reads the database, and fills the cache.
+            mMockResolver.query(firstPageUri, LIST_PROJECTION, null, null, null).close();
+            for (int run = 0; run < RUNS; run++) {
+                long start = System.nanoTime();
+                Cursor cursor = mMockResolver.query(firstPageUri, LIST_PROJECTION, null, null,
+                        null);
+                assertEquals(PAGE_SIZE, cursor.getCount());
+                times[run] = System.nanoTime() - start;
+                cursor.close();
+            }
+        }
+        assertEquals(RUNS, getProvider().getResultCacheForTest().getHitCount());
+
+        Log.i(TAG, "first page of 10000 notes, repeated: database " + medianMicros(databaseTimes)
+                + "us, result cache " + medianMicros(cachedTimes) + "us");
+    }
+
+    // Writes a note made of the given number of full chunks of log text straight to the
+    // database, so the test never holds its text whole. Returns the ID of the note.
+    private long insertChunkedNote(String title, int chunks) {
+        Random random = new Random(chunks);
+        mDb.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
+            long noteId = mDb.insertOrThrow(NotePad.Notes.TABLE_NAME, null, values);
+
+            values = new ContentValues();
+            values.put(NotePadProvider.BODIES_COLUMN_NOTE_ID, noteId);
+            values.putNull(NotePad.Notes.COLUMN_NAME_NOTE);
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE_SIZE,
+                    (long) chunks * NotePad.NoteChunks.MAX_LENGTH);
+            mDb.insertOrThrow(NotePadProvider.BODIES_TABLE_NAME, null, values);
+
+            values = new ContentValues();
+            values.put(NotePadProvider.BODIES_COLUMN_NOTE_ID, noteId);
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                values.put(NotePad.NoteChunks.COLUMN_NAME_POSITION, chunk);
+                values.put(NotePadProvider.CHUNKS_COLUMN_SIZE, NotePad.NoteChunks.MAX_LENGTH);
+                values.put(NotePadProvider.CHUNKS_COLUMN_CHUNK,
+                        logText(random, NotePad.NoteChunks.MAX_LENGTH)
+                                .substring(0, NotePad.NoteChunks.MAX_LENGTH));
+                mDb.insertOrThrow(NotePadProvider.CHUNKS_TABLE_NAME, null, values);
+            }
+            mDb.setTransactionSuccessful();
+            return noteId;
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    // Returns the number of bytes of the database file in use, including the write-ahead log.
+    private long databaseBytes() {
+        return (DatabaseUtils.longForQuery(mDb, "PRAGMA page_count", null)
+                - DatabaseUtils.longForQuery(mDb, "PRAGMA freelist_count", null))
+                * DatabaseUtils.longForQuery(mDb, "PRAGMA page_size", null);
+    }
+
+    // Builds text of about the given number of characters, made of log lines.
+    private static String logText(Random random, int length) {
+        StringBuilder text = new StringBuilder(length + 100);
+        while (text.length() < length) {
+            text.append("2010-01-01 12:").append(10 + random.nextInt(50)).append(':')
+                    .append(10 + random.nextInt(50)).append(" INFO ")
+                    .append(body(random, 8, false)).append(" in ")
+                    .append(random.nextInt(1000)).append("ms\n");
+        }
+        return text.toString();
+    }
+
+    // Writes one note the old way (pass 0) or through the provider (pass 1).
+    private void write(int pass, long noteId, ContentValues values) {
+        if (pass == 0) {
+            ContentValues noteValues = new ContentValues(values);
+            if (noteValues.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+                ContentValues body = new ContentValues();
+                body.put(NotePad.Notes.COLUMN_NAME_NOTE,
+                        noteValues.getAsString(NotePad.Notes.COLUMN_NAME_NOTE));
+                noteValues.remove(NotePad.Notes.COLUMN_NAME_NOTE);
+                assertEquals(1, mDb.update(NotePadProvider.BODIES_TABLE_NAME, body,
+                        NotePadProvider.BODIES_COLUMN_NOTE_ID + " = " + noteId, null));
+            }
+            assertEquals(1, mDb.update(NotePad.Notes.TABLE_NAME, noteValues,
+                    NotePad.Notes._ID + " = " + noteId, null));
+        } else {
+            assertEquals(1, mMockResolver.update(ContentUris.withAppendedId(
+                    NotePad.Notes.CONTENT_ID_URI_BASE, noteId), values, null, null));
+        }
+    }
+
+    // Returns the number of notes in the database.
+    private long noteCount() {
+        return DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME);
+    }
+
+    // Returns the throughput of a run that handled the given number of rows.
+    private static long rowsPerSecond(int rows, long nanos) {
+        return rows * 1000000000L / Math.max(nanos, 1);
+    }
+
+    // Returns the _ID of one of the notes in the database.
+    private long firstNoteId() {
+        return DatabaseUtils.longForQuery(mDb,
+                "SELECT MIN(" + NotePad.Notes._ID + ") FROM " + NotePad.Notes.TABLE_NAME, null);
+    }
+
+    /*
+     * Replaces the contents of the database with the given number of synthetic notes. The rows
+     * are written in one transaction straight to the database, so the setup cost stays out of
+     * the measurements.
+     */
+    private void populate(int count) {
+        Random random = new Random(count);
+        long now = System.currentTimeMillis();
+        mDb.beginTransaction();
+        try {
+            mDb.delete(NotePad.Notes.TABLE_NAME, null, null);
+            ContentValues values = new ContentValues();
+            ContentValues body = new ContentValues();
+            for (int i = 0; i < count; i++) {
+                values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Note " + i);
+                values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, now - i);
+                values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now - i);
+                values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, WORDS[i % 4]);
+                values.put(NotePad.Notes.COLUMN_NAME_PINNED, i % 50 == 0 ? 1 : 0);
+                body.put(NotePadProvider.BODIES_COLUMN_NOTE_ID,
+                        mDb.insertOrThrow(NotePad.Notes.TABLE_NAME, null, values));
+                String text = body(random, 30, i % NEEDLE_INTERVAL == 0);
+                body.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+                body.put(NotePad.Notes.COLUMN_NAME_NOTE_SIZE, text.length());
+                mDb.insertOrThrow(NotePadProvider.BODIES_TABLE_NAME, null, body);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+
+        // The notes were written behind the provider, which indexes them.
+        getProvider().rebuildSearchIndexForTest();
+    }
+
+    // Replaces the notes with a collection of the given size whose bodies mix Chinese and
+    // English, one out of every NEEDLE_INTERVAL holding the Chinese needle.
+    private void populateMixed(int count) {
+        Random random = new Random(count);
+        long now = System.currentTimeMillis();
+        mDb.beginTransaction();
+        try {
+            mDb.delete(NotePad.Notes.TABLE_NAME, null, null);
+            ContentValues values = new ContentValues();
+            ContentValues body = new ContentValues();
+            for (int i = 0; i < count; i++) {
+                values.put(NotePad.Notes.COLUMN_NAME_TITLE, CJK_WORDS[i % CJK_WORDS.length] + i);
+                values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, now - i);
+                values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now - i);
+                values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, WORDS[i % 4]);
+                values.put(NotePad.Notes.COLUMN_NAME_PINNED, i % 50 == 0 ? 1 : 0);
+                body.put(NotePadProvider.BODIES_COLUMN_NOTE_ID,
+                        mDb.insertOrThrow(NotePad.Notes.TABLE_NAME, null, values));
+                String text = mixedBody(random, 30, i % NEEDLE_INTERVAL == 0);
+                body.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+                body.put(NotePad.Notes.COLUMN_NAME_NOTE_SIZE, text.length());
+                mDb.insertOrThrow(NotePadProvider.BODIES_TABLE_NAME, null, body);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    // Builds a note body of the given number of words, Chinese ones written without spaces
+    // between them as Chinese is, optionally holding the Chinese needle.
+    private static String mixedBody(Random random, int words, boolean withNeedle) {
+        StringBuilder body = new StringBuilder();
+        int needleAt = withNeedle ? random.nextInt(words) : -1;
+        for (int i = 0; i < words; i++) {
+            if (i == needleAt) {
+                body.append(CJK_NEEDLE);
+            } else if (random.nextInt(4) == 0) {
+                body.append(' ').append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            } else {
+                body.append(CJK_WORDS[random.nextInt(CJK_WORDS.length)]);
+            }
+            if (random.nextInt(8) == 0) {
+                body.append('，');
+            }
+        }
+        return body.toString();
+    }
+
+    // Builds a note body of the given number of words, optionally holding the needle word.
+    private static String body(Random random, int words, boolean withNeedle) {
+        StringBuilder body = new StringBuilder();
+        int needleAt = withNeedle ? random.nextInt(words) : -1;
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                body.append(' ');
+            }
+            body.append(i == needleAt ? NEEDLE : WORDS[random.nextInt(WORDS.length)]);
+        }
+        return body.toString();
+    }
+
+    // Returns the median of the given nanosecond timings, in microseconds.
+    private static long medianMicros(long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2] / 1000;
+    }
+}
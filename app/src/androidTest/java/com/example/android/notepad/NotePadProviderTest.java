@@ -16,23 +16,46 @@
 
 package com.example.android.notepad;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ComponentCallbacks2;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.test.ProviderTestCase2;
 import android.test.mock.MockContentResolver;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.FileDescriptor;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.zip.CRC32;
 
 /*
  */
@@ -92,6 +115,14 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
     // plain text
     private final static String MIME_TYPE_TEXT = "text/plain";
 
+    // The number of chunks in a megabyte of the chunked test notes, which are ASCII.
+    private static final int CHUNKS_PER_MEGABYTE = 1024 * 1024 / NotePad.NoteChunks.MAX_LENGTH;
+
+    // The text of each line of the chunked test notes after its number, for 64 characters per
+    // line.
+    private static final String LINE_TEXT =
+            " The quick brown fox jumps over the lazy dog 0123456789\n";
+
     /*
      * Constructor for the test case class.
      * Calls the super constructor with the class name of the provider under test and the
@@ -136,9 +167,6 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
      * and populated in insertData if necessary.
      */
     private void insertData() {
-        // Creates an instance of the ContentValues map type expected by database insertions
-        ContentValues values = new ContentValues();
-
         // Sets up test data
         for (int index = 0; index < TEST_NOTES.length; index++) {
 
@@ -146,13 +174,26 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
             TEST_NOTES[index].setCreationDate(START_DATE + (index * ONE_DAY_MILLIS));
             TEST_NOTES[index].setModificationDate(START_DATE + (index * ONE_WEEK_MILLIS));
 
-            // Adds a record to the database.
-            mDb.insertOrThrow(
+            // Adds a record to the database, and its text to the bodies table.
+            ContentValues values = TEST_NOTES[index].getContentValues();
+            ContentValues body = new ContentValues();
+            body.put(NotePad.Notes.COLUMN_NAME_NOTE,
+                    values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE));
+            body.put(NotePad.Notes.COLUMN_NAME_NOTE_SIZE,
+                    BodyCodec.utf8Length(values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE)));
+            values.remove(NotePad.Notes.COLUMN_NAME_NOTE);
+
+            body.put(NotePadProvider.BODIES_COLUMN_NOTE_ID, mDb.insertOrThrow(
                 NotePad.Notes.TABLE_NAME,             // the table name for the insert
                 NotePad.Notes.COLUMN_NAME_TITLE,      // column set to null if empty values map
-                TEST_NOTES[index].getContentValues()  // the values map to insert
-            );
+                values                                // the values map to insert
+            ));
+            mDb.insertOrThrow(NotePadProvider.BODIES_TABLE_NAME, null, body);
         }
+
+        // The notes were written behind the provider, which indexes them and may have cached
+        // queries before.
+        getProvider().rebuildSearchIndexForTest();
     }
 
     /*
@@ -176,6 +217,10 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         mimeType = mMockResolver.getType(noteIdUri);
         assertEquals(NotePad.Notes.CONTENT_ITEM_TYPE, mimeType);
 
+        // Tests the MIME type for the note count URI.
+        mimeType = mMockResolver.getType(NotePad.Notes.CONTENT_COUNT_URI);
+        assertEquals(NotePad.Notes.CONTENT_COUNT_TYPE, mimeType);
+
         // Tests an invalid URI. This should throw an IllegalArgumentException.
         mimeType = mMockResolver.getType(INVALID_URI);
     }
@@ -790,6 +835,1897 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
 
     }
 
+    /*
+     * Tests the single-note update and delete paths, which run cached statements. Writes more
+     * sets of columns than the cache holds, and reuses each of them, so that statements are
+     * evicted and recompiled along the way.
+     */
+    public void testSingleNoteUpdatesAndDeletes() {
+        insertData();
+        long noteId = DatabaseUtils.longForQuery(mDb, "SELECT " + NotePad.Notes._ID + " FROM "
+                + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes.COLUMN_NAME_TITLE + " = ?",
+                new String[] { TEST_NOTES[1].title });
+        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId);
+
+        String[] columns = {
+            NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_PINNED
+        };
+        for (int round = 0; round < 2; round++) {
+            // Every non-empty subset of the columns.
+            for (int set = 1; set < (1 << columns.length); set++) {
+                ContentValues values = new ContentValues();
+                for (int column = 0; column < columns.length; column++) {
+                    if ((set & (1 << column)) != 0) {
+                        values.put(columns[column], String.valueOf(round * 100 + set));
+                    }
+                }
+                assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+
+                Cursor cursor = mMockResolver.query(noteUri, columns, null, null, null);
+                assertTrue(cursor.moveToFirst());
+                for (int column = 0; column < columns.length; column++) {
+                    if ((set & (1 << column)) != 0) {
+                        assertEquals(round * 100 + set, cursor.getInt(column));
+                    }
+                }
+                cursor.close();
+            }
+        }
+
+        // A note that doesn't exist isn't updated.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_PINNED, 1);
+        assertEquals(0, mMockResolver.update(
+                ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId + 1000),
+                values, null, null));
+
+        // The note is deleted once.
+        assertEquals(1, mMockResolver.delete(noteUri, null, null));
+        assertEquals(0, mMockResolver.delete(noteUri, null, null));
+        assertEquals(TEST_NOTES.length - 1,
+                DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME));
+    }
+
+    /*
+     * Tests inserting several notes at once with bulkInsert().
+     */
+    public void testBulkInsert() {
+        ContentValues[] values = new ContentValues[TEST_NOTES.length];
+        for (int index = 0; index < TEST_NOTES.length; index++) {
+            values[index] = TEST_NOTES[index].getContentValues();
+        }
+
+        // Every row is reported inserted, and is in the table.
+        assertEquals(TEST_NOTES.length, mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, values));
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests applying a batch of operations with applyBatch(). The batch runs in one transaction,
+     * so a failing operation leaves none of the batch applied.
+     */
+    public void testApplyBatch() throws RemoteException, OperationApplicationException {
+        insertData();
+
+        final String titleSelection = NotePad.Notes.COLUMN_NAME_TITLE + " = ?";
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                .withValue(NotePad.Notes.COLUMN_NAME_TITLE, "Note10")
+                .build());
+        operations.add(ContentProviderOperation.newUpdate(NotePad.Notes.CONTENT_URI)
+                .withValue(NotePad.Notes.COLUMN_NAME_NOTE, "Updated in a batch")
+                .withSelection(titleSelection, new String[] { "Note1" })
+                .build());
+        operations.add(ContentProviderOperation.newDelete(NotePad.Notes.CONTENT_URI)
+                .withSelection(titleSelection, new String[] { "Note2" })
+                .build());
+
+        ContentProviderResult[] results = mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+        assertEquals(operations.size(), results.length);
+        assertNotNull(results[0].uri);
+        assertEquals(1, results[1].count.intValue());
+        assertEquals(1, results[2].count.intValue());
+
+        // One note was inserted and one deleted.
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+
+        // An update that matches no note doesn't roll the rest of the batch back, and leaves
+        // no category behind.
+        operations.clear();
+        operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                .withValue(NotePad.Notes.COLUMN_NAME_TITLE, "Note12")
+                .build());
+        operations.add(ContentProviderOperation.newUpdate(NotePad.Notes.CONTENT_URI)
+                .withValue(NotePad.Notes.COLUMN_NAME_CATEGORY, "Nowhere")
+                .withSelection(titleSelection, new String[] { "No such note" })
+                .build());
+        operations.add(ContentProviderOperation.newDelete(NotePad.Notes.CONTENT_URI)
+                .withSelection(titleSelection, new String[] { "Note3" })
+                .build());
+        ContentProviderResult[] unmatched =
+                mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+        assertEquals(0, unmatched[1].count.intValue());
+        assertEquals(1, unmatched[2].count.intValue());
+        assertEquals(1, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = 'Note12'"));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = 'Note3'"));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePad.Categories.TABLE_NAME,
+                NotePad.Categories.COLUMN_NAME_NAME + " = 'Nowhere'"));
+
+        // A batch whose second operation fails: the first insert must be rolled back with it.
+        long existingId = ContentUris.parseId(results[0].uri);
+        operations.clear();
+        operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                .withValue(NotePad.Notes.COLUMN_NAME_TITLE, "Note11")
+                .build());
+        operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                .withValue(NotePad.Notes._ID, existingId)
+                .build());
+        try {
+            mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+            fail("Expected the batch to fail on the duplicate note ID.");
+        } catch (SQLException e) {
+            // continue
+        }
+
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, titleSelection,
+                new String[] { "Note11" }, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests searches through the full-text index, using the search URI. Each search term matches
+     * as a word prefix, and all of the terms must match.
+     */
+    public void testSearches() {
+        // Inserts the test data into the provider's underlying data source
+        insertData();
+
+        // Every note holds the word "note" in its body, so a prefix of it matches all of them.
+        Cursor cursor = mMockResolver.query(searchUri("not"), null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+
+        // Both terms must match, so only the body "This is note 3" qualifies.
+        cursor = mMockResolver.query(searchUri("note 3"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(TEST_NOTES[3].title,
+                cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+        cursor.close();
+
+        // FTS operators typed by the user are searched for literally instead of being parsed.
+        cursor = mMockResolver.query(searchUri("note OR \"xyz"), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // Updates the body of note 3, and checks that the index followed the update.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Rewritten text");
+        assertEquals(1, mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { TEST_NOTES[3].title }));
+
+        cursor = mMockResolver.query(searchUri("note 3"), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        cursor = mMockResolver.query(searchUri("rewrit"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // Deletes note 3, and checks that it no longer comes back from the index.
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { TEST_NOTES[3].title });
+        cursor = mMockResolver.query(searchUri("rewrit"), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests the search of notes written in Chinese and other CJK scripts, mixed with English: a
+     * term finds the notes holding it anywhere in a run of CJK characters, including across
+     * the words around it, and the snippets show the text as it was written.
+     */
+    public void testCjkSearch() {
+        String[][] notes = {
+                { "会议记录", "明天下午三点开项目会议，讨论budget和进度。", "" },
+                { "Shopping list", "买牛奶、面包和apples", "" },
+                { "读书笔记", "《三体》读后感：宇宙社会学", "" },
+                { "Travel plan", "Tokyo trip: 东京塔 and 浅草寺", "" },
+                { "日記", "今日は東京へ行きました", "" },
+                { "Memo", "English only note about the meeting", "工作" }
+        };
+        for (String[] note : notes) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, note[0]);
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, note[1]);
+            values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, note[2]);
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        }
+
+        // A word, a word across two others, one character, and the end of a run.
+        assertSearch("会议", "会议记录");
+        assertSearch("项目会议", "会议记录");
+        assertSearch("目会", "会议记录");
+        assertSearch("议", "会议记录");
+        assertSearch("社会学", "读书笔记");
+        assertSearch("三", "会议记录", "读书笔记");
+
+        // English next to Chinese, in the text and in the term.
+        assertSearch("budget", "会议记录");
+        assertSearch("讨论budget", "会议记录");
+        assertSearch("牛奶 apple", "Shopping list");
+        assertSearch("meeting", "Memo");
+
+        // Japanese, the category, and characters that aren't next to each other.
+        assertSearch("東京", "日記");
+        assertSearch("东京塔", "Travel plan");
+        assertSearch("工作", "Memo");
+        assertSearch("议会");
+        assertSearch("会议 apple");
+
+        // The full-text index counts the same notes.
+        assertEquals(2, count("三", null, null));
+        assertEquals(0, count("议会", null, null));
+
+        // The snippet is the text as written, with the term highlighted.
+        Cursor cursor = mMockResolver.query(searchUri("宇宙"), new String[] {
+                NotePad.Notes.COLUMN_NAME_SNIPPET,
+                NotePad.Notes.COLUMN_NAME_SNIPPET_HIGHLIGHTS
+        }, null, null, NotePad.Notes.SEARCH_SORT_ORDER);
+        assertTrue(cursor.moveToFirst());
+        String snippet = cursor.getString(0);
+        assertTrue(snippet, "《三体》读后感：宇宙社会学".contains(snippet.replace("\u2026", "")));
+        int[] highlights = SearchRanker.parseHighlights(cursor.getString(1));
+        assertEquals(2, highlights.length);
+        assertEquals("宇宙", snippet.substring(highlights[0], highlights[1]));
+        cursor.close();
+
+        // The index follows an update, and a body long enough to be stored compressed.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "春眠不觉晓，处处闻啼鸟。");
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Memo" });
+        assertSearch("闻啼", "Memo");
+        assertSearch("meeting");
+
+        StringBuilder body = new StringBuilder();
+        while (body.length() < NotePadProvider.BODY_COMPRESSION_THRESHOLD) {
+            body.append("床前明月光，疑是地上霜。");
+        }
+        body.append("举头望山月");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, body.toString());
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Memo" });
+        assertEquals("blob", DatabaseUtils.stringForQuery(mDb, "SELECT typeof("
+                + NotePad.Notes.COLUMN_NAME_NOTE + ") FROM " + NotePadProvider.BODIES_TABLE_NAME
+                + " WHERE " + NotePadProvider.BODIES_COLUMN_NOTE_ID + " = (SELECT "
+                + NotePad.Notes._ID + " FROM " + NotePad.Notes.TABLE_NAME + " WHERE "
+                + NotePad.Notes.COLUMN_NAME_TITLE + " = 'Memo')", null));
+        assertSearch("望山", "Memo");
+        assertSearch("闻啼");
+    }
+
+    // Asserts that a search finds the notes with the given titles, in any order.
+    private void assertSearch(String filter, String... titles) {
+        Cursor cursor = mMockResolver.query(searchUri(filter),
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE }, null, null, null);
+        List<String> found = new ArrayList<String>();
+        while (cursor.moveToNext()) {
+            found.add(cursor.getString(0));
+        }
+        cursor.close();
+        Collections.sort(found);
+        List<String> expected = new ArrayList<String>(Arrays.asList(titles));
+        Collections.sort(expected);
+        assertEquals(filter, expected, found);
+    }
+
+    /*
+     * Tests that a CJK term cut by the boundary between two chunks of a note is found.
+     */
+    public void testCjkSearchAcrossChunks() {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < NotePad.NoteChunks.MAX_LENGTH - 1) {
+            text.append('的');
+        }
+        text.append("彗星来了");
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Comet");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text.toString());
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        assertEquals(2, DatabaseUtils.queryNumEntries(mDb, NotePadProvider.CHUNKS_TABLE_NAME));
+
+        Cursor cursor = mMockResolver.query(searchUri("彗星"), new String[] {
+                NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_SNIPPET,
+                NotePad.Notes.COLUMN_NAME_SNIPPET_HIGHLIGHTS
+        }, null, null, NotePad.Notes.SEARCH_SORT_ORDER);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(ContentUris.parseId(noteUri), cursor.getLong(0));
+        String snippet = cursor.getString(1);
+        int[] highlights = SearchRanker.parseHighlights(cursor.getString(2));
+        assertEquals(2, highlights.length);
+        assertEquals("彗星", snippet.substring(highlights[0], highlights[1]));
+        cursor.close();
+        assertEquals(1, count("的彗星来", null, null));
+        assertEquals(1, count("Comet 星来", null, null));
+        assertEquals(0, count("星彗", null, null));
+    }
+
+    /*
+     * Tests that the full-text index keeps no copy of the text it indexes, and that the rows of
+     * plain, compressed and chunked notes leave it with the text they were written with when
+     * the notes change or are deleted.
+     */
+    public void testSearchIndexKeepsNoText() {
+        StringBuilder compressed = new StringBuilder();
+        while (compressed.length() < NotePadProvider.BODY_COMPRESSION_THRESHOLD) {
+            compressed.append("床前明月光，疑是地上霜。");
+        }
+        StringBuilder chunked = new StringBuilder();
+        while (chunked.length() < NotePad.NoteChunks.MAX_LENGTH * 2) {
+            chunked.append("举头望山月，低头思故乡。");
+        }
+        String[] bodies = { "春眠不觉晓", compressed.toString(), chunked.toString() };
+        long[] ids = new long[bodies.length];
+        for (int index = 0; index < bodies.length; index++) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Poem " + index);
+            values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "唐诗");
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, bodies[index]);
+            ids[index] = ContentUris.parseId(
+                    mMockResolver.insert(NotePad.Notes.CONTENT_URI, values));
+        }
+        assertTrue(DatabaseUtils.queryNumEntries(mDb, NotePadProvider.CHUNKS_TABLE_NAME) > 1);
+        assertNoIndexedText();
+        assertEquals(1, count("春眠", null, null));
+        assertEquals(1, count("明月光", null, null));
+        assertEquals(1, count("思故乡", null, null));
+        assertEquals(3, count("唐诗", null, null));
+
+        // Given other text and another category, the notes are found by their new text only.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "夜来风雨声");
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "宋词");
+        assertEquals(3, mMockResolver.update(NotePad.Notes.CONTENT_URI, values, null, null));
+        assertNoIndexedText();
+        assertEquals(0, count("春眠", null, null));
+        assertEquals(0, count("明月光", null, null));
+        assertEquals(0, count("思故乡", null, null));
+        assertEquals(0, count("唐诗", null, null));
+        assertEquals(3, count("风雨", null, null));
+        assertEquals(3, count("宋词", null, null));
+
+        // A renamed note and deleted notes leave nothing behind either.
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, compressed.toString());
+        mMockResolver.update(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                ids[1]), values, null, null);
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, chunked.toString());
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Homesick");
+        mMockResolver.update(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                ids[2]), values, null, null);
+        assertEquals(1, count("明月光", null, null));
+        assertEquals(1, count("homesick 思故乡", null, null));
+        assertEquals(0, count("poem 思故乡", null, null));
+        mMockResolver.delete(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                ids[2]), null, null);
+        assertEquals(2, mMockResolver.delete(NotePad.Notes.CONTENT_URI, "1", null));
+        assertNoIndexedText();
+        for (String term : new String[] { "明月光", "思故乡", "风雨", "宋词", "poem", "homesick" }) {
+            assertEquals(term, 0, count(term, null, null));
+        }
+    }
+
+    // Asserts that the full-text index holds no copy of the text of the notes.
+    private void assertNoIndexedText() {
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePadProvider.FTS_TEXT_TABLE_NAME));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            assertEquals(0, DatabaseUtils.longForQuery(mDb,
+                    "SELECT count(*) FROM sqlite_master WHERE name = ?",
+                    new String[] { NotePadProvider.FTS_TABLE_NAME + "_content" }));
+        }
+    }
+
+    /*
+     * Tests that a selection on the note text matches a note stored compressed, and a chunked
+     * note by its first chunk, the text the note column returns, when notes are queried,
+     * updated and deleted.
+     */
+    public void testNoteSelectionOnCompressedText() {
+        insertData();
+        StringBuilder compressed = new StringBuilder();
+        while (compressed.length() < NotePadProvider.BODY_COMPRESSION_THRESHOLD) {
+            compressed.append("床前明月光，疑是地上霜。");
+        }
+        StringBuilder chunked = new StringBuilder();
+        while (chunked.length() < NotePad.NoteChunks.MAX_LENGTH * 2) {
+            chunked.append("举头望明月，低头思故乡。");
+        }
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Compressed");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, compressed.toString());
+        long compressedId = ContentUris.parseId(
+                mMockResolver.insert(NotePad.Notes.CONTENT_URI, values));
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Chunked");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, chunked.toString());
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        assertEquals("blob", DatabaseUtils.stringForQuery(mDb, "SELECT typeof("
+                + NotePad.Notes.COLUMN_NAME_NOTE + ") FROM " + NotePadProvider.BODIES_TABLE_NAME
+                + " WHERE " + NotePadProvider.BODIES_COLUMN_NOTE_ID + " = " + compressedId,
+                null));
+
+        String like = NotePad.Notes.COLUMN_NAME_NOTE + " LIKE ?";
+        assertEquals(Arrays.asList("Compressed"), queryTitles(like, "%明月光%"));
+        assertEquals(Arrays.asList("Chunked", "Compressed"), queryTitles(like, "%明月%"));
+        assertEquals(Arrays.asList(TEST_NOTES[0].title),
+                queryTitles(like, TEST_NOTES[0].note));
+        assertEquals(Collections.<String>emptyList(), queryTitles(like, "%山月%"));
+
+        // The same selections pick the notes to update and delete.
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Moonlight");
+        assertEquals(1, mMockResolver.update(NotePad.Notes.CONTENT_URI, values, like,
+                new String[] { "%明月光%" }));
+        assertEquals(Arrays.asList("Moonlight"), queryTitles(like, "%明月光%"));
+        assertEquals(1, mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                like + " AND " + NotePad.Notes.COLUMN_NAME_TITLE + " = ?",
+                new String[] { "%明月%", "Chunked" }));
+        assertEquals(Arrays.asList("Moonlight"), queryTitles(like, "%明月%"));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePadProvider.CHUNKS_TABLE_NAME));
+    }
+
+    /*
+     * Tests that a selection on the note text matches compressed notes past the first batch
+     * they are read in, for queries, counts and updates, and that the rows of a query are read
+     * a page at a time in the query's order.
+     */
+    public void testNoteSelectionOnManyCompressedNotes() {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < NotePadProvider.BODY_COMPRESSION_THRESHOLD) {
+            text.append("床前明月光，疑是地上霜。");
+        }
+        ContentValues values = new ContentValues();
+        for (int index = 0; index < 150; index++) {
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, String.format("Note %03d", index));
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, text + (index % 2 == 0 ? "even" : "odd"));
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        }
+
+        String like = NotePad.Notes.COLUMN_NAME_NOTE + " LIKE ?";
+        List<String> titles = queryTitles(like, "%even");
+        assertEquals(75, titles.size());
+        for (int index = 0; index < titles.size(); index++) {
+            assertEquals(String.format("Note %03d", index * 2), titles.get(index));
+        }
+        Cursor count = mMockResolver.query(NotePad.Notes.CONTENT_COUNT_URI, null, like,
+                new String[] { "%odd" }, null);
+        assertTrue(count.moveToFirst());
+        assertEquals(75, count.getInt(0));
+        count.close();
+
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_PINNED, 1);
+        assertEquals(75, mMockResolver.update(NotePad.Notes.CONTENT_URI, values, like,
+                new String[] { "%even" }));
+        assertEquals(75, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME,
+                NotePad.Notes.COLUMN_NAME_PINNED + " = 1"));
+    }
+
+    // Returns the titles of the notes a selection matches, in order.
+    private List<String> queryTitles(String selection, String... selectionArgs) {
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE }, selection, selectionArgs,
+                NotePad.Notes.COLUMN_NAME_TITLE);
+        List<String> titles = new ArrayList<String>();
+        while (cursor.moveToNext()) {
+            titles.add(cursor.getString(0));
+        }
+        cursor.close();
+        return titles;
+    }
+
+    /*
+     * Tests that the text of the notes lives in the bodies table: the list is read without
+     * touching it, the text of one note is read by its key, and writes and selections on the
+     * text reach it through the notes URIs.
+     */
+    public void testNoteBodies() {
+        insertData();
+        assertEquals(TEST_NOTES.length,
+                DatabaseUtils.queryNumEntries(mDb, NotePadProvider.BODIES_TABLE_NAME));
+
+        // The text of a note is looked up by its key.
+        String bodyPlan = explain("SELECT " + NotePad.Notes.COLUMN_NAME_NOTE + " FROM "
+                + NotePadProvider.BODIES_TABLE_NAME + " WHERE "
+                + NotePadProvider.BODIES_COLUMN_NOTE_ID + " = ?", new String[] { "1" });
+        assertTrue(bodyPlan, bodyPlan.contains("INTEGER PRIMARY KEY"));
+
+        // A selection on the text works for queries, updates and deletes.
+        String bodySelection = NotePad.Notes.COLUMN_NAME_NOTE + " = ?";
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE },
+                bodySelection, new String[] { TEST_NOTES[2].note }, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(TEST_NOTES[2].title, cursor.getString(0));
+        assertEquals(TEST_NOTES[2].note, cursor.getString(1));
+        cursor.close();
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Moved text");
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Moved");
+        assertEquals(1, mMockResolver.update(NotePad.Notes.CONTENT_URI, values, bodySelection,
+                new String[] { TEST_NOTES[2].note }));
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE },
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Moved" }, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Moved text", cursor.getString(0));
+        cursor.close();
+
+        // Deleting a note deletes its text.
+        assertEquals(1, mMockResolver.delete(NotePad.Notes.CONTENT_URI, bodySelection,
+                new String[] { "Moved text" }));
+        assertEquals(TEST_NOTES.length - 1,
+                DatabaseUtils.queryNumEntries(mDb, NotePadProvider.BODIES_TABLE_NAME));
+    }
+
+    /*
+     * Tests that an update that writes the text of the notes its selection picks by their text
+     * also writes their other columns. The text is written before the other columns, so the
+     * selection must pick its notes before the text changes.
+     */
+    public void testUpdatesSelectingOnNoteText() {
+        insertData();
+        String bodySelection = NotePad.Notes.COLUMN_NAME_NOTE + " LIKE ?";
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Rewritten");
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        values.put(NotePad.Notes.COLUMN_NAME_PINNED, 1);
+        for (String pattern : new String[] { "%note 3", "%note 7" }) {
+            assertEquals(1, mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                    bodySelection, new String[] { pattern }));
+        }
+
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE,
+                        NotePad.Notes.COLUMN_NAME_PINNED },
+                null, null, NotePad.Notes._ID);
+        try {
+            assertEquals(TEST_NOTES.length, cursor.getCount());
+            while (cursor.moveToNext()) {
+                int index = cursor.getPosition();
+                if (index == 3 || index == 7) {
+                    assertEquals("Renamed", cursor.getString(0));
+                    assertEquals("Rewritten", cursor.getString(1));
+                    assertEquals(1, cursor.getInt(2));
+                } else {
+                    assertEquals(TEST_NOTES[index].title, cursor.getString(0));
+                    assertEquals(TEST_NOTES[index].note, cursor.getString(1));
+                    assertEquals(0, cursor.getInt(2));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // A selection that no longer matches after the first update picks nothing.
+        assertEquals(0, mMockResolver.update(NotePad.Notes.CONTENT_URI, values, bodySelection,
+                new String[] { "%note 3" }));
+    }
+
+    /*
+     * Tests that large bodies are stored compressed, read back whole, and still searchable,
+     * and that small bodies stay text.
+     */
+    public void testBodyCompression() {
+        String large = repeat("2010-01-01 12:00:00 INFO request served in 12ms \u00fc\n", 500)
+                + "needleword";
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, large);
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        long noteId = ContentUris.parseId(noteUri);
+
+        assertEquals("blob", bodyType(noteId));
+        assertTrue(DatabaseUtils.longForQuery(mDb, "SELECT length("
+                + NotePad.Notes.COLUMN_NAME_NOTE + ") FROM " + NotePadProvider.BODIES_TABLE_NAME
+                + " WHERE " + NotePadProvider.BODIES_COLUMN_NOTE_ID + " = " + noteId, null)
+                < large.length() / 4);
+        assertEquals(large, readBody(noteUri));
+        assertEquals(1, count("needleword", null, null));
+
+        // Another large body replaces the indexed text of the first.
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, large.replace("needleword", "otherword"));
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(0, count("needleword", null, null));
+        assertEquals(1, count("otherword", null, null));
+
+        // A small body is stored as text again.
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "short");
+        assertEquals(1, mMockResolver.update(NotePad.Notes.CONTENT_URI, values, null, null));
+        assertEquals("text", bodyType(noteId));
+        assertEquals("short", readBody(noteUri));
+        assertEquals(0, count("otherword", null, null));
+
+        // The codec only compresses when it saves space.
+        assertEquals(large, BodyCodec.decode((byte[]) BodyCodec.encode(large, 1024)));
+        assertEquals("short", BodyCodec.encode("short", 1024));
+    }
+
+    // Returns the SQLite type of the stored body of a note.
+    private String bodyType(long noteId) {
+        return DatabaseUtils.stringForQuery(mDb, "SELECT typeof("
+                + NotePad.Notes.COLUMN_NAME_NOTE + ") FROM " + NotePadProvider.BODIES_TABLE_NAME
+                + " WHERE " + NotePadProvider.BODIES_COLUMN_NOTE_ID + " = " + noteId, null);
+    }
+
+    // Reads the text of a note through the provider.
+    private String readBody(Uri noteUri) {
+        Cursor cursor = mMockResolver.query(noteUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(Cursor.FIELD_TYPE_STRING, cursor.getType(0));
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static String repeat(String text, int times) {
+        StringBuilder builder = new StringBuilder(text.length() * times);
+        for (int i = 0; i < times; i++) {
+            builder.append(text);
+        }
+        return builder.toString();
+    }
+
+    /*
+     * Tests that notes too long for a cursor window are stored in chunks, and are read back
+     * whole through the chunks URI and the text stream, while the note column holds the first
+     * chunk. The 1MB and 10MB notes are inserted and updated through the provider; the 50MB
+     * note is streamed to it a chunk at a time, so the test never holds it whole.
+     */
+    public void testChunkedNotes() throws Exception {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Chunked");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, chunkedText(CHUNKS_PER_MEGABYTE));
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        assertChunkedNote(noteUri, CHUNKS_PER_MEGABYTE);
+
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, chunkedText(10 * CHUNKS_PER_MEGABYTE));
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertChunkedNote(noteUri, 10 * CHUNKS_PER_MEGABYTE);
+
+        // The text of the note stays searchable, and goes with the note.
+        assertEquals(1, count("00000042", null, null));
+        assertEquals(1, mMockResolver.delete(noteUri, null, null));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePadProvider.CHUNKS_TABLE_NAME));
+        assertEquals(0, count("00000042", null, null));
+
+        int chunks = 50 * CHUNKS_PER_MEGABYTE;
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Chunked");
+        noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        Writer writer = new OutputStreamWriter(mMockResolver.openOutputStream(noteUri), "UTF-8");
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            writer.write(chunkText(chunk));
+        }
+        writer.close();
+        waitForNoteSize(noteUri, (long) chunks * NotePad.NoteChunks.MAX_LENGTH);
+        assertChunkedNote(noteUri, chunks);
+        assertEquals(1, count("00000042", null, null));
+    }
+
+    // Returns the given number of chunks of test text.
+    private static String chunkedText(int chunks) {
+        StringBuilder text = new StringBuilder(chunks * NotePad.NoteChunks.MAX_LENGTH);
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            text.append(chunkText(chunk));
+        }
+        return text.toString();
+    }
+
+    /*
+     * Checks that a note titled "Chunked" holds the given number of chunks of test text, by
+     * their CRC through the chunks URI and through the text stream.
+     */
+    private void assertChunkedNote(Uri noteUri, int chunks) throws IOException {
+        CRC32 expectedText = new CRC32();
+        CRC32 expectedStream = new CRC32();
+        expectedStream.update("Chunked\n\n".getBytes("UTF-8"));
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            byte[] bytes = chunkText(chunk).getBytes("UTF-8");
+            expectedText.update(bytes);
+            expectedStream.update(bytes);
+        }
+        expectedStream.update('\n');
+
+        // The note column holds the first chunk and is flagged truncated, and the size is the
+        // whole text's.
+        Cursor cursor = mMockResolver.query(noteUri, new String[] {
+                NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_NOTE_SIZE,
+                NotePad.Notes.COLUMN_NAME_NOTE_TRUNCATED }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(chunkText(0), cursor.getString(0));
+        assertEquals((long) chunks * NotePad.NoteChunks.MAX_LENGTH, cursor.getLong(1));
+        assertEquals(1, cursor.getInt(2));
+        cursor.close();
+
+        // The chunks come in order, one row each.
+        cursor = mMockResolver.query(
+                Uri.withAppendedPath(noteUri, NotePad.NoteChunks.CONTENT_DIRECTORY),
+                null, null, null, null);
+        assertEquals(chunks, cursor.getCount());
+        int positionIndex = cursor.getColumnIndex(NotePad.NoteChunks.COLUMN_NAME_POSITION);
+        int textIndex = cursor.getColumnIndex(NotePad.NoteChunks.COLUMN_NAME_TEXT);
+        CRC32 crc = new CRC32();
+        while (cursor.moveToNext()) {
+            assertEquals(cursor.getPosition(), cursor.getInt(positionIndex));
+            crc.update(cursor.getString(textIndex).getBytes("UTF-8"));
+        }
+        cursor.close();
+        assertEquals(expectedText.getValue(), crc.getValue());
+
+        // The stream holds the title, an empty line, and the whole text.
+        AssetFileDescriptor descriptor =
+                mMockResolver.openTypedAssetFileDescriptor(noteUri, MIME_TYPE_TEXT, null);
+        InputStream in = descriptor.createInputStream();
+        try {
+            crc.reset();
+            byte[] buffer = new byte[64 * 1024];
+            for (int length = in.read(buffer); length >= 0; length = in.read(buffer)) {
+                crc.update(buffer, 0, length);
+            }
+        } finally {
+            in.close();
+        }
+        assertEquals(expectedStream.getValue(), crc.getValue());
+    }
+
+    // Returns one chunk of the test text: lines of 64 characters, numbered across the chunks.
+    private static String chunkText(int chunk) {
+        int lines = NotePad.NoteChunks.MAX_LENGTH / 64;
+        StringBuilder text = new StringBuilder(NotePad.NoteChunks.MAX_LENGTH);
+        for (int line = chunk * lines; line < (chunk + 1) * lines; line++) {
+            String number = Integer.toString(line);
+            for (int pad = number.length(); pad < 8; pad++) {
+                text.append('0');
+            }
+            text.append(number).append(LINE_TEXT);
+        }
+        return text.toString();
+    }
+
+    /*
+     * Tests that the text stream of a note returns the byte range asked for in its options, with
+     * its length, for a short note and for a chunked one.
+     */
+    public void testStreamRanges() throws IOException {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Short");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Caf\u00e9 \u2713");
+        Uri shortUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        byte[] shortStream = "Short\n\nCaf\u00e9 \u2713\n".getBytes("UTF-8");
+
+        StringBuilder text = new StringBuilder();
+        for (int chunk = 0; chunk < 3; chunk++) {
+            text.append(chunkText(chunk));
+        }
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Chunked");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text.toString());
+        Uri chunkedUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        byte[] chunkedStream = ("Chunked\n\n" + text + "\n").getBytes("UTF-8");
+
+        // Without options, the whole stream, with its length.
+        assertRange(shortStream, 0, shortStream.length, readRange(shortUri, -1, -1));
+        assertRange(chunkedStream, 0, chunkedStream.length, readRange(chunkedUri, -1, -1));
+
+        // A window inside the content, across a character of the short note.
+        assertRange(shortStream, 10, 4, readRange(shortUri, 10, 4));
+
+        // The tail alone, and a window across a chunk boundary.
+        int tail = chunkedStream.length - 100;
+        assertRange(chunkedStream, tail, 100, readRange(chunkedUri, tail, -1));
+        int boundary = "Chunked\n\n".length() + 2 * NotePad.NoteChunks.MAX_LENGTH - 50;
+        assertRange(chunkedStream, boundary, 100, readRange(chunkedUri, boundary, 100));
+
+        // A range past the end is empty.
+        assertEquals(0, readRange(chunkedUri, chunkedStream.length + 10, 5).length);
+    }
+
+    // Checks that the bytes read are the given range of the expected stream.
+    private static void assertRange(byte[] expected, int offset, int length, byte[] actual) {
+        assertTrue(Arrays.equals(Arrays.copyOfRange(expected, offset, offset + length), actual));
+    }
+
+    /*
+     * Reads a range of the text stream of a note, checking that the descriptor reports its
+     * length. A negative offset or length isn't passed.
+     */
+    private byte[] readRange(Uri noteUri, long offset, long length) throws IOException {
+        Bundle opts = new Bundle();
+        if (offset >= 0) {
+            opts.putLong(NotePad.Notes.STREAM_OPTION_OFFSET, offset);
+        }
+        if (length >= 0) {
+            opts.putLong(NotePad.Notes.STREAM_OPTION_LENGTH, length);
+        }
+        AssetFileDescriptor descriptor =
+                mMockResolver.openTypedAssetFileDescriptor(noteUri, MIME_TYPE_TEXT, opts);
+
+        // Reads the pipe itself, not limited to the reported length.
+        InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(
+                descriptor.getParcelFileDescriptor());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[8 * 1024];
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                bytes.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        assertEquals(bytes.size(), descriptor.getLength());
+        return bytes.toByteArray();
+    }
+
+    /*
+     * Tests that the length of a stream counts a lone surrogate as the one byte written for it,
+     * in a note long enough to be stored compressed, where the surrogate is kept.
+     */
+    public void testStreamOfLoneSurrogate() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int index = 0; index < NotePadProvider.BODY_COMPRESSION_THRESHOLD; index++) {
+            text.append('x');
+        }
+        text.append('\ud800');
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Surrogate");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text.toString());
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        byte[] stream = ("Surrogate\n\n" + text + "\n").getBytes("UTF-8");
+        assertRange(stream, 0, stream.length, readRange(noteUri, -1, -1));
+    }
+
+    /*
+     * Tests that the stream of a chunked note fails, rather than mixing two texts, when the note
+     * is written while the stream is read.
+     */
+    public void testStreamOfChangedNote() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int chunk = 0; chunk < 4; chunk++) {
+            text.append(chunkText(chunk));
+        }
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Chunked");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text.toString());
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        AssetFileDescriptor descriptor =
+                mMockResolver.openTypedAssetFileDescriptor(noteUri, MIME_TYPE_TEXT, null);
+        ParcelFileDescriptor pipe = descriptor.getParcelFileDescriptor();
+        InputStream in = new FileInputStream(pipe.getFileDescriptor());
+        try {
+            // The writer is still on the first chunk, waiting for the pipe to be read.
+            byte[] buffer = new byte[8 * 1024];
+            long read = 0;
+            while (read < buffer.length) {
+                read += in.read(buffer, 0, (int) (buffer.length - read));
+            }
+
+            values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Rewritten");
+            assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+
+            // The stream ends short, with an error where the pipe can carry one.
+            for (int length = in.read(buffer); length >= 0; length = in.read(buffer)) {
+                read += length;
+            }
+            assertTrue(read < descriptor.getLength());
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                try {
+                    pipe.checkError();
+                    fail();
+                } catch (IOException e) {
+                    // continue
+                }
+            }
+        } finally {
+            in.close();
+            pipe.close();
+        }
+    }
+
+    /*
+     * Tests writing the content of a note through a stream: a long text is stored in chunks and
+     * indexed, a short one replaces it whole, and only existing notes open for writing.
+     */
+    public void testWritableStreams() throws Exception {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Chunked");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Old text");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        int chunks = 4;
+        Writer writer = new OutputStreamWriter(mMockResolver.openOutputStream(noteUri), "UTF-8");
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            writer.write(chunkText(chunk));
+        }
+        writer.close();
+        waitForNoteSize(noteUri, (long) chunks * NotePad.NoteChunks.MAX_LENGTH);
+        assertChunkedNote(noteUri, chunks);
+        assertEquals(1, count("00000042", null, null));
+        assertEquals(0, count("old", null, null));
+
+        // A text that fits in one chunk is stored whole again.
+        writer = new OutputStreamWriter(mMockResolver.openOutputStream(noteUri), "UTF-8");
+        writer.write("Short \u00e9");
+        writer.close();
+        waitForNoteSize(noteUri, 8);
+        assertEquals("Short \u00e9", readBody(noteUri));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePadProvider.CHUNKS_TABLE_NAME));
+        assertEquals(0, count("00000042", null, null));
+
+        // Notes are only written, and only if they exist.
+        try {
+            mMockResolver.openInputStream(noteUri);
+            fail();
+        } catch (FileNotFoundException e) {
+            // continue
+        }
+        try {
+            mMockResolver.openOutputStream(
+                    ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1000));
+            fail();
+        } catch (FileNotFoundException e) {
+            // continue
+        }
+    }
+
+    /*
+     * Tests that a stream that fails leaves its note as it was: text that isn't UTF-8, a note
+     * deleted while it is written, and, from Lollipop, a client that stops writing. A stream
+     * held open keeps no other write waiting, and an import leaves no file behind.
+     */
+    public void testFailedStreamImports() throws Exception {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Chunked");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Old text");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        // Chunks of text, then bytes that aren't UTF-8.
+        OutputStream output = mMockResolver.openOutputStream(noteUri);
+        Writer writer = new OutputStreamWriter(output, "UTF-8");
+        writer.write(chunkText(0));
+        writer.write(chunkText(1));
+        writer.flush();
+        output.write(new byte[] { (byte) 0xff, (byte) 0xfe });
+        output.close();
+        getProvider().awaitImportsForTest();
+        assertEquals("Old text", readBody(noteUri));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePadProvider.CHUNKS_TABLE_NAME));
+        assertEquals(1, count("old", null, null));
+        assertEquals(0, count("00000042", null, null));
+
+        // The note is edited, then deleted, while a stream is open on it.
+        writer = new OutputStreamWriter(mMockResolver.openOutputStream(noteUri), "UTF-8");
+        writer.write("New text");
+        writer.flush();
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Edited text");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals("Edited text", readBody(noteUri));
+        assertEquals(1, mMockResolver.delete(noteUri, null, null));
+        writer.close();
+        getProvider().awaitImportsForTest();
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePadProvider.BODIES_TABLE_NAME));
+        assertEquals(0, count("new", null, null));
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Old text");
+            noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+            getProvider().setImportTimeoutForTest(100);
+            try {
+                writer = new OutputStreamWriter(mMockResolver.openOutputStream(noteUri), "UTF-8");
+                writer.write("Half a text");
+                writer.flush();
+                getProvider().awaitImportsForTest();
+            } finally {
+                getProvider().setImportTimeoutForTest(NotePadProvider.IMPORT_TIMEOUT_MILLIS);
+            }
+            assertEquals("Old text", readBody(noteUri));
+            try {
+                writer.close();
+            } catch (IOException e) {
+                // The provider closed its end.
+            }
+        }
+
+        String[] files = getProvider().getContext().getCacheDir().list();
+        for (String file : files == null ? new String[0] : files) {
+            assertFalse(file, file.startsWith("import"));
+        }
+    }
+
+    // Waits for a stream written to a note to be stored, by the note's size.
+    private void waitForNoteSize(Uri noteUri, long size) throws InterruptedException {
+        long deadline = SystemClock.uptimeMillis() + 60000;
+        while (true) {
+            Cursor cursor = mMockResolver.query(noteUri,
+                    new String[] { NotePad.Notes.COLUMN_NAME_NOTE_SIZE }, null, null, null);
+            assertTrue(cursor.moveToFirst());
+            long noteSize = cursor.getLong(0);
+            cursor.close();
+            if (noteSize == size) {
+                return;
+            }
+            assertTrue(SystemClock.uptimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    /*
+     * Tests that a patch changes the text of a note, for a short note and a chunked one, and
+     * that only the chunks its edits fall in are written again, split or deleted so the
+     * positions of the chunks stay dense. A patch that doesn't fit the text, is for another
+     * version of it, or isn't for one note, fails.
+     */
+    public void testNotePatches() {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Chunked");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Hello world");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        EditJournal journal = new EditJournal(11);
+        journal.record(5, 6, "Hello", 0);
+        journal.record(5, 0, "Hello!", 1);
+        journal.setBaseVersion(noteVersion(noteUri));
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE_PATCH, journal.encode());
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals("Hello!", readBody(noteUri));
+        assertEquals(0, count("world", null, null));
+
+        // The same patch no longer fits the text, and a patch is for one note.
+        try {
+            mMockResolver.update(noteUri, values, null, null);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // continue
+        }
+        try {
+            mMockResolver.update(NotePad.Notes.CONTENT_URI, values, null, null);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // continue
+        }
+        assertEquals("Hello!", readBody(noteUri));
+
+        // A patch for another version of the text fails, though the text has its length.
+        journal = new EditJournal(6);
+        journal.record(0, 1, "ello!", 0);
+        journal.setBaseVersion(noteVersion(noteUri) - 1);
+        try {
+            mMockResolver.update(noteUri, patchValues(journal), null, null);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // continue
+        }
+        assertEquals("Hello!", readBody(noteUri));
+
+        // Puts a long text in the note, in four chunks.
+        int length = 4 * NotePad.NoteChunks.MAX_LENGTH;
+        StringBuilder builder = new StringBuilder(length);
+        for (int chunk = 0; chunk < 4; chunk++) {
+            builder.append(chunkText(chunk));
+        }
+        String text = builder.toString();
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        long noteId = ContentUris.parseId(noteUri);
+        List<byte[]> stored = chunkBlobs(noteId);
+
+        // Removes text across the end of the first chunk, and inserts a word in the third.
+        journal = new EditJournal(length);
+        int end = NotePad.NoteChunks.MAX_LENGTH;
+        text = text.substring(0, end - 5) + text.substring(end + 5);
+        journal.record(end - 5, 10, text, 0);
+        int at = 2 * NotePad.NoteChunks.MAX_LENGTH + 54;
+        text = text.substring(0, at) + "needleword " + text.substring(at);
+        journal.record(at, 0, text, 11);
+        journal.setBaseVersion(noteVersion(noteUri));
+        assertEquals(1, mMockResolver.update(noteUri, patchValues(journal), null, null));
+
+        assertEquals(text, NoteText.read(mMockResolver, noteUri));
+        Cursor cursor = mMockResolver.query(noteUri, new String[] {
+                NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_NOTE_SIZE,
+                NotePad.Notes.COLUMN_NAME_NOTE_TRUNCATED }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(text.substring(0, end - 5), cursor.getString(0));
+        assertEquals(length + 1, cursor.getLong(1));
+        assertEquals(1, cursor.getInt(2));
+        cursor.close();
+        assertEquals(1, count("needleword", null, null));
+
+        // The third chunk, grown past the chunk length, was split, and the last chunk moved
+        // after it without being written again.
+        List<byte[]> patched = chunkBlobs(noteId);
+        assertEquals(5, patched.size());
+        assertFalse(Arrays.equals(stored.get(0), patched.get(0)));
+        assertFalse(Arrays.equals(stored.get(1), patched.get(1)));
+        assertFalse(Arrays.equals(stored.get(2), patched.get(2)));
+        assertTrue(Arrays.equals(stored.get(3), patched.get(4)));
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L, 4L), chunkPositions(noteId));
+
+        // Removing the whole second chunk deletes it, and the chunks after it move down.
+        journal = new EditJournal(text.length());
+        int second = end - 5;
+        text = text.substring(0, second) + text.substring(2 * second);
+        journal.record(second, second, text, 0);
+        journal.setBaseVersion(noteVersion(noteUri));
+        assertEquals(1, mMockResolver.update(noteUri, patchValues(journal), null, null));
+        assertEquals(text, NoteText.read(mMockResolver, noteUri));
+        patched = chunkBlobs(noteId);
+        assertEquals(4, patched.size());
+        assertTrue(Arrays.equals(stored.get(3), patched.get(3)));
+        assertEquals(Arrays.asList(0L, 1L, 2L, 3L), chunkPositions(noteId));
+        assertEquals(1, count("needleword", null, null));
+
+        // A patch that leaves a short text stores it whole.
+        journal = new EditJournal(text.length());
+        journal.record(10, text.length() - 10, text.substring(0, 10), 0);
+        journal.setBaseVersion(noteVersion(noteUri));
+        assertEquals(1, mMockResolver.update(noteUri, patchValues(journal), null, null));
+        assertEquals(text.substring(0, 10), readBody(noteUri));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NotePadProvider.CHUNKS_TABLE_NAME));
+        assertEquals(0, count("needleword", null, null));
+    }
+
+    // Returns the values that write a journal's patch.
+    private static ContentValues patchValues(EditJournal journal) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE_PATCH, journal.encode());
+        return values;
+    }
+
+    // Returns the version of a note's text.
+    private long noteVersion(Uri noteUri) {
+        Cursor cursor = mMockResolver.query(noteUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE_VERSION }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Returns the positions of the stored chunks of a note, in order.
+    private List<Long> chunkPositions(long noteId) {
+        Cursor cursor = mDb.query(NotePadProvider.CHUNKS_TABLE_NAME,
+                new String[] { NotePad.NoteChunks.COLUMN_NAME_POSITION },
+                NotePadProvider.BODIES_COLUMN_NOTE_ID + " = " + noteId, null, null, null,
+                NotePad.NoteChunks.COLUMN_NAME_POSITION);
+        try {
+            List<Long> positions = new ArrayList<Long>();
+            while (cursor.moveToNext()) {
+                positions.add(cursor.getLong(0));
+            }
+            return positions;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Returns the stored chunks of a note, in order.
+    private List<byte[]> chunkBlobs(long noteId) {
+        Cursor cursor = mDb.query(NotePadProvider.CHUNKS_TABLE_NAME,
+                new String[] { NotePadProvider.CHUNKS_COLUMN_CHUNK },
+                NotePadProvider.BODIES_COLUMN_NOTE_ID + " = " + noteId, null, null, null,
+                NotePad.NoteChunks.COLUMN_NAME_POSITION);
+        try {
+            List<byte[]> chunks = new ArrayList<byte[]>();
+            while (cursor.moveToNext()) {
+                chunks.add(cursor.getBlob(0));
+            }
+            return chunks;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Tests the note count URI: it returns the number of notes the same selection and search
+     * return, in one row.
+     */
+    public void testCounts() {
+        assertEquals(0, count(null, null, null));
+
+        insertData();
+
+        assertEquals(TEST_NOTES.length, count(null, null, null));
+        assertEquals(1, count(null, NotePad.Notes.COLUMN_NAME_TITLE + " = ?",
+                new String[] { TEST_NOTES[3].title }));
+
+        // A search alone is counted by the full-text index, a search with a selection by both.
+        assertEquals(TEST_NOTES.length, count("not", null, null));
+        assertEquals(1, count("note 3", null, null));
+        assertEquals(0, count("note 3", NotePad.Notes.COLUMN_NAME_TITLE + " = ?",
+                new String[] { TEST_NOTES[4].title }));
+        assertEquals(1, count("note", NotePad.Notes.COLUMN_NAME_TITLE + " = ?",
+                new String[] { TEST_NOTES[4].title }));
+
+        // The count follows deletes.
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { TEST_NOTES[3].title });
+        assertEquals(TEST_NOTES.length - 1, count(null, null, null));
+        assertEquals(0, count("note 3", null, null));
+    }
+
+    // Queries the note count URI, with a search if the filter isn't null.
+    private int count(String filter, String selection, String[] selectionArgs) {
+        Uri uri = NotePad.Notes.CONTENT_COUNT_URI;
+        if (filter != null) {
+            uri = uri.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_FILTER, filter)
+                    .build();
+        }
+        Cursor cursor = mMockResolver.query(uri, null, selection, selectionArgs, null);
+        try {
+            assertEquals(1, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals(NotePad.Notes._COUNT, cursor.getColumnName(0));
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Tests that the list queries NotesList runs are answered by walking an index that covers
+     * the list projection, instead of sorting the table in a temporary B-tree. Uses
+     * EXPLAIN QUERY PLAN on the statements the provider builds for those queries.
+     */
+    public void testListQueriesUseCoveringIndexes() {
+        insertData();
+
+        final String listQuery = "SELECT " + NotePad.Notes._ID + ", "
+                + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+                + NotePad.Notes.COLUMN_NAME_CATEGORY + ", "
+                + NotePad.Notes.COLUMN_NAME_PINNED
+                + " FROM " + NotePad.Notes.TABLE_NAME;
+        final String listOrder = " ORDER BY " + NotePad.Notes.LIST_SORT_ORDER;
+
+        // The unfiltered list.
+        assertCoveringIndexPlan(listQuery + listOrder, null);
+
+        // The list filtered on one category.
+        assertCoveringIndexPlan(listQuery
+                + " WHERE " + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ?" + listOrder,
+                new String[] { "1" });
+
+        // A page of the list, following a key.
+        assertCoveringIndexPlan(listQuery
+                + " WHERE " + NotePad.Notes.COLUMN_NAME_PINNED + " = ? AND "
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " <= ? AND ("
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " < ? OR "
+                + NotePad.Notes._ID + " < ?)" + listOrder,
+                new String[] { "0", String.valueOf(START_DATE), String.valueOf(START_DATE), "5" });
+    }
+
+    /*
+     * Tests that a burst of 1,000 single-note updates, each of which used to notify observers
+     * and so make every observing cursor requery, is sent as a handful of coalesced
+     * notifications, and that a batch is sent as one notification once it commits.
+     */
+    public void testNotificationsAreCoalesced() throws Exception {
+        insertData();
+        NotificationDispatcher notifier = getProvider().getNotificationDispatcherForTest();
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes._ID }, null, null, null);
+        long[] noteIds = new long[cursor.getCount()];
+        for (int index = 0; cursor.moveToNext(); index++) {
+            noteIds[index] = cursor.getLong(0);
+        }
+        cursor.close();
+
+        // A burst of pin toggles over all of the notes.
+        final int updates = 1000;
+        notifier.flush();
+        int before = notifier.getDispatchCountForTest();
+        ContentValues values = new ContentValues();
+        for (int index = 0; index < updates; index++) {
+            values.put(NotePad.Notes.COLUMN_NAME_PINNED, index % 2);
+            mMockResolver.update(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                    noteIds[index % noteIds.length]), values, null, null);
+        }
+        Thread.sleep(NotePadProvider.NOTIFY_MAX_DELAY_MILLIS * 2);
+        int requeries = notifier.getDispatchCountForTest() - before;
+        assertTrue("requeries: " + requeries, requeries > 0 && requeries < updates / 10);
+
+        // The same burst in one batch is sent once.
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        for (int index = 0; index < updates; index++) {
+            operations.add(ContentProviderOperation.newUpdate(ContentUris.withAppendedId(
+                    NotePad.Notes.CONTENT_ID_URI_BASE, noteIds[index % noteIds.length]))
+                    .withValue(NotePad.Notes.COLUMN_NAME_PINNED, index % 2)
+                    .build());
+        }
+        before = notifier.getDispatchCountForTest();
+        mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+        Thread.sleep(NotePadProvider.NOTIFY_MAX_DELAY_MILLIS * 2);
+        assertEquals(1, notifier.getDispatchCountForTest() - before);
+    }
+
+    /*
+     * Tests how the notification dispatcher collapses changed URIs: the changes of one note merge
+     * into one, more than MAX_ITEM_CHANGES changed notes become one change of the directory, and
+     * a URI whose ancestor changed is dropped.
+     */
+    public void testNotificationCoalescing() {
+        Uri insert1 = NotePadProvider.getChangeUri(1, NotePad.Notes.CHANGE_INSERT);
+        Uri update1 = NotePadProvider.getChangeUri(1, NotePad.Notes.CHANGE_UPDATE);
+        Uri delete1 = NotePadProvider.getChangeUri(1, NotePad.Notes.CHANGE_DELETE);
+        Uri update2 = NotePadProvider.getChangeUri(2, NotePad.Notes.CHANGE_UPDATE);
+
+        assertEquals(NotePad.Notes.CHANGE_UPDATE,
+                update1.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_CHANGE));
+        assertEquals(1, ContentUris.parseId(update1));
+
+        assertEquals(Arrays.asList(update1),
+                NotificationDispatcher.coalesce(Arrays.asList(update1)));
+        assertEquals(Arrays.asList(update1, update2),
+                NotificationDispatcher.coalesce(Arrays.asList(update1, update2)));
+
+        // A note inserted then updated is still new; a deletion overrides what came before.
+        assertEquals(Arrays.asList(insert1),
+                NotificationDispatcher.coalesce(Arrays.asList(insert1, update1)));
+        assertEquals(Arrays.asList(delete1),
+                NotificationDispatcher.coalesce(Arrays.asList(insert1, update1, delete1)));
+
+        // Past MAX_ITEM_CHANGES notes, the directory changes instead.
+        List<Uri> uris = new ArrayList<Uri>();
+        for (int id = 1; id <= NotificationDispatcher.MAX_ITEM_CHANGES + 1; id++) {
+            uris.add(NotePadProvider.getChangeUri(id, NotePad.Notes.CHANGE_UPDATE));
+        }
+        assertEquals(Arrays.asList(NotePad.Notes.CONTENT_URI),
+                NotificationDispatcher.coalesce(uris));
+
+        assertEquals(Arrays.asList(NotePad.Notes.CONTENT_URI),
+                NotificationDispatcher.coalesce(Arrays.asList(update1, NotePad.Notes.CONTENT_URI)));
+        assertEquals(Arrays.asList(update1, NotePad.Notes.LIVE_FOLDER_URI),
+                NotificationDispatcher.coalesce(
+                        Arrays.asList(update1, NotePad.Notes.LIVE_FOLDER_URI)));
+    }
+
+    /*
+     * Tests the categories URI: the provider adds a category with its first note, counts the
+     * notes in it as they move in and out, and removes it with its last note.
+     */
+    public void testCategories() {
+        String[] categories = { "Work", " Work ", "Home", "", "Work" };
+        Uri[] noteUris = new Uri[categories.length];
+        for (int index = 0; index < categories.length; index++) {
+            ContentValues values = TEST_NOTES[index].getContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, categories[index]);
+            noteUris[index] = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        }
+
+        // Names are trimmed, blank names aren't categories, and the counts match the notes.
+        assertCategories("Home", 1, "Work", 3);
+
+        // Filtering on the category ID finds the category's notes.
+        long workId = categoryId("Work");
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes.COLUMN_NAME_CATEGORY },
+                NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ?",
+                new String[] { String.valueOf(workId) }, null);
+        assertEquals(3, cursor.getCount());
+        while (cursor.moveToNext()) {
+            assertEquals("Work", cursor.getString(0));
+        }
+        cursor.close();
+
+        // Moving a note moves its count.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "Home");
+        assertEquals(1, mMockResolver.update(noteUris[0], values, null, null));
+        assertCategories("Home", 2, "Work", 2);
+
+        // A category goes away with its last note.
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ?",
+                new String[] { String.valueOf(workId) });
+        assertCategories("Home", 2);
+
+        // An update that matches no note doesn't add its category.
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "Travel");
+        assertEquals(0, mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "No such note" }));
+        assertCategories("Home", 2);
+
+        assertEquals(NotePad.Categories.CONTENT_TYPE,
+                mMockResolver.getType(NotePad.Categories.CONTENT_URI));
+    }
+
+    // Asserts that the categories URI lists the given names and note counts, in order.
+    private void assertCategories(Object... namesAndCounts) {
+        Cursor cursor = mMockResolver.query(NotePad.Categories.CONTENT_URI, new String[] {
+                NotePad.Categories.COLUMN_NAME_NAME, NotePad.Categories.COLUMN_NAME_NOTE_COUNT },
+                null, null, null);
+        assertEquals(namesAndCounts.length / 2, cursor.getCount());
+        for (int index = 0; cursor.moveToNext(); index += 2) {
+            assertEquals(namesAndCounts[index], cursor.getString(0));
+            assertEquals(namesAndCounts[index + 1], cursor.getInt(1));
+        }
+        cursor.close();
+    }
+
+    // Returns the ID of the category with the given name.
+    private long categoryId(String name) {
+        return DatabaseUtils.longForQuery(mDb, "SELECT " + NotePad.Categories._ID + " FROM "
+                + NotePad.Categories.TABLE_NAME + " WHERE "
+                + NotePad.Categories.COLUMN_NAME_NAME + " = ?", new String[] { name });
+    }
+
+    /*
+     * Tests paging through the notes URI with the limit and after query parameters. The pages
+     * must add up to the whole list, in order, and must not shift when a note is inserted at the
+     * head of the list between two pages.
+     */
+    public void testPaging() {
+        insertData();
+
+        // Pins two notes, so that the pages cross from the pinned notes to the others.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_PINNED, 1);
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " IN (?, ?)",
+                new String[] { TEST_NOTES[2].title, TEST_NOTES[7].title });
+
+        // The whole list, in one query.
+        List<Long> expected = new ArrayList<Long>();
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, PAGE_PROJECTION, null,
+                null, NotePad.Notes.LIST_SORT_ORDER);
+        while (cursor.moveToNext()) {
+            expected.add(cursor.getLong(0));
+        }
+        cursor.close();
+        assertEquals(TEST_NOTES.length, expected.size());
+
+        // The same list, three notes at a time.
+        List<Long> paged = new ArrayList<Long>();
+        String after = null;
+        do {
+            cursor = mMockResolver.query(pageUri(3, after), PAGE_PROJECTION, null, null, null);
+            assertTrue(cursor.getCount() <= 3);
+            after = null;
+            while (cursor.moveToNext()) {
+                paged.add(cursor.getLong(0));
+                after = pageKey(cursor);
+            }
+            cursor.close();
+        } while (after != null);
+        assertEquals(expected, paged);
+
+        // Reads the first page, then inserts a note that sorts before it.
+        cursor = mMockResolver.query(pageUri(3, null), PAGE_PROJECTION, null, null, null);
+        assertTrue(cursor.moveToLast());
+        after = pageKey(cursor);
+        cursor.close();
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Newest");
+        values.put(NotePad.Notes.COLUMN_NAME_PINNED, 1);
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        // The second page still starts right after the first one.
+        cursor = mMockResolver.query(pageUri(3, after), PAGE_PROJECTION, null, null, null);
+        assertEquals(3, cursor.getCount());
+        for (int index = 3; cursor.moveToNext(); index++) {
+            assertEquals(expected.get(index).longValue(), cursor.getLong(0));
+        }
+        cursor.close();
+
+        // Pages are only served in the list order.
+        try {
+            mMockResolver.query(pageUri(3, null), PAGE_PROJECTION, null, null,
+                    NotePad.Notes.DEFAULT_SORT_ORDER);
+            fail("Paged query accepted a different sort order");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    /*
+     * Tests that the queries of the notes list take a cancellation signal: a query runs while
+     * its signal is untouched, and a cancelled one throws instead of scanning.
+     */
+    public void testCancelledQueries() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return;
+        }
+        insertData();
+        NotePadProvider provider = getProvider();
+
+        CancellationSignal signal = new CancellationSignal();
+        Cursor cursor = provider.query(pageUri(3, null), PAGE_PROJECTION, null, null, null,
+                signal);
+        assertEquals(3, cursor.getCount());
+        assertTrue(cursor.moveToLast());
+        String after = pageKey(cursor);
+        cursor.close();
+        cursor = provider.query(NotePad.Notes.CONTENT_URI, PAGE_PROJECTION, null, null, null,
+                signal);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+
+        signal.cancel();
+        Uri[] uris = { NotePad.Notes.CONTENT_URI, pageUri(3, null), pageUri(3, after),
+                searchUri(TEST_NOTES[0].title) };
+        for (Uri uri : uris) {
+            try {
+                provider.query(uri, PAGE_PROJECTION, null, null, null, signal).close();
+                fail("Cancelled query of " + uri + " ran");
+            } catch (OperationCanceledException e) {
+                // Expected.
+            }
+        }
+    }
+
+    /*
+     * Tests the cache of note rows: a note read again by its ID is read from the cache, and
+     * updating or deleting it makes the next read, or a requery, go to the database again. The
+     * cache is freed when the system trims memory.
+     */
+    public void testRowCache() {
+        NotePadProvider provider = getProvider();
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Cached");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Cached note");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        String[] projection = {
+                NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE };
+
+        Cursor cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Cached note", cursor.getString(1));
+        cursor.close();
+        Bundle stats = provider.call(NotePad.RowCacheStats.METHOD, null, null);
+        assertEquals(0, stats.getLong(NotePad.RowCacheStats.HITS));
+        assertEquals(1, stats.getLong(NotePad.RowCacheStats.MISSES));
+        assertEquals(1, stats.getInt(NotePad.RowCacheStats.ROWS));
+        assertTrue(stats.getInt(NotePad.RowCacheStats.BYTES) > 0);
+
+        // The title alone is held by the row read above.
+        cursor = mMockResolver.query(noteUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Cached", cursor.getString(0));
+        cursor.close();
+        cursor = mMockResolver.query(noteUri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        stats = provider.call(NotePad.RowCacheStats.METHOD, null, null);
+        assertEquals(2, stats.getLong(NotePad.RowCacheStats.HITS));
+        assertEquals(1, stats.getLong(NotePad.RowCacheStats.MISSES));
+
+        // An update is seen by the requery of a cursor that was open across it.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Updated note");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertTrue(cursor.requery());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Cached", cursor.getString(0));
+        assertEquals("Updated note", cursor.getString(1));
+        stats = provider.call(NotePad.RowCacheStats.METHOD, null, null);
+        assertEquals(1, stats.getLong(NotePad.RowCacheStats.INVALIDATIONS));
+        assertEquals(2, stats.getLong(NotePad.RowCacheStats.MISSES));
+
+        // An update by a selection forgets the notes it changed too.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        assertEquals(1, mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Cached" }));
+        assertTrue(cursor.requery());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Renamed", cursor.getString(0));
+
+        assertEquals(1, mMockResolver.delete(noteUri, null, null));
+        assertTrue(cursor.requery());
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // A projection with a column the cache can't hold reads the database.
+        noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        cursor = mMockResolver.query(noteUri,
+                new String[] { "length(" + NotePad.Notes.COLUMN_NAME_TITLE + ") AS length" },
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Renamed".length(), cursor.getInt(0));
+        cursor.close();
+        cursor = mMockResolver.query(noteUri, null, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Renamed",
+                cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+        assertEquals(ContentUris.parseId(noteUri),
+                cursor.getLong(cursor.getColumnIndex(NotePad.Notes._ID)));
+        cursor.close();
+
+        provider.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        stats = provider.call(NotePad.RowCacheStats.METHOD, null, null);
+        assertEquals(0, stats.getInt(NotePad.RowCacheStats.ROWS));
+        assertEquals(0, stats.getInt(NotePad.RowCacheStats.BYTES));
+        assertEquals(1, stats.getLong(NotePad.RowCacheStats.EVICTIONS));
+    }
+
+    /*
+     * Tests the cache of query results: a list query repeated while nothing was written is
+     * answered by the cache, with the same rows, and any write makes the next query read the
+     * database again.
+     */
+    public void testResultCache() {
+        insertData();
+        QueryResultCache cache = getProvider().getResultCacheForTest();
+        long hits = cache.getHitCount();
+        Uri uri = pageUri(3, null);
+        String[] projection = { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE };
+
+        Cursor first = mMockResolver.query(uri, projection, null, null, null);
+        Cursor second = mMockResolver.query(uri, projection, null, null, null);
+        assertEquals(hits + 1, cache.getHitCount());
+        assertEquals(3, second.getCount());
+        while (first.moveToNext()) {
+            assertTrue(second.moveToNext());
+            assertEquals(first.getLong(0), second.getLong(0));
+            assertEquals(first.getString(1), second.getString(1));
+        }
+        first.close();
+        second.close();
+
+        // Other arguments make another query.
+        String selection = NotePad.Notes.COLUMN_NAME_TITLE + " = ?";
+        Cursor cursor = mMockResolver.query(uri, projection, selection,
+                new String[] { TEST_NOTES[1].title }, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+        assertEquals(hits + 1, cache.getHitCount());
+        assertEquals(TEST_NOTES.length, count(null, null, null));
+        assertEquals(TEST_NOTES.length, count(null, null, null));
+        assertEquals(hits + 2, cache.getHitCount());
+
+        // A write to any note makes the results read before it stale.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, TEST_NOTES[1].title);
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        cursor = mMockResolver.query(uri, projection, selection,
+                new String[] { TEST_NOTES[1].title }, null);
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+        assertEquals(TEST_NOTES.length + 1, count(null, null, null));
+        assertEquals(hits + 2, cache.getHitCount());
+
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        assertEquals(2, mMockResolver.update(NotePad.Notes.CONTENT_URI, values, selection,
+                new String[] { TEST_NOTES[1].title }));
+        cursor = mMockResolver.query(uri, projection, selection,
+                new String[] { TEST_NOTES[1].title }, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+        assertEquals(hits + 2, cache.getHitCount());
+    }
+
+    /*
+     * Tests the ranked search: the notes come by relevance, a match in the title before one in
+     * the text, more matches before fewer, and a pinned note before an equal one; each note
+     * comes with a snippet whose highlights cover the search term, and the ranked order pages.
+     */
+    public void testRankedSearch() {
+        String[] titles = { "Shopping", "Apple pie", "Unrelated", "Orchard", "Pinned" };
+        String[] texts = { "buy apple and pears", "dessert recipe", "nothing here",
+                "apple apple apple trees in the apple orchard", "an apple a day" };
+        for (int index = 0; index < titles.length; index++) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, titles[index]);
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, texts[index]);
+            values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, START_DATE);
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE);
+            values.put(NotePad.Notes.COLUMN_NAME_PINNED, "Pinned".equals(titles[index]) ? 1 : 0);
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        }
+        String[] projection = {
+                NotePad.Notes._ID,
+                NotePad.Notes.COLUMN_NAME_TITLE,
+                NotePad.Notes.COLUMN_NAME_RANK,
+                NotePad.Notes.COLUMN_NAME_SNIPPET,
+                NotePad.Notes.COLUMN_NAME_SNIPPET_HIGHLIGHTS
+        };
+        Uri uri = searchUri("appl");
+
+        Cursor cursor = mMockResolver.query(uri, projection, null, null,
+                NotePad.Notes.SEARCH_SORT_ORDER);
+        assertEquals(4, cursor.getCount());
+        List<String> order = new ArrayList<String>();
+        double previousRank = Double.POSITIVE_INFINITY;
+        while (cursor.moveToNext()) {
+            order.add(cursor.getString(1));
+            assertTrue(cursor.getDouble(2) > 0);
+            assertTrue(cursor.getDouble(2) <= previousRank);
+            previousRank = cursor.getDouble(2);
+
+            // Every highlight covers the term in the snippet.
+            String snippet = cursor.getString(3);
+            int[] highlights = SearchRanker.parseHighlights(cursor.getString(4));
+            assertTrue(snippet, highlights.length > 0);
+            for (int index = 0; index < highlights.length; index += 2) {
+                assertEquals("apple", snippet.substring(highlights[index],
+                        highlights[index + 1]).toLowerCase());
+            }
+        }
+        cursor.close();
+        assertEquals("Apple pie", order.get(0));
+        assertTrue(order.indexOf("Orchard") < order.indexOf("Shopping"));
+        assertTrue(order.indexOf("Pinned") < order.indexOf("Shopping"));
+
+        // The second page starts after the key of the first page's last note.
+        Uri pageUri = uri.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, "2")
+                .build();
+        cursor = mMockResolver.query(pageUri, projection, null, null,
+                NotePad.Notes.SEARCH_SORT_ORDER);
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToLast());
+        String after = cursor.getDouble(2) + "," + cursor.getLong(0);
+        cursor.close();
+        cursor = mMockResolver.query(pageUri.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER, after).build(),
+                projection, null, null, NotePad.Notes.SEARCH_SORT_ORDER);
+        assertEquals(2, cursor.getCount());
+        for (int position = 2; cursor.moveToNext(); position++) {
+            assertEquals(order.get(position), cursor.getString(1));
+        }
+        cursor.close();
+
+        // A selection restricts the ranked notes.
+        cursor = mMockResolver.query(uri, projection,
+                NotePad.Notes.COLUMN_NAME_PINNED + " = ?", new String[] { "1" },
+                NotePad.Notes.SEARCH_SORT_ORDER);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Pinned", cursor.getString(1));
+        cursor.close();
+
+        // A note looked up by its ID, the way the list places a changed note, ranks as it does
+        // among the others; a note that doesn't match isn't returned, and an OR still widens
+        // the selection.
+        cursor = mMockResolver.query(uri, projection, null, null,
+                NotePad.Notes.SEARCH_SORT_ORDER);
+        assertTrue(cursor.moveToPosition(1));
+        long id = cursor.getLong(0);
+        double rank = cursor.getDouble(2);
+        cursor.close();
+        cursor = mMockResolver.query(uri, projection, NotePad.Notes._ID + " = ? AND "
+                + NotePad.Notes.COLUMN_NAME_PINNED + " >= ?",
+                new String[] { Long.toString(id), "0" }, NotePad.Notes.SEARCH_SORT_ORDER);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(order.get(1), cursor.getString(1));
+        assertEquals(rank, cursor.getDouble(2), rank * 1e-6);
+        cursor.close();
+        long unrelatedId = DatabaseUtils.longForQuery(mDb, "SELECT " + NotePad.Notes._ID
+                + " FROM " + NotePad.Notes.TABLE_NAME + " WHERE "
+                + NotePad.Notes.COLUMN_NAME_TITLE + " = 'Unrelated'", null);
+        cursor = mMockResolver.query(uri, projection, NotePad.Notes._ID + " = ?",
+                new String[] { Long.toString(unrelatedId) }, NotePad.Notes.SEARCH_SORT_ORDER);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(uri, projection, NotePad.Notes._ID + " = ? AND "
+                + NotePad.Notes.COLUMN_NAME_PINNED + " = ? OR "
+                + NotePad.Notes.COLUMN_NAME_PINNED + " = ?",
+                new String[] { Long.toString(unrelatedId), "0", "1" },
+                NotePad.Notes.SEARCH_SORT_ORDER);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // A page read after a write is cut from a ranking of the notes as written.
+        mMockResolver.query(pageUri, projection, null, null, NotePad.Notes.SEARCH_SORT_ORDER)
+                .close();
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "pears");
+        assertEquals(1, mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { order.get(2) }));
+        cursor = mMockResolver.query(pageUri.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER, after).build(),
+                projection, null, null, NotePad.Notes.SEARCH_SORT_ORDER);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(order.get(3), cursor.getString(1));
+        cursor.close();
+
+        try {
+            mMockResolver.query(uri, new String[] { "bogus" }, null, null,
+                    NotePad.Notes.SEARCH_SORT_ORDER);
+            fail("Ranked search returned an unknown column");
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+    // Asserts that the plan of the query reads a covering index and never sorts.
+    private void assertCoveringIndexPlan(String sql, String[] args) {
+        String steps = explain(sql, args);
+        assertTrue(steps, steps.contains("COVERING INDEX"));
+        assertFalse(steps, steps.contains("TEMP B-TREE"));
+    }
+
+    // Returns the steps of the query's plan, one per line.
+    private String explain(String sql, String[] args) {
+        Cursor plan = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        int detailIndex = plan.getColumnIndexOrThrow("detail");
+        StringBuilder details = new StringBuilder();
+        while (plan.moveToNext()) {
+            details.append(plan.getString(detailIndex)).append('\n');
+        }
+        plan.close();
+        return details.toString();
+    }
+
+    /*
+     * Tests that the provider's database runs in write-ahead logging mode, with the checkpoint
+     * policy the provider configures.
+     */
+    public void testWriteAheadLogging() {
+        assertEquals("wal",
+                DatabaseUtils.stringForQuery(mDb, "PRAGMA journal_mode", null).toLowerCase());
+        assertEquals(NotePadProvider.WAL_AUTOCHECKPOINT_PAGES,
+                DatabaseUtils.longForQuery(mDb, "PRAGMA wal_autocheckpoint", null));
+    }
+
+    // The columns a page key is built from.
+    private static final String[] PAGE_PROJECTION = {
+        NotePad.Notes._ID,
+        NotePad.Notes.COLUMN_NAME_PINNED,
+        NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+    };
+
+    // Builds the URI of a page of the notes list.
+    private static Uri pageUri(int limit, String after) {
+        Uri.Builder builder = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, String.valueOf(limit));
+        if (after != null) {
+            builder.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER, after);
+        }
+        return builder.build();
+    }
+
+    // Returns the page key of the note at the cursor's position, read with PAGE_PROJECTION.
+    private static String pageKey(Cursor cursor) {
+        return cursor.getInt(1) + "," + cursor.getLong(2) + "," + cursor.getLong(0);
+    }
+
+    // Builds a search URI for the given text, the way NotesList does.
+    private static Uri searchUri(String filter) {
+        return NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_FILTER, filter)
+                .build();
+    }
+
     // A utility for converting note data to a ContentValues map.
     private static class NoteInfo {
         String title;
@@ -0,0 +1,394 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.ProviderTestCase2;
+import android.test.mock.MockContentResolver;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the write-behind saver of the note editor against the provider.
+ */
+public class NoteSaverTest extends ProviderTestCase2<NotePadProvider> {
+
+    // The saver's delays, short for the tests.
+    private static final long DELAY_MILLIS = 100;
+    private static final long MAX_DELAY_MILLIS = 1000;
+
+    // How long a test waits for the saver's writes.
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    // The uptime the saver's clock starts at.
+    private static final long START_MILLIS = 1000;
+
+    // What a read through the saver handed to its reader.
+    private static class Read {
+        ContentValues mStored;
+        ContentValues mPending;
+        boolean mConflict;
+    }
+
+    private MockContentResolver mMockResolver;
+
+    private NoteSaver mSaver;
+
+    // The uptime the saver's clock reads, which the tests move forward.
+    private volatile long mNow = START_MILLIS;
+
+    public NoteSaverTest() {
+        super(NotePadProvider.class, NotePad.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockResolver = getMockContentResolver();
+        mSaver = new NoteSaver(mMockResolver, DELAY_MILLIS, MAX_DELAY_MILLIS,
+                new NoteSaver.Clock() {
+                    @Override
+                    public long uptimeMillis() {
+                        return mNow;
+                    }
+                });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSaver.quitForTest();
+        super.tearDown();
+    }
+
+    /*
+     * Tests that the saves of a note are merged into one write, and shown as pending until
+     * they are written.
+     */
+    public void testSavesAreCoalesced() throws InterruptedException {
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, null);
+
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < 10; i++) {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Draft " + i);
+            mSaver.save(noteUri, values);
+        }
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_PINNED, 1);
+        mSaver.save(noteUri, values);
+
+        ContentValues pending = mSaver.getPendingValues(noteUri);
+        assertEquals("Draft 9", pending.getAsString(NotePad.Notes.COLUMN_NAME_NOTE));
+        assertEquals(Integer.valueOf(1), pending.getAsInteger(NotePad.Notes.COLUMN_NAME_PINNED));
+
+        mSaver.flush();
+        assertTrue(mSaver.waitForWritesForTest(TIMEOUT_MILLIS));
+        assertNull(mSaver.getPendingValues(noteUri));
+        assertEquals(11, mSaver.getSaveCountForTest());
+        assertEquals(1, mSaver.getWriteCountForTest());
+        assertNote(noteUri, "Draft 9", 1);
+    }
+
+    /*
+     * Tests that the saves are written once no save has come for the idle delay, each save
+     * putting the write off again.
+     */
+    public void testIdleFlush() throws InterruptedException {
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, null);
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Idle");
+        mSaver.save(noteUri, values);
+        assertEquals(START_MILLIS + DELAY_MILLIS, mSaver.getFlushTimeForTest());
+        mNow += DELAY_MILLIS / 2;
+        mSaver.save(noteUri, values);
+        assertEquals(mNow + DELAY_MILLIS, mSaver.getFlushTimeForTest());
+        assertEquals(0, mSaver.getWriteCountForTest());
+
+        waitForWriteCount(1);
+        assertEquals(0, mSaver.getFlushTimeForTest());
+        assertNote(noteUri, "Idle", 0);
+    }
+
+    /*
+     * Tests that saves that keep coming are written at most the longer delay after the first.
+     */
+    public void testMaxDelayFlush() {
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, null);
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Busy");
+        for (; mNow + DELAY_MILLIS <= START_MILLIS + MAX_DELAY_MILLIS; mNow += DELAY_MILLIS / 2) {
+            mSaver.save(noteUri, values);
+            assertEquals(mNow + DELAY_MILLIS, mSaver.getFlushTimeForTest());
+        }
+        mSaver.save(noteUri, values);
+        assertEquals(START_MILLIS + MAX_DELAY_MILLIS, mSaver.getFlushTimeForTest());
+        mSaver.cancel(noteUri);
+    }
+
+    /*
+     * Tests that a cancelled save is not written.
+     */
+    public void testCancel() throws InterruptedException {
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, null);
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Discarded");
+        mSaver.save(noteUri, values);
+        mSaver.cancel(noteUri);
+        assertEquals(0, mSaver.getFlushTimeForTest());
+        mSaver.flush();
+        assertTrue(mSaver.waitForWritesForTest(TIMEOUT_MILLIS));
+        assertEquals(0, mSaver.getWriteCountForTest());
+        assertNote(noteUri, "", 0);
+
+        // The cancelled save no longer counts toward the longer delay of the next one.
+        mNow += MAX_DELAY_MILLIS;
+        mSaver.save(noteUri, values);
+        assertEquals(mNow + DELAY_MILLIS, mSaver.getFlushTimeForTest());
+    }
+
+    /*
+     * Tests that saves that fail to be written are kept, under the saves made to the note
+     * since, and that the saves of a deleted note, which match no note, are dropped.
+     */
+    public void testFailedSavesAreKept() throws InterruptedException {
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, null);
+
+        // The provider fails the update on a column it doesn't have.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Kept");
+        values.put("no_such_column", 1);
+        mSaver.save(noteUri, values);
+        mSaver.flush();
+        assertTrue(mSaver.waitForWritesForTest(TIMEOUT_MILLIS));
+        assertEquals(0, mSaver.getWriteCountForTest());
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_PINNED, 1);
+        mSaver.save(noteUri, values);
+        ContentValues pending = mSaver.getPendingValues(noteUri);
+        assertEquals("Kept", pending.getAsString(NotePad.Notes.COLUMN_NAME_NOTE));
+        assertEquals(Integer.valueOf(1), pending.getAsInteger(NotePad.Notes.COLUMN_NAME_PINNED));
+        mSaver.cancel(noteUri);
+
+        // The provider rejects the update of a URI it doesn't know with an
+        // IllegalArgumentException, which is kept like any other failure.
+        Uri unknownUri = Uri.parse("content://" + NotePad.AUTHORITY + "/no_such_table/1");
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Kept");
+        mSaver.save(unknownUri, values);
+        mSaver.flush();
+        assertTrue(mSaver.waitForWritesForTest(TIMEOUT_MILLIS));
+        assertEquals("Kept",
+                mSaver.getPendingValues(unknownUri).getAsString(NotePad.Notes.COLUMN_NAME_NOTE));
+        mSaver.cancel(unknownUri);
+
+        Uri deletedUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, null);
+        mMockResolver.delete(deletedUri, null, null);
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Dropped");
+        mSaver.save(deletedUri, values);
+        mSaver.flush();
+        assertTrue(mSaver.waitForWritesForTest(TIMEOUT_MILLIS));
+        assertNull(mSaver.getPendingValues(deletedUri));
+        assertEquals(0, mSaver.getWriteCountForTest());
+    }
+
+    /*
+     * Tests that patches of a note's text follow each other or the text pending before them,
+     * and that a whole text replaces a pending patch.
+     */
+    public void testPatchesAreMerged() throws InterruptedException {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "abc");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        read(noteUri);
+
+        mSaver.save(noteUri, patch(3, "abcd", 3, 1));
+        mSaver.save(noteUri, patch(4, "abXcd", 2, 1));
+        ContentValues pending = mSaver.getPendingValues(noteUri);
+        assertFalse(pending.containsKey(NotePad.Notes.COLUMN_NAME_NOTE));
+        assertEquals("abXcd", EditJournal.decode(pending.getAsByteArray(
+                NotePad.Notes.COLUMN_NAME_NOTE_PATCH)).apply("abc"));
+        mSaver.flush();
+        assertTrue(mSaver.waitForWritesForTest(TIMEOUT_MILLIS));
+        assertEquals(1, mSaver.getWriteCountForTest());
+        assertNote(noteUri, "abXcd", 0);
+
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "xyz");
+        mSaver.save(noteUri, patch(5, "abXcde", 5, 1));
+        mSaver.save(noteUri, values);
+        mSaver.save(noteUri, patch(3, "xyz!", 3, 1));
+        pending = mSaver.getPendingValues(noteUri);
+        assertFalse(pending.containsKey(NotePad.Notes.COLUMN_NAME_NOTE_PATCH));
+        assertEquals("xyz!", pending.getAsString(NotePad.Notes.COLUMN_NAME_NOTE));
+        mSaver.flush();
+        assertTrue(mSaver.waitForWritesForTest(TIMEOUT_MILLIS));
+        assertNote(noteUri, "xyz!", 0);
+
+        // The whole text was written on the version the saver knew, so a patch still follows.
+        mSaver.save(noteUri, patch(4, "xyz!?", 4, 1));
+        mSaver.flush();
+        assertTrue(mSaver.waitForWritesForTest(TIMEOUT_MILLIS));
+        assertNote(noteUri, "xyz!?", 0);
+    }
+
+    /*
+     * Tests that a patch isn't applied to a text another client wrote since the saver read the
+     * note, even one of the same length: the save's other columns are written, and the patch's
+     * listener is asked for the whole text. Once the note is read again, patches apply to it.
+     */
+    public void testPatchOfChangedTextIsRejected() throws InterruptedException {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "abc");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        read(noteUri);
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "xyz");
+        mMockResolver.update(noteUri, values, null, null);
+
+        final CountDownLatch rejected = new CountDownLatch(1);
+        values = patch(3, "abcd", 3, 1);
+        values.put(NotePad.Notes.COLUMN_NAME_PINNED, 1);
+        mSaver.save(noteUri, values, new NoteSaver.PatchListener() {
+            @Override
+            public void onPatchRejected(Uri noteUri) {
+                rejected.countDown();
+            }
+        });
+        mSaver.flush();
+        assertTrue(mSaver.waitForWritesForTest(TIMEOUT_MILLIS));
+        assertTrue(rejected.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertNote(noteUri, "xyz", 1);
+
+        read(noteUri);
+        mSaver.save(noteUri, patch(3, "xyz!", 3, 1));
+        mSaver.flush();
+        assertTrue(mSaver.waitForWritesForTest(TIMEOUT_MILLIS));
+        assertNote(noteUri, "xyz!", 1);
+    }
+
+    /*
+     * Tests that a read hands over the stored values with the saves not written yet, and
+     * leaves out a pending patch that the stored text, which another client wrote, doesn't
+     * take anymore.
+     */
+    public void testReadWithPendingValues() throws InterruptedException {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "abc");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        Read read = read(noteUri);
+        assertEquals("abc", read.mStored.getAsString(NotePad.Notes.COLUMN_NAME_NOTE));
+        assertNull(read.mPending);
+        assertFalse(read.mConflict);
+
+        mSaver.save(noteUri, patch(3, "abcd", 3, 1));
+        read = read(noteUri);
+        assertEquals("abcd", EditJournal.decode(read.mPending.getAsByteArray(
+                NotePad.Notes.COLUMN_NAME_NOTE_PATCH)).apply(
+                read.mStored.getAsString(NotePad.Notes.COLUMN_NAME_NOTE)));
+        assertFalse(read.mConflict);
+        mSaver.cancel(noteUri);
+
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "xyz");
+        mMockResolver.update(noteUri, values, null, null);
+        final CountDownLatch rejected = new CountDownLatch(1);
+        mSaver.save(noteUri, patch(3, "abcd", 3, 1), new NoteSaver.PatchListener() {
+            @Override
+            public void onPatchRejected(Uri noteUri) {
+                rejected.countDown();
+            }
+        });
+        read = read(noteUri);
+        assertEquals("xyz", read.mStored.getAsString(NotePad.Notes.COLUMN_NAME_NOTE));
+        assertNull(read.mPending);
+        assertTrue(read.mConflict);
+        assertTrue(rejected.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        mSaver.flush();
+        assertTrue(mSaver.waitForWritesForTest(TIMEOUT_MILLIS));
+        assertNote(noteUri, "xyz", 0);
+    }
+
+    // Reads a note's text through the saver, which takes its version from the read.
+    private Read read(final Uri noteUri) throws InterruptedException {
+        final Read read = new Read();
+        final CountDownLatch latch = new CountDownLatch(1);
+        mSaver.readWithPendingValues(noteUri, new NoteSaver.NoteReader() {
+            @Override
+            public ContentValues read() {
+                Cursor cursor = mMockResolver.query(noteUri, new String[] {
+                        NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_NOTE_VERSION },
+                        null, null, null);
+                try {
+                    assertTrue(cursor.moveToFirst());
+                    ContentValues values = new ContentValues();
+                    values.put(NotePad.Notes.COLUMN_NAME_NOTE, cursor.getString(0));
+                    values.put(NotePad.Notes.COLUMN_NAME_NOTE_VERSION, cursor.getLong(1));
+                    return values;
+                } finally {
+                    cursor.close();
+                }
+            }
+
+            @Override
+            public void onRead(ContentValues stored, ContentValues pending, boolean conflict) {
+                read.mStored = stored;
+                read.mPending = pending;
+                read.mConflict = conflict;
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        return read;
+    }
+
+    // Returns the values of a patch that inserts chars of a text into a text of a length.
+    private static ContentValues patch(int length, String text, int start, int count) {
+        EditJournal journal = new EditJournal(length);
+        journal.record(start, 0, text, count);
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE_PATCH, journal.encode());
+        return values;
+    }
+
+    // Waits for the saver to have written a number of updates, on its own schedule.
+    private void waitForWriteCount(int count) throws InterruptedException {
+        long deadline = SystemClock.uptimeMillis() + TIMEOUT_MILLIS;
+        while (mSaver.getWriteCountForTest() < count) {
+            assertTrue(SystemClock.uptimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        assertEquals(count, mSaver.getWriteCountForTest());
+    }
+
+    // Checks the stored text and pinned status of a note.
+    private void assertNote(Uri noteUri, String note, int pinned) {
+        Cursor cursor = mMockResolver.query(noteUri, new String[] {
+                NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_PINNED },
+                null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(note, cursor.getString(0));
+            assertEquals(pinned, cursor.getInt(1));
+        } finally {
+            cursor.close();
+        }
+    }
+}
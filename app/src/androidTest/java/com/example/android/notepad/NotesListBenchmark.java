@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import android.test.ActivityInstrumentationTestCase2;
+import android.text.TextUtils;
+import android.util.Log;
+import android.view.Choreographer;
+import android.widget.SearchView;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures how typing a search into the notes list feels against a large collection: the time
+ * the UI thread spends on each keystroke, the intervals between the frames drawn while typing,
+ * and how long each keystroke takes to show its results. The timings are written to the log
+ * under the "NotePadBenchmark" tag, with the provider's. The synthetic notes are written to a
+ * database of their own, which the app's provider uses for the test, the way
+ * {@link android.test.ProviderTestCase2} keeps a test's data apart, so the user's notes are
+ * never read or touched.
+ */
+public class NotesListBenchmark extends ActivityInstrumentationTestCase2<NotesList> {
+
+    // The log tag the measurements are written under.
+    private static final String TAG = "NotePadBenchmark";
+
+    // The number of synthetic notes, the title they start with, and the database they are in.
+    private static final int NOTE_COUNT = 50000;
+    private static final String TITLE_PREFIX = "NotesListBenchmark ";
+    private static final String DATABASE_NAME = "notes_list_benchmark.db";
+
+    // Words used to build the synthetic note bodies, and the search typed a char at a time.
+    private static final String[] WORDS = {
+        "meeting", "project", "budget", "review", "draft", "call", "plan", "travel",
+        "invoice", "report", "idea", "list", "groceries", "book", "movie", "weekend"
+    };
+    private static final String SEARCH = "groceries budget";
+
+    // A word planted in one note out of every NEEDLE_INTERVAL, few enough for the list to hold
+    // all of the notes that match it.
+    private static final String NEEDLE = "zephyr";
+    private static final int NEEDLE_INTERVAL = 2000;
+
+    // The pause between two keystrokes, about the pace of fast typing.
+    private static final long KEYSTROKE_INTERVAL_MILLIS = 80;
+
+    // A frame interval above this missed at least one frame at 60 frames a second.
+    private static final long JANK_NANOS = 17 * 1000 * 1000;
+
+    private NotePadProvider mProvider;
+    private SQLiteDatabase mDb;
+
+    public NotesListBenchmark() {
+        super(NotesList.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        ContentProviderClient client = getInstrumentation().getTargetContext()
+                .getContentResolver().acquireContentProviderClient(NotePad.AUTHORITY);
+        try {
+            mProvider = (NotePadProvider) client.getLocalContentProvider();
+        } finally {
+            client.release();
+        }
+
+        // A run that was stopped may have left its database behind.
+        getInstrumentation().getTargetContext().deleteDatabase(DATABASE_NAME);
+        mProvider.useDatabaseForTest(DATABASE_NAME);
+        mDb = mProvider.getOpenHelperForTest().getWritableDatabase();
+        populate();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        NotePadProvider provider = mProvider;
+
+        // Finishes the activity first, so nothing reads the benchmark's database any more.
+        super.tearDown();
+        provider.useDatabaseForTest(null);
+        getInstrumentation().getTargetContext().deleteDatabase(DATABASE_NAME);
+    }
+
+    /*
+     * Types a search into the list's search view a char at a time, the way a user would, and
+     * records the UI thread's time per keystroke and the frame intervals meanwhile. For
+     * comparison, the same first-page queries are also timed as the list used to run them, on
+     * the calling thread.
+     */
+    public void testSearchTyping() throws Throwable {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return;
+        }
+        final NotesList activity = getActivity();
+        final SearchView searchView = (SearchView) activity.findViewById(R.id.search_view);
+        final List<Long> frameTimes = new ArrayList<Long>();
+        final Choreographer.FrameCallback[] recorder = new Choreographer.FrameCallback[1];
+        final boolean[] recording = { true };
+        recorder[0] = new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                frameTimes.add(frameTimeNanos);
+                if (recording[0]) {
+                    Choreographer.getInstance().postFrameCallback(recorder[0]);
+                }
+            }
+        };
+        getInstrumentation().waitForIdleSync();
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                Choreographer.getInstance().postFrameCallback(recorder[0]);
+            }
+        });
+
+        final long[] keystrokeNanos = new long[SEARCH.length()];
+        for (int length = 1; length <= SEARCH.length(); length++) {
+            final int index = length - 1;
+            final String query = SEARCH.substring(0, length);
+            runTestOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    searchView.setQuery(query, false);
+                    keystrokeNanos[index] = System.nanoTime() - start;
+                }
+            });
+            SystemClock.sleep(KEYSTROKE_INTERVAL_MILLIS);
+        }
+
+        // Lets the last search load before the recording stops.
+        SystemClock.sleep(1000);
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                recording[0] = false;
+            }
+        });
+        getInstrumentation().waitForIdleSync();
+
+        long[] intervals = new long[frameTimes.size() - 1];
+        int janky = 0;
+        for (int index = 0; index < intervals.length; index++) {
+            intervals[index] = frameTimes.get(index + 1) - frameTimes.get(index);
+            if (intervals[index] > JANK_NANOS) {
+                janky++;
+            }
+        }
+        assertTrue(intervals.length > 0);
+
+        // The first pages of the same searches, queried on this thread as the list used to.
+        long[] synchronousNanos = new long[SEARCH.length()];
+        ContentResolver resolver = activity.getContentResolver();
+        for (int length = 1; length <= SEARCH.length(); length++) {
+            long start = System.nanoTime();
+            Cursor page = resolver.query(firstPageUri(SEARCH.substring(0, length)),
+                    new String[] { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE },
+                    null, null, NotePad.Notes.LIST_SORT_ORDER);
+            page.getCount();
+            synchronousNanos[length - 1] = System.nanoTime() - start;
+            page.close();
+        }
+
+        Log.i(TAG, "typing \"" + SEARCH + "\" over " + NOTE_COUNT + " notes: UI thread per"
+                + " keystroke median " + percentileMicros(keystrokeNanos, 50) + "us, max "
+                + percentileMicros(keystrokeNanos, 100) + "us (synchronous query median "
+                + percentileMicros(synchronousNanos, 50) + "us, max "
+                + percentileMicros(synchronousNanos, 100) + "us); frames median "
+                + percentileMicros(intervals, 50) + "us, 95th percentile "
+                + percentileMicros(intervals, 95) + "us, max " + percentileMicros(intervals, 100)
+                + "us, " + janky + " of " + intervals.length + " over "
+                + JANK_NANOS / 1000 + "us");
+    }
+
+    /*
+     * Measures the latency from a keystroke to the list showing its results. A word typed
+     * quickly is searched for once typing pauses; a rare word typed a char at a time after a
+     * pause refines the previous result at each keystroke. For comparison, the first pages of
+     * the same texts are also timed as plain searches.
+     */
+    public void testSearchLatencyPerKeystroke() throws Throwable {
+        final NotesList activity = getActivity();
+        final SearchView searchView = (SearchView) activity.findViewById(R.id.search_view);
+        getInstrumentation().waitForIdleSync();
+        waitForShown(activity, null);
+
+        // A common word typed quickly.
+        String word = "meeting";
+        int queriesBefore = getListQueryCount(activity);
+        long lastKeystroke = 0;
+        for (int length = 1; length <= word.length(); length++) {
+            lastKeystroke = type(searchView, word.substring(0, length));
+            SystemClock.sleep(KEYSTROKE_INTERVAL_MILLIS);
+        }
+        long wordLatency = waitForShown(activity, word) - lastKeystroke;
+        int wordQueries = getListQueryCount(activity) - queriesBefore;
+
+        // A rare word: its first chars after a pause, then the rest a char at a time.
+        type(searchView, "");
+        waitForShown(activity, null);
+        String prefix = NEEDLE.substring(0, 2);
+        type(searchView, prefix);
+        waitForShown(activity, prefix);
+        int refinedBefore = getRefinedQueryCount(activity);
+        int keys = NEEDLE.length() - prefix.length();
+        long[] refinedNanos = new long[keys];
+        long[] plainNanos = new long[keys];
+        ContentResolver resolver = activity.getContentResolver();
+        for (int index = 0; index < keys; index++) {
+            String text = NEEDLE.substring(0, prefix.length() + index + 1);
+            long start = type(searchView, text);
+            refinedNanos[index] = waitForShown(activity, text) - start;
+
+            start = System.nanoTime();
+            Cursor page = resolver.query(firstPageUri(text),
+                    new String[] { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE },
+                    null, null, NotePad.Notes.SEARCH_SORT_ORDER);
+            page.getCount();
+            plainNanos[index] = System.nanoTime() - start;
+            page.close();
+        }
+        int refined = getRefinedQueryCount(activity) - refinedBefore;
+        assertEquals(keys, refined);
+
+        Log.i(TAG, "search latency over " + NOTE_COUNT + " notes: \"" + word + "\" typed every "
+                + KEYSTROKE_INTERVAL_MILLIS + "ms shown " + wordLatency / 1000 + "us after the"
+                + " last keystroke with " + wordQueries + " list queries; \"" + NEEDLE
+                + "\" refined per keystroke median " + percentileMicros(refinedNanos, 50)
+                + "us, max " + percentileMicros(refinedNanos, 100) + "us (plain search median "
+                + percentileMicros(plainNanos, 50) + "us, max "
+                + percentileMicros(plainNanos, 100) + "us)");
+    }
+
+    // Sets the search text on the UI thread, and returns the time it was set at.
+    private long type(final SearchView searchView, final String text) throws Throwable {
+        final long[] time = new long[1];
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                time[0] = System.nanoTime();
+                searchView.setQuery(text, false);
+            }
+        });
+        return time[0];
+    }
+
+    // Waits until the list shows the notes of a search text, and returns the time it did.
+    private long waitForShown(final NotesList activity, final String filter) throws Throwable {
+        final boolean[] shown = new boolean[1];
+        long deadline = SystemClock.uptimeMillis() + 30000;
+        while (SystemClock.uptimeMillis() < deadline) {
+            runTestOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    shown[0] = TextUtils.equals(filter, activity.getShownFilterForTest());
+                }
+            });
+            if (shown[0]) {
+                return System.nanoTime();
+            }
+            SystemClock.sleep(1);
+        }
+        fail("The list didn't show the notes of \"" + filter + "\"");
+        return 0;
+    }
+
+    private int getListQueryCount(final NotesList activity) throws Throwable {
+        final int[] count = new int[1];
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                count[0] = activity.getListQueryCountForTest();
+            }
+        });
+        return count[0];
+    }
+
+    private int getRefinedQueryCount(final NotesList activity) throws Throwable {
+        final int[] count = new int[1];
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                count[0] = activity.getRefinedQueryCountForTest();
+            }
+        });
+        return count[0];
+    }
+
+    // Builds the URI of the first page of a search, the way NotesList does.
+    private static Uri firstPageUri(String filter) {
+        return NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_FILTER, filter.trim())
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, "50")
+                .build();
+    }
+
+    /*
+     * Adds the synthetic notes. The rows are written in one transaction straight to the
+     * database, so the setup stays quick.
+     */
+    private void populate() {
+        Random random = new Random(NOTE_COUNT);
+        long now = System.currentTimeMillis();
+        mDb.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            ContentValues body = new ContentValues();
+            for (int i = 0; i < NOTE_COUNT; i++) {
+                values.put(NotePad.Notes.COLUMN_NAME_TITLE, TITLE_PREFIX + i);
+                values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, now - i);
+                values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now - i);
+                body.put(NotePadProvider.BODIES_COLUMN_NOTE_ID,
+                        mDb.insertOrThrow(NotePad.Notes.TABLE_NAME, null, values));
+                StringBuilder text = new StringBuilder();
+                for (int word = 0; word < 30; word++) {
+                    text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+                }
+                if (i % NEEDLE_INTERVAL == 0) {
+                    text.append(NEEDLE);
+                }
+                body.put(NotePad.Notes.COLUMN_NAME_NOTE, text.toString());
+                body.put(NotePad.Notes.COLUMN_NAME_NOTE_SIZE, text.length());
+                mDb.insertOrThrow(NotePadProvider.BODIES_TABLE_NAME, null, body);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+
+        // The notes were added behind the provider, which indexes them and may have cached
+        // lists without them.
+        mProvider.rebuildSearchIndexForTest();
+    }
+
+    // Returns a percentile of the given nanosecond timings, in microseconds.
+    private static long percentileMicros(long[] nanos, int percentile) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        int index = Math.min(sorted.length - 1, sorted.length * percentile / 100);
+        return sorted[index] / 1000;
+    }
+}
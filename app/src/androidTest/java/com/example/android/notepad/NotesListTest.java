@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.ActivityInstrumentationTestCase2;
+import android.widget.CursorAdapter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests that the notes list patches the notes the provider says changed into the loaded list,
+ * without reloading it, and reloads it when too many changed at once. The notes are written
+ * to a database of their own, which the app's provider uses for the test, so the user's notes
+ * are never read or touched.
+ */
+public class NotesListTest extends ActivityInstrumentationTestCase2<NotesList> {
+
+    private static final String DATABASE_NAME = "notes_list_test.db";
+
+    // How long the list is given to show a change.
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private NotePadProvider mProvider;
+    private ContentResolver mResolver;
+
+    // The URIs of the notes the tests start with, "Note 1" to "Note 5", oldest first.
+    private final Uri[] mNoteUris = new Uri[5];
+
+    public NotesListTest() {
+        super(NotesList.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mResolver = getInstrumentation().getTargetContext().getContentResolver();
+        ContentProviderClient client = mResolver.acquireContentProviderClient(NotePad.AUTHORITY);
+        try {
+            mProvider = (NotePadProvider) client.getLocalContentProvider();
+        } finally {
+            client.release();
+        }
+
+        // A run that was stopped may have left its database behind.
+        getInstrumentation().getTargetContext().deleteDatabase(DATABASE_NAME);
+        mProvider.useDatabaseForTest(DATABASE_NAME);
+        for (int i = 0; i < mNoteUris.length; i++) {
+            mNoteUris[i] = insertNote("Note " + (i + 1), (i + 1) * 1000L);
+        }
+        mProvider.getNotificationDispatcherForTest().flush();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        NotePadProvider provider = mProvider;
+
+        // Finishes the activity first, so nothing reads the test's database any more.
+        super.tearDown();
+        provider.useDatabaseForTest(null);
+        getInstrumentation().getTargetContext().deleteDatabase(DATABASE_NAME);
+    }
+
+    /*
+     * Tests that an insert, an update and a delete are each patched into the list, at the
+     * place of the list order they belong to, without a list query.
+     */
+    public void testChangesArePatched() throws Throwable {
+        NotesList activity = getActivity();
+        waitForTitles(activity, "Note 5", "Note 4", "Note 3", "Note 2", "Note 1");
+        int listQueries = getListQueryCount(activity);
+
+        insertNote("Note 6", 6000L);
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Note 2 edited");
+        assertEquals(1, mResolver.update(mNoteUris[1], values, null, null));
+        assertEquals(1, mResolver.delete(mNoteUris[3], null, null));
+
+        waitForTitles(activity, "Note 6", "Note 5", "Note 3", "Note 2 edited", "Note 1");
+        assertEquals(listQueries, getListQueryCount(activity));
+    }
+
+    /*
+     * Tests that more than NotificationDispatcher.MAX_ITEM_CHANGES notes changed at once make
+     * the list reload instead of patching each note.
+     */
+    public void testManyChangesReload() throws Throwable {
+        NotesList activity = getActivity();
+        waitForTitles(activity, "Note 5", "Note 4", "Note 3", "Note 2", "Note 1");
+        int listQueries = getListQueryCount(activity);
+
+        // A batch sends its notifications together, once it is committed.
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        List<String> titles = new ArrayList<String>();
+        int count = NotificationDispatcher.MAX_ITEM_CHANGES + 1;
+        for (int i = count; i > 0; i--) {
+            String title = "Added " + i;
+            operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                    .withValue(NotePad.Notes.COLUMN_NAME_TITLE, title)
+                    .withValue(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, 10000L + i)
+                    .build());
+            titles.add(title);
+        }
+        mResolver.applyBatch(NotePad.AUTHORITY, operations);
+
+        titles.addAll(Arrays.asList("Note 5", "Note 4", "Note 3", "Note 2", "Note 1"));
+        waitForTitles(activity, titles.toArray(new String[titles.size()]));
+        assertTrue(getListQueryCount(activity) > listQueries);
+    }
+
+    // Inserts a note with a title and a modification date, and returns its URI.
+    private Uri insertNote(String title, long modified) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "");
+        values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, modified);
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, modified);
+        Uri noteUri = mResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        assertTrue(ContentUris.parseId(noteUri) > 0);
+        return noteUri;
+    }
+
+    // Waits until the list is idle and shows the notes with the given titles, in their order.
+    private void waitForTitles(final NotesList activity, String... expected) throws Throwable {
+        final List<String> titles = new ArrayList<String>();
+        final boolean[] loading = new boolean[1];
+        long deadline = SystemClock.uptimeMillis() + TIMEOUT_MILLIS;
+        while (SystemClock.uptimeMillis() < deadline) {
+            runTestOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    titles.clear();
+                    loading[0] = activity.isLoadingForTest();
+                    Cursor notes = ((CursorAdapter) activity.getListAdapter()).getCursor();
+                    if (notes == null) {
+                        return;
+                    }
+                    int column = notes.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_TITLE);
+                    for (notes.moveToFirst(); !notes.isAfterLast(); notes.moveToNext()) {
+                        titles.add(notes.getString(column));
+                    }
+                }
+            });
+            if (!loading[0] && titles.equals(Arrays.asList(expected))) {
+                return;
+            }
+            SystemClock.sleep(10);
+        }
+        assertEquals(Arrays.asList(expected), titles);
+    }
+
+    private int getListQueryCount(final NotesList activity) throws Throwable {
+        final int[] count = new int[1];
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                count[0] = activity.getListQueryCountForTest();
+            }
+        });
+        return count[0];
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the text of large notes for the bodies table. A body is stored as TEXT while it is
+ * small, and as a BLOB holding its UTF-8 bytes in a zlib stream once it reaches the compression
+ * threshold, so the type of the stored value tells how to read it back. Pasted logs and
+ * documents repeat themselves a lot and shrink to a fraction of their size; short notes aren't
+ * worth the time, and are kept readable by SQL.
+ */
+final class BodyCodec {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // The size of the chunks a body is inflated in.
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    // This class cannot be instantiated
+    private BodyCodec() {
+    }
+
+    /**
+     * Returns the value to store for a body: the body itself, or its compressed bytes if its
+     * UTF-8 form is at least the threshold long and compression makes it smaller.
+     *
+     * @param body The text of the note, may be null.
+     * @param threshold The size in bytes from which bodies are compressed.
+     * @return A String, a byte[] or null.
+     */
+    static Object encode(String body, int threshold) {
+        if (body == null || body.length() < threshold / 3) {
+            // Even at three bytes per character, the body is under the threshold.
+            return body;
+        }
+        byte[] bytes = body.getBytes(UTF_8);
+        if (bytes.length < threshold) {
+            return body;
+        }
+
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                compressed.write(buffer, 0, deflater.deflate(buffer));
+                if (compressed.size() >= bytes.length) {
+                    return body;
+                }
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Returns the number of bytes of the UTF-8 form of the text, without encoding it. A lone
+     * surrogate counts as the one byte of the replacement an encoder writes for it.
+     */
+    static long utf8Length(String text) {
+        if (text == null) {
+            return 0;
+        }
+        long length = 0;
+        for (int index = 0; index < text.length(); index++) {
+            char ch = text.charAt(index);
+            if (ch < 0x80) {
+                length += 1;
+            } else if (ch < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(ch) && index + 1 < text.length()
+                    && Character.isLowSurrogate(text.charAt(index + 1))) {
+                // A supplementary character takes four bytes for its two chars.
+                length += 4;
+                index++;
+            } else if (Character.isHighSurrogate(ch) || Character.isLowSurrogate(ch)) {
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Returns the text of a body stored compressed by {@link #encode}.
+     *
+     * @throws IllegalStateException if the bytes aren't a compressed body.
+     */
+    static String decode(byte[] compressed) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(compressed.length * 4);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("Truncated note body");
+                }
+                bytes.write(buffer, 0, length);
+            }
+            return new String(bytes.toByteArray(), UTF_8);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt note body", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+/**
+ * A cursor that returns the note column as text when the body is stored compressed. A body is
+ * only inflated when its row's note is read, so a client that moves over the rows without
+ * reading the text pays nothing; the last inflated body is kept for repeated reads of its row.
+ */
+class BodyCursor extends CursorWrapper {
+
+    // The index of the note column.
+    private final int mNoteColumn;
+
+    // The position of the last inflated body, and its text.
+    private int mInflatedPosition = -1;
+    private String mInflatedBody;
+
+    /**
+     * @param cursor The cursor to wrap.
+     * @param noteColumn The index of the note column in the cursor.
+     */
+    BodyCursor(Cursor cursor, int noteColumn) {
+        super(cursor);
+        mNoteColumn = noteColumn;
+    }
+
+    @Override
+    public String getString(int columnIndex) {
+        if (!isCompressed(columnIndex)) {
+            return super.getString(columnIndex);
+        }
+        int position = getPosition();
+        if (position != mInflatedPosition) {
+            mInflatedBody = BodyCodec.decode(super.getBlob(columnIndex));
+            mInflatedPosition = position;
+        }
+        return mInflatedBody;
+    }
+
+    @Override
+    public int getType(int columnIndex) {
+        return isCompressed(columnIndex) ? FIELD_TYPE_STRING : super.getType(columnIndex);
+    }
+
+    @Override
+    public boolean requery() {
+        mInflatedPosition = -1;
+        mInflatedBody = null;
+        return super.requery();
+    }
+
+    // Returns true if the column is the note column, holding a compressed body in this row.
+    private boolean isCompressed(int columnIndex) {
+        return columnIndex == mNoteColumn && super.getType(columnIndex) == FIELD_TYPE_BLOB;
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits Chinese, Japanese and Korean text into the bigrams the full-text index searches. The
+ * index's tokenizer keeps every character outside ASCII in a token, so a sentence of Chinese
+ * would be one token, found only by the words it starts with. SQLite on Android can't be given
+ * another tokenizer, so the text is rewritten before it is indexed instead: each run of CJK
+ * characters becomes its overlapping pairs of characters followed by its last character, and
+ * CJK punctuation stands on its own. "笔记本" is indexed as the tokens "笔记", "记本" and "本".
+ *
+ * The tokens are set apart by control characters the tokenizer splits on, chosen so that
+ * {@link #join} gives back the original text: a {@link #BIGRAM_SEPARATOR} comes before a token
+ * whose first character ends the token before it, and a {@link #RUN_SEPARATOR} sets a run apart
+ * from the letters or digits next to it. A search term is split the same way by
+ * {@link #toPhrase}, into a phrase of the tokens it must find next to each other.
+ */
+final class CjkTokenizer {
+
+    /**
+     * Comes before a token whose first character is the last one of the token before it.
+     */
+    static final char BIGRAM_SEPARATOR = '\u001e';
+
+    /**
+     * Sets a run of CJK characters or a CJK punctuation mark apart from what surrounds it.
+     */
+    static final char RUN_SEPARATOR = '\u001f';
+
+    // The kinds of characters, as the tokenizer and the bigrams see them.
+    private static final int SEPARATOR = 0;
+    private static final int WORD = 1;
+    private static final int IDEOGRAPH = 2;
+    private static final int SYMBOL = 3;
+
+    private CjkTokenizer() {
+    }
+
+    /**
+     * Returns the text the full-text index should hold for a text: the text itself if it holds
+     * no CJK characters, or else its runs of CJK characters split into bigrams. Splitting text
+     * that is already split gives it back unchanged.
+     *
+     * @param text The text, or its split form, may be null.
+     */
+    static String segment(String text) {
+        if (text == null || !needsSegmenting(text)) {
+            return text;
+        }
+        String plain = join(text);
+        StringBuilder out = new StringBuilder(plain.length() * 3);
+        List<Integer> run = new ArrayList<Integer>();
+        int previous = SEPARATOR;
+        for (int index = 0; index < plain.length(); ) {
+            int codePoint = plain.codePointAt(index);
+            index += Character.charCount(codePoint);
+            int kind = classify(codePoint);
+            if (kind == IDEOGRAPH) {
+                run.add(codePoint);
+                continue;
+            }
+            if (!run.isEmpty()) {
+                appendRun(out, run, previous);
+                run.clear();
+                previous = IDEOGRAPH;
+            }
+            if (kind != SEPARATOR && previous != SEPARATOR
+                    && (kind != previous || kind == SYMBOL)) {
+                out.append(RUN_SEPARATOR);
+            }
+            out.appendCodePoint(codePoint);
+            previous = kind;
+        }
+        if (!run.isEmpty()) {
+            appendRun(out, run, previous);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Returns the original text of a text split by {@link #segment}.
+     */
+    static String join(String segmented) {
+        if (segmented.indexOf(BIGRAM_SEPARATOR) < 0 && segmented.indexOf(RUN_SEPARATOR) < 0) {
+            return segmented;
+        }
+        StringBuilder text = new StringBuilder(segmented.length());
+        boolean skip = false;
+        for (int index = 0; index < segmented.length(); ) {
+            int codePoint = segmented.codePointAt(index);
+            index += Character.charCount(codePoint);
+            if (codePoint == BIGRAM_SEPARATOR) {
+                skip = true;
+            } else if (codePoint != RUN_SEPARATOR) {
+                if (!skip) {
+                    text.appendCodePoint(codePoint);
+                }
+                skip = false;
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Returns the tokens of a search term as the content of an FTS phrase, with the tokens the
+     * term must find next to each other in order: the term followed by a prefix mark if it holds
+     * no CJK characters, as before; otherwise each run of CJK characters split the way
+     * {@link #segment} splits it. A run that ends the term may end inside a longer run of the
+     * text, so it gives only its bigrams, or its one character as a prefix; a word that ends the
+     * term is a prefix, since it may still be being typed.
+     *
+     * @return The phrase, or null if the term holds no token.
+     */
+    static String toPhrase(String term) {
+        if (!needsSegmenting(term)) {
+            return term + "*";
+        }
+        List<String> tokens = new ArrayList<String>();
+        List<Integer> run = new ArrayList<Integer>();
+        StringBuilder token = new StringBuilder();
+        int previous = SEPARATOR;
+        for (int index = 0; index < term.length(); ) {
+            int codePoint = term.codePointAt(index);
+            index += Character.charCount(codePoint);
+            int kind = classify(codePoint);
+            if (kind == IDEOGRAPH) {
+                addToken(tokens, token);
+                run.add(codePoint);
+            } else {
+                if (!run.isEmpty()) {
+                    addRunTokens(tokens, run, false);
+                    run.clear();
+                }
+                if (kind != previous || kind == SYMBOL) {
+                    addToken(tokens, token);
+                }
+                if (kind != SEPARATOR) {
+                    token.appendCodePoint(codePoint);
+                }
+            }
+            previous = kind;
+        }
+        boolean prefix = run.isEmpty();
+        if (run.isEmpty()) {
+            addToken(tokens, token);
+        } else {
+            prefix = run.size() == 1;
+            addRunTokens(tokens, run, true);
+        }
+        if (tokens.isEmpty()) {
+            return null;
+        }
+
+        StringBuilder phrase = new StringBuilder();
+        for (String part : tokens) {
+            if (phrase.length() > 0) {
+                phrase.append(' ');
+            }
+            phrase.append(part);
+        }
+        if (prefix) {
+            phrase.append('*');
+        }
+        return phrase.toString();
+    }
+
+    // Returns true if the text holds CJK characters or separators, which segment() rewrites.
+    private static boolean needsSegmenting(String text) {
+        for (int index = 0; index < text.length(); ) {
+            int codePoint = text.codePointAt(index);
+            index += Character.charCount(codePoint);
+            if (codePoint == BIGRAM_SEPARATOR || codePoint == RUN_SEPARATOR) {
+                return true;
+            }
+            if (codePoint >= 0x80) {
+                int kind = classify(codePoint);
+                if (kind == IDEOGRAPH || kind == SYMBOL) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Appends the tokens of a run of CJK characters to the split text.
+    private static void appendRun(StringBuilder out, List<Integer> run, int previous) {
+        if (previous != SEPARATOR) {
+            out.append(RUN_SEPARATOR);
+        }
+        int count = run.size();
+        if (count == 1) {
+            out.appendCodePoint(run.get(0));
+            return;
+        }
+        for (int index = 0; index < count - 1; index++) {
+            if (index > 0) {
+                out.append(BIGRAM_SEPARATOR);
+            }
+            out.appendCodePoint(run.get(index)).appendCodePoint(run.get(index + 1));
+        }
+        out.append(BIGRAM_SEPARATOR).appendCodePoint(run.get(count - 1));
+    }
+
+    // Adds the tokens of a run of CJK characters of a search term: the tokens segment() gives
+    // the run, or only its bigrams if it ends the term.
+    private static void addRunTokens(List<String> tokens, List<Integer> run, boolean last) {
+        int count = run.size();
+        StringBuilder token = new StringBuilder();
+        for (int index = 0; index < count - 1; index++) {
+            token.appendCodePoint(run.get(index)).appendCodePoint(run.get(index + 1));
+            addToken(tokens, token);
+        }
+        if (count == 1 || !last) {
+            token.appendCodePoint(run.get(count - 1));
+            addToken(tokens, token);
+        }
+    }
+
+    // Adds a token that was being built, if any, and empties the builder.
+    private static void addToken(List<String> tokens, StringBuilder token) {
+        if (token.length() > 0) {
+            tokens.add(token.toString());
+            token.setLength(0);
+        }
+    }
+
+    // Returns the kind of a character. The tokenizer keeps ASCII letters and digits and every
+    // character outside ASCII in tokens; of those, the letters of the CJK scripts are split
+    // into bigrams and the CJK punctuation marks are set apart.
+    private static int classify(int codePoint) {
+        if (codePoint < 0x80) {
+            return Character.isLetterOrDigit(codePoint) ? WORD : SEPARATOR;
+        }
+        if (codePoint == BIGRAM_SEPARATOR || codePoint == RUN_SEPARATOR) {
+            return SEPARATOR;
+        }
+        Character.UnicodeBlock block = Character.UnicodeBlock.of(codePoint);
+        if (block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS
+                || block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS_EXTENSION_A
+                || block == Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS_EXTENSION_B
+                || block == Character.UnicodeBlock.CJK_COMPATIBILITY_IDEOGRAPHS
+                || block == Character.UnicodeBlock.CJK_COMPATIBILITY_IDEOGRAPHS_SUPPLEMENT
+                || block == Character.UnicodeBlock.HIRAGANA
+                || block == Character.UnicodeBlock.KATAKANA
+                || block == Character.UnicodeBlock.KATAKANA_PHONETIC_EXTENSIONS
+                || block == Character.UnicodeBlock.BOPOMOFO
+                || block == Character.UnicodeBlock.HANGUL_SYLLABLES
+                || block == Character.UnicodeBlock.HANGUL_JAMO
+                || block == Character.UnicodeBlock.HANGUL_COMPATIBILITY_JAMO) {
+            return Character.isLetterOrDigit(codePoint) ? IDEOGRAPH : SYMBOL;
+        }
+        if (block == Character.UnicodeBlock.CJK_SYMBOLS_AND_PUNCTUATION
+                || block == Character.UnicodeBlock.HALFWIDTH_AND_FULLWIDTH_FORMS
+                || block == Character.UnicodeBlock.CJK_COMPATIBILITY_FORMS) {
+            return Character.isLetterOrDigit(codePoint) ? WORD : SYMBOL;
+        }
+        return WORD;
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the edits made to a text, so a save can write them as a patch instead of the whole
+ * text. Each edit replaces a range of the text as the edits before it left it. An edit that
+ * touches the text the last one inserted, such as typing on or deleting back from it, is merged
+ * into it, so typing in one place makes a single edit. The encoded journal is the patch of
+ * {@link NotePad.Notes#COLUMN_NAME_NOTE_PATCH}, which names the version of the text it applies
+ * to besides its length, since a text of the same length may hold other chars.
+ */
+final class EditJournal {
+
+    /**
+     * The base version of a journal that doesn't know the version of its text. No text has it,
+     * so its patch fits none.
+     */
+    static final long NO_VERSION = -1;
+
+    // One edit: the chars from mStart to mStart + mRemoved are replaced with mInserted.
+    private static final class Edit {
+        int mStart;
+        int mRemoved;
+        final StringBuilder mInserted;
+
+        Edit(int start, int removed, CharSequence inserted) {
+            mStart = start;
+            mRemoved = removed;
+            mInserted = new StringBuilder(inserted);
+        }
+    }
+
+    private final ArrayList<Edit> mEdits = new ArrayList<Edit>();
+
+    // The length in chars of the text before the edits, and after them.
+    private final int mBaseLength;
+    private int mLength;
+
+    // The version of the text before the edits, see NotePad.Notes.COLUMN_NAME_NOTE_VERSION.
+    private long mBaseVersion = NO_VERSION;
+
+    /**
+     * @param baseLength The length in chars of the text the edits are made to.
+     */
+    EditJournal(int baseLength) {
+        mBaseLength = baseLength;
+        mLength = baseLength;
+    }
+
+    /**
+     * Returns the length in chars of the text the journal applies to.
+     */
+    int getBaseLength() {
+        return mBaseLength;
+    }
+
+    /**
+     * Returns the version of the text the journal applies to, or {@link #NO_VERSION}.
+     */
+    long getBaseVersion() {
+        return mBaseVersion;
+    }
+
+    /**
+     * Sets the version of the text the journal applies to. The editor records its edits
+     * without it; the saver sets it as it writes them, from the version the note's text had
+     * when the saver last read or wrote it.
+     */
+    void setBaseVersion(long baseVersion) {
+        mBaseVersion = baseVersion;
+    }
+
+    /**
+     * Returns the length in chars of the text once the edits are applied.
+     */
+    int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Returns true if no edit was recorded.
+     */
+    boolean isEmpty() {
+        return mEdits.isEmpty();
+    }
+
+    /**
+     * Returns the number of chars the edits insert, which their patch mostly consists of.
+     */
+    int getInsertedLength() {
+        int length = 0;
+        for (Edit edit : mEdits) {
+            length += edit.mInserted.length();
+        }
+        return length;
+    }
+
+    /**
+     * Records an edit, in the terms of {@link android.text.TextWatcher#onTextChanged}.
+     *
+     * @param start The offset of the edit in the text.
+     * @param removed The number of chars the edit replaced.
+     * @param text The text after the edit, holding the inserted chars.
+     * @param count The number of chars inserted at start.
+     */
+    void record(int start, int removed, CharSequence text, int count) {
+        add(start, removed, text.subSequence(start, start + count));
+    }
+
+    /**
+     * Records the edits of a journal made to the text as this one leaves it. The journal
+     * keeps its own base version.
+     *
+     * @throws IllegalArgumentException if the journal starts from another length.
+     */
+    void append(EditJournal journal) {
+        if (journal.mBaseLength != mLength) {
+            throw new IllegalArgumentException("Patch of " + journal.mBaseLength
+                    + " chars doesn't follow a text of " + mLength);
+        }
+        for (Edit edit : journal.mEdits) {
+            add(edit.mStart, edit.mRemoved, edit.mInserted);
+        }
+    }
+
+    /**
+     * Returns the text with the edits applied.
+     *
+     * @throws IllegalArgumentException if the text doesn't have the journal's base length.
+     */
+    String apply(String text) {
+        checkBaseLength(text.length());
+        StringBuilder result = new StringBuilder(text);
+        for (Edit edit : mEdits) {
+            result.replace(edit.mStart, edit.mStart + edit.mRemoved, edit.mInserted.toString());
+        }
+        return result.toString();
+    }
+
+    /**
+     * Applies the edits to a text held in parts, such as the chunks of a long note, changing
+     * only the parts the edits fall in. An insertion between two parts goes to the end of the
+     * first. A part never ends between the two chars of a supplementary character afterwards;
+     * a high surrogate left at the end of a part moves to the start of the next one.
+     *
+     * @param parts The parts of the text, in order. There is at least one.
+     * @param changed Set to true for each part that changed.
+     * @throws IllegalArgumentException if the text doesn't have the journal's base length.
+     */
+    void apply(List<StringBuilder> parts, boolean[] changed) {
+        int length = 0;
+        for (StringBuilder part : parts) {
+            length += part.length();
+        }
+        checkBaseLength(length);
+
+        for (Edit edit : mEdits) {
+            // Finds the part the edit starts in; the last part if it starts at the end.
+            int index = 0;
+            int offset = edit.mStart;
+            while (index < parts.size() - 1 && offset > parts.get(index).length()) {
+                offset -= parts.get(index).length();
+                index++;
+            }
+            StringBuilder first = parts.get(index);
+
+            // Removes the chars, which may run over several parts.
+            int removed = edit.mRemoved;
+            int at = offset;
+            for (int next = index; removed > 0; next++) {
+                StringBuilder part = parts.get(next);
+                int end = Math.min(part.length(), at + removed);
+                if (end > at) {
+                    part.delete(at, end);
+                    removed -= end - at;
+                    changed[next] = true;
+                }
+                at = 0;
+            }
+
+            if (edit.mInserted.length() > 0) {
+                first.insert(offset, edit.mInserted);
+                changed[index] = true;
+            }
+        }
+
+        for (int index = 0; index < parts.size() - 1; index++) {
+            StringBuilder part = parts.get(index);
+            int last = part.length() - 1;
+            if (last >= 0 && Character.isHighSurrogate(part.charAt(last))) {
+                parts.get(index + 1).insert(0, part.charAt(last));
+                part.setLength(last);
+                changed[index] = true;
+                changed[index + 1] = true;
+            }
+        }
+    }
+
+    /**
+     * Returns the patch of the journal, in the format of
+     * {@link NotePad.Notes#COLUMN_NAME_NOTE_PATCH}.
+     */
+    byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(12 + 16 * mEdits.size()
+                + 2 * getInsertedLength());
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(mBaseLength);
+            out.writeLong(mBaseVersion);
+            for (Edit edit : mEdits) {
+                out.writeInt(edit.mStart);
+                out.writeInt(edit.mRemoved);
+                out.writeInt(edit.mInserted.length());
+                out.writeChars(edit.mInserted.toString());
+            }
+        } catch (IOException e) {
+            // A ByteArrayOutputStream doesn't throw
+            throw new AssertionError(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns the journal a patch was encoded from.
+     *
+     * @throws IllegalArgumentException if the bytes aren't a valid patch.
+     */
+    static EditJournal decode(byte[] patch) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(patch));
+        try {
+            EditJournal journal = new EditJournal(in.readInt());
+            if (journal.mBaseLength < 0) {
+                throw new IllegalArgumentException("Negative patch length");
+            }
+            journal.mBaseVersion = in.readLong();
+            while (in.available() > 0) {
+                int start = in.readInt();
+                int removed = in.readInt();
+                int count = in.readInt();
+                if (count < 0 || count > in.available() / 2) {
+                    throw new IllegalArgumentException("Truncated patch");
+                }
+                StringBuilder inserted = new StringBuilder(count);
+                for (int index = 0; index < count; index++) {
+                    inserted.append(in.readChar());
+                }
+                journal.add(start, removed, inserted);
+            }
+            return journal;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Truncated patch", e);
+        }
+    }
+
+    // Adds an edit, merging it into the last one if it touches the text that one inserted.
+    private void add(int start, int removed, CharSequence inserted) {
+        if (start < 0 || removed < 0 || start > mLength - removed) {
+            throw new IllegalArgumentException("Edit of " + removed + " chars at " + start
+                    + " is out of a text of " + mLength);
+        }
+        if (removed == 0 && inserted.length() == 0) {
+            return;
+        }
+        mLength += inserted.length() - removed;
+
+        Edit last = mEdits.isEmpty() ? null : mEdits.get(mEdits.size() - 1);
+        int lastEnd = last == null ? 0 : last.mStart + last.mInserted.length();
+        if (last == null || start > lastEnd || start + removed < last.mStart) {
+            mEdits.add(new Edit(start, removed, inserted));
+            return;
+        }
+
+        // The chars the edit removes around the last one's insertion were in the text before
+        // it, and join the range it replaced.
+        int before = Math.max(0, last.mStart - start);
+        int after = Math.max(0, start + removed - lastEnd);
+        last.mInserted.replace(Math.max(0, start - last.mStart),
+                Math.min(last.mInserted.length(), start + removed - last.mStart),
+                inserted.toString());
+        last.mStart -= before;
+        last.mRemoved += before + after;
+
+        // Typing undone by deleting it leaves nothing to write.
+        if (last.mRemoved == 0 && last.mInserted.length() == 0) {
+            mEdits.remove(mEdits.size() - 1);
+        }
+    }
+
+    private void checkBaseLength(int length) {
+        if (length != mBaseLength) {
+            throw new IllegalArgumentException("Patch of a text of " + mBaseLength
+                    + " chars doesn't fit a text of " + length);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+import java.util.HashMap;
+
+/**
+ * A cursor over notes picked by their IDs, in the order of the IDs, which reads the rows a page
+ * at a time as it moves over them. Only the IDs and the rows of one page are held at once, so a
+ * result picked in a transaction, such as a selection matched through a temporary table, can be
+ * read after the transaction ends without reading it whole.
+ *
+ * A note deleted before its page is read shows as a row of nulls.
+ */
+final class IdPagedCursor extends AbstractCursor {
+
+    /**
+     * Reads the rows of a page.
+     */
+    interface PageReader {
+
+        /**
+         * Returns the rows of the notes with the given IDs, in any order. The rows hold the
+         * columns of the cursor first, then the ID of the note if the columns don't hold it.
+         */
+        Cursor read(long[] ids);
+    }
+
+    // The number of notes read at once.
+    static final int PAGE_SIZE = 64;
+
+    private final long[] mIds;
+    private final PageReader mReader;
+    private final String[] mColumnNames;
+
+    // The first position of the page read, and its rows.
+    private int mPageStart = -1;
+    private Object[][] mPage;
+
+    // The row at the current position.
+    private Object[] mCurrentRow;
+
+    /**
+     * @param ids The IDs of the notes, in the order of the cursor.
+     * @param columnCount The number of columns the cursor returns from the rows it reads, or
+     * -1 for all of them.
+     */
+    IdPagedCursor(long[] ids, PageReader reader, int columnCount) {
+        mIds = ids;
+        mReader = reader;
+        Cursor page = reader.read(new long[0]);
+        try {
+            if (columnCount < 0) {
+                columnCount = page.getColumnCount();
+            }
+            mColumnNames = new String[columnCount];
+            System.arraycopy(page.getColumnNames(), 0, mColumnNames, 0, columnCount);
+        } finally {
+            page.close();
+        }
+    }
+
+    // Reads the page holding a position.
+    private void readPage(int position) {
+        int start = position - position % PAGE_SIZE;
+        long[] ids = new long[Math.min(PAGE_SIZE, mIds.length - start)];
+        System.arraycopy(mIds, start, ids, 0, ids.length);
+
+        HashMap<Long, Object[]> rows = new HashMap<Long, Object[]>();
+        Cursor page = mReader.read(ids);
+        try {
+            int idColumn = page.getColumnIndexOrThrow(NotePad.Notes._ID);
+            while (page.moveToNext()) {
+                Object[] row = new Object[mColumnNames.length];
+                for (int column = 0; column < row.length; column++) {
+                    row[column] = getValue(page, column);
+                }
+                rows.put(page.getLong(idColumn), row);
+            }
+        } finally {
+            page.close();
+        }
+
+        mPage = new Object[ids.length][];
+        for (int index = 0; index < ids.length; index++) {
+            Object[] row = rows.get(ids[index]);
+            mPage[index] = row != null ? row : new Object[mColumnNames.length];
+        }
+        mPageStart = start;
+    }
+
+    // Returns the value of a column of the cursor's row, as the type SQLite holds it in.
+    private static Object getValue(Cursor cursor, int column) {
+        switch (cursor.getType(column)) {
+            case FIELD_TYPE_NULL:
+                return null;
+            case FIELD_TYPE_INTEGER:
+                return cursor.getLong(column);
+            case FIELD_TYPE_FLOAT:
+                return cursor.getDouble(column);
+            case FIELD_TYPE_BLOB:
+                return cursor.getBlob(column);
+            default:
+                return cursor.getString(column);
+        }
+    }
+
+    @Override
+    public int getCount() {
+        return mIds.length;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        if (mPage == null || newPosition < mPageStart
+                || newPosition >= mPageStart + mPage.length) {
+            readPage(newPosition);
+        }
+        mCurrentRow = mPage[newPosition - mPageStart];
+        return true;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        mPage = null;
+        mCurrentRow = null;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public String getString(int column) {
+        Object value = mCurrentRow[column];
+        return value == null ? null : value.toString();
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        Object value = mCurrentRow[column];
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return value == null ? 0 : Long.parseLong(value.toString());
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return (float) getDouble(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        Object value = mCurrentRow[column];
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        return value == null ? 0 : Double.parseDouble(value.toString());
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        Object value = mCurrentRow[column];
+        return value instanceof byte[] ? (byte[]) value : null;
+    }
+
+    @Override
+    public int getType(int column) {
+        Object value = mCurrentRow[column];
+        if (value == null) {
+            return FIELD_TYPE_NULL;
+        } else if (value instanceof Long) {
+            return FIELD_TYPE_INTEGER;
+        } else if (value instanceof Double) {
+            return FIELD_TYPE_FLOAT;
+        } else if (value instanceof byte[]) {
+            return FIELD_TYPE_BLOB;
+        }
+        return FIELD_TYPE_STRING;
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return mCurrentRow[column] == null;
+    }
+}
@@ -33,6 +33,9 @@ import android.graphics.Paint;
 import android.graphics.Rect;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.Menu;
@@ -61,10 +64,12 @@ import android.os.Environment;
  * {@link Intent#ACTION_EDIT}, create a note {@link Intent#ACTION_INSERT}, or
  * create a new note from the current contents of the clipboard {@link Intent#ACTION_PASTE}.
  *
- * NOTE: Notice that the provider operations in this Activity are taking place on the UI thread.
+ * NOTE: Notice that the provider queries in this Activity are taking place on the UI thread.
  * This is not a good practice. It is only done here to make the code more readable. A real
  * application should use the {@link android.content.AsyncQueryHandler}
  * or {@link android.os.AsyncTask} object to perform operations asynchronously on a separate thread.
+ * The edits are written by a {@link NoteSaver}, off the UI thread, and the note is read again on
+ * its thread when the editor resumes.
  */
 public class NoteEditor extends Activity {
     // For logging and debugging purposes
@@ -79,7 +84,9 @@ public class NoteEditor extends Activity {
             NotePad.Notes.COLUMN_NAME_TITLE,
             NotePad.Notes.COLUMN_NAME_NOTE,
             NotePad.Notes.COLUMN_NAME_CATEGORY,
-            NotePad.Notes.COLUMN_NAME_PINNED
+            NotePad.Notes.COLUMN_NAME_PINNED,
+            NotePad.Notes.COLUMN_NAME_NOTE_TRUNCATED,
+            NotePad.Notes.COLUMN_NAME_NOTE_VERSION
     };
 
     // A label for the saved state of the activity
@@ -99,6 +106,57 @@ public class NoteEditor extends Activity {
     private String mCurrentCategory = "";
     private int mCurrentPinned = 0;
 
+    // How long the user stops typing before the text is saved.
+    private static final long AUTOSAVE_DELAY_MILLIS = 2000;
+
+    // Writes the changes to the note off the UI thread.
+    private NoteSaver mSaver;
+
+    // True while the text is set from the note, which isn't an edit.
+    private boolean mLoadingText;
+
+    // True once the note was first read into the editor. Until then the editor's text isn't
+    // the note's, and isn't saved.
+    private boolean mLoaded;
+
+    // The edits made to the text since it was loaded or last saved, or null before it is
+    // loaded. A save writes them as a patch instead of the whole text.
+    private EditJournal mJournal;
+
+    // Tells whether the text differs from the original content, without comparing them after
+    // every edit.
+    private final TextVersion mTextVersion = new TextVersion();
+
+    // The category and pinned status as last loaded or saved; a save only writes them when
+    // they changed.
+    private String mSavedCategory = "";
+    private int mSavedPinned = 0;
+
+    private final Handler mHandler = new Handler();
+
+    // Saves the text once the user stops typing.
+    private final Runnable mAutosave = new Runnable() {
+        @Override
+        public void run() {
+            if (mCursor != null) {
+                updateNote(null, null);
+            }
+        }
+    };
+
+    // Saves the whole text in place of a patch the note's text no longer fits, since another
+    // client wrote the note. The saves write the whole text until the note is read again.
+    private final NoteSaver.PatchListener mPatchListener = new NoteSaver.PatchListener() {
+        @Override
+        public void onPatchRejected(Uri noteUri) {
+            if (mCursor != null && mLoaded) {
+                mJournal = null;
+                updateNote(mText.getText().toString(), null);
+                mSaver.flush();
+            }
+        }
+    };
+
     /**
      * Defines a custom EditText View that draws lines between each line of text that is displayed.
      */
@@ -165,6 +223,7 @@ public class NoteEditor extends Activity {
          * caller.
          */
         final Intent intent = getIntent();
+        mSaver = NoteSaver.getInstance(this);
 
         /*
          *  Sets up for the edit, based on the action specified for the incoming Intent.
@@ -252,12 +311,41 @@ public class NoteEditor extends Activity {
         // Gets a handle to the EditText in the the layout.
         mText = (EditText) findViewById(R.id.note);
 
+        // Saves the text a little after each edit, so little is lost if the process dies.
+        mText.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+                if (!mLoadingText) {
+                    mTextVersion.beforeTextChanged(s, start, count, after);
+                }
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+                if (!mLoadingText) {
+                    mTextVersion.onTextChanged(s, start, before, count);
+                    if (mJournal != null) {
+                        mJournal.record(start, before, s, count);
+                    }
+                }
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                if (!mLoadingText) {
+                    mHandler.removeCallbacks(mAutosave);
+                    mHandler.postDelayed(mAutosave, AUTOSAVE_DELAY_MILLIS);
+                }
+            }
+        });
+
         /*
          * If this Activity had stopped previously, its state was written the ORIGINAL_CONTENT
          * location in the saved Instance state. This gets the state.
          */
         if (savedInstanceState != null) {
             mOriginalContent = savedInstanceState.getString(ORIGINAL_CONTENT);
+            mTextVersion.setReference(mOriginalContent);
         }
     }
 
@@ -278,55 +366,26 @@ public class NoteEditor extends Activity {
          * process. This tests that it's not null, since it should always contain data.
          */
         if (mCursor != null) {
-            // Requery in case something changed while paused (such as the title)
-            mCursor.requery();
-
-            /* Moves to the first record. Always call moveToFirst() before accessing data in
-             * a Cursor for the first time. The semantics of using a Cursor are that when it is
-             * created, its internal index is pointing to a "place" immediately before the first
-             * record.
-             */
-            mCursor.moveToFirst();
-
-            // Modifies the window title for the Activity according to the current Activity state.
-            if (mState == STATE_EDIT) {
-                // Set the title of the Activity to include the note title
-                int colTitleIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
-                String title = mCursor.getString(colTitleIndex);
-                Resources res = getResources();
-                String text = String.format(res.getString(R.string.title_edit), title);
-                setTitle(text);
-            // Sets the title to "create" for inserts
-            } else if (mState == STATE_INSERT) {
-                setTitle(getText(R.string.title_create));
-            }
-
             /*
-             * onResume() may have been called after the Activity lost focus (was paused).
-             * The user was either editing or creating a note when the Activity paused.
-             * The Activity should re-display the text that had been retrieved previously, but
-             * it should not move the cursor. This helps the user to continue editing or entering.
+             * Reads the note again in case something changed while paused (such as the title).
+             * The note is read on the saver's thread, between its writes, so that the saves not
+             * written yet can be laid over it without the UI thread waiting for a write under
+             * way. The editor shows it once it is read.
              */
+            final long textVersion = mTextVersion.getVersion();
+            mSaver.readWithPendingValues(mUri, new NoteSaver.NoteReader() {
+                @Override
+                public ContentValues read() {
+                    return readNote();
+                }
 
-            // Gets the note text from the Cursor and puts it in the TextView, but doesn't change
-            // the text cursor's position.
-            int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-            String note = mCursor.getString(colNoteIndex);
-            mText.setTextKeepState(note);
-
-            // Stores the original note text, to allow the user to revert changes.
-            if (mOriginalContent == null) {
-                mOriginalContent = note;
-            }
-
-            // Get category and pinned status
-            int colCategoryIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_CATEGORY);
-            int colPinnedIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_PINNED);
-            mCurrentCategory = mCursor.getString(colCategoryIndex);
-            if (mCurrentCategory == null) {
-                mCurrentCategory = "";
-            }
-            mCurrentPinned = mCursor.getInt(colPinnedIndex);
+                @Override
+                public void onRead(ContentValues stored, ContentValues pending,
+                        boolean conflict) {
+                    showNote(stored, pending,
+                            conflict || mTextVersion.getVersion() != textVersion);
+                }
+            });
 
         /*
          * Something is wrong. The Cursor should always contain data. Report an error in the
@@ -338,6 +397,149 @@ public class NoteEditor extends Activity {
         }
     }
 
+    /**
+     * Returns the note's stored title, text, category, pinned status and text version. Runs on
+     * the saver's thread. A long note, whose text is read through its chunks after its row, is
+     * read again if its text changed meanwhile.
+     *
+     * @return The values, or null if the note is gone.
+     */
+    private ContentValues readNote() {
+        while (true) {
+            Cursor cursor = getContentResolver().query(mUri, PROJECTION, null, null, null);
+            if (cursor == null) {
+                return null;
+            }
+            ContentValues values = new ContentValues();
+            boolean truncated;
+            try {
+                /*
+                 * Moves to the first record. Always call moveToFirst() before accessing data in
+                 * a Cursor for the first time. The semantics of using a Cursor are that when it
+                 * is created, its internal index is pointing to a "place" immediately before the
+                 * first record.
+                 */
+                if (!cursor.moveToFirst()) {
+                    return null;
+                }
+                values.put(NotePad.Notes.COLUMN_NAME_TITLE, cursor.getString(
+                        cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE, getNote(cursor, mUri));
+                values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, cursor.getString(
+                        cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_CATEGORY)));
+                values.put(NotePad.Notes.COLUMN_NAME_PINNED, cursor.getInt(
+                        cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_PINNED)));
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE_VERSION, cursor.getLong(
+                        cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE_VERSION)));
+                truncated = cursor.getInt(
+                        cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE_TRUNCATED)) != 0;
+            } finally {
+                cursor.close();
+            }
+            if (!truncated || readVersion() == values.getAsLong(
+                    NotePad.Notes.COLUMN_NAME_NOTE_VERSION)) {
+                return values;
+            }
+        }
+    }
+
+    // Returns the version of the note's text as stored now, or -1 if the note is gone.
+    private long readVersion() {
+        Cursor cursor = getContentResolver().query(mUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE_VERSION }, null, null, null);
+        if (cursor == null) {
+            return -1;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Shows the note as it was read, with the saves not written yet laid over it.
+     *
+     * @param stored The note's stored values, see {@link #readNote}, or null if it is gone.
+     * @param pending The columns saved to the note and not written yet, or null.
+     * @param keepText True to keep the editor's text rather than the note's, since the user
+     * typed while the note was read, or since the note's text doesn't take the editor's pending
+     * edits anymore. The editor's text is then saved whole, as patches after it apply to it.
+     */
+    private void showNote(ContentValues stored, ContentValues pending, boolean keepText) {
+        // The note was deleted or reverted meanwhile.
+        if (mCursor == null) {
+            return;
+        }
+        if (stored == null) {
+            setTitle(getText(R.string.error_title));
+            mText.setText(getText(R.string.error_message));
+            return;
+        }
+
+        // Modifies the window title for the Activity according to the current Activity state.
+        if (mState == STATE_EDIT) {
+            // Set the title of the Activity to include the note title
+            String title = stored.getAsString(NotePad.Notes.COLUMN_NAME_TITLE);
+            Resources res = getResources();
+            String text = String.format(res.getString(R.string.title_edit), title);
+            setTitle(text);
+        // Sets the title to "create" for inserts
+        } else if (mState == STATE_INSERT) {
+            setTitle(getText(R.string.title_create));
+        }
+
+        /*
+         * onResume() may have been called after the Activity lost focus (was paused).
+         * The user was either editing or creating a note when the Activity paused.
+         * The Activity should re-display the text that had been retrieved previously, but
+         * it should not move the cursor. This helps the user to continue editing or entering.
+         */
+
+        // Puts the note text in the TextView, but doesn't change the text cursor's position.
+        // Saves not written yet replace the stored text, or patch it.
+        String note = stored.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+        if (pending != null && pending.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            note = pending.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+        } else if (pending != null
+                && pending.containsKey(NotePad.Notes.COLUMN_NAME_NOTE_PATCH)) {
+            note = EditJournal.decode(pending.getAsByteArray(
+                    NotePad.Notes.COLUMN_NAME_NOTE_PATCH)).apply(note == null ? "" : note);
+        }
+        if (!mLoaded || !keepText) {
+            mLoadingText = true;
+            mText.setTextKeepState(note);
+            mLoadingText = false;
+            mJournal = new EditJournal(mText.length());
+            mTextVersion.load(mText.getText());
+        } else {
+            updateNote(mText.getText().toString(), null);
+            mJournal = new EditJournal(mText.length());
+        }
+
+        // Stores the original note text, to allow the user to revert changes.
+        if (mOriginalContent == null) {
+            mOriginalContent = note;
+            mTextVersion.setReference(mOriginalContent);
+        }
+
+        // Get category and pinned status
+        mCurrentCategory = stored.getAsString(NotePad.Notes.COLUMN_NAME_CATEGORY);
+        mCurrentPinned = stored.getAsInteger(NotePad.Notes.COLUMN_NAME_PINNED);
+        if (pending != null && pending.containsKey(NotePad.Notes.COLUMN_NAME_CATEGORY)) {
+            mCurrentCategory = pending.getAsString(NotePad.Notes.COLUMN_NAME_CATEGORY);
+        }
+        if (pending != null && pending.containsKey(NotePad.Notes.COLUMN_NAME_PINNED)) {
+            mCurrentPinned = pending.getAsInteger(NotePad.Notes.COLUMN_NAME_PINNED);
+        }
+        if (mCurrentCategory == null) {
+            mCurrentCategory = "";
+        }
+        mSavedCategory = mCurrentCategory;
+        mSavedPinned = mCurrentPinned;
+        mLoaded = true;
+    }
+
     /**
      * This method is called when an Activity loses focus during its normal operation, and is then
      * later on killed. The Activity has a chance to save its state so that the system can restore
@@ -368,18 +570,19 @@ public class NoteEditor extends Activity {
     @Override
     protected void onPause() {
         super.onPause();
+        mHandler.removeCallbacks(mAutosave);
 
         /*
          * Tests to see that the query operation didn't fail (see onCreate()). The Cursor object
          * will exist, even if no records were returned, unless the query failed because of some
-         * exception or error.
+         * exception or error. Until the note is first read, the editor's text isn't the note's,
+         * unless the note is a new one.
          *
          */
-        if (mCursor != null) {
+        if (mCursor != null && (mLoaded || mState == STATE_INSERT)) {
 
-            // Get the current note text.
-            String text = mText.getText().toString();
-            int length = text.length();
+            // Get the current note length.
+            int length = mText.length();
 
             /*
              * If the Activity is in the midst of finishing and there is no text in the current
@@ -398,12 +601,16 @@ public class NoteEditor extends Activity {
                  * that is being edited.
                  */
             } else if (mState == STATE_EDIT) {
-                // Creates a map to contain the new values for the columns
-                updateNote(text, null);
+                // Saves the edits made since the last save
+                updateNote(null, null);
             } else if (mState == STATE_INSERT) {
+                String text = mText.getText().toString();
                 updateNote(text, text);
                 mState = STATE_EDIT;
           }
+
+            // Writes the saves now rather than after the idle delay, still off the UI thread.
+            mSaver.flush();
         }
     }
 
@@ -441,15 +648,10 @@ public class NoteEditor extends Activity {
 
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
-        // Check if note has changed and enable/disable the revert option
-        int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-        String savedNote = mCursor.getString(colNoteIndex);
-        String currentNote = mText.getText().toString();
-        if (savedNote.equals(currentNote)) {
-            menu.findItem(R.id.menu_revert).setVisible(false);
-        } else {
-            menu.findItem(R.id.menu_revert).setVisible(true);
-        }
+        // Check if note has changed from the original and enable/disable the revert option.
+        // The text version answers without comparing the texts, unless the edits were undone.
+        menu.findItem(R.id.menu_revert).setVisible(
+                mTextVersion.differs(mText.getText(), mOriginalContent));
         return super.onPrepareOptionsMenu(menu);
     }
 
@@ -467,8 +669,7 @@ public class NoteEditor extends Activity {
         // Handle all of the possible menu actions.
         int id = item.getItemId();
         if(id== R.id.menu_save) {
-            String text = mText.getText().toString();
-            updateNote(text, null);
+            updateNote(null, null);
             finish();
         } else if (id == R.id.menu_delete) {
             deleteNote();
@@ -535,9 +736,8 @@ public class NoteEditor extends Activity {
                 // (moveToFirst() returns true), then this gets the note data from it.
                 if (orig != null) {
                     if (orig.moveToFirst()) {
-                        int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
                         int colTitleIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
-                        text = orig.getString(colNoteIndex);
+                        text = getNote(orig, uri);
                         title = orig.getString(colTitleIndex);
                     }
 
@@ -559,34 +759,47 @@ public class NoteEditor extends Activity {
 //END_INCLUDE(paste)
 
     /**
-     * Replaces the current note contents with the text and title provided as arguments.
-     * @param text The new note contents to use.
+     * Saves the changes to the current note: the text and title provided as arguments, and the
+     * category and pinned status if they changed since they were last saved. Without a text, the
+     * edits made to the editor's text since the last save are written as a patch, or as the
+     * whole text when they insert about as much as it holds. Nothing is saved if nothing
+     * changed.
+     * @param text The new note contents to use, or null to save the editor's edits.
      * @param title The new note title to use
      */
     private final void updateNote(String text, String title) {
 
+        // The editor's text isn't the note's until the note is read.
+        if (text == null && !mLoaded) {
+            return;
+        }
+
         // Sets up a map to contain values to be updated in the provider.
         ContentValues values = new ContentValues();
-        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
-        
-        // Add category and pinned status
-        if (mCurrentCategory != null) {
+
+        // Adds the category and pinned status, if they changed
+        if (mCurrentCategory != null && !mCurrentCategory.equals(mSavedCategory)) {
             values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, mCurrentCategory);
+            mSavedCategory = mCurrentCategory;
+        }
+        if (mCurrentPinned != mSavedPinned) {
+            values.put(NotePad.Notes.COLUMN_NAME_PINNED, mCurrentPinned);
+            mSavedPinned = mCurrentPinned;
         }
-        values.put(NotePad.Notes.COLUMN_NAME_PINNED, mCurrentPinned);
 
         // If the action is to insert a new note, this creates an initial title for it.
         if (mState == STATE_INSERT) {
 
             // If no title was provided as an argument, create one from the note text.
             if (title == null) {
+                CharSequence source = text != null ? text : mText.getText();
   
                 // Get the note's length
-                int length = text.length();
+                int length = source.length();
 
                 // Sets the title by getting a substring of the text that is 31 characters long
                 // or the number of characters in the note plus one, whichever is smaller.
-                title = text.substring(0, Math.min(30, length));
+                title = source.subSequence(0, Math.min(30, length)).toString();
   
                 // If the resulting length is more than 30 characters, chops off any
                 // trailing spaces
@@ -604,28 +817,37 @@ public class NoteEditor extends Activity {
             values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
         }
 
-        // This puts the desired notes text into the map.
-        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+        // This puts the desired notes text, or the edits made to it, into the map.
+        if (text != null || mJournal == null) {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE,
+                    text != null ? text : mText.getText().toString());
+        } else if (!mJournal.isEmpty()) {
+            if (mJournal.getInsertedLength() >= mText.length() / 2) {
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE, mText.getText().toString());
+            } else {
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE_PATCH, mJournal.encode());
+            }
+        }
+
+        // The next edits are made to the text as saved.
+        if (mJournal != null) {
+            mJournal = new EditJournal(mText.length());
+        }
+        if (values.size() == 0) {
+            return;
+        }
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
 
         /*
-         * Updates the provider with the new values in the map. The ListView is updated
-         * automatically. The provider sets this up by setting the notification URI for
+         * Queues the update of the provider with the new values in the map. The saver merges
+         * it with the other saves of the note made meanwhile, and writes them in one update on
+         * its own thread, so the UI thread never waits for the database. The ListView is
+         * updated automatically. The provider sets this up by setting the notification URI for
          * query Cursor objects to the incoming URI. The content resolver is thus
          * automatically notified when the Cursor for the URI changes, and the UI is
          * updated.
-         * Note: This is being done on the UI thread. It will block the thread until the
-         * update completes. In a sample app, going against a simple provider based on a
-         * local database, the block will be momentary, but in a real app you should use
-         * android.content.AsyncQueryHandler or android.os.AsyncTask.
          */
-        getContentResolver().update(
-                mUri,    // The URI for the record to update.
-                values,  // The map of column names and new values to apply to them.
-                null,    // No selection criteria are used, so no where columns are necessary.
-                null     // No where columns are used, so no where arguments are necessary.
-            );
-
-
+        mSaver.save(mUri, values, mPatchListener);
     }
 
     /**
@@ -640,7 +862,8 @@ public class NoteEditor extends Activity {
                 mCursor = null;
                 ContentValues values = new ContentValues();
                 values.put(NotePad.Notes.COLUMN_NAME_NOTE, mOriginalContent);
-                getContentResolver().update(mUri, values, null, null);
+                mSaver.save(mUri, values);
+                mSaver.flush();
             } else if (mState == STATE_INSERT) {
                 // We inserted an empty note, make sure to delete it
                 deleteNote();
@@ -657,6 +880,7 @@ public class NoteEditor extends Activity {
         if (mCursor != null) {
             mCursor.close();
             mCursor = null;
+            mSaver.cancel(mUri);
             getContentResolver().delete(mUri, null, null);
             mText.setText("");
         }
@@ -678,7 +902,7 @@ public class NoteEditor extends Activity {
             @Override
             public void onClick(DialogInterface dialog, int which) {
                 mCurrentCategory = input.getText().toString().trim();
-                updateNote(mText.getText().toString(), null);
+                updateNote(null, null);
                 Toast.makeText(NoteEditor.this, 
                         mCurrentCategory.isEmpty() ? 
                         getString(R.string.category_removed) : 
@@ -695,12 +919,28 @@ public class NoteEditor extends Activity {
      */
     private void togglePin() {
         mCurrentPinned = (mCurrentPinned == 1) ? 0 : 1;
-        updateNote(mText.getText().toString(), null);
+        updateNote(null, null);
         Toast.makeText(this, mCurrentPinned == 1 ? 
                 getString(R.string.pinned_on) : getString(R.string.pinned_off), 
                 Toast.LENGTH_SHORT).show();
     }
 
+    /**
+     * Returns the text of the note at the cursor's current row. A note too long for its note
+     * column, which then holds only its first chunk, is read through its chunks.
+     *
+     * @param cursor A cursor with the columns of {@link #PROJECTION}.
+     * @param noteUri The URI of the note.
+     */
+    private String getNote(Cursor cursor, Uri noteUri) {
+        String note = cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE));
+        if (cursor.getInt(
+                cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE_TRUNCATED)) != 0) {
+            note = NoteText.read(getContentResolver(), noteUri);
+        }
+        return note;
+    }
+
     /**
      * Export note to file
      */
@@ -761,12 +1001,30 @@ public class NoteEditor extends Activity {
 
         String title = mCursor.getString(mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE));
         String content = mText.getText().toString();
-        String shareText = title + "\n\n" + content;
-
         Intent shareIntent = new Intent(Intent.ACTION_SEND);
         shareIntent.setType("text/plain");
-        shareIntent.putExtra(Intent.EXTRA_TEXT, shareText);
-        startActivity(Intent.createChooser(shareIntent, getString(R.string.share_note_chooser)));
+        if (content.length() <= NotePad.NoteChunks.MAX_LENGTH) {
+            shareIntent.putExtra(Intent.EXTRA_TEXT, title + "\n\n" + content);
+            startActivity(Intent.createChooser(shareIntent,
+                    getString(R.string.share_note_chooser)));
+            return;
+        }
+
+        // A long note can't travel in an extra; the receiver streams it from the provider
+        // instead, so it is only handed out once the saver has written it.
+        shareIntent.putExtra(Intent.EXTRA_STREAM, mUri);
+        shareIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        final Intent chooser = Intent.createChooser(shareIntent,
+                getString(R.string.share_note_chooser));
+        updateNote(null, null);
+        mSaver.flush(new Runnable() {
+            @Override
+            public void run() {
+                if (!isFinishing()) {
+                    startActivity(chooser);
+                }
+            }
+        });
     }
 
     private String formatDate(long timestamp) {
@@ -28,6 +28,14 @@ import android.provider.BaseColumns;
 public final class NotePad {
     public static final String AUTHORITY = "com.google.provider.NotePad";
 
+    /**
+     * The permission a client of another app holds to write the content of a note through a
+     * stream, opened on the note's URI in a mode that writes. Only apps signed with the same
+     * key as Note Pad are granted it.
+     */
+    public static final String PERMISSION_WRITE_NOTE_CONTENT =
+            "com.example.android.notepad.permission.WRITE_NOTE_CONTENT";
+
     // This class cannot be instantiated
     private NotePad() {
     }
@@ -78,6 +86,16 @@ public final class NotePad {
          */
         private static final String PATH_LIVE_FOLDER = "/live_folders/notes";
 
+        /**
+         * Path part for the full-text search URI
+         */
+        private static final String PATH_SEARCH = "/notes/search";
+
+        /**
+         * Path part for the note count URI
+         */
+        private static final String PATH_COUNT = "/notes/count";
+
         /**
          * The content:// style URL for this table
          */
@@ -103,6 +121,92 @@ public final class NotePad {
         public static final Uri LIVE_FOLDER_URI
             = Uri.parse(SCHEME + AUTHORITY + PATH_LIVE_FOLDER);
 
+        /**
+         * The content:// style URL for searching notes through the full-text index. The search
+         * terms are passed in the {@link #QUERY_PARAMETER_FILTER} query parameter; every term
+         * matches as a word prefix against the title, the note and the category. Sorted by
+         * {@link #SEARCH_SORT_ORDER}, the notes come by relevance, and the projection can hold
+         * {@link #COLUMN_NAME_RANK}, {@link #COLUMN_NAME_SNIPPET} and
+         * {@link #COLUMN_NAME_SNIPPET_HIGHLIGHTS}.
+         */
+        public static final Uri CONTENT_SEARCH_URI
+            = Uri.parse(SCHEME + AUTHORITY + PATH_SEARCH);
+
+        /**
+         * The content:// style URL for counting notes without reading them. A query returns one
+         * row with one column, {@link #_COUNT}: the number of notes that the same selection would
+         * return from {@link #CONTENT_URI}, or from {@link #CONTENT_SEARCH_URI} if the
+         * {@link #QUERY_PARAMETER_FILTER} query parameter is given. Projection and sort order
+         * are ignored.
+         */
+        public static final Uri CONTENT_COUNT_URI
+            = Uri.parse(SCHEME + AUTHORITY + PATH_COUNT);
+
+        /**
+         * Query parameter of {@link #CONTENT_SEARCH_URI} and {@link #CONTENT_COUNT_URI} holding
+         * the text typed by the user
+         */
+        public static final String QUERY_PARAMETER_FILTER = "q";
+
+        /**
+         * Query parameter of {@link #CONTENT_URI} and {@link #CONTENT_SEARCH_URI} holding the
+         * maximum number of notes to return. A query that pages is ordered by
+         * {@link #LIST_SORT_ORDER}, or by {@link #SEARCH_SORT_ORDER} for a ranked search.
+         */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        /**
+         * Query parameter of {@link #CONTENT_URI} and {@link #CONTENT_SEARCH_URI} holding the
+         * key of the last note of the previous page, as "pinned,modified,_id". The query returns
+         * the notes that follow that key in {@link #LIST_SORT_ORDER}, so pages stay stable while
+         * other notes are inserted or deleted. A query that pages is ordered by
+         * {@link #LIST_SORT_ORDER}. In a ranked search, sorted by {@link #SEARCH_SORT_ORDER},
+         * the key is "rank,_id" instead.
+         */
+        public static final String QUERY_PARAMETER_AFTER = "after";
+
+        /**
+         * Query parameter of the note ID URIs the provider sends change notifications for,
+         * holding the kind of change: {@link #CHANGE_INSERT}, {@link #CHANGE_UPDATE} or
+         * {@link #CHANGE_DELETE}. Observers receive it in
+         * {@link android.database.ContentObserver#onChange(boolean, Uri)}. When many notes
+         * change at once, the provider notifies {@link #CONTENT_URI} instead, without a change.
+         */
+        public static final String QUERY_PARAMETER_CHANGE = "change";
+
+        /**
+         * The note was inserted
+         */
+        public static final String CHANGE_INSERT = "insert";
+
+        /**
+         * The note was updated
+         */
+        public static final String CHANGE_UPDATE = "update";
+
+        /**
+         * The note was deleted
+         */
+        public static final String CHANGE_DELETE = "delete";
+
+        /**
+         * Option of the Bundle passed to
+         * {@link android.content.ContentResolver#openTypedAssetFileDescriptor} for a note ID URI:
+         * the position in bytes of the first byte of the text/plain stream to return. The
+         * stream is the title, an empty line, and the note content with a line end, in UTF-8.
+         * <P>Type: long, 0 by default</P>
+         */
+        public static final String STREAM_OPTION_OFFSET = "offset";
+
+        /**
+         * Option of the Bundle passed to
+         * {@link android.content.ContentResolver#openTypedAssetFileDescriptor} for a note ID URI:
+         * the maximum number of bytes of the text/plain stream to return. The returned
+         * descriptor's length is the number of bytes the stream holds.
+         * <P>Type: long, the rest of the stream by default</P>
+         */
+        public static final String STREAM_OPTION_LENGTH = "length";
+
         /*
          * MIME type definitions
          */
@@ -118,11 +222,29 @@ public final class NotePad {
          */
         public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.google.note";
 
+        /**
+         * The MIME type of {@link #CONTENT_COUNT_URI} providing the number of notes.
+         */
+        public static final String CONTENT_COUNT_TYPE =
+                "vnd.android.cursor.item/vnd.google.notecount";
+
         /**
          * The default sort order for this table
          */
         public static final String DEFAULT_SORT_ORDER = "modified DESC";
 
+        /**
+         * The sort order of the notes list: pinned notes first, then the most recently modified.
+         * The note ID breaks ties, so that every note has a unique position to page from.
+         */
+        public static final String LIST_SORT_ORDER = "pinned DESC, modified DESC, _id DESC";
+
+        /**
+         * The sort order of a ranked search of {@link #CONTENT_SEARCH_URI}: the most relevant
+         * notes first, by {@link #COLUMN_NAME_RANK}. The note ID breaks ties.
+         */
+        public static final String SEARCH_SORT_ORDER = "rank DESC, _id DESC";
+
         /*
          * Column definitions
          */
@@ -134,11 +256,53 @@ public final class NotePad {
         public static final String COLUMN_NAME_TITLE = "title";
 
         /**
-         * Column name of the note content
+         * Column name of the note content. A note longer than {@link NoteChunks#MAX_LENGTH}
+         * characters wouldn't fit in a cursor window: for such a note, the column holds only the
+         * first chunk of the content, and {@link #COLUMN_NAME_NOTE_TRUNCATED} is 1. Read the
+         * whole content from the note's {@link NoteChunks} directory.
          * <P>Type: TEXT</P>
          */
         public static final String COLUMN_NAME_NOTE = "note";
 
+        /**
+         * Column name for whether {@link #COLUMN_NAME_NOTE} holds only the beginning of the note
+         * content, because the note is stored in chunks. The provider sets it; clients can read
+         * it, but not write it.
+         * <P>Type: INTEGER (0 or 1)</P>
+         */
+        public static final String COLUMN_NAME_NOTE_TRUNCATED = "note_truncated";
+
+        /**
+         * Column name for the size of the note content in UTF-8 bytes. The provider sets it;
+         * clients can read it, but not write it.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_NOTE_SIZE = "note_size";
+
+        /**
+         * Column name for the version of the note content, a number the provider raises by one
+         * with each update that writes the content. The provider sets it; clients can read it,
+         * but not write it.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_NOTE_VERSION = "note_version";
+
+        /**
+         * Column name for a patch of the note content, which clients write instead of the
+         * content to change part of it. It can only be written, on a note ID URI without a
+         * selection, and not together with {@link #COLUMN_NAME_NOTE}. The patch is a big-endian
+         * int, the length in chars of the content it applies to, and a big-endian long, the
+         * {@link #COLUMN_NAME_NOTE_VERSION} of that content, followed by its edits in order,
+         * each one the int offset in chars of the edit, the int number of chars it removes
+         * there, and the int number of chars it inserts followed by those chars, two
+         * big-endian bytes each.
+         * An update with a patch that doesn't fit the content fails, as does one for another
+         * version of it, such as after another client wrote the note; the client then writes
+         * the whole content instead.
+         * <P>Type: BLOB</P>
+         */
+        public static final String COLUMN_NAME_NOTE_PATCH = "note_patch";
+
         /**
          * Column name for the creation timestamp
          * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
@@ -162,5 +326,185 @@ public final class NotePad {
          * <P>Type: INTEGER (0 or 1)</P>
          */
         public static final String COLUMN_NAME_PINNED = "pinned";
+
+        /**
+         * Column name for the ID of the note's category in the {@link Categories} table, or null
+         * if the note has no category. The provider sets it from {@link #COLUMN_NAME_CATEGORY};
+         * clients can read it and select on it, but not write it.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_CATEGORY_ID = "category_id";
+
+        /**
+         * Column name for the relevance of a note to a ranked search: the BM25 score of its
+         * matches, weighted by column, raised for recently modified and pinned notes. Only
+         * meaningful to order the notes of one search.
+         * <P>Type: REAL</P>
+         */
+        public static final String COLUMN_NAME_RANK = "rank";
+
+        /**
+         * Column name for a fragment of a note around the matches of a ranked search, taken from
+         * the column of the note that matches best. It is null without search terms.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_SNIPPET = "snippet";
+
+        /**
+         * Column name for the ranges of {@link #COLUMN_NAME_SNIPPET} that match the search, as
+         * "start,end" offsets in chars separated by spaces. It is empty if no match shows in the
+         * snippet.
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_SNIPPET_HIGHLIGHTS = "snippet_highlights";
+    }
+
+    /**
+     * Note chunks contract. The content of a note is read in order as a directory of chunks of
+     * at most {@link #MAX_LENGTH} characters each, so a note of any length can be read without a
+     * row overflowing a cursor window. A note short enough for its
+     * {@link Notes#COLUMN_NAME_NOTE} column is one chunk. The chunks are read-only; write the
+     * note itself.
+     */
+    public static final class NoteChunks {
+
+        // This class cannot be instantiated
+        private NoteChunks() {}
+
+        /**
+         * The path segment to append to a note ID URI, such as one built on
+         * {@link Notes#CONTENT_ID_URI_BASE}, to get the directory of the note's chunks.
+         */
+        public static final String CONTENT_DIRECTORY = "chunks";
+
+        /**
+         * The MIME type of the directory of a note's chunks.
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.google.notechunk";
+
+        /**
+         * The maximum number of characters in one chunk.
+         */
+        public static final int MAX_LENGTH = 256 * 1024;
+
+        /**
+         * Column name for the 0-relative position of the chunk in the note. Chunks are returned
+         * in this order.
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_POSITION = "position";
+
+        /**
+         * Column name for the text of the chunk
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_TEXT = "text";
+    }
+
+    /**
+     * Categories table contract. The provider maintains this table from the categories of the
+     * notes: a category exists while at least one note belongs to it. Clients can only read it.
+     */
+    public static final class Categories implements BaseColumns {
+
+        // This class cannot be instantiated
+        private Categories() {}
+
+        /**
+         * The table name offered by this provider
+         */
+        public static final String TABLE_NAME = "categories";
+
+        /**
+         * Path part for the Categories URI
+         */
+        private static final String PATH_CATEGORIES = "/categories";
+
+        /**
+         * The content:// style URL for this table
+         */
+        public static final Uri CONTENT_URI =  Uri.parse("content://" + AUTHORITY + PATH_CATEGORIES);
+
+        /**
+         * The MIME type of {@link #CONTENT_URI} providing a directory of categories.
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.google.notecategory";
+
+        /**
+         * The default sort order for this table
+         */
+        public static final String DEFAULT_SORT_ORDER = "name ASC";
+
+        /**
+         * Column name for the name of the category
+         * <P>Type: TEXT</P>
+         */
+        public static final String COLUMN_NAME_NAME = "name";
+
+        /**
+         * Column name for the number of notes in the category
+         * <P>Type: INTEGER</P>
+         */
+        public static final String COLUMN_NAME_NOTE_COUNT = "note_count";
+    }
+
+    /**
+     * Row cache statistics contract. The provider keeps the notes read recently through a note
+     * ID URI in memory, so that reading them again doesn't go to the database. Calling
+     * {@link android.content.ContentResolver#call} on {@link Notes#CONTENT_URI} with
+     * {@link #METHOD} returns the cache's counters since the provider started, under the keys
+     * of this class.
+     */
+    public static final class RowCacheStats {
+
+        // This class cannot be instantiated
+        private RowCacheStats() {}
+
+        /**
+         * The name of the provider method that returns the statistics.
+         */
+        public static final String METHOD = "row_cache_stats";
+
+        /**
+         * The number of reads the cache answered.
+         * <P>Type: long</P>
+         */
+        public static final String HITS = "hits";
+
+        /**
+         * The number of reads that went to the database.
+         * <P>Type: long</P>
+         */
+        public static final String MISSES = "misses";
+
+        /**
+         * The number of rows evicted to keep the cache under its size, or to free memory.
+         * <P>Type: long</P>
+         */
+        public static final String EVICTIONS = "evictions";
+
+        /**
+         * The number of writes that made the cache forget rows.
+         * <P>Type: long</P>
+         */
+        public static final String INVALIDATIONS = "invalidations";
+
+        /**
+         * The number of rows in the cache.
+         * <P>Type: int</P>
+         */
+        public static final String ROWS = "rows";
+
+        /**
+         * The estimated size in bytes of the rows in the cache.
+         * <P>Type: int</P>
+         */
+        public static final String BYTES = "bytes";
+
+        /**
+         * The estimated size in bytes the cache keeps its rows under.
+         * <P>Type: int</P>
+         */
+        public static final String MAX_BYTES = "max_bytes";
     }
 }
@@ -19,33 +19,60 @@ package com.example.android.notepad;
 import com.example.android.notepad.NotePad;
 
 import android.content.ClipDescription;
+import android.content.ComponentCallbacks2;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.pm.PackageManager;
 import android.content.ContentProvider.PipeDataWriter;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Binder;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.provider.LiveFolders;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Provides access to a database of notes. Each note has a title, the note
@@ -63,7 +90,160 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     /**
      * The database version
      */
-    private static final int DATABASE_VERSION = 3;
+    private static final int DATABASE_VERSION = 15;
+
+    /**
+     * The full-text index over the title, note and category of every note. Its docid is the
+     * _ID of the note it indexes; the text of a chunked note has rows of its own, one for each
+     * chunk. The provider writes its rows as it writes the notes, and it keeps no copy of their
+     * text, see {@link SearchIndex}. Set to package visibility for testing purposes.
+     */
+    static final String FTS_TABLE_NAME = "notes_fts";
+
+    /**
+     * The table the full-text index reads the text of its rows from. It only holds the text of
+     * a row while the row is removed from the index, see {@link SearchIndex}. Set to package
+     * visibility for testing purposes.
+     */
+    static final String FTS_TEXT_TABLE_NAME = "notes_fts_text";
+
+    /**
+     * The table holding the note text of every note, keyed by the _ID of the note. The notes
+     * table only holds the small columns the list reads, so scanning it or its indexes doesn't
+     * read the text of the notes. Set to package visibility for testing purposes.
+     */
+    static final String BODIES_TABLE_NAME = "note_bodies";
+
+    /**
+     * The column of {@link #BODIES_TABLE_NAME} holding the _ID of the note. It is the table's
+     * rowid, so the text of a note is found by one lookup on the table's own B-tree.
+     */
+    static final String BODIES_COLUMN_NOTE_ID = "note_id";
+
+    /**
+     * The table holding the text of the notes too long for one row of the bodies table, in
+     * chunks of at most {@link NotePad.NoteChunks#MAX_LENGTH} characters keyed by the _ID of the
+     * note and their position. The body of such a note holds no text. Set to package visibility
+     * for testing purposes.
+     */
+    static final String CHUNKS_TABLE_NAME = "note_chunks";
+
+    /**
+     * The column of {@link #CHUNKS_TABLE_NAME} holding the _ID of a chunk, which gives the
+     * chunk its row in the full-text index.
+     */
+    static final String CHUNKS_COLUMN_ID = "_id";
+
+    /**
+     * The column of {@link #CHUNKS_TABLE_NAME} holding the text of a chunk, stored the way the
+     * bodies table stores the text of a note.
+     */
+    static final String CHUNKS_COLUMN_CHUNK = "chunk";
+
+    /**
+     * The column of {@link #CHUNKS_TABLE_NAME} holding the size of a chunk in UTF-8 bytes. It
+     * comes before the text, so it is read without reading the text.
+     */
+    static final String CHUNKS_COLUMN_SIZE = "size";
+
+    /**
+     * The size in bytes from which the text of a note is stored compressed. Below it, the time
+     * spent compressing buys little space.
+     */
+    static final int BODY_COMPRESSION_THRESHOLD = 4 * 1024;
+
+    // The notes joined to their text, for the selections that refer to the text.
+    private static final String NOTES_WITH_BODIES = NotePad.Notes.TABLE_NAME + " LEFT OUTER JOIN "
+            + BODIES_TABLE_NAME + " ON (" + BODIES_TABLE_NAME + "." + BODIES_COLUMN_NOTE_ID
+            + " = " + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + ")";
+
+    // Finds a reference to the note text column in a selection.
+    private static final Pattern NOTE_COLUMN_PATTERN =
+            Pattern.compile("\\b(" + NotePad.Notes.COLUMN_NAME_NOTE + "|"
+                    + NotePad.Notes.COLUMN_NAME_NOTE_SIZE + "|"
+                    + NotePad.Notes.COLUMN_NAME_NOTE_VERSION + ")\\b", Pattern.CASE_INSENSITIVE);
+
+    // The temporary tables of the selections on the note text: the text of a batch of
+    // compressed or chunked notes, the IDs of those a selection matches, and the IDs of the
+    // notes an update picks before it writes their text.
+    private static final String SELECTED_TEXTS_TABLE_NAME = "temp.selected_texts";
+    private static final String TEXT_MATCHES_TABLE_NAME = "temp.text_matches";
+    private static final String SELECTED_NOTES_TABLE_NAME = "temp.selected_notes";
+
+    // The number of compressed or chunked notes a selection on the text is run on at once.
+    private static final int SELECTION_BATCH_SIZE = 16;
+
+    // Reads the next batch of compressed or chunked notes after a note ID, with the text the
+    // note column returns: the body, or the first chunk.
+    private static final String READ_STORED_TEXTS = "SELECT " + BODIES_COLUMN_NOTE_ID
+            + ",coalesce((SELECT " + CHUNKS_COLUMN_CHUNK + " FROM " + CHUNKS_TABLE_NAME
+            + " WHERE " + CHUNKS_TABLE_NAME + "." + BODIES_COLUMN_NOTE_ID + " = "
+            + BODIES_TABLE_NAME + "." + BODIES_COLUMN_NOTE_ID + " ORDER BY "
+            + NotePad.NoteChunks.COLUMN_NAME_POSITION + " LIMIT 1),"
+            + NotePad.Notes.COLUMN_NAME_NOTE + ") FROM " + BODIES_TABLE_NAME + " WHERE "
+            + BODIES_COLUMN_NOTE_ID + " > ? AND (typeof(" + NotePad.Notes.COLUMN_NAME_NOTE
+            + ") = 'blob' OR EXISTS (SELECT 1 FROM " + CHUNKS_TABLE_NAME + " WHERE "
+            + CHUNKS_TABLE_NAME + "." + BODIES_COLUMN_NOTE_ID + " = " + BODIES_TABLE_NAME + "."
+            + BODIES_COLUMN_NOTE_ID + ")) ORDER BY " + BODIES_COLUMN_NOTE_ID + " LIMIT "
+            + SELECTION_BATCH_SIZE;
+
+    // Finds a reference to the text of the notes itself in a selection.
+    private static final Pattern NOTE_TEXT_PATTERN = Pattern.compile(
+            "\\b" + NotePad.Notes.COLUMN_NAME_NOTE + "\\b", Pattern.CASE_INSENSITIVE);
+
+    // Finds a selection of one note by its ID, alone or ANDed with other conditions.
+    private static final Pattern ID_LOOKUP_PATTERN = Pattern.compile(
+            "\\s*" + NotePad.Notes._ID + "\\s*=\\s*\\?(?!\\d)(\\s+AND\\s+(.*))?",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    // Finds an OR in a selection, which may widen it.
+    private static final Pattern OR_PATTERN = Pattern.compile("\\bOR\\b", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * The number of pages the write-ahead log may grow to before a writer checkpoints it back
+     * into the database file. A larger log batches more autosaves per checkpoint, at the cost of
+     * readers scanning a longer log.
+     */
+    static final int WAL_AUTOCHECKPOINT_PAGES = 1000;
+
+    /**
+     * The size in bytes the write-ahead log file is truncated to after a checkpoint, so one burst
+     * of writes does not leave a large log on disk.
+     */
+    static final long WAL_JOURNAL_SIZE_LIMIT = 512 * 1024;
+
+    // How long the provider waits for more writes before it notifies observers of the changes,
+    // and how long it waits at most while writes keep coming.
+    static final long NOTIFY_DELAY_MILLIS = 100;
+    static final long NOTIFY_MAX_DELAY_MILLIS = 500;
+
+    // How many compiled write statements the provider keeps. Each set of columns a client
+    // updates makes one statement.
+    private static final int STATEMENT_CACHE_SIZE = 16;
+
+    // The number of tokens of the snippets of a ranked search.
+    private static final int SNIPPET_TOKENS = 12;
+
+    // The columns of a ranked search without a projection.
+    private static final String[] SEARCH_PROJECTION = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_CATEGORY,
+            NotePad.Notes.COLUMN_NAME_PINNED,
+            NotePad.Notes.COLUMN_NAME_RANK,
+            NotePad.Notes.COLUMN_NAME_SNIPPET,
+            NotePad.Notes.COLUMN_NAME_SNIPPET_HIGHLIGHTS
+    };
+
+    // The estimated size in bytes of the note rows the provider keeps in memory.
+    static final int ROW_CACHE_BYTES = 1024 * 1024;
+
+    // The estimated size in bytes of the query results the provider keeps in memory, and the
+    // largest number of rows of a kept result. Copying a longer result, such as a whole list,
+    // would cost about what the query does.
+    static final int RESULT_CACHE_BYTES = 512 * 1024;
+    static final int RESULT_CACHE_ROWS = 200;
 
     /**
      * A projection map used to select columns from the database
@@ -76,15 +256,34 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     private static HashMap<String, String> sLiveFolderProjectionMap;
 
     /**
-     * Standard projection for the interesting columns of a normal note.
+     * A projection map used to select columns from the categories table
+     */
+    private static HashMap<String, String> sCategoriesProjectionMap;
+
+    /**
+     * Standard projection for the interesting columns of a normal note. The content is read
+     * apart, a chunk at a time, by the stream that writes it, as long as its version is the one
+     * read here.
      */
     private static final String[] READ_NOTE_PROJECTION = new String[] {
-            NotePad.Notes._ID,               // Projection position 0, the note's id
-            NotePad.Notes.COLUMN_NAME_NOTE,  // Projection position 1, the note's content
-            NotePad.Notes.COLUMN_NAME_TITLE, // Projection position 2, the note's title
+            NotePad.Notes._ID,                      // Projection position 0, the note's id
+            NotePad.Notes.COLUMN_NAME_TITLE,        // Projection position 1, the note's title
+            NotePad.Notes.COLUMN_NAME_NOTE_SIZE,    // Projection position 2, the content's size
+            NotePad.Notes.COLUMN_NAME_NOTE_VERSION, // Projection position 3, its version
     };
-    private static final int READ_NOTE_NOTE_INDEX = 1;
-    private static final int READ_NOTE_TITLE_INDEX = 2;
+    private static final int READ_NOTE_ID_INDEX = 0;
+    private static final int READ_NOTE_TITLE_INDEX = 1;
+    private static final int READ_NOTE_SIZE_INDEX = 2;
+    private static final int READ_NOTE_VERSION_INDEX = 3;
+
+    // The size in bytes of the buffer a note is encoded into when it is streamed.
+    private static final int PIPE_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * The longest the import of a note's content waits for the client to write more of it.
+     * Only from Lollipop can a pipe be waited on with a timeout.
+     */
+    static final long IMPORT_TIMEOUT_MILLIS = 30 * 1000;
 
     /*
      * Constants used by the Uri matcher to choose an action based on the pattern
@@ -99,13 +298,58 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     // The incoming URI matches the Live Folder URI pattern
     private static final int LIVE_FOLDER_NOTES = 3;
 
+    // The incoming URI matches the full-text search URI pattern
+    private static final int SEARCH = 4;
+
+    // The incoming URI matches the Categories URI pattern
+    private static final int CATEGORIES = 5;
+
+    // The incoming URI matches the note count URI pattern
+    private static final int COUNT = 6;
+
+    // The incoming URI matches the chunks of a note
+    private static final int NOTE_CHUNKS = 7;
+
     /**
      * A UriMatcher instance
      */
     private static final UriMatcher sUriMatcher;
 
-    // Handle to a new DatabaseHelper.
-    private DatabaseHelper mOpenHelper;
+    // Handle to a new DatabaseHelper. Only tests replace it, while other threads may read it.
+    private volatile DatabaseHelper mOpenHelper;
+
+    // Sends the change notifications, coalesced.
+    private NotificationDispatcher mNotifier;
+
+    // The size in bytes from which note bodies are stored compressed.
+    private int mCompressionThreshold = BODY_COMPRESSION_THRESHOLD;
+
+    // The compiled statements of the single-note update and delete paths.
+    private final StatementCache mStatements = new StatementCache(STATEMENT_CACHE_SIZE);
+
+    // The notes read recently by their ID.
+    private final NoteRowCache mRowCache = new NoteRowCache(ROW_CACHE_BYTES);
+
+    // The lists of notes and counts queried recently, read while nothing was written since.
+    private final QueryResultCache mResultCache =
+            new QueryResultCache(RESULT_CACHE_BYTES, RESULT_CACHE_ROWS);
+
+    // The ranking of the last search, which its next pages are cut from while nothing was
+    // written since.
+    private volatile Ranking mRanking;
+
+    // Cleared by tests that time the database itself.
+    private volatile boolean mCachesEnabled = true;
+
+    // A direct buffer for streaming notes, kept between streams. A stream takes it while it
+    // runs; streams that run meanwhile allocate their own.
+    private final AtomicReference<ByteBuffer> mPipeBuffer = new AtomicReference<ByteBuffer>();
+
+    // Shortened by tests of the import timeout.
+    private volatile long mImportTimeoutMillis = IMPORT_TIMEOUT_MILLIS;
+
+    // The number of imports running, which tests wait for, guarded by itself.
+    private final int[] mRunningImports = new int[1];
 
 
     /**
@@ -130,6 +374,20 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // live folder operation
         sUriMatcher.addURI(NotePad.AUTHORITY, "live_folders/notes", LIVE_FOLDER_NOTES);
 
+        // Add a pattern that routes URIs terminated with notes/search to a full-text search
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/search", SEARCH);
+
+        // Add a pattern that routes URIs terminated with "categories" to a CATEGORIES operation
+        sUriMatcher.addURI(NotePad.AUTHORITY, "categories", CATEGORIES);
+
+        // Add a pattern that routes URIs terminated with notes/count to a count of the notes
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/count", COUNT);
+
+        // Add a pattern that routes URIs terminated with a note ID plus "chunks" to the chunks
+        // of the note
+        sUriMatcher.addURI(NotePad.AUTHORITY,
+                "notes/#/" + NotePad.NoteChunks.CONTENT_DIRECTORY, NOTE_CHUNKS);
+
         /*
          * Creates and initializes a projection map that returns all columns
          */
@@ -144,8 +402,34 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // Maps "title" to "title"
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_TITLE);
 
-        // Maps "note" to "note"
-        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_NOTE);
+        // Maps "note" to a lookup of the note's text in the bodies table, so that only the
+        // queries that return the text read it. A chunked note returns its first chunk.
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE, "(SELECT coalesce("
+                + NotePad.Notes.COLUMN_NAME_NOTE + ",(SELECT " + CHUNKS_COLUMN_CHUNK + " FROM "
+                + CHUNKS_TABLE_NAME + " WHERE " + CHUNKS_TABLE_NAME + "." + BODIES_COLUMN_NOTE_ID
+                + " = " + BODIES_TABLE_NAME + "." + BODIES_COLUMN_NOTE_ID + " ORDER BY "
+                + NotePad.NoteChunks.COLUMN_NAME_POSITION + " LIMIT 1)) FROM "
+                + BODIES_TABLE_NAME + " WHERE " + BODIES_COLUMN_NOTE_ID + " = "
+                + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + ") AS "
+                + NotePad.Notes.COLUMN_NAME_NOTE);
+
+        // Maps "note_truncated" to whether the note is chunked
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE_TRUNCATED, "EXISTS (SELECT 1 FROM "
+                + CHUNKS_TABLE_NAME + " WHERE " + BODIES_COLUMN_NOTE_ID + " = "
+                + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + ") AS "
+                + NotePad.Notes.COLUMN_NAME_NOTE_TRUNCATED);
+
+        // Maps "note_size" to a lookup of the note's size in the bodies table
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE_SIZE, "(SELECT "
+                + NotePad.Notes.COLUMN_NAME_NOTE_SIZE + " FROM " + BODIES_TABLE_NAME + " WHERE "
+                + BODIES_COLUMN_NOTE_ID + " = " + NotePad.Notes.TABLE_NAME + "."
+                + NotePad.Notes._ID + ") AS " + NotePad.Notes.COLUMN_NAME_NOTE_SIZE);
+
+        // Maps "note_version" to a lookup of the version of the note's text
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE_VERSION, "(SELECT "
+                + NotePad.Notes.COLUMN_NAME_NOTE_VERSION + " FROM " + BODIES_TABLE_NAME
+                + " WHERE " + BODIES_COLUMN_NOTE_ID + " = " + NotePad.Notes.TABLE_NAME + "."
+                + NotePad.Notes._ID + ") AS " + NotePad.Notes.COLUMN_NAME_NOTE_VERSION);
 
         // Maps "created" to "created"
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE,
@@ -164,6 +448,20 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_PINNED,
                 NotePad.Notes.COLUMN_NAME_PINNED);
 
+        // Maps "category_id" to "category_id"
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID,
+                NotePad.Notes.COLUMN_NAME_CATEGORY_ID);
+
+        /*
+         * Creates and initializes a projection map for the categories table
+         */
+        sCategoriesProjectionMap = new HashMap<String, String>();
+        sCategoriesProjectionMap.put(NotePad.Categories._ID, NotePad.Categories._ID);
+        sCategoriesProjectionMap.put(NotePad.Categories.COLUMN_NAME_NAME,
+                NotePad.Categories.COLUMN_NAME_NAME);
+        sCategoriesProjectionMap.put(NotePad.Categories.COLUMN_NAME_NOTE_COUNT,
+                NotePad.Categories.COLUMN_NAME_NOTE_COUNT);
+
         /*
          * Creates an initializes a projection map for handling Live Folders
          */
@@ -183,13 +481,52 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     *
     * This class helps open, create, and upgrade the database file. Set to package visibility
     * for testing purposes.
+    *
+    * The database runs in write-ahead logging mode: a writer appends to the log while readers
+    * keep reading the last committed state, so an autosave from the editor doesn't block the
+    * list or the clients of the exported provider. The platform serves concurrent readers from
+    * its pool of connections to a write-ahead logged database.
     */
    static class DatabaseHelper extends SQLiteOpenHelper {
 
        DatabaseHelper(Context context) {
+           this(context, DATABASE_NAME);
+       }
+
+       DatabaseHelper(Context context, String name) {
 
            // calls the super constructor, requesting the default cursor factory.
-           super(context, DATABASE_NAME, null, DATABASE_VERSION);
+           super(context, name, null, DATABASE_VERSION);
+
+           // Opens the database in write-ahead logging mode, with a pool of reader connections.
+           if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+               setWriteAheadLoggingEnabled(true);
+           }
+       }
+
+       /**
+        * Applies the journal settings each time the database is opened. These settings belong to
+        * the connection rather than the file, so they can't be set once in onCreate().
+        */
+       @Override
+       public void onOpen(SQLiteDatabase db) {
+           super.onOpen(db);
+
+           if (db.isReadOnly()) {
+               return;
+           }
+
+           // Before Jelly Bean, the helper can't be asked for write-ahead logging up front.
+           if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+               db.enableWriteAheadLogging();
+           }
+
+           // The checkpoint policy. These pragmas return the new value as a row, so they are run
+           // as queries.
+           DatabaseUtils.longForQuery(db,
+                   "PRAGMA wal_autocheckpoint=" + WAL_AUTOCHECKPOINT_PAGES, null);
+           DatabaseUtils.longForQuery(db,
+                   "PRAGMA journal_size_limit=" + WAL_JOURNAL_SIZE_LIMIT, null);
        }
 
        /**
@@ -199,15 +536,205 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         */
        @Override
        public void onCreate(SQLiteDatabase db) {
-           db.execSQL("CREATE TABLE " + NotePad.Notes.TABLE_NAME + " ("
+           createNotesTable(db, NotePad.Notes.TABLE_NAME);
+           createBodiesTable(db);
+           createSearchIndex(db);
+           createCategoryTable(db);
+           createNoteTriggers(db);
+           createChunksTable(db);
+           createListIndexes(db);
+       }
+
+       /**
+        * Creates the table of notes under the given name. The text of the notes is kept apart,
+        * in the bodies table.
+        */
+       private void createNotesTable(SQLiteDatabase db, String tableName) {
+           db.execSQL("CREATE TABLE " + tableName + " ("
                    + NotePad.Notes._ID + " INTEGER PRIMARY KEY,"
                    + NotePad.Notes.COLUMN_NAME_TITLE + " TEXT,"
-                   + NotePad.Notes.COLUMN_NAME_NOTE + " TEXT,"
                    + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " INTEGER,"
                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER,"
                    + NotePad.Notes.COLUMN_NAME_CATEGORY + " TEXT,"
-                   + NotePad.Notes.COLUMN_NAME_PINNED + " INTEGER DEFAULT 0"
+                   + NotePad.Notes.COLUMN_NAME_PINNED + " INTEGER DEFAULT 0,"
+                   + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " INTEGER"
+                   + ");");
+       }
+
+       /**
+        * Creates the table holding the text of each note, keyed by the note's _ID, and the
+        * trigger that raises the version of a text each time it is written.
+        */
+       private void createBodiesTable(SQLiteDatabase db) {
+           db.execSQL("CREATE TABLE " + BODIES_TABLE_NAME + " ("
+                   + BODIES_COLUMN_NOTE_ID + " INTEGER PRIMARY KEY,"
+                   + NotePad.Notes.COLUMN_NAME_NOTE + " TEXT,"
+                   + NotePad.Notes.COLUMN_NAME_NOTE_SIZE + " INTEGER NOT NULL DEFAULT 0,"
+                   + NotePad.Notes.COLUMN_NAME_NOTE_VERSION + " INTEGER NOT NULL DEFAULT 0"
+                   + ");");
+           createVersionTrigger(db);
+       }
+
+       /**
+        * Creates the trigger that raises the version of a body whenever its text or size is
+        * written. A long note's chunks are written with its size, so this covers them too.
+        */
+       private void createVersionTrigger(SQLiteDatabase db) {
+           db.execSQL("CREATE TRIGGER note_bodies_version AFTER UPDATE OF "
+                   + NotePad.Notes.COLUMN_NAME_NOTE + ","
+                   + NotePad.Notes.COLUMN_NAME_NOTE_SIZE + " ON " + BODIES_TABLE_NAME
+                   + " BEGIN UPDATE " + BODIES_TABLE_NAME + " SET "
+                   + NotePad.Notes.COLUMN_NAME_NOTE_VERSION + " = old."
+                   + NotePad.Notes.COLUMN_NAME_NOTE_VERSION + " + 1 WHERE "
+                   + BODIES_COLUMN_NOTE_ID + " = old." + BODIES_COLUMN_NOTE_ID + ";"
+                   + " END;");
+       }
+
+       /**
+        * Creates the table holding the chunks of long notes, and the trigger that deletes them
+        * with their note.
+        */
+       private void createChunksTable(SQLiteDatabase db) {
+           db.execSQL("CREATE TABLE " + CHUNKS_TABLE_NAME + " ("
+                   + CHUNKS_COLUMN_ID + " INTEGER PRIMARY KEY,"
+                   + BODIES_COLUMN_NOTE_ID + " INTEGER NOT NULL,"
+                   + NotePad.NoteChunks.COLUMN_NAME_POSITION + " INTEGER NOT NULL,"
+                   + CHUNKS_COLUMN_SIZE + " INTEGER NOT NULL DEFAULT 0,"
+                   + CHUNKS_COLUMN_CHUNK + " TEXT,"
+                   + "UNIQUE (" + BODIES_COLUMN_NOTE_ID + ","
+                   + NotePad.NoteChunks.COLUMN_NAME_POSITION + ")"
+                   + ");");
+
+           db.execSQL("CREATE TRIGGER notes_chunks_delete AFTER DELETE ON "
+                   + NotePad.Notes.TABLE_NAME + " BEGIN "
+                   + "DELETE FROM " + CHUNKS_TABLE_NAME + " WHERE " + BODIES_COLUMN_NOTE_ID
+                   + "=old." + NotePad.Notes._ID + ";"
+                   + " END;");
+       }
+
+       /**
+        * Creates the categories table and the triggers that keep the note count of each category
+        * in step with the notes that refer to it. A category is deleted as soon as its last note
+        * leaves it, so the table only ever holds the categories in use.
+        */
+       private void createCategoryTable(SQLiteDatabase db) {
+           db.execSQL("CREATE TABLE " + NotePad.Categories.TABLE_NAME + " ("
+                   + NotePad.Categories._ID + " INTEGER PRIMARY KEY,"
+                   + NotePad.Categories.COLUMN_NAME_NAME + " TEXT NOT NULL UNIQUE,"
+                   + NotePad.Categories.COLUMN_NAME_NOTE_COUNT + " INTEGER NOT NULL DEFAULT 0"
+                   + ");");
+
+           db.execSQL("CREATE TRIGGER categories_delete_empty AFTER UPDATE OF "
+                   + NotePad.Categories.COLUMN_NAME_NOTE_COUNT + " ON "
+                   + NotePad.Categories.TABLE_NAME + " WHEN new."
+                   + NotePad.Categories.COLUMN_NAME_NOTE_COUNT + " <= 0 BEGIN "
+                   + "DELETE FROM " + NotePad.Categories.TABLE_NAME + " WHERE "
+                   + NotePad.Categories._ID + " = new." + NotePad.Categories._ID + ";"
+                   + " END;");
+
+           createCategoryTriggers(db);
+       }
+
+       /**
+        * Creates the triggers on the notes table that count the notes of each category.
+        */
+       private void createCategoryTriggers(SQLiteDatabase db) {
+           db.execSQL("CREATE TRIGGER notes_category_insert AFTER INSERT ON "
+                   + NotePad.Notes.TABLE_NAME + " WHEN new." + NotePad.Notes.COLUMN_NAME_CATEGORY_ID
+                   + " IS NOT NULL BEGIN "
+                   + countUpdate("+ 1", "new") + " END;");
+
+           // Only fires when a note moves between categories.
+           db.execSQL("CREATE TRIGGER notes_category_update AFTER UPDATE OF "
+                   + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " ON " + NotePad.Notes.TABLE_NAME
+                   + " WHEN old." + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " IS NOT new."
+                   + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " BEGIN "
+                   + countUpdate("- 1", "old") + " "
+                   + countUpdate("+ 1", "new") + " END;");
+
+           db.execSQL("CREATE TRIGGER notes_category_delete AFTER DELETE ON "
+                   + NotePad.Notes.TABLE_NAME + " WHEN old." + NotePad.Notes.COLUMN_NAME_CATEGORY_ID
+                   + " IS NOT NULL BEGIN "
+                   + countUpdate("- 1", "old") + " END;");
+       }
+
+       // Returns the trigger statement that adds the delta to the note count of the category of
+       // the old or new row of a note.
+       private String countUpdate(String delta, String row) {
+           return "UPDATE " + NotePad.Categories.TABLE_NAME + " SET "
+                   + NotePad.Categories.COLUMN_NAME_NOTE_COUNT + " = "
+                   + NotePad.Categories.COLUMN_NAME_NOTE_COUNT + " " + delta
+                   + " WHERE " + NotePad.Categories._ID + " = " + row + "."
+                   + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ";";
+       }
+
+       /**
+        * Creates the indexes that serve the note list. Each one holds every column of the list
+        * projection, so the list is read from the index alone, and in sort order: SQLite walks
+        * an index backwards for {@link NotePad.Notes#LIST_SORT_ORDER}, so no temporary B-tree is
+        * built to sort the notes, and a page starting at a key is found by one index seek.
+        */
+       private void createListIndexes(SQLiteDatabase db) {
+           // Serves the unfiltered list, ordered by pinned state, then modification date.
+           db.execSQL("CREATE INDEX notes_list_index ON " + NotePad.Notes.TABLE_NAME + " ("
+                   + NotePad.Notes.COLUMN_NAME_PINNED + ","
+                   + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ","
+                   + NotePad.Notes._ID + ","
+                   + NotePad.Notes.COLUMN_NAME_TITLE + ","
+                   + NotePad.Notes.COLUMN_NAME_CATEGORY
+                   + ");");
+
+           // Serves the list filtered on one category ID, in the same order.
+           db.execSQL("CREATE INDEX notes_category_index ON " + NotePad.Notes.TABLE_NAME + " ("
+                   + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + ","
+                   + NotePad.Notes.COLUMN_NAME_PINNED + ","
+                   + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ","
+                   + NotePad.Notes._ID + ","
+                   + NotePad.Notes.COLUMN_NAME_TITLE + ","
+                   + NotePad.Notes.COLUMN_NAME_CATEGORY
+                   + ");");
+
+           // Serves the default sort order, used by the live folder and other clients.
+           db.execSQL("CREATE INDEX notes_modified_index ON " + NotePad.Notes.TABLE_NAME + " ("
+                   + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ","
+                   + NotePad.Notes.COLUMN_NAME_TITLE
+                   + ");");
+       }
+
+       /**
+        * Creates the full-text index over the title, note and category of every note, and the
+        * table it reads the text of its rows from, which is empty but while a row is removed.
+        * Before Jelly Bean, SQLite can't read the text from another table, and the index keeps
+        * a copy of its own.
+        */
+       private void createSearchIndex(SQLiteDatabase db) {
+           db.execSQL("CREATE TABLE " + FTS_TEXT_TABLE_NAME + " ("
+                   + "docid INTEGER PRIMARY KEY,"
+                   + NotePad.Notes.COLUMN_NAME_TITLE + ","
+                   + NotePad.Notes.COLUMN_NAME_NOTE + ","
+                   + NotePad.Notes.COLUMN_NAME_CATEGORY
                    + ");");
+           db.execSQL("CREATE VIRTUAL TABLE " + FTS_TABLE_NAME + " USING fts4("
+                   + (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+                           ? "content=\"" + FTS_TEXT_TABLE_NAME + "\"," : "")
+                   + NotePad.Notes.COLUMN_NAME_TITLE + ","
+                   + NotePad.Notes.COLUMN_NAME_NOTE + ","
+                   + NotePad.Notes.COLUMN_NAME_CATEGORY
+                   + ");");
+       }
+
+       /**
+        * Creates the trigger that deletes the text of a note with the note, so that a delete
+        * made through any path leaves no text behind. The provider keeps the full-text index
+        * in step with the notes itself, since it splits the text it indexes, see
+        * {@link SearchIndex}.
+        */
+       private void createNoteTriggers(SQLiteDatabase db) {
+           db.execSQL("CREATE TRIGGER notes_bodies_delete AFTER DELETE ON "
+                   + NotePad.Notes.TABLE_NAME + " BEGIN "
+                   + "DELETE FROM " + BODIES_TABLE_NAME + " WHERE " + BODIES_COLUMN_NOTE_ID
+                   + "=old." + NotePad.Notes._ID + ";"
+                   + " END;");
        }
 
        /**
@@ -230,6 +757,218 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME +
                        " ADD COLUMN " + NotePad.Notes.COLUMN_NAME_PINNED + " INTEGER DEFAULT 0");
            }
+
+           if (oldVersion < 7) {
+               // Moves the categories the notes use into their own table and points each note
+               // at its category. Setting the category IDs fires the count triggers, which count
+               // the notes of each category.
+               db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                       + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " INTEGER");
+               db.execSQL("UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+                       + NotePad.Notes.COLUMN_NAME_CATEGORY + " = trim("
+                       + NotePad.Notes.COLUMN_NAME_CATEGORY + ")");
+               createCategoryTable(db);
+               db.execSQL("INSERT INTO " + NotePad.Categories.TABLE_NAME + " ("
+                       + NotePad.Categories.COLUMN_NAME_NAME + ") SELECT DISTINCT "
+                       + NotePad.Notes.COLUMN_NAME_CATEGORY + " FROM " + NotePad.Notes.TABLE_NAME
+                       + " WHERE " + NotePad.Notes.COLUMN_NAME_CATEGORY + " != ''");
+               db.execSQL("UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+                       + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = (SELECT "
+                       + NotePad.Categories._ID + " FROM " + NotePad.Categories.TABLE_NAME
+                       + " WHERE " + NotePad.Categories.COLUMN_NAME_NAME + " = "
+                       + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_CATEGORY
+                       + ")");
+
+               // Version 5 indexes broke ties on the title rather than the note ID, which kept
+               // them from serving pages, and version 6 indexes filtered categories by name.
+               // Rebuilds them in their current form.
+               db.execSQL("DROP INDEX IF EXISTS notes_list_index");
+               db.execSQL("DROP INDEX IF EXISTS notes_category_index");
+               db.execSQL("DROP INDEX IF EXISTS notes_modified_index");
+               createListIndexes(db);
+           }
+
+           if (oldVersion < 8) {
+               // Moves the text of the notes into the bodies table. SQLite can't drop a column,
+               // so the notes table is rebuilt without it; its triggers and indexes go with the
+               // old table and are created again.
+               createBodiesTable(db);
+               db.execSQL("INSERT INTO " + BODIES_TABLE_NAME + " (" + BODIES_COLUMN_NOTE_ID + ","
+                       + NotePad.Notes.COLUMN_NAME_NOTE + ") SELECT " + NotePad.Notes._ID + ","
+                       + NotePad.Notes.COLUMN_NAME_NOTE + " FROM " + NotePad.Notes.TABLE_NAME);
+
+               String columns = NotePad.Notes._ID + ","
+                       + NotePad.Notes.COLUMN_NAME_TITLE + ","
+                       + NotePad.Notes.COLUMN_NAME_CREATE_DATE + ","
+                       + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ","
+                       + NotePad.Notes.COLUMN_NAME_CATEGORY + ","
+                       + NotePad.Notes.COLUMN_NAME_PINNED + ","
+                       + NotePad.Notes.COLUMN_NAME_CATEGORY_ID;
+               createNotesTable(db, "notes_new");
+               db.execSQL("INSERT INTO notes_new (" + columns + ") SELECT " + columns
+                       + " FROM " + NotePad.Notes.TABLE_NAME);
+               db.execSQL("DROP TABLE " + NotePad.Notes.TABLE_NAME);
+               db.execSQL("ALTER TABLE notes_new RENAME TO " + NotePad.Notes.TABLE_NAME);
+
+               createCategoryTriggers(db);
+               createNoteTriggers(db);
+               createListIndexes(db);
+           }
+
+           if (oldVersion < 10) {
+               // Records the size of every body, and adds the table of chunks. A bodies table
+               // created above already has the size column.
+               if (oldVersion >= 8) {
+                   db.execSQL("ALTER TABLE " + BODIES_TABLE_NAME + " ADD COLUMN "
+                           + NotePad.Notes.COLUMN_NAME_NOTE_SIZE + " INTEGER NOT NULL DEFAULT 0");
+               }
+               db.execSQL("UPDATE " + BODIES_TABLE_NAME + " SET "
+                       + NotePad.Notes.COLUMN_NAME_NOTE_SIZE + " = length(CAST("
+                       + NotePad.Notes.COLUMN_NAME_NOTE + " AS BLOB)) WHERE typeof("
+                       + NotePad.Notes.COLUMN_NAME_NOTE + ") = 'text'");
+               sizeCompressedText(db, BODIES_TABLE_NAME, NotePad.Notes.COLUMN_NAME_NOTE,
+                       NotePad.Notes.COLUMN_NAME_NOTE_SIZE);
+               createChunksTable(db);
+           }
+
+           if (oldVersion == 10) {
+               // Records the size of every chunk, in a column before the text. A chunks table
+               // created above already has it.
+               db.execSQL("DROP TRIGGER IF EXISTS notes_chunks_delete");
+               db.execSQL("ALTER TABLE " + CHUNKS_TABLE_NAME + " RENAME TO note_chunks_old");
+               createChunksTable(db);
+               db.execSQL("INSERT INTO " + CHUNKS_TABLE_NAME + " (" + BODIES_COLUMN_NOTE_ID + ","
+                       + NotePad.NoteChunks.COLUMN_NAME_POSITION + "," + CHUNKS_COLUMN_SIZE + ","
+                       + CHUNKS_COLUMN_CHUNK + ") SELECT " + BODIES_COLUMN_NOTE_ID + ","
+                       + NotePad.NoteChunks.COLUMN_NAME_POSITION + ",CASE typeof("
+                       + CHUNKS_COLUMN_CHUNK + ") WHEN 'text' THEN length(CAST("
+                       + CHUNKS_COLUMN_CHUNK + " AS BLOB)) ELSE 0 END," + CHUNKS_COLUMN_CHUNK
+                       + " FROM note_chunks_old");
+               db.execSQL("DROP TABLE note_chunks_old");
+               sizeCompressedText(db, CHUNKS_TABLE_NAME, CHUNKS_COLUMN_CHUNK,
+                       CHUNKS_COLUMN_SIZE);
+           }
+
+           if (oldVersion < 13) {
+               // Versions the text of each note, so a stream can tell that it changed. A bodies
+               // table created above already has the version column and its trigger.
+               if (oldVersion >= 8) {
+                   db.execSQL("ALTER TABLE " + BODIES_TABLE_NAME + " ADD COLUMN "
+                           + NotePad.Notes.COLUMN_NAME_NOTE_VERSION
+                           + " INTEGER NOT NULL DEFAULT 0");
+                   createVersionTrigger(db);
+               }
+           }
+
+           if (oldVersion < 14) {
+               // Gives each chunk an _ID, which its row in the full-text index is keyed by. A
+               // chunks table created above already has it.
+               if (oldVersion >= 11) {
+                   db.execSQL("DROP TRIGGER IF EXISTS notes_chunks_delete");
+                   db.execSQL("ALTER TABLE " + CHUNKS_TABLE_NAME + " RENAME TO note_chunks_old");
+                   createChunksTable(db);
+                   String columns = BODIES_COLUMN_NOTE_ID + ","
+                           + NotePad.NoteChunks.COLUMN_NAME_POSITION + "," + CHUNKS_COLUMN_SIZE
+                           + "," + CHUNKS_COLUMN_CHUNK;
+                   db.execSQL("INSERT INTO " + CHUNKS_TABLE_NAME + " (" + columns + ") SELECT "
+                           + columns + " FROM note_chunks_old");
+                   db.execSQL("DROP TABLE note_chunks_old");
+               }
+           }
+
+           if (oldVersion < 15) {
+               // Builds the full-text index again without a copy of the text it indexes. The
+               // provider writes its rows now, with their CJK text split into bigrams, so the
+               // triggers that wrote them, and the queue of the text left to split, go.
+               String[] triggers = {
+                       "notes_fts_insert", "notes_fts_update", "notes_fts_delete",
+                       "note_bodies_fts_insert", "note_bodies_fts_update",
+                       "notes_fts_queue_insert", "notes_fts_queue_update",
+                       "note_bodies_fts_queue_insert", "note_bodies_fts_queue_update",
+                       "note_chunks_fts_delete"
+               };
+               for (String trigger : triggers) {
+                   db.execSQL("DROP TRIGGER IF EXISTS " + trigger);
+               }
+               db.execSQL("DROP TABLE IF EXISTS notes_fts_queue");
+               if (oldVersion >= 8) {
+                   createNoteTriggers(db);
+               }
+               rebuildSearchIndex(db);
+           }
+       }
+
+       /**
+        * Creates the full-text index again, and writes the rows of every note and every chunk
+        * to it, reading one text at a time.
+        */
+       void rebuildSearchIndex(SQLiteDatabase db) {
+           db.beginTransaction();
+           try {
+               db.execSQL("DROP TABLE IF EXISTS " + FTS_TABLE_NAME);
+               db.execSQL("DROP TABLE IF EXISTS " + FTS_TEXT_TABLE_NAME);
+               createSearchIndex(db);
+               indexAllNotes(db);
+               db.setTransactionSuccessful();
+           } finally {
+               db.endTransaction();
+           }
+       }
+
+       // Writes the rows of every note and every chunk to the empty full-text index.
+       private void indexAllNotes(SQLiteDatabase db) {
+           Cursor notes = db.query(NotePad.Notes.TABLE_NAME, new String[] { NotePad.Notes._ID },
+                   null, null, null, null, null);
+           try {
+               while (notes.moveToNext()) {
+                   indexNote(db, notes.getLong(0));
+               }
+           } finally {
+               notes.close();
+           }
+           indexChunks(db);
+       }
+
+       // Indexes the text of every chunk in its own row of the full-text index, reading one
+       // chunk at a time.
+       private void indexChunks(SQLiteDatabase db) {
+           Cursor chunks = db.query(CHUNKS_TABLE_NAME,
+                   new String[] { CHUNKS_COLUMN_ID, BODIES_COLUMN_NOTE_ID }, null, null, null,
+                   null, BODIES_COLUMN_NOTE_ID + "," + NotePad.NoteChunks.COLUMN_NAME_POSITION);
+           try {
+               long noteId = -1;
+               String previousTail = null;
+               while (chunks.moveToNext()) {
+                   if (chunks.getLong(1) != noteId) {
+                       noteId = chunks.getLong(1);
+                       previousTail = null;
+                   }
+                   String chunk = readText(db, "SELECT " + CHUNKS_COLUMN_CHUNK + " FROM "
+                           + CHUNKS_TABLE_NAME + " WHERE " + CHUNKS_COLUMN_ID + " = ?",
+                           chunks.getString(0));
+                   SearchIndex.indexChunk(db, chunks.getLong(0), previousTail, chunk);
+                   previousTail = SearchIndex.tail(chunk);
+               }
+           } finally {
+               chunks.close();
+           }
+       }
+
+       // Records the size of the text stored compressed in a table, which SQL can't read.
+       private void sizeCompressedText(SQLiteDatabase db, String table, String textColumn,
+               String sizeColumn) {
+           Cursor cursor = db.query(table, new String[] { "rowid", textColumn },
+                   "typeof(" + textColumn + ") = 'blob'", null, null, null, null);
+           try {
+               ContentValues values = new ContentValues();
+               while (cursor.moveToNext()) {
+                   values.put(sizeColumn,
+                           BodyCodec.utf8Length(BodyCodec.decode(cursor.getBlob(1))));
+                   db.update(table, values, "rowid = ?", new String[] { cursor.getString(0) });
+               }
+           } finally {
+               cursor.close();
+           }
        }
    }
 
@@ -246,6 +985,9 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
        // something tries to access it, and it's only created if it doesn't already exist.
        mOpenHelper = new DatabaseHelper(getContext());
 
+       mNotifier = new NotificationDispatcher(getContext().getContentResolver(),
+               NOTIFY_DELAY_MILLIS, NOTIFY_MAX_DELAY_MILLIS);
+
        // Assumes that any failures will be reported by a thrown exception.
        return true;
    }
@@ -262,15 +1004,148 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
    @Override
    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
            String sortOrder) {
+       return query(uri, projection, selection, selectionArgs, sortOrder, null);
+   }
+
+   /**
+    * This method is called when a client calls
+    * {@link android.content.ContentResolver#query(Uri, String[], String, String[], String,
+    * CancellationSignal)}, from Jelly Bean on. Cancelling the signal aborts a query of a list
+    * of notes while SQLite still scans for its rows, such as a search the user typed past:
+    * the query then throws {@link android.os.OperationCanceledException}. Earlier versions of
+    * the platform call {@link #query(Uri, String[], String, String[], String)}, which passes no
+    * signal.
+    */
+   @Override
+   public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+           String sortOrder, CancellationSignal cancellationSignal) {
+       int match = sUriMatcher.match(uri);
+
+       // A selection on the text of the notes is turned into one on the notes table, for the
+       // URIs that read the notes table.
+       if ((match != NOTES && match != NOTE_ID && match != LIVE_FOLDER_NOTES && match != SEARCH
+               && match != COUNT) || !refersToNote(selection)) {
+           return query(uri, match, projection, selection, selectionArgs, sortOrder,
+                   cancellationSignal);
+       }
+       SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+       if (!NOTE_TEXT_PATTERN.matcher(selection).find()) {
+           return query(uri, match, projection, toNotesWhere(db, selection, selectionArgs),
+                   selectionArgs, sortOrder, cancellationSignal);
+       }
+
+       // The compressed and chunked notes a selection on the text matches are kept in a
+       // temporary table, which only the connection of a transaction sees. A count, or a ranked
+       // search, which reads its page whole anyway, is read in the transaction. Any other query
+       // only reads the IDs of its notes there, in order; their rows are read by their IDs a
+       // page at a time as the client moves over them.
+       boolean whole = match == COUNT
+               || (match == SEARCH && NotePad.Notes.SEARCH_SORT_ORDER.equals(sortOrder));
+       Cursor rows = null;
+       long[] ids = null;
+       db.beginTransaction();
+       try {
+           Cursor result = query(uri, match,
+                   whole ? projection : new String[] { NotePad.Notes._ID },
+                   toNotesWhere(db, selection, selectionArgs), selectionArgs, sortOrder,
+                   cancellationSignal);
+           if (whole) {
+               rows = QueryResultCache.copy(result);
+           } else {
+               ids = readIds(result);
+           }
+           db.setTransactionSuccessful();
+       } finally {
+           db.endTransaction();
+       }
+       if (!whole) {
+           rows = new IdPagedCursor(ids, newPageReader(uri, match, projection),
+                   projection == null ? -1 : projection.length);
+       }
+       rows.setNotificationUri(getContext().getContentResolver(),
+               match == SEARCH || match == COUNT ? NotePad.Notes.CONTENT_URI : uri);
+       return rows;
+   }
+
+   // Returns the IDs in the first column of a cursor, and closes it.
+   private static long[] readIds(Cursor cursor) {
+       try {
+           long[] ids = new long[cursor.getCount()];
+           for (int index = 0; cursor.moveToNext(); index++) {
+               ids[index] = cursor.getLong(0);
+           }
+           return ids;
+       } finally {
+           cursor.close();
+       }
+   }
+
+   /**
+    * Returns the reader of the pages of an {@link IdPagedCursor} over the notes of a URI: it
+    * reads the columns of the projection of the notes with the IDs of a page, with the ID of
+    * each note after them if the projection doesn't hold it. A search reads its pages from the
+    * notes URI, since its rows are picked already.
+    */
+   private IdPagedCursor.PageReader newPageReader(Uri uri, int match, String[] projection) {
+       final Uri pageUri = match == SEARCH
+               ? NotePad.Notes.CONTENT_URI : uri.buildUpon().clearQuery().build();
+       final int pageMatch = match == SEARCH ? NOTES : match;
+       boolean hasId = projection == null;
+       for (int index = 0; !hasId && index < projection.length; index++) {
+           hasId = NotePad.Notes._ID.equals(projection[index]);
+       }
+       final String[] pageProjection;
+       if (hasId) {
+           pageProjection = projection;
+       } else {
+           pageProjection = new String[projection.length + 1];
+           System.arraycopy(projection, 0, pageProjection, 0, projection.length);
+           pageProjection[projection.length] = NotePad.Notes._ID;
+       }
+       return new IdPagedCursor.PageReader() {
+           @Override
+           public Cursor read(long[] ids) {
+               StringBuilder where = new StringBuilder(NotePad.Notes._ID).append(" IN (");
+               for (int index = 0; index < ids.length; index++) {
+                   where.append(index == 0 ? "" : ",").append(ids[index]);
+               }
+               return query(pageUri, pageMatch, pageProjection, where.append(')').toString(),
+                       null, null, null);
+           }
+       };
+   }
+
+   // Queries a URI with a selection on the notes table, or on the table the URI reads.
+   private Cursor query(Uri uri, int match, String[] projection, String selection,
+           String[] selectionArgs, String sortOrder, CancellationSignal cancellationSignal) {
 
        // Constructs a new query builder and sets its table name
        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
        qb.setTables(NotePad.Notes.TABLE_NAME);
 
+       // Lists of notes and their counts are answered from the result cache if nothing was
+       // written since they were read.
+       String resultKey = null;
+       long generation = 0;
+       if (mCachesEnabled && (match == NOTES || match == SEARCH || match == COUNT)) {
+           resultKey = QueryResultCache.getKey(uri, projection, selection, selectionArgs,
+                   sortOrder);
+           Cursor result = mResultCache.get(resultKey);
+           if (result != null) {
+               if (cancellationSignal != null) {
+                   cancellationSignal.throwIfCanceled();
+               }
+               result.setNotificationUri(getContext().getContentResolver(),
+                       match == NOTES ? uri : NotePad.Notes.CONTENT_URI);
+               return result;
+           }
+           generation = mResultCache.getGeneration();
+       }
+
        /**
         * Choose the projection and adjust the "where" clause based on URI pattern-matching.
         */
-       switch (sUriMatcher.match(uri)) {
+       switch (match) {
            // If the incoming URI is for notes, chooses the Notes projection
            case NOTES:
                qb.setProjectionMap(sNotesProjectionMap);
@@ -281,6 +1156,17 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             * it selects that single note
             */
            case NOTE_ID:
+               // A note read by its ID alone is read through the row cache.
+               int[] cachedColumns = NoteRowCache.getColumnIndexes(projection);
+               if (mCachesEnabled && cachedColumns != null && TextUtils.isEmpty(selection)
+                       && uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT) == null
+                       && uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER) == null) {
+                   Cursor row = new NoteRowCursor(this, ContentUris.parseId(uri),
+                           projection == null ? NoteRowCache.COLUMNS : projection,
+                           cachedColumns);
+                   row.setNotificationUri(getContext().getContentResolver(), uri);
+                   return row;
+               }
                qb.setProjectionMap(sNotesProjectionMap);
                qb.appendWhere(
                    NotePad.Notes._ID +    // the name of the ID column
@@ -294,16 +1180,58 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                qb.setProjectionMap(sLiveFolderProjectionMap);
                break;
 
+           // If the incoming URI is a search, restricts the notes to the ones the full-text
+           // index returns for the search terms.
+           case SEARCH:
+               qb.setProjectionMap(sNotesProjectionMap);
+               appendMatch(qb, buildMatchPhrases(
+                       uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_FILTER)));
+               break;
+
+           // If the incoming URI is for the chunks of a note, reads them in order.
+           case NOTE_CHUNKS:
+               long chunksNoteId = Long.parseLong(
+                       uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+               Cursor chunks = queryChunks(mOpenHelper.getReadableDatabase(), chunksNoteId);
+               chunks.setNotificationUri(getContext().getContentResolver(),
+                       ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                               chunksNoteId));
+               return chunks;
+
+           // If the incoming URI is a count, counts the notes without reading them.
+           case COUNT:
+               String countFilter = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_FILTER);
+               Cursor count = queryCount(mOpenHelper.getReadableDatabase(), qb, countFilter,
+                       selection, selectionArgs);
+               if (resultKey != null) {
+                   count = mResultCache.put(resultKey, count, generation);
+               }
+               count.setNotificationUri(getContext().getContentResolver(),
+                       NotePad.Notes.CONTENT_URI);
+               return count;
+
+           // If the incoming URI is for categories, reads the categories table instead.
+           case CATEGORIES:
+               qb.setTables(NotePad.Categories.TABLE_NAME);
+               qb.setProjectionMap(sCategoriesProjectionMap);
+               break;
+
            default:
                // If the URI doesn't match any of the known patterns, throw an exception.
                throw new IllegalArgumentException("Unknown URI " + uri);
        }
 
+       // A sort order on the text of the notes reads it from the bodies table.
+       if (match != CATEGORIES && refersToNote(sortOrder)) {
+           qb.setTables(NOTES_WITH_BODIES);
+       }
+
 
        String orderBy;
        // If no sort order is specified, uses the default
        if (TextUtils.isEmpty(sortOrder)) {
-           orderBy = NotePad.Notes.DEFAULT_SORT_ORDER;
+           orderBy = match == CATEGORIES
+                   ? NotePad.Categories.DEFAULT_SORT_ORDER : NotePad.Notes.DEFAULT_SORT_ORDER;
        } else {
            // otherwise, uses the incoming sort order
            orderBy = sortOrder;
@@ -312,70 +1240,720 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
        // Opens the database object in "read" mode, since no writes need to be done.
        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
 
-       /*
-        * Performs the query. If no problems occur trying to read the database, then a Cursor
-        * object is returned; otherwise, the cursor variable contains null. If no records were
-        * selected, then the Cursor object is empty, and Cursor.getCount() returns 0.
-        */
-       Cursor c = qb.query(
-           db,            // The database to query
-           projection,    // The columns to return from the query
-           selection,     // The columns for the where clause
-           selectionArgs, // The values for the where clause
-           null,          // don't group the rows
-           null,          // don't filter by row groups
-           orderBy        // The sort order
-       );
-
-       // Tells the Cursor what URI to watch, so it knows when its source data changes
-       c.setNotificationUri(getContext().getContentResolver(), uri);
+       String limit = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT);
+       String after = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER);
+
+       boolean ranked = match == SEARCH && NotePad.Notes.SEARCH_SORT_ORDER.equals(sortOrder);
+       Cursor c;
+       if (ranked) {
+           c = queryRanked(db, buildMatchPhrases(
+                   uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_FILTER)),
+                   projection, selection, selectionArgs, after, limit, cancellationSignal);
+       } else if (limit != null || after != null) {
+
+           // Only lists of notes can be paged.
+           if (match != NOTES && match != SEARCH) {
+               throw new IllegalArgumentException("Paging is not supported for " + uri);
+           }
+           c = queryPage(db, qb, projection, selection, selectionArgs, sortOrder, after, limit,
+                   cancellationSignal);
+       } else {
+
+           /*
+            * Performs the query. If no problems occur trying to read the database, then a
+            * Cursor object is returned; otherwise, the cursor variable contains null. If no
+            * records were selected, then the Cursor object is empty, and Cursor.getCount()
+            * returns 0.
+            */
+           c = query(
+               db,            // The database to query
+               qb,            // The tables, projection map and where clause to query
+               projection,    // The columns to return from the query
+               selection,     // The columns for the where clause
+               selectionArgs, // The values for the where clause
+               orderBy,       // The sort order
+               null,          // don't limit the rows
+               cancellationSignal
+           );
+       }
+
+       // Inflates the compressed bodies of the notes as the client reads them. A ranked search
+       // has read them already.
+       int noteColumn = match == CATEGORIES || ranked
+               ? -1 : c.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
+       if (noteColumn >= 0) {
+           c = new BodyCursor(c, noteColumn);
+       }
+       if (resultKey != null) {
+           c = mResultCache.put(resultKey, c, generation);
+       }
+
+       // Tells the Cursor what URI to watch, so it knows when its source data changes. Search
+       // results and categories change whenever any note does, so they watch the whole notes
+       // URI.
+       c.setNotificationUri(getContext().getContentResolver(),
+               match == SEARCH || match == CATEGORIES ? NotePad.Notes.CONTENT_URI : uri);
        return c;
    }
 
    /**
-    * This is called when a client calls {@link android.content.ContentResolver#getType(Uri)}.
-    * Returns the MIME data type of the URI given as a parameter.
+    * Queries one page of a list of notes, in {@link NotePad.Notes#LIST_SORT_ORDER}. A page that
+    * starts after a key is read with two index seeks instead of skipping the rows before it:
+    * first the rest of the key's pinned group, from the key on, then, if the page isn't full
+    * yet, the groups that sort after it.
     *
-    * @param uri The URI whose MIME type is desired.
-    * @return The MIME type of the URI.
-    * @throws IllegalArgumentException if the incoming URI pattern is invalid.
+    * @param after The key of the last note of the previous page, as "pinned,modified,_id", or
+    * null for the first page.
+    * @param limit The maximum number of notes in the page, or null for all of the remaining notes.
+    * @param cancellationSignal Aborts the page's queries, or null.
+    * @return A cursor over the notes of the page.
+    * @throws IllegalArgumentException if the sort order, the key or the limit is invalid.
     */
-   @Override
-   public String getType(Uri uri) {
+   private Cursor queryPage(SQLiteDatabase db, SQLiteQueryBuilder qb, String[] projection,
+           String selection, String[] selectionArgs, String sortOrder, String after,
+           String limit, CancellationSignal cancellationSignal) {
 
-       /**
-        * Chooses the MIME type based on the incoming URI pattern
-        */
-       switch (sUriMatcher.match(uri)) {
+       if (!TextUtils.isEmpty(sortOrder) && !NotePad.Notes.LIST_SORT_ORDER.equals(sortOrder)) {
+           throw new IllegalArgumentException("Pages are sorted by "
+                   + NotePad.Notes.LIST_SORT_ORDER + ", not " + sortOrder);
+       }
+       int pageSize = -1;
+       if (limit != null) {
+           pageSize = Integer.parseInt(limit);
+           if (pageSize <= 0) {
+               throw new IllegalArgumentException("Invalid page size " + limit);
+           }
+       }
 
-           // If the pattern is for notes or live folders, returns the general content type.
-           case NOTES:
-           case LIVE_FOLDER_NOTES:
-               return NotePad.Notes.CONTENT_TYPE;
+       // The first page is simply the head of the list.
+       if (after == null) {
+           return query(db, qb, projection, selection, selectionArgs,
+                   NotePad.Notes.LIST_SORT_ORDER, limit, cancellationSignal);
+       }
 
-           // If the pattern is for note IDs, returns the note ID content type.
-           case NOTE_ID:
-               return NotePad.Notes.CONTENT_ITEM_TYPE;
+       String[] key = after.split(",");
+       if (key.length != 3) {
+           throw new IllegalArgumentException("Invalid page key " + after);
+       }
+       // Validates the key; NumberFormatException is an IllegalArgumentException.
+       String pinned = Long.toString(Long.parseLong(key[0].trim()));
+       String modified = Long.toString(Long.parseLong(key[1].trim()));
+       String id = Long.toString(Long.parseLong(key[2].trim()));
+
+       // The notes of the key's pinned group that follow the key.
+       Cursor rest = query(db, qb, projection,
+               appendSelection(selection, NotePad.Notes.COLUMN_NAME_PINNED + " = ? AND "
+                       + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " <= ? AND ("
+                       + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " < ? OR "
+                       + NotePad.Notes._ID + " < ?)"),
+               appendSelectionArgs(selectionArgs, pinned, modified, modified, id),
+               NotePad.Notes.LIST_SORT_ORDER, limit, cancellationSignal);
+
+       int remaining = pageSize < 0 ? -1 : pageSize - rest.getCount();
+       if (remaining == 0) {
+           return rest;
+       }
 
-           // If the URI pattern doesn't match any permitted patterns, throws an exception.
-           default:
-               throw new IllegalArgumentException("Unknown URI " + uri);
+       // The page isn't full: continues with the groups that sort after the key's group.
+       Cursor next;
+       try {
+           next = query(db, qb, projection,
+                   appendSelection(selection, NotePad.Notes.COLUMN_NAME_PINNED + " < ?"),
+                   appendSelectionArgs(selectionArgs, pinned),
+                   NotePad.Notes.LIST_SORT_ORDER,
+                   remaining < 0 ? null : Integer.toString(remaining), cancellationSignal);
+       } catch (RuntimeException e) {
+           rest.close();
+           throw e;
        }
-    }
+       return new MergeCursor(new Cursor[] { rest, next });
+   }
 
-//BEGIN_INCLUDE(stream)
-    /**
-     * This describes the MIME types that are supported for opening a note
-     * URI as a stream.
-     */
-    static ClipDescription NOTE_STREAM_TYPES = new ClipDescription(null,
-            new String[] { ClipDescription.MIMETYPE_TEXT_PLAIN });
+   /**
+    * Queries the notes matching a search, or a page of them, in
+    * {@link NotePad.Notes#SEARCH_SORT_ORDER}. The full-text index returns the match statistics
+    * of every matching row, which are combined for the rows of each chunked note, and which
+    * {@link SearchRanker} turns into the note's rank without the note's text being read. Only
+    * the notes of the page are then read, with snippets cut from the column of each note that
+    * matches best; of a long text, only the window that holds its first match. The next
+    * pages of the search are cut from the same ranking while nothing is written, and a
+    * selection of one note by its ID ranks that note alone.
+    *
+    * @param phrases The quoted phrases of the search terms, or null to rank every note by
+    * recency and pinning alone.
+    * @param after The key of the last note of the previous page, as "rank,_id", or null for the
+    * first page.
+    * @param limit The maximum number of notes in the page, or null for all of the remaining notes.
+    * @param cancellationSignal Aborts the search, or null.
+    * @return A cursor over the notes of the page.
+    * @throws IllegalArgumentException if a column, the key or the limit is invalid.
+    */
+   private Cursor queryRanked(SQLiteDatabase db, List<String> phrases, String[] projection,
+           String selection, String[] selectionArgs, String after, String limit,
+           CancellationSignal cancellationSignal) {
 
-    /**
-     * Returns the types of available data streams.  URIs to specific notes are supported.
-     * The application can convert such a note to a plain text stream.
-     *
-     * @param uri the URI to analyze
+       if (projection == null) {
+           projection = SEARCH_PROJECTION;
+       }
+       for (String column : projection) {
+           if (!sNotesProjectionMap.containsKey(column) && !isRankedColumn(column)) {
+               throw new IllegalArgumentException("Invalid column " + column);
+           }
+       }
+       int pageSize = Integer.MAX_VALUE;
+       if (limit != null) {
+           pageSize = Integer.parseInt(limit);
+           if (pageSize <= 0) {
+               throw new IllegalArgumentException("Invalid page size " + limit);
+           }
+       }
+       double afterRank = Double.POSITIVE_INFINITY;
+       long afterId = Long.MAX_VALUE;
+       if (after != null) {
+           int comma = after.lastIndexOf(',');
+           if (comma < 0) {
+               throw new IllegalArgumentException("Invalid page key " + after);
+           }
+           // NumberFormatException is an IllegalArgumentException.
+           afterRank = Double.parseDouble(after.substring(0, comma).trim());
+           afterId = Long.parseLong(after.substring(comma + 1).trim());
+       }
+
+       // A lookup of one note, which the list makes to place a note that changed, ranks that
+       // note alone. The pages of any other search are cut from its ranking, which is kept
+       // while nothing was written since it was made.
+       Long lookupId = getLookupId(selection, selectionArgs);
+       String rankingKey = null;
+       long generation = 0;
+       List<RankedNote> ranking = null;
+       if (mCachesEnabled && lookupId == null) {
+           // The phrases take the place of the projection in the key.
+           rankingKey = QueryResultCache.getKey(NotePad.Notes.CONTENT_SEARCH_URI,
+                   phrases == null ? null : phrases.toArray(new String[phrases.size()]),
+                   selection, selectionArgs, null);
+           generation = mResultCache.getGeneration();
+           Ranking cached = mRanking;
+           if (cached != null && cached.mGeneration == generation
+                   && cached.mKey.equals(rankingKey)) {
+               ranking = cached.mNotes;
+           }
+       }
+       if (ranking == null) {
+           ranking = rank(db, phrases, selection, selectionArgs, lookupId, cancellationSignal);
+           if (rankingKey != null) {
+               mRanking = new Ranking(rankingKey, generation, ranking);
+           }
+       } else if (cancellationSignal != null) {
+           cancellationSignal.throwIfCanceled();
+       }
+
+       // The page starts with the first note that sorts after the key.
+       int first = 0;
+       if (after != null) {
+           first = Collections.binarySearch(ranking, new RankedNote(afterId, afterRank));
+           first = first < 0 ? -1 - first : first + 1;
+       }
+       List<RankedNote> page = ranking.subList(first,
+               (int) Math.min((long) first + pageSize, ranking.size()));
+
+       MatrixCursor result = new MatrixCursor(projection, page.size());
+       if (page.isEmpty()) {
+           return result;
+       }
+       StringBuilder ids = new StringBuilder();
+       for (RankedNote note : page) {
+           ids.append(ids.length() == 0 ? "" : ",").append(note.mId);
+       }
+
+       // Reads the columns of the notes of the page, and their snippets.
+       ArrayList<String> noteColumns = new ArrayList<String>();
+       noteColumns.add(NotePad.Notes._ID);
+       boolean snippets = false;
+       for (String column : projection) {
+           if (!isRankedColumn(column)) {
+               noteColumns.add(column);
+           } else if (!NotePad.Notes.COLUMN_NAME_RANK.equals(column)) {
+               snippets = phrases != null;
+           }
+       }
+       HashMap<Long, Object[]> rows = new HashMap<Long, Object[]>();
+       SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+       qb.setTables(NotePad.Notes.TABLE_NAME);
+       qb.setProjectionMap(sNotesProjectionMap);
+       Cursor cursor = query(db, qb, noteColumns.toArray(new String[noteColumns.size()]),
+               NotePad.Notes._ID + " IN (" + ids + ")", null, null, null, cancellationSignal);
+       int noteColumn = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
+       if (noteColumn >= 0) {
+           cursor = new BodyCursor(cursor, noteColumn);
+       }
+       try {
+           while (cursor.moveToNext()) {
+               Object[] row = new Object[noteColumns.size()];
+               for (int column = 0; column < row.length; column++) {
+                   row[column] = readValue(cursor, column);
+               }
+               rows.put(cursor.getLong(0), row);
+           }
+       } finally {
+           cursor.close();
+       }
+       HashMap<Long, String[]> snippetsById = new HashMap<Long, String[]>();
+       if (snippets) {
+           // The docids are only filtered, so that the index still answers the MATCH. A
+           // chunked note takes the snippet of its first row that matches.
+           LinkedHashMap<Long, Long> snippetRows = new LinkedHashMap<Long, Long>();
+           cursor = db.rawQuery("SELECT " + SearchIndex.noteIdOf("docid") + ",docid FROM "
+                   + FTS_TABLE_NAME + " WHERE " + FTS_TABLE_NAME + " MATCH ? AND (+docid IN ("
+                   + ids + ") OR +docid IN (SELECT " + CHUNKS_COLUMN_ID + " + "
+                   + SearchIndex.CHUNK_DOCID_BASE + " FROM " + CHUNKS_TABLE_NAME + " WHERE "
+                   + BODIES_COLUMN_NOTE_ID + " IN (" + ids + "))) ORDER BY docid",
+                   new String[] { SearchIndex.matchAny(phrases) });
+           try {
+               while (cursor.moveToNext()) {
+                   if (!snippetRows.containsKey(cursor.getLong(0))) {
+                       snippetRows.put(cursor.getLong(0), cursor.getLong(1));
+                   }
+               }
+           } finally {
+               cursor.close();
+           }
+
+           // The index keeps no copy of the text, so the snippets are cut from the notes. Only
+           // the start of a long text is read, up to the window that holds its first match.
+           for (Map.Entry<Long, Long> row : snippetRows.entrySet()) {
+               long docid = row.getValue();
+               SearchIndex.Excerpt[] columns = docid < SearchIndex.CHUNK_DOCID_BASE
+                       ? readNoteExcerpts(db, docid, phrases)
+                       : new SearchIndex.Excerpt[] { null, readChunkExcerpt(db,
+                               docid - SearchIndex.CHUNK_DOCID_BASE, phrases), null };
+               if (columns == null) {
+                   continue;
+               }
+               String snippet = SearchIndex.snippet(columns, phrases, SearchRanker.MATCH_START,
+                       SearchRanker.MATCH_END, "\u2026", SNIPPET_TOKENS);
+               if (snippet != null) {
+                   snippetsById.put(row.getKey(), SearchRanker.splitSnippet(snippet));
+               }
+           }
+       }
+
+       for (RankedNote note : page) {
+           Object[] row = rows.get(note.mId);
+           if (row == null) {
+               // Deleted since it was ranked.
+               continue;
+           }
+           String[] snippet = snippetsById.get(note.mId);
+           Object[] values = new Object[projection.length];
+           int next = 1;
+           for (int column = 0; column < projection.length; column++) {
+               if (NotePad.Notes.COLUMN_NAME_RANK.equals(projection[column])) {
+                   values[column] = note.mRank;
+               } else if (NotePad.Notes.COLUMN_NAME_SNIPPET.equals(projection[column])) {
+                   values[column] = snippet == null ? null : snippet[0];
+               } else if (NotePad.Notes.COLUMN_NAME_SNIPPET_HIGHLIGHTS.equals(
+                       projection[column])) {
+                   values[column] = snippet == null ? "" : snippet[1];
+               } else {
+                   values[column] = row[next++];
+               }
+           }
+           result.addRow(values);
+       }
+       return result;
+   }
+
+   /**
+    * Ranks the notes matching a search, reading the match statistics of the full-text index
+    * and the notes' pinning and dates, but not their text.
+    *
+    * @param phrases The quoted phrases of the search terms, or null to rank every note by
+    * recency and pinning alone.
+    * @param lookupId The ID of the one note the selection selects, whose rows alone are read
+    * from the index, or null.
+    * @return The matching notes, in {@link NotePad.Notes#SEARCH_SORT_ORDER}.
+    */
+   private static List<RankedNote> rank(SQLiteDatabase db, List<String> phrases,
+           String selection, String[] selectionArgs, Long lookupId,
+           CancellationSignal cancellationSignal) {
+
+       // The index is read first, and its matches joined to the notes, so that its statistics
+       // can be computed for each match; the limit keeps SQLite from flattening the index's
+       // query into the join. The rows that hold any of the phrases are read, since the chunks
+       // of a note split them.
+       String notes = NotePad.Notes.TABLE_NAME;
+       SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+       String matchInfo = "NULL";
+       if (phrases == null) {
+           qb.setTables(notes);
+       } else {
+           String match = FTS_TABLE_NAME + " MATCH "
+                   + DatabaseUtils.sqlEscapeString(SearchIndex.matchAny(phrases));
+           if (lookupId != null) {
+               // The docids are only filtered, so that the index still answers the MATCH.
+               match += " AND (+docid = " + lookupId + " OR +docid IN (SELECT "
+                       + CHUNKS_COLUMN_ID + " + " + SearchIndex.CHUNK_DOCID_BASE + " FROM "
+                       + CHUNKS_TABLE_NAME + " WHERE " + BODIES_COLUMN_NOTE_ID + " = "
+                       + lookupId + "))";
+           }
+           qb.setTables("(SELECT " + SearchIndex.noteIdOf("docid") + " AS match_note_id,"
+                   + " matchinfo(" + FTS_TABLE_NAME + ",'" + SearchRanker.MATCHINFO_FORMAT
+                   + "') AS match_info FROM " + FTS_TABLE_NAME + " WHERE " + match
+                   + " LIMIT -1) AS matches CROSS JOIN " + notes);
+           qb.appendWhere(NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID
+                   + " = matches.match_note_id");
+           matchInfo = "match_info";
+       }
+       String[] rankProjection = {
+               NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID,
+               NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_PINNED,
+               NotePad.Notes.TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+               matchInfo
+       };
+       LinkedHashMap<Long, Object[]> matchingNotes = new LinkedHashMap<Long, Object[]>();
+       Cursor cursor = query(db, qb, rankProjection, selection, selectionArgs, null, null,
+               cancellationSignal);
+       try {
+           while (cursor.moveToNext()) {
+               byte[] info = cursor.isNull(3) ? null : cursor.getBlob(3);
+               Object[] note = matchingNotes.get(cursor.getLong(0));
+               if (note == null) {
+                   matchingNotes.put(cursor.getLong(0), new Object[] {
+                           cursor.getInt(1) != 0, cursor.getLong(2), info });
+               } else {
+                   note[2] = SearchRanker.combine((byte[]) note[2], info);
+               }
+           }
+       } finally {
+           cursor.close();
+       }
+       SearchRanker ranker = new SearchRanker(System.currentTimeMillis());
+       ArrayList<RankedNote> matches = new ArrayList<RankedNote>();
+       for (Map.Entry<Long, Object[]> entry : matchingNotes.entrySet()) {
+           byte[] info = (byte[]) entry.getValue()[2];
+           if (info != null && !SearchRanker.matchesAll(info)) {
+               continue;
+           }
+           matches.add(new RankedNote(entry.getKey(), ranker.rank(info,
+                   (Boolean) entry.getValue()[0], (Long) entry.getValue()[1])));
+       }
+       Collections.sort(matches);
+       return matches;
+   }
+
+   // Returns the ID of the note a selection selects by its ID, or null if it may select others.
+   private static Long getLookupId(String selection, String[] selectionArgs) {
+       if (selection == null || selectionArgs == null || selectionArgs.length == 0) {
+           return null;
+       }
+       Matcher matcher = ID_LOOKUP_PATTERN.matcher(selection);
+       if (!matcher.matches()
+               || (matcher.group(2) != null && OR_PATTERN.matcher(matcher.group(2)).find())) {
+           return null;
+       }
+       try {
+           return Long.parseLong(selectionArgs[0]);
+       } catch (NumberFormatException e) {
+           return null;
+       }
+   }
+
+   /**
+    * The notes matching a search, in {@link NotePad.Notes#SEARCH_SORT_ORDER}, and the write
+    * generation they were ranked in.
+    */
+   private static final class Ranking {
+       final String mKey;
+       final long mGeneration;
+       final List<RankedNote> mNotes;
+
+       Ranking(String key, long generation, List<RankedNote> notes) {
+           mKey = key;
+           mGeneration = generation;
+           mNotes = notes;
+       }
+   }
+
+   /**
+    * A note matching a ranked search, ordered by {@link NotePad.Notes#SEARCH_SORT_ORDER}.
+    */
+   private static final class RankedNote implements Comparable<RankedNote> {
+       final long mId;
+       final double mRank;
+
+       RankedNote(long id, double rank) {
+           mId = id;
+           mRank = rank;
+       }
+
+       @Override
+       public int compareTo(RankedNote other) {
+           int result = Double.compare(other.mRank, mRank);
+           return result != 0 ? result : (other.mId < mId ? -1 : (other.mId == mId ? 0 : 1));
+       }
+   }
+
+   // Returns true if the column is one that only a ranked search returns.
+   private static boolean isRankedColumn(String column) {
+       return NotePad.Notes.COLUMN_NAME_RANK.equals(column)
+               || NotePad.Notes.COLUMN_NAME_SNIPPET.equals(column)
+               || NotePad.Notes.COLUMN_NAME_SNIPPET_HIGHLIGHTS.equals(column);
+   }
+
+   // Returns the value of a column of the cursor's row, as the type SQLite holds it in.
+   private static Object readValue(Cursor cursor, int column) {
+       switch (cursor.getType(column)) {
+           case Cursor.FIELD_TYPE_NULL:
+               return null;
+           case Cursor.FIELD_TYPE_INTEGER:
+               return cursor.getLong(column);
+           case Cursor.FIELD_TYPE_FLOAT:
+               return cursor.getDouble(column);
+           case Cursor.FIELD_TYPE_BLOB:
+               return cursor.getBlob(column);
+           default:
+               return cursor.getString(column);
+       }
+   }
+
+   /**
+    * Runs a query of the builder's tables. A cancellation signal is only ever passed in from
+    * Jelly Bean on, where SQLite checks it while it steps through the rows.
+    */
+   private static Cursor query(SQLiteDatabase db, SQLiteQueryBuilder qb, String[] projection,
+           String selection, String[] selectionArgs, String sortOrder, String limit,
+           CancellationSignal cancellationSignal) {
+       if (cancellationSignal == null) {
+           return qb.query(db, projection, selection, selectionArgs, null, null, sortOrder,
+                   limit);
+       }
+       return qb.query(db, projection, selection, selectionArgs, null, null, sortOrder,
+               limit, cancellationSignal);
+   }
+
+   /**
+    * Counts the notes matching a search and a selection, in one row with one column,
+    * {@link NotePad.Notes#_COUNT}. The count is computed by SQLite, so no row is copied into a
+    * cursor window: without a search, it walks the narrowest index that answers the selection;
+    * with a search and no selection, the full-text index counts its own matches without
+    * touching the notes table.
+    */
+   private Cursor queryCount(SQLiteDatabase db, SQLiteQueryBuilder qb, String filter,
+           String selection, String[] selectionArgs) {
+       String[] countProjection = { "count(*) AS " + NotePad.Notes._COUNT };
+       List<String> phrases = buildMatchPhrases(filter);
+
+       if (phrases != null && TextUtils.isEmpty(selection)) {
+           return db.rawQuery("SELECT " + countProjection[0] + " FROM ("
+                   + SearchIndex.queryNotesMatching(phrases) + ")", null);
+       }
+
+       appendMatch(qb, phrases);
+       return qb.query(db, countProjection, selection, selectionArgs, null, null, null);
+   }
+
+   /**
+    * Reads the text of a note in chunks, in order: the chunks of a long note, or the whole text
+    * of any other note as one chunk. A note without text has no chunks.
+    */
+   private Cursor queryChunks(SQLiteDatabase db, long noteId) {
+       Cursor cursor = db.rawQuery("SELECT " + NotePad.NoteChunks.COLUMN_NAME_POSITION + ","
+               + CHUNKS_COLUMN_CHUNK + " AS " + NotePad.NoteChunks.COLUMN_NAME_TEXT
+               + " FROM " + CHUNKS_TABLE_NAME + " WHERE " + BODIES_COLUMN_NOTE_ID + " = ?1"
+               + " UNION ALL SELECT 0," + NotePad.Notes.COLUMN_NAME_NOTE
+               + " FROM " + BODIES_TABLE_NAME + " WHERE " + BODIES_COLUMN_NOTE_ID + " = ?1"
+               + " AND " + NotePad.Notes.COLUMN_NAME_NOTE + " IS NOT NULL"
+               + " ORDER BY 1",
+               new String[] { Long.toString(noteId) });
+       return new BodyCursor(cursor, 1);
+   }
+
+   /**
+    * Reads columns of one note from the row cache, or from the database if the cache doesn't
+    * hold them, adding them to the cache.
+    *
+    * @param columns The indexes in {@link NoteRowCache#COLUMNS} of the columns.
+    * @return The values of the columns, or null if the note doesn't exist.
+    */
+   Object[] readNoteRow(long noteId, int[] columns) {
+       Object[] values = mRowCache.get(noteId, columns);
+       if (values != null) {
+           return values;
+       }
+
+       // A write that commits while the note is read makes the cache drop what was read.
+       long generation = mRowCache.getGeneration();
+       String[] projection = new String[columns.length];
+       for (int index = 0; index < columns.length; index++) {
+           projection[index] = NoteRowCache.COLUMNS[columns[index]];
+       }
+       SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+       qb.setTables(NotePad.Notes.TABLE_NAME);
+       qb.setProjectionMap(sNotesProjectionMap);
+       Cursor cursor = qb.query(mOpenHelper.getReadableDatabase(), projection,
+               NotePad.Notes._ID + " = ?", new String[] { Long.toString(noteId) },
+               null, null, null);
+       int noteColumn = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
+       if (noteColumn >= 0) {
+           cursor = new BodyCursor(cursor, noteColumn);
+       }
+       try {
+           if (!cursor.moveToFirst()) {
+               return null;
+           }
+           values = new Object[columns.length];
+           for (int index = 0; index < columns.length; index++) {
+               switch (cursor.getType(index)) {
+                   case Cursor.FIELD_TYPE_NULL:
+                       break;
+                   case Cursor.FIELD_TYPE_INTEGER:
+                       values[index] = cursor.getLong(index);
+                       break;
+                   default:
+                       values[index] = cursor.getString(index);
+                       break;
+               }
+           }
+       } finally {
+           cursor.close();
+       }
+       mRowCache.put(noteId, columns, values, generation);
+       return values;
+   }
+
+   /**
+    * Restricts the notes of a query to the ones the full-text index returns for the phrases of
+    * a search. The index answers from its term lists instead of scanning the text of every
+    * note.
+    *
+    * @param phrases The phrases, or null to leave the query as it is.
+    */
+   private static void appendMatch(SQLiteQueryBuilder qb, List<String> phrases) {
+       if (phrases != null) {
+           qb.appendWhere(NotePad.Notes._ID + " IN ("
+                   + SearchIndex.queryNotesMatching(phrases) + ")");
+       }
+   }
+
+   /**
+    * Returns the selection ANDed with an extra condition.
+    */
+   private static String appendSelection(String selection, String condition) {
+       if (TextUtils.isEmpty(selection)) {
+           return condition;
+       }
+       return "(" + selection + ") AND " + condition;
+   }
+
+   /**
+    * Returns the selection arguments followed by the arguments of an extra condition.
+    */
+   private static String[] appendSelectionArgs(String[] selectionArgs, String... extraArgs) {
+       if (selectionArgs == null || selectionArgs.length == 0) {
+           return extraArgs;
+       }
+       String[] args = new String[selectionArgs.length + extraArgs.length];
+       System.arraycopy(selectionArgs, 0, args, 0, selectionArgs.length);
+       System.arraycopy(extraArgs, 0, args, selectionArgs.length, extraArgs.length);
+       return args;
+   }
+
+   /**
+    * Turns the text typed by the user into FTS MATCH phrases, which a note must all hold. Every
+    * whitespace-separated term becomes a quoted prefix query, so FTS operators typed by the
+    * user are taken literally and a partially typed word still matches. The CJK characters of
+    * a term are split into bigrams the way the index holds them, see {@link CjkTokenizer}.
+    *
+    * @param filter The text typed by the user, may be null.
+    * @return The phrases, or null if the filter holds nothing to search for.
+    */
+   static List<String> buildMatchPhrases(String filter) {
+       if (TextUtils.isEmpty(filter)) {
+           return null;
+       }
+       List<String> phrases = new ArrayList<String>();
+       for (String term : filter.trim().split("\\s+")) {
+           term = term.replace("\"", "");
+           String phrase = hasTokenCharacter(term) ? CjkTokenizer.toPhrase(term) : null;
+           if (phrase != null) {
+               phrases.add('"' + phrase + '"');
+           }
+       }
+       return phrases.isEmpty() ? null : phrases;
+   }
+
+   /**
+    * Returns true if the term holds a character that the FTS tokenizer keeps in a token. A term
+    * made only of separators would produce an empty phrase, which FTS rejects.
+    */
+   private static boolean hasTokenCharacter(String term) {
+       for (int i = 0; i < term.length(); i++) {
+           char ch = term.charAt(i);
+           if (ch >= 0x80 || Character.isLetterOrDigit(ch)) {
+               return true;
+           }
+       }
+       return false;
+   }
+
+   /**
+    * This is called when a client calls {@link android.content.ContentResolver#getType(Uri)}.
+    * Returns the MIME data type of the URI given as a parameter.
+    *
+    * @param uri The URI whose MIME type is desired.
+    * @return The MIME type of the URI.
+    * @throws IllegalArgumentException if the incoming URI pattern is invalid.
+    */
+   @Override
+   public String getType(Uri uri) {
+
+       /**
+        * Chooses the MIME type based on the incoming URI pattern
+        */
+       switch (sUriMatcher.match(uri)) {
+
+           // If the pattern is for notes, live folders or a search, returns the general
+           // content type.
+           case NOTES:
+           case LIVE_FOLDER_NOTES:
+           case SEARCH:
+               return NotePad.Notes.CONTENT_TYPE;
+
+           // If the pattern is for note IDs, returns the note ID content type.
+           case NOTE_ID:
+               return NotePad.Notes.CONTENT_ITEM_TYPE;
+
+           // If the pattern is for categories, returns the categories content type.
+           case CATEGORIES:
+               return NotePad.Categories.CONTENT_TYPE;
+
+           // If the pattern is for a count, returns the count content type.
+           case COUNT:
+               return NotePad.Notes.CONTENT_COUNT_TYPE;
+
+           // If the pattern is for the chunks of a note, returns the chunks content type.
+           case NOTE_CHUNKS:
+               return NotePad.NoteChunks.CONTENT_TYPE;
+
+           // If the URI pattern doesn't match any permitted patterns, throws an exception.
+           default:
+               throw new IllegalArgumentException("Unknown URI " + uri);
+       }
+    }
+
+//BEGIN_INCLUDE(stream)
+    /**
+     * This describes the MIME types that are supported for opening a note
+     * URI as a stream.
+     */
+    static ClipDescription NOTE_STREAM_TYPES = new ClipDescription(null,
+            new String[] { ClipDescription.MIMETYPE_TEXT_PLAIN });
+
+    /**
+     * Returns the types of available data streams.  URIs to specific notes are supported.
+     * The application can convert such a note to a plain text stream.
+     *
+     * @param uri the URI to analyze
      * @param mimeTypeFilter The MIME type to check for. This method only returns a data stream
      * type for MIME types that match the filter. Currently, only text/plain MIME types match.
      * @return a data stream MIME type. Currently, only text/plan is returned.
@@ -388,10 +1966,15 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
          */
         switch (sUriMatcher.match(uri)) {
 
-            // If the pattern is for notes or live folders, return null. Data streams are not
-            // supported for this type of URI.
+            // If the pattern is for notes, live folders, a search, categories or a count, return
+            // null.
+            // Data streams are not supported for this type of URI.
             case NOTES:
             case LIVE_FOLDER_NOTES:
+            case SEARCH:
+            case CATEGORIES:
+            case COUNT:
+            case NOTE_CHUNKS:
                 return null;
 
             // If the pattern is for note IDs and the MIME filter is text/plain, then return
@@ -408,9 +1991,8 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
     /**
      * Returns a stream of data for each supported stream type. This method does a query on the
-     * incoming URI, then uses
-     * {@link android.content.ContentProvider#openPipeHelper(Uri, String, Bundle, Object,
-     * PipeDataWriter)} to start another thread in which to convert the data into a stream.
+     * incoming URI, then uses {@link #openPipe} to start another thread in which to convert the
+     * data into a stream.
      *
      * @param uri The URI pattern that points to the data stream
      * @param mimeTypeFilter A String containing a MIME type. This method tries to get a stream of
@@ -455,20 +2037,79 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 throw new FileNotFoundException("Unable to query " + uri);
             }
 
+            // The stream is the title, an empty line, and the content with a line end. Its
+            // length is known from the sizes, so the range returned is too.
+            long length = BodyCodec.utf8Length(c.getString(READ_NOTE_TITLE_INDEX) + "\n\n")
+                    + c.getLong(READ_NOTE_SIZE_INDEX) + 1;
+            long offset = Math.min(getStreamOption(opts, NotePad.Notes.STREAM_OPTION_OFFSET, 0),
+                    length);
+            length = Math.min(length - offset,
+                    getStreamOption(opts, NotePad.Notes.STREAM_OPTION_LENGTH, Long.MAX_VALUE));
+
             // Start a new thread that pipes the stream data back to the caller.
-            return new AssetFileDescriptor(
-                    openPipeHelper(uri, mimeTypes[0], opts, c, this), 0,
-                    AssetFileDescriptor.UNKNOWN_LENGTH);
+            return new AssetFileDescriptor(openPipe(uri, mimeTypes[0], opts, c), 0, length);
         }
 
         // If the MIME type is not supported, return a read-only handle to the file.
         return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
     }
 
+    /**
+     * Starts writing a note to a pipe on another thread, the way
+     * {@link android.content.ContentProvider#openPipeHelper(Uri, String, Bundle, Object,
+     * PipeDataWriter)} does, and returns the end to read. Where the platform has them, the pipe
+     * is a reliable one, which tells the reader that the stream failed rather than just ending.
+     */
+    private ParcelFileDescriptor openPipe(final Uri uri, final String mimeType, final Bundle opts,
+            final Cursor c) throws FileNotFoundException {
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                    ? ParcelFileDescriptor.createReliablePipe()
+                    : ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Unable to create pipe for " + uri);
+        }
+
+        new AsyncTask<Object, Object, Object>() {
+            @Override
+            protected Object doInBackground(Object... params) {
+                writeDataToPipe(pipe[1], uri, mimeType, opts, c);
+                try {
+                    pipe[1].close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failure closing pipe", e);
+                }
+                return null;
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Object[]) null);
+        return pipe[0];
+    }
+
+    /**
+     * Closes a pipe, telling the other end of a reliable pipe that the stream failed.
+     */
+    private static void closeWithError(ParcelFileDescriptor pipe, String message) {
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                pipe.closeWithError(message);
+            } else {
+                pipe.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failure closing pipe", e);
+        }
+    }
+
     /**
      * Implementation of {@link android.content.ContentProvider.PipeDataWriter}
      * to perform the actual work of converting the data in one of cursors to a
      * stream of data for the client to read.
+     *
+     * Android can't open a transaction that only reads, so the note is read in several
+     * statements, each of which checks that the note's text still has the version the stream
+     * was opened at. If a write changed the text since, the stream fails instead of mixing two
+     * texts or coming out shorter than its length.
      */
     @Override
     public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
@@ -476,54 +2117,361 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // We currently only support conversion-to-text from a single note entry,
         // so no need for cursor data type checking here.
         FileOutputStream fout = new FileOutputStream(output.getFileDescriptor());
-        PrintWriter pw = null;
+        ByteBuffer buffer = mPipeBuffer.getAndSet(null);
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(PIPE_BUFFER_SIZE);
+        }
+
+        // The note is read one chunk at a time and encoded through the buffer, so the stream
+        // holds at most one chunk of the note whatever its length. The chunks before the range
+        // asked for are skipped by their size, and the ones after it aren't read.
+        RangeWriter writer = new RangeWriter(fout.getChannel(), buffer,
+                getStreamOption(opts, NotePad.Notes.STREAM_OPTION_OFFSET, 0),
+                getStreamOption(opts, NotePad.Notes.STREAM_OPTION_LENGTH, Long.MAX_VALUE));
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        String noteId = c.getString(READ_NOTE_ID_INDEX);
+        String version = c.getString(READ_NOTE_VERSION_INDEX);
+        String isVersion = "(SELECT " + NotePad.Notes.COLUMN_NAME_NOTE_VERSION + " FROM "
+                + BODIES_TABLE_NAME + " WHERE " + BODIES_COLUMN_NOTE_ID + " = ?) = ?";
+        Cursor sizes = null;
         try {
-            pw = new PrintWriter(new OutputStreamWriter(fout, "UTF-8"));
-            pw.println(c.getString(READ_NOTE_TITLE_INDEX));
-            pw.println("");
-            pw.println(c.getString(READ_NOTE_NOTE_INDEX));
-        } catch (UnsupportedEncodingException e) {
-            Log.w(TAG, "Ooops", e);
+            writer.write(c.getString(READ_NOTE_TITLE_INDEX) + "\n\n");
+            sizes = db.rawQuery("SELECT " + NotePad.NoteChunks.COLUMN_NAME_POSITION + ","
+                    + CHUNKS_COLUMN_SIZE + " FROM " + CHUNKS_TABLE_NAME + " WHERE "
+                    + BODIES_COLUMN_NOTE_ID + " = ? AND " + isVersion + " ORDER BY "
+                    + NotePad.NoteChunks.COLUMN_NAME_POSITION,
+                    new String[] { noteId, noteId, version });
+            if (sizes.getCount() == 0) {
+                // The content is whole in the bodies table.
+                if (!writer.skip(c.getLong(READ_NOTE_SIZE_INDEX))) {
+                    writer.write(readStreamText(db, "SELECT " + NotePad.Notes.COLUMN_NAME_NOTE
+                            + " FROM " + BODIES_TABLE_NAME + " WHERE " + BODIES_COLUMN_NOTE_ID
+                            + " = ? AND " + NotePad.Notes.COLUMN_NAME_NOTE_VERSION + " = ?",
+                            noteId, version));
+                }
+            }
+            while (sizes.moveToNext() && !writer.isDone()) {
+                if (!writer.skip(sizes.getLong(1))) {
+                    writer.write(readStreamText(db, "SELECT " + CHUNKS_COLUMN_CHUNK + " FROM "
+                            + CHUNKS_TABLE_NAME + " WHERE " + BODIES_COLUMN_NOTE_ID + " = ? AND "
+                            + NotePad.NoteChunks.COLUMN_NAME_POSITION + " = ? AND " + isVersion,
+                            noteId, sizes.getString(0), noteId, version));
+                }
+            }
+            writer.write("\n");
+            writer.finish();
+        } catch (IOException e) {
+            // The reader closed the pipe, or the note changed
+            Log.w(TAG, "Failed to write " + uri, e);
+            closeWithError(output, e.getMessage());
         } finally {
-            c.close();
-            if (pw != null) {
-                pw.flush();
+            if (sizes != null) {
+                sizes.close();
             }
+            c.close();
+            buffer.clear();
+            mPipeBuffer.set(buffer);
             try {
                 fout.close();
             } catch (IOException e) {
             }
         }
     }
+
+    /**
+     * Reads one text of a note for its stream, with a query that returns it in its first
+     * column.
+     *
+     * @throws IOException if the query returns no row, because the note changed.
+     */
+    private static String readStreamText(SQLiteDatabase db, String sql, String... args)
+            throws IOException {
+        Cursor cursor = new BodyCursor(db.rawQuery(sql, args), 0);
+        try {
+            if (!cursor.moveToFirst()) {
+                throw new IOException("The note changed while it was read");
+            }
+            return cursor.isNull(0) ? "" : cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Reads one stored text, a body or a chunk, with a query that returns it in its first
+     * column. Returns "" if there is none.
+     */
+    private static String readText(SQLiteDatabase db, String sql, String... args) {
+        Cursor cursor = new BodyCursor(db.rawQuery(sql, args), 0);
+        try {
+            return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getString(0) : "";
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns a byte count from the options of a stream, or the default value if it isn't set
+     * or is negative.
+     */
+    private static long getStreamOption(Bundle opts, String key, long defaultValue) {
+        long value = opts == null ? defaultValue : opts.getLong(key, defaultValue);
+        return value < 0 ? defaultValue : value;
+    }
 //END_INCLUDE(stream)
 
     /**
      * This is called when a client calls
-     * {@link android.content.ContentResolver#insert(Uri, ContentValues)}.
-     * Inserts a new row into the database. This method sets up default values for any
-     * columns that are not included in the incoming map.
-     * If rows were inserted, then listeners are notified of the change.
-     * @return The row ID of the inserted row.
-     * @throws SQLException if the insertion fails.
+     * {@link android.content.ContentResolver#openOutputStream(Uri)} or opens a file descriptor
+     * for a note ID URI in a mode that writes, such as "w". Returns the write end of a pipe: the
+     * UTF-8 text written to it replaces the content of the note once the client closes it, so a
+     * note of any length can be written without passing it through a Binder transaction. Other
+     * URIs and read modes are handled by {@link ContentProvider#openFile}.
+     *
+     * An open pipe ties up a thread of the provider's process, so only the app itself and
+     * clients that hold {@link NotePad#PERMISSION_WRITE_NOTE_CONTENT} may open one. Where the
+     * platform has them, the pipe is a reliable one: a client that fails part way is not taken
+     * to have finished, and a client that watches its end learns that the import failed.
+     *
+     * @throws FileNotFoundException if the note doesn't exist, or the pipe can't be made.
+     * @throws SecurityException if the client doesn't hold the permission.
      */
     @Override
-    public Uri insert(Uri uri, ContentValues initialValues) {
-
-        // Validates the incoming URI. Only the full provider URI is allowed for inserts.
-        if (sUriMatcher.match(uri) != NOTES) {
-            throw new IllegalArgumentException("Unknown URI " + uri);
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != NOTE_ID || mode.indexOf('w') < 0) {
+            return super.openFile(uri, mode);
+        }
+        if (Binder.getCallingUid() != Process.myUid()
+                && getContext().checkCallingPermission(NotePad.PERMISSION_WRITE_NOTE_CONTENT)
+                        != PackageManager.PERMISSION_GRANTED) {
+            throw new SecurityException("Writing " + uri + " requires "
+                    + NotePad.PERMISSION_WRITE_NOTE_CONTENT);
         }
 
-        // A map to hold the new record's values.
-        ContentValues values;
+        final long noteId = ContentUris.parseId(uri);
+        if (DatabaseUtils.queryNumEntries(mOpenHelper.getReadableDatabase(),
+                NotePad.Notes.TABLE_NAME, NotePad.Notes._ID + " = ?",
+                new String[] { Long.toString(noteId) }) == 0) {
+            throw new FileNotFoundException("Unable to query " + uri);
+        }
 
-        // If the incoming values map is not null, uses it for the new values.
-        if (initialValues != null) {
-            values = new ContentValues(initialValues);
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                    ? ParcelFileDescriptor.createReliablePipe()
+                    : ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Unable to create pipe for " + uri);
+        }
 
-        } else {
-            // Otherwise, create a new value map
-            values = new ContentValues();
+        // Reads the pipe on a background thread, the way openPipeHelper writes one.
+        synchronized (mRunningImports) {
+            mRunningImports[0]++;
+        }
+        new AsyncTask<Object, Object, Object>() {
+            @Override
+            protected Object doInBackground(Object... params) {
+                try {
+                    importNote(noteId, pipe[0]);
+                } finally {
+                    synchronized (mRunningImports) {
+                        mRunningImports[0]--;
+                        mRunningImports.notifyAll();
+                    }
+                }
+                return null;
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Object[]) null);
+        return pipe[1];
+    }
+
+    /**
+     * Replaces the content of a note with the UTF-8 text read from a pipe. The text is copied to
+     * a file in the cache as it arrives, outside any transaction, so a client that writes slowly
+     * or never closes the pipe keeps no write of the app waiting. Once the client closes the
+     * pipe, the note is replaced from the file in one transaction. If the pipe fails or times
+     * out, the text isn't UTF-8, or the note was deleted, the note is left as it was and the
+     * pipe is closed with the error.
+     */
+    private void importNote(long noteId, ParcelFileDescriptor input) {
+        File staged = null;
+        String error = null;
+        try {
+            staged = File.createTempFile("import", ".txt", getContext().getCacheDir());
+            stageText(input, staged);
+            if (!replaceText(noteId, staged)) {
+                error = "Note " + noteId + " was deleted";
+            }
+        } catch (IOException e) {
+            error = e.toString();
+        } catch (SQLException e) {
+            error = e.toString();
+        } finally {
+            if (staged != null && !staged.delete()) {
+                Log.w(TAG, "Failed to delete " + staged);
+            }
+        }
+
+        if (error == null) {
+            try {
+                input.close();
+            } catch (IOException e) {
+            }
+            notifyNotes(new long[] { noteId }, NotePad.Notes.CHANGE_UPDATE);
+        } else {
+            Log.w(TAG, "Failed to import note " + noteId + ": " + error);
+            closeWithError(input, error);
+        }
+    }
+
+    /**
+     * Copies the text read from a pipe to a file, as UTF-8, until the client closes the pipe.
+     *
+     * @throws IOException if the pipe fails or times out, or the text isn't UTF-8.
+     */
+    private void stageText(ParcelFileDescriptor input, File staged) throws IOException {
+        Reader reader = new InputStreamReader(new PipeInputStream(input, mImportTimeoutMillis),
+                Charset.forName("UTF-8").newDecoder());
+        Writer writer = new OutputStreamWriter(new FileOutputStream(staged), "UTF-8");
+        try {
+            char[] buffer = new char[PIPE_BUFFER_SIZE];
+            int read;
+            while ((read = reader.read(buffer)) >= 0) {
+                writer.write(buffer, 0, read);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Replaces the content of a note with the text of a file, in one transaction. The text is
+     * written and indexed a chunk at a time, so the import holds at most one chunk whatever
+     * the length of the note.
+     *
+     * @return false if the note doesn't exist.
+     */
+    private boolean replaceText(long noteId, File staged) throws IOException {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Reader reader = new InputStreamReader(new FileInputStream(staged), "UTF-8");
+        db.beginTransaction();
+        try {
+            if (DatabaseUtils.queryNumEntries(db, NotePad.Notes.TABLE_NAME,
+                    NotePad.Notes._ID + " = ?", new String[] { Long.toString(noteId) }) == 0) {
+                return false;
+            }
+            unindexNote(db, noteId, true);
+            mStatements.executeUpdateDelete(db,
+                    "DELETE FROM " + CHUNKS_TABLE_NAME + " WHERE " + BODIES_COLUMN_NOTE_ID + " = ?",
+                    noteId);
+
+            // The first chunk is held back until the next one comes, since a text that fits
+            // in one chunk is stored whole in the bodies table.
+            char[] buffer = new char[NotePad.NoteChunks.MAX_LENGTH];
+            String first = null;
+            String previousTail = null;
+            int position = 0;
+            long size = 0;
+            int carried = 0;
+            while (true) {
+                int length = readChunk(reader, buffer, carried);
+                if (length == 0) {
+                    break;
+                }
+
+                // A chunk doesn't end between the two chars of a supplementary character.
+                int end = length;
+                if (length == buffer.length && Character.isHighSurrogate(buffer[end - 1])) {
+                    end--;
+                }
+                String chunk = new String(buffer, 0, end);
+                carried = length - end;
+                if (carried > 0) {
+                    buffer[0] = buffer[end];
+                }
+
+                if (first == null && position == 0) {
+                    first = chunk;
+                    continue;
+                }
+                if (first != null) {
+                    insertChunk(db, noteId, position++, null, first);
+                    size += BodyCodec.utf8Length(first);
+                    previousTail = SearchIndex.tail(first);
+                    first = null;
+                }
+                insertChunk(db, noteId, position++, previousTail, chunk);
+                size += BodyCodec.utf8Length(chunk);
+                previousTail = SearchIndex.tail(chunk);
+            }
+
+            if (position == 0) {
+                updateBody(db, noteId, first == null ? "" : first);
+            } else {
+                // The text is all in the chunks, which are indexed already.
+                mStatements.executeUpdateDelete(db,
+                        "UPDATE " + BODIES_TABLE_NAME + " SET " + NotePad.Notes.COLUMN_NAME_NOTE
+                                + " = ?," + NotePad.Notes.COLUMN_NAME_NOTE_SIZE + " = ? WHERE "
+                                + BODIES_COLUMN_NOTE_ID + " = ?",
+                        null, size, noteId);
+            }
+            indexNote(db, noteId);
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
+            updateNote(db, noteId, values);
+            db.setTransactionSuccessful();
+            return true;
+        } finally {
+            db.endTransaction();
+            reader.close();
+        }
+    }
+
+    /**
+     * Fills a buffer from a reader, after the chars already at its start, until it is full or
+     * the reader ends.
+     *
+     * @return The number of chars in the buffer.
+     */
+    private static int readChunk(Reader reader, char[] buffer, int start) throws IOException {
+        int length = start;
+        while (length < buffer.length) {
+            int read = reader.read(buffer, length, buffer.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+        return length;
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#insert(Uri, ContentValues)}.
+     * Inserts a new row into the database. This method sets up default values for any
+     * columns that are not included in the incoming map.
+     * If rows were inserted, then listeners are notified of the change.
+     * @return The row ID of the inserted row.
+     * @throws SQLException if the insertion fails.
+     */
+    @Override
+    public Uri insert(Uri uri, ContentValues initialValues) {
+
+        // Validates the incoming URI. Only the full provider URI is allowed for inserts.
+        if (sUriMatcher.match(uri) != NOTES) {
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+
+        // A map to hold the new record's values.
+        ContentValues values;
+
+        // If the incoming values map is not null, uses it for the new values.
+        if (initialValues != null) {
+            values = new ContentValues(initialValues);
+
+        } else {
+            // Otherwise, create a new value map
+            values = new ContentValues();
         }
 
         // Gets the current system time in milliseconds
@@ -561,25 +2509,47 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             values.put(NotePad.Notes.COLUMN_NAME_PINNED, 0);
         }
 
+        // The text of the note goes to the bodies table, which records its size.
+        String body = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+        values.remove(NotePad.Notes.COLUMN_NAME_NOTE);
+        values.remove(NotePad.Notes.COLUMN_NAME_NOTE_SIZE);
+        values.remove(NotePad.Notes.COLUMN_NAME_NOTE_VERSION);
+        values.remove(NotePad.Notes.COLUMN_NAME_NOTE_TRUNCATED);
+
         // Opens the database object in "write" mode.
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
-        // Performs the insert and returns the ID of the new note.
-        long rowId = db.insert(
-            NotePad.Notes.TABLE_NAME,        // The table to insert into.
-            NotePad.Notes.COLUMN_NAME_NOTE,  // A hack, SQLite sets this column value to null
-                                             // if values is empty.
-            values                           // A map of column names, and the values to insert
-                                             // into the columns.
-        );
+        // Looks up the note's category and inserts the note and its text in one transaction,
+        // so a category is never left without notes and a note never without its text.
+        long rowId;
+        db.beginTransaction();
+        try {
+            setCategoryId(db, values);
+
+            // Performs the insert and returns the ID of the new note.
+            rowId = db.insert(
+                NotePad.Notes.TABLE_NAME,        // The table to insert into.
+                NotePad.Notes.COLUMN_NAME_TITLE, // A hack, SQLite sets this column value to null
+                                                 // if values is empty.
+                values                           // A map of column names, and the values to
+                                                 // insert into the columns.
+            );
+            if (rowId > 0) {
+                insertBody(db, rowId, body);
+                indexNote(db, rowId);
+                db.setTransactionSuccessful();
+            }
+        } finally {
+            db.endTransaction();
+        }
 
         // If the insert succeeded, the row ID exists.
         if (rowId > 0) {
             // Creates a URI with the note ID pattern and the new row ID appended to it.
             Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, rowId);
 
-            // Notifies observers registered against this provider that the data changed.
-            getContext().getContentResolver().notifyChange(noteUri, null);
+            // Notifies observers registered against this provider that the note was inserted.
+            notifyChange(getChangeUri(rowId, NotePad.Notes.CHANGE_INSERT));
             return noteUri;
         }
 
@@ -608,59 +2578,89 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         String finalWhere;
 
         int count;
+        int match = sUriMatcher.match(uri);
 
-        // Does the delete based on the incoming URI pattern.
-        switch (sUriMatcher.match(uri)) {
-
-            // If the incoming pattern matches the general pattern for notes, does a delete
-            // based on the incoming "where" columns and arguments.
-            case NOTES:
-                count = db.delete(
-                    NotePad.Notes.TABLE_NAME,  // The database table name
-                    where,                     // The incoming where clause column names
-                    whereArgs                  // The incoming where clause values
-                );
-                break;
+        // The IDs of the notes a delete on the notes URI removes, or null if there are many.
+        long[] changedIds = null;
 
-                // If the incoming URI matches a single note ID, does the delete based on the
-                // incoming data, but modifies the where clause to restrict it to the
-                // particular note ID.
-            case NOTE_ID:
-                /*
-                 * Starts a final WHERE clause by restricting it to the
-                 * desired note ID.
-                 */
-                finalWhere =
-                        NotePad.Notes._ID +                              // The ID column name
-                        " = " +                                          // test for equality
-                        uri.getPathSegments().                           // the incoming note ID
-                            get(NotePad.Notes.NOTE_ID_PATH_POSITION)
-                ;
-
-                // If there were additional selection criteria, append them to the final
-                // WHERE clause
-                if (where != null) {
-                    finalWhere = finalWhere + " AND " + where;
-                }
-
-                // Performs the delete.
-                count = db.delete(
-                    NotePad.Notes.TABLE_NAME,  // The database table name.
-                    finalWhere,                // The final WHERE clause
-                    whereArgs                  // The incoming where clause values.
-                );
-                break;
-
-            // If the incoming pattern is invalid, throws an exception.
-            default:
-                throw new IllegalArgumentException("Unknown URI " + uri);
+        // The rows of the notes in the full-text index are removed in the same transaction,
+        // while their text can still be read.
+        db.beginTransaction();
+        try {
+            where = toNotesWhere(db, where, whereArgs);
+
+            // Does the delete based on the incoming URI pattern.
+            switch (match) {
+
+                // If the incoming pattern matches the general pattern for notes, does a delete
+                // based on the incoming "where" columns and arguments.
+                case NOTES:
+                    changedIds = queryChangedIds(db, where, whereArgs);
+                    unindexNotes(db, queryNoteIds(db, where, whereArgs), true);
+                    count = db.delete(
+                        NotePad.Notes.TABLE_NAME,  // The database table name
+                        where,                     // The incoming where clause column names
+                        whereArgs                  // The incoming where clause values
+                    );
+                    break;
+
+                    // If the incoming URI matches a single note ID, does the delete based on the
+                    // incoming data, but modifies the where clause to restrict it to the
+                    // particular note ID.
+                case NOTE_ID:
+                    // Deleting one note is a cached statement with the note ID bound to it.
+                    if (where == null) {
+                        unindexNote(db, ContentUris.parseId(uri), true);
+                        count = mStatements.executeUpdateDelete(db,
+                                "DELETE FROM " + NotePad.Notes.TABLE_NAME
+                                        + " WHERE " + NotePad.Notes._ID + " = ?",
+                                ContentUris.parseId(uri));
+                        break;
+                    }
+
+                    /*
+                     * Starts a final WHERE clause by restricting it to the
+                     * desired note ID.
+                     */
+                    finalWhere =
+                            NotePad.Notes._ID +                              // The ID column name
+                            " = " +                                          // test for equality
+                            uri.getPathSegments().                           // the incoming note ID
+                                get(NotePad.Notes.NOTE_ID_PATH_POSITION)
+                    ;
+
+                    // If there were additional selection criteria, append them to the final
+                    // WHERE clause
+                    if (where != null) {
+                        finalWhere = finalWhere + " AND " + where;
+                    }
+
+                    // Performs the delete.
+                    unindexNotes(db, queryNoteIds(db, finalWhere, whereArgs), true);
+                    count = db.delete(
+                        NotePad.Notes.TABLE_NAME,  // The database table name.
+                        finalWhere,                // The final WHERE clause
+                        whereArgs                  // The incoming where clause values.
+                    );
+                    break;
+
+                // If the incoming pattern is invalid, throws an exception.
+                default:
+                    throw new IllegalArgumentException("Unknown URI " + uri);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
 
         /*Gets a handle to the content resolver object for the current context, and notifies it
-         * that the incoming URI changed. The object passes this along to the resolver framework,
+         * that the deleted notes changed. The object passes this along to the resolver framework,
          * and observers that have registered themselves for the provider are notified.
          */
-        getContext().getContentResolver().notifyChange(uri, null);
+        if (count > 0) {
+            notifyNotes(match == NOTE_ID ? new long[] { ContentUris.parseId(uri) } : changedIds,
+                    NotePad.Notes.CHANGE_DELETE);
+        }
 
         // Returns the number of rows deleted.
         return count;
@@ -675,6 +2675,8 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      * otherwise, it updates a set of records. The record or records must match the input
      * selection criteria specified by where and whereArgs.
      * If rows were updated, then listeners are notified of the change.
+     * A note's text can be changed by a patch of its edits instead of the whole text, see
+     * {@link NotePad.Notes#COLUMN_NAME_NOTE_PATCH}.
      *
      * @param uri The URI pattern to match and update.
      * @param values A map of column names (keys) and new values (values).
@@ -684,7 +2686,8 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      * placeholders ("?"), then each placeholder is replaced by the corresponding element in the
      * array.
      * @return The number of rows updated.
-     * @throws IllegalArgumentException if the incoming URI pattern is invalid.
+     * @throws IllegalArgumentException if the incoming URI pattern is invalid, or a patch
+     * doesn't fit the text of its note.
      */
     @Override
     public int update(Uri uri, ContentValues values, String where, String[] whereArgs) {
@@ -693,72 +2696,1019 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int count;
         String finalWhere;
+        int match = sUriMatcher.match(uri);
+
+        // The text of the notes is written to the bodies table, apart from the other columns.
+        // The bodies table records its size.
+        values = new ContentValues(values);
+        values.remove(NotePad.Notes.COLUMN_NAME_NOTE_SIZE);
+        values.remove(NotePad.Notes.COLUMN_NAME_NOTE_VERSION);
+        values.remove(NotePad.Notes.COLUMN_NAME_NOTE_TRUNCATED);
+        boolean hasBody = values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE);
+        String body = null;
+        if (hasBody) {
+            body = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+            values.remove(NotePad.Notes.COLUMN_NAME_NOTE);
+        }
 
-        // Does the update based on the incoming URI pattern
-        switch (sUriMatcher.match(uri)) {
-
-            // If the incoming URI matches the general notes pattern, does the update based on
-            // the incoming data.
-            case NOTES:
+        // A patch changes the text of one note in place of setting it.
+        byte[] patch = null;
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE_PATCH)) {
+            patch = values.getAsByteArray(NotePad.Notes.COLUMN_NAME_NOTE_PATCH);
+            if (patch == null || hasBody || match != NOTE_ID || where != null) {
+                throw new IllegalArgumentException(
+                        "A patch only applies to the text of one note, without a selection");
+            }
+            values.remove(NotePad.Notes.COLUMN_NAME_NOTE_PATCH);
+            hasBody = true;
+        }
 
-                // Does the update and returns the number of rows updated.
-                count = db.update(
-                    NotePad.Notes.TABLE_NAME, // The database table name.
-                    values,                   // A map of column names and new values to use.
-                    where,                    // The where clause column names.
-                    whereArgs                 // The where clause column values to select on.
-                );
-                break;
+        // The IDs of the notes an update on the notes URI changes, or null if there are many.
+        long[] changedIds = null;
 
-            // If the incoming URI matches a single note ID, does the update based on the incoming
-            // data, but modifies the where clause to restrict it to the particular note ID.
-            case NOTE_ID:
-                // From the incoming URI, get the note ID
-                String noteId = uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION);
-
-                /*
-                 * Starts creating the final WHERE clause by restricting it to the incoming
-                 * note ID.
-                 */
-                finalWhere =
-                        NotePad.Notes._ID +                              // The ID column name
-                        " = " +                                          // test for equality
-                        uri.getPathSegments().                           // the incoming note ID
-                            get(NotePad.Notes.NOTE_ID_PATH_POSITION)
-                ;
-
-                // If there were additional selection criteria, append them to the final WHERE
-                // clause
-                if (where !=null) {
-                    finalWhere = finalWhere + " AND " + where;
-                }
+        // Looks up a new category in the same transaction as the update that moves notes to it,
+        // so a category is never left without notes.
+        db.beginTransaction();
+        try {
+            long addedCategoryId = -1;
+            if (values.containsKey(NotePad.Notes.COLUMN_NAME_CATEGORY)
+                    || values.containsKey(NotePad.Notes.COLUMN_NAME_CATEGORY_ID)) {
+                addedCategoryId = setCategoryId(db, values);
+            }
 
+            // The rows of the notes in the full-text index are written again when their text,
+            // title or category changes. The old rows are removed before the notes change.
+            boolean reindexed = hasBody
+                    || values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE)
+                    || values.containsKey(NotePad.Notes.COLUMN_NAME_CATEGORY);
+
+            // A selection on the text picks its notes before their text changes, since the
+            // other columns are written after it.
+            if (hasBody && refersToNote(where)) {
+                where = selectNoteIds(db, where, whereArgs);
+                whereArgs = null;
+            }
+            where = toNotesWhere(db, where, whereArgs);
+
+            // Does the update based on the incoming URI pattern
+            switch (match) {
+
+                // If the incoming URI matches the general notes pattern, does the update based
+                // on the incoming data.
+                case NOTES:
+                    changedIds = queryChangedIds(db, where, whereArgs);
+                    long[] noteIds = reindexed ? queryNoteIds(db, where, whereArgs) : null;
+                    if (reindexed) {
+                        unindexNotes(db, noteIds, false);
+                    }
+
+                    // Writes the text first, while the selection still matches the notes.
+                    count = hasBody ? updateBodies(db, noteIds, body) : 0;
+
+                    // Does the update and returns the number of rows updated.
+                    if (values.size() > 0 || !hasBody) {
+                        count = db.update(
+                            NotePad.Notes.TABLE_NAME, // The database table name.
+                            values,                   // A map of column names and new values.
+                            where,                    // The where clause column names.
+                            whereArgs                 // The where clause column values.
+                        );
+                    }
+                    if (reindexed) {
+                        indexNotes(db, noteIds);
+                    }
+                    break;
+
+                // If the incoming URI matches a single note ID, does the update based on the
+                // incoming data, but modifies the where clause to restrict it to the particular
+                // note ID.
+                case NOTE_ID:
+                    // Updating one note is a cached statement with the note ID bound to it.
+                    if (where == null) {
+                        long id = ContentUris.parseId(uri);
+                        if (reindexed) {
+                            unindexNote(db, id, false);
+                        }
+                        if (patch != null) {
+                            count = patchBody(db, id, EditJournal.decode(patch));
+                        } else {
+                            count = hasBody ? updateBody(db, id, body) : 0;
+                        }
+                        if (values.size() > 0 || !hasBody) {
+                            count = updateNote(db, id, values);
+                        }
+                        if (reindexed) {
+                            indexNote(db, id);
+                        }
+                        break;
+                    }
+
+                    // From the incoming URI, get the note ID
+                    String noteId =
+                            uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION);
+
+                    /*
+                     * Starts creating the final WHERE clause by restricting it to the incoming
+                     * note ID.
+                     */
+                    finalWhere =
+                            NotePad.Notes._ID +                          // The ID column name
+                            " = " +                                      // test for equality
+                            uri.getPathSegments().                       // the incoming note ID
+                                get(NotePad.Notes.NOTE_ID_PATH_POSITION)
+                    ;
+
+                    // If there were additional selection criteria, append them to the final
+                    // WHERE clause
+                    if (where !=null) {
+                        finalWhere = finalWhere + " AND " + where;
+                    }
+
+
+                    long[] selectedIds =
+                            reindexed ? queryNoteIds(db, finalWhere, whereArgs) : null;
+                    if (reindexed) {
+                        unindexNotes(db, selectedIds, false);
+                    }
+
+                    // Writes the text first, while the selection still matches the note.
+                    count = hasBody ? updateBodies(db, selectedIds, body) : 0;
+
+                    // Does the update and returns the number of rows updated.
+                    if (values.size() > 0 || !hasBody) {
+                        count = db.update(
+                            NotePad.Notes.TABLE_NAME, // The database table name.
+                            values,                   // A map of column names and new values.
+                            finalWhere,               // The final WHERE clause to use
+                                                      // placeholders for whereArgs
+                            whereArgs                 // The where clause column values to select
+                                                      // on, or null if the values are in the
+                                                      // where argument.
+                        );
+                    }
+                    if (reindexed) {
+                        indexNotes(db, selectedIds);
+                    }
+                    break;
+                // If the incoming pattern is invalid, throws an exception.
+                default:
+                    throw new IllegalArgumentException("Unknown URI " + uri);
+            }
 
-                // Does the update and returns the number of rows updated.
-                count = db.update(
-                    NotePad.Notes.TABLE_NAME, // The database table name.
-                    values,                   // A map of column names and new values to use.
-                    finalWhere,               // The final WHERE clause to use
-                                              // placeholders for whereArgs
-                    whereArgs                 // The where clause column values to select on, or
-                                              // null if the values are in the where argument.
-                );
-                break;
-            // If the incoming pattern is invalid, throws an exception.
-            default:
-                throw new IllegalArgumentException("Unknown URI " + uri);
+            // Removes a category that was added for notes that don't exist. The transaction
+            // still commits, since it may be part of a batch that goes on.
+            if (count == 0 && addedCategoryId >= 0) {
+                db.delete(NotePad.Categories.TABLE_NAME, NotePad.Categories._ID + " = ?",
+                        new String[] { Long.toString(addedCategoryId) });
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
 
         /*Gets a handle to the content resolver object for the current context, and notifies it
-         * that the incoming URI changed. The object passes this along to the resolver framework,
+         * that the updated notes changed. The object passes this along to the resolver framework,
          * and observers that have registered themselves for the provider are notified.
          */
-        getContext().getContentResolver().notifyChange(uri, null);
+        if (count > 0) {
+            notifyNotes(match == NOTE_ID ? new long[] { ContentUris.parseId(uri) } : changedIds,
+                    NotePad.Notes.CHANGE_UPDATE);
+        }
 
         // Returns the number of rows updated.
         return count;
     }
 
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#bulkInsert(Uri, ContentValues[])}.
+     * Inserts all of the rows in one transaction, so the batch costs one commit instead of one
+     * per row, and either every row is inserted or none is. Listeners are notified once, after
+     * the transaction commits.
+     *
+     * @return The number of rows inserted.
+     * @throws SQLException if one of the insertions fails.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+
+        // Validates the incoming URI. Only the full provider URI is allowed for inserts.
+        if (sUriMatcher.match(uri) != NOTES) {
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        mNotifier.hold();
+        try {
+            db.beginTransaction();
+            try {
+                for (ContentValues rowValues : values) {
+                    insert(uri, rowValues);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+
+                // The inserts moved the result cache on before the batch committed.
+                mResultCache.onWrite();
+            }
+        } finally {
+            // The rows' notifications go out together, after the commit.
+            mNotifier.release();
+        }
+        return values.length;
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#applyBatch(String, ArrayList)}.
+     * Applies all of the operations in one transaction, so that the batch is atomic and costs one
+     * commit. Listeners are notified once, after the transaction commits.
+     *
+     * @return The results of the operations, in the order of the operations.
+     * @throws OperationApplicationException if an operation's back-reference or expected count
+     * check fails. No operation in the batch is applied in that case.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        ContentProviderResult[] results;
+        mNotifier.hold();
+        try {
+            db.beginTransaction();
+            try {
+                results = super.applyBatch(operations);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+
+                // The operations forgot the rows they wrote before the batch committed, so a
+                // read meanwhile may have cached them again as they were.
+                mRowCache.invalidateAll();
+                mResultCache.onWrite();
+            }
+        } finally {
+            // The operations' notifications go out together, after the commit.
+            mNotifier.release();
+        }
+        return results;
+    }
+
+    /**
+     * Updates the columns of one note with a compiled statement from the cache. The autosave,
+     * pin toggle and category change paths each update the same set of columns every time, so
+     * each one runs a single statement that is only compiled once.
+     *
+     * @return The number of notes updated, 0 or 1.
+     */
+    private int updateNote(SQLiteDatabase db, long noteId, ContentValues values) {
+        if (values.size() == 0) {
+            throw new IllegalArgumentException("Empty values");
+        }
+
+        // Sorts the columns, so that a set of columns always makes the same SQL.
+        TreeSet<String> columns = new TreeSet<String>(values.keySet());
+        StringBuilder sql = new StringBuilder("UPDATE " + NotePad.Notes.TABLE_NAME + " SET ");
+        Object[] bindArgs = new Object[columns.size() + 1];
+        int index = 0;
+        for (String column : columns) {
+            if (index > 0) {
+                sql.append(',');
+            }
+            sql.append(column).append(" = ?");
+            bindArgs[index++] = values.get(column);
+        }
+        sql.append(" WHERE " + NotePad.Notes._ID + " = ?");
+        bindArgs[index] = noteId;
+
+        return mStatements.executeUpdateDelete(db, sql.toString(), bindArgs);
+    }
+
+    /**
+     * Writes the text of a new note to the bodies table, or to the chunks table if it is too
+     * long for one row. Must run in the transaction that inserts the note.
+     */
+    private void insertBody(SQLiteDatabase db, long noteId, String body) {
+        boolean chunked = isChunked(body);
+        Object stored = chunked ? null : BodyCodec.encode(body, mCompressionThreshold);
+        ContentValues values = new ContentValues();
+        values.put(BODIES_COLUMN_NOTE_ID, noteId);
+        putBody(values, stored);
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE_SIZE, BodyCodec.utf8Length(body));
+        db.insertOrThrow(BODIES_TABLE_NAME, null, values);
+        if (chunked) {
+            insertChunks(db, noteId, body);
+        }
+    }
+
+    /**
+     * Replaces the text of one note with compiled statements from the cache, the way
+     * {@link #updateNote} writes its other columns. The chunks of the old text are deleted,
+     * with their rows in the full-text index; the caller writes the note's own row again.
+     *
+     * @return The number of notes updated, 0 or 1.
+     */
+    private int updateBody(SQLiteDatabase db, long noteId, String body) {
+        boolean chunked = isChunked(body);
+        Object stored = chunked ? null : BodyCodec.encode(body, mCompressionThreshold);
+        unindexChunks(db, noteId);
+        mStatements.executeUpdateDelete(db,
+                "DELETE FROM " + CHUNKS_TABLE_NAME + " WHERE " + BODIES_COLUMN_NOTE_ID + " = ?",
+                noteId);
+        int count = mStatements.executeUpdateDelete(db,
+                "UPDATE " + BODIES_TABLE_NAME + " SET " + NotePad.Notes.COLUMN_NAME_NOTE
+                        + " = ?," + NotePad.Notes.COLUMN_NAME_NOTE_SIZE + " = ? WHERE "
+                        + BODIES_COLUMN_NOTE_ID + " = ?",
+                stored, BodyCodec.utf8Length(body), noteId);
+        if (count > 0 && chunked) {
+            insertChunks(db, noteId, body);
+        }
+        return count;
+    }
+
+    /**
+     * Applies a patch to the text of one note. The chunks of a long note are patched where they
+     * are: only the chunks the edits fall in, and the index rows of those and of the chunks
+     * after them, are encoded and written again. A chunk the edits grow past the chunk length
+     * is split the way {@link #insertChunks} splits a text, one they empty is deleted, and the
+     * chunks after either move so their positions stay dense. A note stored whole, of at most
+     * {@link NotePad.NoteChunks#MAX_LENGTH} chars, and a patch that leaves the text that short,
+     * rewrite the whole text with {@link #updateBody} instead.
+     *
+     * @return The number of notes updated, 0 or 1.
+     * @throws IllegalArgumentException if the patch doesn't fit the text of the note, or is for
+     * another version of it.
+     */
+    private int patchBody(SQLiteDatabase db, long noteId, EditJournal journal) {
+        String[] args = new String[] { Long.toString(noteId) };
+        Cursor cursor = db.query(BODIES_TABLE_NAME,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE_VERSION },
+                BODIES_COLUMN_NOTE_ID + " = ?", args, null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return 0;
+            }
+            if (cursor.getLong(0) != journal.getBaseVersion()) {
+                throw new IllegalArgumentException("Patch of version "
+                        + journal.getBaseVersion() + " doesn't fit version " + cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        ArrayList<String> texts = new ArrayList<String>();
+        ArrayList<StringBuilder> chunks = new ArrayList<StringBuilder>();
+        ArrayList<Long> positions = new ArrayList<Long>();
+        ArrayList<Long> chunkIds = new ArrayList<Long>();
+        ArrayList<String> tails = new ArrayList<String>();
+        cursor = new BodyCursor(db.query(CHUNKS_TABLE_NAME, new String[] {
+                NotePad.NoteChunks.COLUMN_NAME_POSITION, CHUNKS_COLUMN_CHUNK, CHUNKS_COLUMN_ID },
+                BODIES_COLUMN_NOTE_ID + " = ?", args, null, null,
+                NotePad.NoteChunks.COLUMN_NAME_POSITION), 1);
+        try {
+            while (cursor.moveToNext()) {
+                positions.add(cursor.getLong(0));
+                texts.add(cursor.isNull(1) ? "" : cursor.getString(1));
+                chunks.add(new StringBuilder(texts.get(texts.size() - 1)));
+                chunkIds.add(cursor.getLong(2));
+                tails.add(SearchIndex.tail(texts.get(texts.size() - 1)));
+            }
+        } finally {
+            cursor.close();
+        }
+        if (chunks.isEmpty()) {
+            return updateBody(db, noteId, journal.apply(readText(db, "SELECT "
+                    + NotePad.Notes.COLUMN_NAME_NOTE + " FROM " + BODIES_TABLE_NAME + " WHERE "
+                    + BODIES_COLUMN_NOTE_ID + " = ?", args[0])));
+        }
+
+        boolean[] changed = new boolean[chunks.size()];
+        journal.apply(chunks, changed);
+        if (journal.getLength() <= NotePad.NoteChunks.MAX_LENGTH) {
+            StringBuilder text = new StringBuilder(journal.getLength());
+            for (StringBuilder chunk : chunks) {
+                text.append(chunk);
+            }
+            return updateBody(db, noteId, text.toString());
+        }
+
+        // The chunks from the first one the edits emptied or grew past the chunk length on
+        // take new positions. The ones after it are moved out of the way first, since no two
+        // chunks of a note share a position.
+        int moved = chunks.size();
+        for (int index = chunks.size() - 1; index >= 0; index--) {
+            int length = chunks.get(index).length();
+            if (length == 0 || length > NotePad.NoteChunks.MAX_LENGTH) {
+                moved = index;
+            }
+        }
+        long nextPosition = 0;
+        if (moved < chunks.size()) {
+            nextPosition = positions.get(moved);
+            mStatements.executeUpdateDelete(db, "UPDATE " + CHUNKS_TABLE_NAME + " SET "
+                    + NotePad.NoteChunks.COLUMN_NAME_POSITION + " = -1 - "
+                    + NotePad.NoteChunks.COLUMN_NAME_POSITION + " WHERE "
+                    + BODIES_COLUMN_NOTE_ID + " = ? AND "
+                    + NotePad.NoteChunks.COLUMN_NAME_POSITION + " > ?",
+                    noteId, nextPosition);
+            for (int index = moved + 1; index < chunks.size(); index++) {
+                positions.set(index, -1 - positions.get(index));
+            }
+        }
+
+        // Writes the chunks the edits fall in, and their rows in the index. The row of a chunk
+        // whose chunk before it now ends differently is written again too. The old row of a
+        // chunk is removed with the text it was written with.
+        String previousTail = null;
+        for (int index = 0; index < chunks.size(); index++) {
+            long chunkId = chunkIds.get(index);
+            String oldPreviousTail = index == 0 ? null : tails.get(index - 1);
+            if (chunks.get(index).length() == 0) {
+                SearchIndex.unindexChunk(db, chunkId, oldPreviousTail, texts.get(index));
+                mStatements.executeUpdateDelete(db, "DELETE FROM " + CHUNKS_TABLE_NAME
+                        + " WHERE " + CHUNKS_COLUMN_ID + " = ?", chunkId);
+                continue;
+            }
+            List<String> parts = splitChunks(chunks.get(index).toString());
+            long position = index < moved ? positions.get(index) : nextPosition;
+            nextPosition = position + parts.size();
+            String text = parts.get(0);
+            if (changed[index]) {
+                mStatements.executeUpdateDelete(db, "UPDATE " + CHUNKS_TABLE_NAME + " SET "
+                        + NotePad.NoteChunks.COLUMN_NAME_POSITION + " = ?," + CHUNKS_COLUMN_SIZE
+                        + " = ?," + CHUNKS_COLUMN_CHUNK + " = ? WHERE " + CHUNKS_COLUMN_ID
+                        + " = ?",
+                        position, BodyCodec.utf8Length(text),
+                        BodyCodec.encode(text, mCompressionThreshold), chunkId);
+            } else if (position != positions.get(index)) {
+                mStatements.executeUpdateDelete(db, "UPDATE " + CHUNKS_TABLE_NAME + " SET "
+                        + NotePad.NoteChunks.COLUMN_NAME_POSITION + " = ? WHERE "
+                        + CHUNKS_COLUMN_ID + " = ?", position, chunkId);
+            }
+            if (changed[index] || !TextUtils.equals(previousTail, oldPreviousTail)) {
+                SearchIndex.unindexChunk(db, chunkId, oldPreviousTail, texts.get(index));
+                SearchIndex.indexChunk(db, chunkId, previousTail, text);
+            }
+            previousTail = SearchIndex.tail(text);
+            for (int part = 1; part < parts.size(); part++) {
+                insertChunk(db, noteId, (int) position + part, previousTail, parts.get(part));
+                previousTail = SearchIndex.tail(parts.get(part));
+            }
+        }
+
+        // The size of the note is the sum of the sizes of its chunks, which SQL reads without
+        // their text.
+        mStatements.executeUpdateDelete(db, "UPDATE " + BODIES_TABLE_NAME + " SET "
+                + NotePad.Notes.COLUMN_NAME_NOTE_SIZE + " = (SELECT sum(" + CHUNKS_COLUMN_SIZE
+                + ") FROM " + CHUNKS_TABLE_NAME + " WHERE " + BODIES_COLUMN_NOTE_ID
+                + " = ?1) WHERE " + BODIES_COLUMN_NOTE_ID + " = ?1", noteId);
+        return 1;
+    }
+
+    /**
+     * Replaces the text of several notes. Each note's text is written on its own, the way
+     * {@link #updateBody} writes it, so the rows of its old chunks leave the index.
+     *
+     * @return The number of notes updated.
+     */
+    private int updateBodies(SQLiteDatabase db, long[] noteIds, String body) {
+        int count = 0;
+        for (long noteId : noteIds) {
+            count += updateBody(db, noteId, body);
+        }
+        return count;
+    }
+
+    // Returns true if the text is too long for one row, and is stored in chunks.
+    private static boolean isChunked(String body) {
+        return body != null && body.length() > NotePad.NoteChunks.MAX_LENGTH;
+    }
+
+    /**
+     * Writes a long text to the chunks table, in the chunks {@link #splitChunks} splits it
+     * into.
+     */
+    private void insertChunks(SQLiteDatabase db, long noteId, String body) {
+        int position = 0;
+        String previousTail = null;
+        for (String chunk : splitChunks(body)) {
+            insertChunk(db, noteId, position++, previousTail, chunk);
+            previousTail = SearchIndex.tail(chunk);
+        }
+    }
+
+    /**
+     * Splits a text into chunks of at most {@link NotePad.NoteChunks#MAX_LENGTH} characters.
+     * A chunk never ends between the two chars of a supplementary character, which SQLite
+     * couldn't store apart.
+     */
+    private static List<String> splitChunks(String body) {
+        List<String> chunks = new ArrayList<String>();
+        for (int start = 0; start < body.length(); ) {
+            int end = Math.min(start + NotePad.NoteChunks.MAX_LENGTH, body.length());
+            if (end < body.length() && Character.isHighSurrogate(body.charAt(end - 1))) {
+                end--;
+            }
+            chunks.add(body.substring(start, end));
+            start = end;
+        }
+        return chunks;
+    }
+
+    /**
+     * Writes one chunk of a long text to the chunks table, and its row to the full-text index.
+     *
+     * @param previousTail The {@link SearchIndex#tail} of the chunk before it, or null if it
+     * is the first one.
+     */
+    private void insertChunk(SQLiteDatabase db, long noteId, int position, String previousTail,
+            String chunk) {
+        long chunkId = mStatements.executeInsert(db, "INSERT INTO " + CHUNKS_TABLE_NAME + " ("
+                + BODIES_COLUMN_NOTE_ID + "," + NotePad.NoteChunks.COLUMN_NAME_POSITION + ","
+                + CHUNKS_COLUMN_SIZE + "," + CHUNKS_COLUMN_CHUNK + ") VALUES (?,?,?,?)",
+                noteId, position, BodyCodec.utf8Length(chunk),
+                BodyCodec.encode(chunk, mCompressionThreshold));
+        SearchIndex.indexChunk(db, chunkId, previousTail, chunk);
+    }
+
+    /**
+     * Writes the row of a note to the full-text index, from the note as it is now. The rows of
+     * its chunks are written with the chunks, see {@link #insertChunk}.
+     */
+    static void indexNote(SQLiteDatabase db, long noteId) {
+        String[] text = readIndexedNote(db, noteId);
+        if (text != null) {
+            SearchIndex.indexNote(db, noteId, text[0], text[1], text[2]);
+        }
+    }
+
+    /**
+     * Removes the row of a note from the full-text index, and the rows of its chunks if asked,
+     * with the text read from the note as it is now. Run it before the note changes.
+     */
+    private static void unindexNote(SQLiteDatabase db, long noteId, boolean chunks) {
+        String[] text = readIndexedNote(db, noteId);
+        if (text != null) {
+            SearchIndex.unindexNote(db, noteId, text[0], text[1], text[2]);
+        }
+        if (chunks) {
+            unindexChunks(db, noteId);
+        }
+    }
+
+    // Writes the rows of several notes to the full-text index, see indexNote().
+    private static void indexNotes(SQLiteDatabase db, long[] noteIds) {
+        for (long noteId : noteIds) {
+            indexNote(db, noteId);
+        }
+    }
+
+    // Removes the rows of several notes from the full-text index, see unindexNote().
+    private static void unindexNotes(SQLiteDatabase db, long[] noteIds, boolean chunks) {
+        for (long noteId : noteIds) {
+            unindexNote(db, noteId, chunks);
+        }
+    }
+
+    /**
+     * Removes the rows of the chunks of a note from the full-text index, reading one chunk at
+     * a time. Run it before the chunks change.
+     */
+    private static void unindexChunks(SQLiteDatabase db, long noteId) {
+        Cursor chunks = db.query(CHUNKS_TABLE_NAME, new String[] { CHUNKS_COLUMN_ID },
+                BODIES_COLUMN_NOTE_ID + " = ?", new String[] { Long.toString(noteId) }, null,
+                null, NotePad.NoteChunks.COLUMN_NAME_POSITION);
+        try {
+            String previousTail = null;
+            while (chunks.moveToNext()) {
+                String chunk = readText(db, "SELECT " + CHUNKS_COLUMN_CHUNK + " FROM "
+                        + CHUNKS_TABLE_NAME + " WHERE " + CHUNKS_COLUMN_ID + " = ?",
+                        chunks.getString(0));
+                SearchIndex.unindexChunk(db, chunks.getLong(0), previousTail, chunk);
+                previousTail = SearchIndex.tail(chunk);
+            }
+        } finally {
+            chunks.close();
+        }
+    }
+
+    /**
+     * Returns the title, text and category of a note the way its row in the full-text index
+     * holds them before they are split, or null if there is no such note. The text of a
+     * chunked note is in the rows of its chunks, and is null.
+     */
+    private static String[] readIndexedNote(SQLiteDatabase db, long noteId) {
+        String id = Long.toString(noteId);
+        String title;
+        String category;
+        boolean chunked;
+        Cursor cursor = db.rawQuery("SELECT " + NotePad.Notes.COLUMN_NAME_TITLE + ","
+                + NotePad.Notes.COLUMN_NAME_CATEGORY + ",EXISTS (SELECT 1 FROM "
+                + CHUNKS_TABLE_NAME + " WHERE " + BODIES_COLUMN_NOTE_ID + " = ?1) FROM "
+                + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID + " = ?1",
+                new String[] { id });
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            title = cursor.getString(0);
+            category = cursor.getString(1);
+            chunked = cursor.getInt(2) != 0;
+        } finally {
+            cursor.close();
+        }
+        String note = chunked ? null : readText(db, "SELECT " + NotePad.Notes.COLUMN_NAME_NOTE
+                + " FROM " + BODIES_TABLE_NAME + " WHERE " + BODIES_COLUMN_NOTE_ID + " = ?", id);
+        return new String[] { title, note, category };
+    }
+
+    /**
+     * Returns the title, text and category of a note to cut the snippet of a search from, split
+     * into bigrams, or null if there is no such note. The text is the window of it that holds
+     * the first match of the search, see {@link SearchIndex#findWindow}, or null if the note is
+     * chunked or no window of its text matches.
+     */
+    private static SearchIndex.Excerpt[] readNoteExcerpts(SQLiteDatabase db, long noteId,
+            List<String> phrases) {
+        Cursor cursor = db.rawQuery("SELECT " + NotePad.Notes.COLUMN_NAME_TITLE + ","
+                + NotePad.Notes.COLUMN_NAME_CATEGORY + ",EXISTS (SELECT 1 FROM "
+                + CHUNKS_TABLE_NAME + " WHERE " + BODIES_COLUMN_NOTE_ID + " = ?1) FROM "
+                + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID + " = ?1",
+                new String[] { Long.toString(noteId) });
+        SearchIndex.Excerpt[] columns = new SearchIndex.Excerpt[3];
+        boolean chunked;
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            columns[0] = toExcerpt(cursor.getString(0));
+            columns[2] = toExcerpt(cursor.getString(1));
+            chunked = cursor.getInt(2) != 0;
+        } finally {
+            cursor.close();
+        }
+        if (!chunked) {
+            columns[1] = findWindow(new StoredTextReader(db, BODIES_TABLE_NAME,
+                    NotePad.Notes.COLUMN_NAME_NOTE, BODIES_COLUMN_NOTE_ID, noteId), null, phrases);
+        }
+        return columns;
+    }
+
+    /**
+     * Returns the window of a chunk that holds the first match of a search, split into bigrams,
+     * or null if none does. The end of the chunk before it is only read when the chunk alone
+     * doesn't match, since its row in the index matched by a term the boundary cuts.
+     */
+    private static SearchIndex.Excerpt readChunkExcerpt(SQLiteDatabase db, long chunkId,
+            List<String> phrases) {
+        SearchIndex.Excerpt window = findWindow(new StoredTextReader(db, CHUNKS_TABLE_NAME,
+                CHUNKS_COLUMN_CHUNK, CHUNKS_COLUMN_ID, chunkId), null, phrases);
+        if (window != null) {
+            return window;
+        }
+        Cursor cursor = db.rawQuery("SELECT previous." + CHUNKS_COLUMN_ID + " FROM "
+                + CHUNKS_TABLE_NAME + " AS previous," + CHUNKS_TABLE_NAME + " WHERE "
+                + CHUNKS_TABLE_NAME + "." + CHUNKS_COLUMN_ID + " = ? AND previous."
+                + BODIES_COLUMN_NOTE_ID + " = " + CHUNKS_TABLE_NAME + "." + BODIES_COLUMN_NOTE_ID
+                + " AND previous." + NotePad.NoteChunks.COLUMN_NAME_POSITION + " < "
+                + CHUNKS_TABLE_NAME + "." + NotePad.NoteChunks.COLUMN_NAME_POSITION
+                + " ORDER BY previous." + NotePad.NoteChunks.COLUMN_NAME_POSITION
+                + " DESC LIMIT 1", new String[] { Long.toString(chunkId) });
+        long previousId;
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            previousId = cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+        StoredTextReader previous = new StoredTextReader(db, CHUNKS_TABLE_NAME,
+                CHUNKS_COLUMN_CHUNK, CHUNKS_COLUMN_ID, previousId);
+        String previousTail;
+        try {
+            previousTail = SearchIndex.tail(previous);
+        } catch (IOException e) {
+            throw new IllegalStateException("Corrupt note chunk", e);
+        } finally {
+            previous.close();
+        }
+        return findWindow(new StoredTextReader(db, CHUNKS_TABLE_NAME, CHUNKS_COLUMN_CHUNK,
+                CHUNKS_COLUMN_ID, chunkId), previousTail, phrases);
+    }
+
+    // Returns the window of a text that holds the first match of a search, see
+    // SearchIndex.findWindow(), and closes the text.
+    private static SearchIndex.Excerpt findWindow(StoredTextReader text, String previousTail,
+            List<String> phrases) {
+        try {
+            return SearchIndex.findWindow(text, previousTail, phrases);
+        } catch (IOException e) {
+            throw new IllegalStateException("Corrupt note body", e);
+        } finally {
+            text.close();
+        }
+    }
+
+    // Returns a short column of a note, split into bigrams, to cut a snippet from.
+    private static SearchIndex.Excerpt toExcerpt(String text) {
+        return text == null ? null
+                : new SearchIndex.Excerpt(CjkTokenizer.segment(text), false, false);
+    }
+
+    // Puts a body as encoded by BodyCodec into the note column of the values.
+    private static void putBody(ContentValues values, Object stored) {
+        if (stored instanceof byte[]) {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, (byte[]) stored);
+        } else {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, (String) stored);
+        }
+    }
+
+    /**
+     * Returns true if an SQL clause refers to the note text column, which is in the bodies table
+     * rather than the notes table.
+     */
+    private static boolean refersToNote(String clause) {
+        return clause != null && NOTE_COLUMN_PATTERN.matcher(clause).find();
+    }
+
+    /**
+     * Returns a WHERE clause that selects the notes a client's WHERE clause selects now, by their
+     * IDs, which are kept in a temporary table. It must be used in the transaction it is built
+     * in, since only the connection of the transaction sees the table.
+     */
+    private static String selectNoteIds(SQLiteDatabase db, String where, String[] whereArgs) {
+        String notesWhere = toNotesWhere(db, where, whereArgs);
+        createSelectionTables(db);
+        db.delete(SELECTED_NOTES_TABLE_NAME, null, null);
+        db.execSQL("INSERT INTO " + SELECTED_NOTES_TABLE_NAME + " SELECT " + NotePad.Notes._ID
+                + " FROM " + NotePad.Notes.TABLE_NAME + " WHERE " + notesWhere,
+                whereArgs == null ? new Object[0] : whereArgs);
+        return NotePad.Notes._ID + " IN (SELECT " + NotePad.Notes._ID + " FROM "
+                + SELECTED_NOTES_TABLE_NAME + ")";
+    }
+
+    // Returns the IDs of the notes a selection on the notes table matches.
+    private static long[] queryNoteIds(SQLiteDatabase db, String where, String[] whereArgs) {
+        Cursor cursor = db.query(NotePad.Notes.TABLE_NAME, new String[] { NotePad.Notes._ID },
+                where, whereArgs, null, null, null);
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int index = 0; cursor.moveToNext(); index++) {
+                ids[index] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns a WHERE clause on the notes table that selects the notes a client's WHERE clause
+     * selects. A clause that refers to the note text is run over the notes joined to their text.
+     * The text of a compressed or chunked note is not in a column SQL can read, so the clause is
+     * run on such notes a batch at a time, with their text as the note column returns it:
+     * inflated, and for a chunked note its first chunk only, so a chunked note is matched on
+     * its first chunk alone. The notes the clause matches are kept in a temporary table, so a
+     * clause on the text itself must be used in the transaction it is built in, since only the
+     * connection of the transaction sees the table.
+     */
+    private static String toNotesWhere(SQLiteDatabase db, String where, String[] whereArgs) {
+        if (!refersToNote(where)) {
+            return where;
+        }
+        if (!NOTE_TEXT_PATTERN.matcher(where).find()) {
+            // The size and version of every text are plain columns.
+            return NotePad.Notes._ID + " IN (SELECT " + NotePad.Notes.TABLE_NAME + "."
+                    + NotePad.Notes._ID + " FROM " + NOTES_WITH_BODIES + " WHERE " + where + ")";
+        }
+
+        createSelectionTables(db);
+        db.delete(TEXT_MATCHES_TABLE_NAME, null, null);
+        db.delete(SELECTED_TEXTS_TABLE_NAME, null, null);
+        String matchTexts = "INSERT INTO " + TEXT_MATCHES_TABLE_NAME + " SELECT "
+                + NotePad.Notes._ID + " FROM (SELECT " + NotePad.Notes.TABLE_NAME + ".*,"
+                + SELECTED_TEXTS_TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_NOTE + " AS "
+                + NotePad.Notes.COLUMN_NAME_NOTE + "," + NotePad.Notes.COLUMN_NAME_NOTE_SIZE + ","
+                + NotePad.Notes.COLUMN_NAME_NOTE_VERSION + " FROM " + SELECTED_TEXTS_TABLE_NAME
+                + " JOIN " + NOTES_WITH_BODIES + " ON (" + NotePad.Notes.TABLE_NAME + "."
+                + NotePad.Notes._ID + " = " + SELECTED_TEXTS_TABLE_NAME + "." + NotePad.Notes._ID
+                + ")) AS " + NotePad.Notes.TABLE_NAME + " WHERE " + where;
+        Object[] args = whereArgs == null ? new Object[0] : whereArgs;
+
+        // The notes are read in batches by their IDs, so that only one batch of text is held
+        // at once.
+        long lastId = 0;
+        int count;
+        do {
+            Cursor cursor = new BodyCursor(db.rawQuery(READ_STORED_TEXTS,
+                    new String[] { Long.toString(lastId) }), 1);
+            try {
+                count = cursor.getCount();
+                ContentValues text = new ContentValues();
+                while (cursor.moveToNext()) {
+                    lastId = cursor.getLong(0);
+                    text.put(NotePad.Notes._ID, lastId);
+                    text.put(NotePad.Notes.COLUMN_NAME_NOTE,
+                            cursor.isNull(1) ? "" : cursor.getString(1));
+                    db.insert(SELECTED_TEXTS_TABLE_NAME, null, text);
+                }
+            } finally {
+                cursor.close();
+            }
+            if (count > 0) {
+                db.execSQL(matchTexts, args);
+                db.delete(SELECTED_TEXTS_TABLE_NAME, null, null);
+            }
+        } while (count == SELECTION_BATCH_SIZE);
+
+        return "(" + NotePad.Notes._ID + " IN (SELECT " + NotePad.Notes.TABLE_NAME + "."
+                + NotePad.Notes._ID + " FROM " + NOTES_WITH_BODIES + " WHERE typeof("
+                + BODIES_TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_NOTE + ") != 'blob'"
+                + " AND NOT EXISTS (SELECT 1 FROM " + CHUNKS_TABLE_NAME + " WHERE "
+                + CHUNKS_TABLE_NAME + "." + BODIES_COLUMN_NOTE_ID + " = "
+                + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + ") AND (" + where + "))"
+                + " OR " + NotePad.Notes._ID + " IN (SELECT " + NotePad.Notes._ID + " FROM "
+                + TEXT_MATCHES_TABLE_NAME + "))";
+    }
+
+    // Creates the temporary tables of the selections on the note text, if the connection
+    // doesn't have them yet.
+    private static void createSelectionTables(SQLiteDatabase db) {
+        db.execSQL("CREATE TEMP TABLE IF NOT EXISTS " + SELECTED_TEXTS_TABLE_NAME + " ("
+                + NotePad.Notes._ID + " INTEGER PRIMARY KEY,"
+                + NotePad.Notes.COLUMN_NAME_NOTE + " TEXT)");
+        db.execSQL("CREATE TEMP TABLE IF NOT EXISTS " + TEXT_MATCHES_TABLE_NAME + " ("
+                + NotePad.Notes._ID + " INTEGER PRIMARY KEY)");
+        db.execSQL("CREATE TEMP TABLE IF NOT EXISTS " + SELECTED_NOTES_TABLE_NAME + " ("
+                + NotePad.Notes._ID + " INTEGER PRIMARY KEY)");
+    }
+
+    /**
+     * Sets the category ID of the notes being written from their category name, adding the
+     * category if it is new. The name is trimmed; a blank name leaves the notes without a
+     * category. Clients don't write the category ID themselves, so a category ID that comes
+     * without a name is dropped. Must run in the transaction that writes the notes.
+     *
+     * @return The ID of the category added, or -1 if none was.
+     */
+    private long setCategoryId(SQLiteDatabase db, ContentValues values) {
+        values.remove(NotePad.Notes.COLUMN_NAME_CATEGORY_ID);
+        if (!values.containsKey(NotePad.Notes.COLUMN_NAME_CATEGORY)) {
+            return -1;
+        }
+
+        String name = values.getAsString(NotePad.Notes.COLUMN_NAME_CATEGORY);
+        name = name == null ? "" : name.trim();
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, name);
+        if (name.length() == 0) {
+            values.putNull(NotePad.Notes.COLUMN_NAME_CATEGORY_ID);
+            return -1;
+        }
+
+        Cursor cursor = db.query(NotePad.Categories.TABLE_NAME,
+                new String[] { NotePad.Categories._ID },
+                NotePad.Categories.COLUMN_NAME_NAME + " = ?", new String[] { name },
+                null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, cursor.getLong(0));
+                return -1;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // A new category. The triggers count its notes as they are written.
+        ContentValues category = new ContentValues();
+        category.put(NotePad.Categories.COLUMN_NAME_NAME, name);
+        long categoryId = db.insertOrThrow(NotePad.Categories.TABLE_NAME, null, category);
+        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY_ID, categoryId);
+        return categoryId;
+    }
+
+    /**
+     * Returns the IDs of the notes the selection matches, or null if there are more than the
+     * notification dispatcher sends one by one. Run it in the transaction that changes the notes,
+     * before the change.
+     */
+    private long[] queryChangedIds(SQLiteDatabase db, String where, String[] whereArgs) {
+        Cursor cursor = db.query(NotePad.Notes.TABLE_NAME, new String[] { NotePad.Notes._ID },
+                where, whereArgs, null, null, null,
+                Integer.toString(NotificationDispatcher.MAX_ITEM_CHANGES + 1));
+        try {
+            if (cursor.getCount() > NotificationDispatcher.MAX_ITEM_CHANGES) {
+                return null;
+            }
+            long[] ids = new long[cursor.getCount()];
+            for (int index = 0; cursor.moveToNext(); index++) {
+                ids[index] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Forgets the cached rows of the changed notes, and notifies observers of each changed
+     * note, or of the whole notes URI if the IDs of the changed notes are unknown. Run it after
+     * the transaction that changed the notes.
+     */
+    private void notifyNotes(long[] noteIds, String change) {
+        if (noteIds == null) {
+            mRowCache.invalidateAll();
+            notifyChange(NotePad.Notes.CONTENT_URI);
+            return;
+        }
+        for (long noteId : noteIds) {
+            mRowCache.invalidate(noteId);
+            notifyChange(getChangeUri(noteId, change));
+        }
+    }
+
+    /**
+     * Returns the URI of a note with the kind of change made to it, for its change notification.
+     */
+    static Uri getChangeUri(long noteId, String change) {
+        return ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, noteId).buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_CHANGE, change)
+                .build();
+    }
+
+    /**
+     * Notifies observers registered against this provider that the data at the URI changed.
+     * The notification is sent shortly after, coalesced with the other changes made meanwhile.
+     * Every write notifies once it commits, so this also moves the result cache to a new write
+     * generation.
+     */
+    private void notifyChange(Uri uri) {
+        mResultCache.onWrite();
+        mNotifier.notifyChange(uri);
+    }
+
+    /**
+     * This is called when a client calls
+     * {@link android.content.ContentResolver#call(Uri, String, String, Bundle)}. The only method
+     * is {@link NotePad.RowCacheStats#METHOD}, which returns the counters of the row cache.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (NotePad.RowCacheStats.METHOD.equals(method)) {
+            return mRowCache.getStats();
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Frees the row and result caches as the system runs low on memory: half of them while the
+     * app is in the background or memory gets low, all of them when the app is about to be
+     * killed or memory is critical. The rows are read again from the database as needed.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            mRowCache.trimToSize(0);
+            mResultCache.trimToSize(0);
+            mRanking = null;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mRowCache.trimToSize(mRowCache.getMaxBytes() / 2);
+            mResultCache.trimToSize(mResultCache.getMaxBytes() / 2);
+            mRanking = null;
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        mRowCache.trimToSize(0);
+        mResultCache.trimToSize(0);
+        mRanking = null;
+    }
+
+    /**
+     * Sets the size in bytes from which note bodies are stored compressed, or
+     * {@link Integer#MAX_VALUE} to store every body as text. Only used by tests.
+     */
+    void setCompressionThresholdForTest(int threshold) {
+        mCompressionThreshold = threshold;
+    }
+
+    /**
+     * Closes the cached statements and the database. Only called by tests.
+     */
+    @Override
+    public void shutdown() {
+        mStatements.clear();
+        mOpenHelper.close();
+    }
+
     /**
      * A test package can call this to get a handle to the database underlying NotePadProvider,
      * so it can insert test data into the database. The test case class is responsible for
@@ -770,4 +3720,83 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     DatabaseHelper getOpenHelperForTest() {
         return mOpenHelper;
     }
+
+    /**
+     * A test package that runs against the app's own provider calls this to point it at a
+     * database of its own, so its data never mixes with the user's notes, and with null to
+     * point it back. The database it was using is closed.
+     */
+    void useDatabaseForTest(String name) {
+        DatabaseHelper previous = mOpenHelper;
+        mOpenHelper = name == null ? new DatabaseHelper(getContext())
+                : new DatabaseHelper(getContext(), name);
+        mStatements.clear();
+        previous.close();
+        invalidateCachesForTest();
+    }
+
+    /**
+     * A test package can call this to count and flush the provider's change notifications.
+     */
+    NotificationDispatcher getNotificationDispatcherForTest() {
+        return mNotifier;
+    }
+
+    /**
+     * A test package can call this to read the counters of the row cache.
+     */
+    NoteRowCache getRowCacheForTest() {
+        return mRowCache;
+    }
+
+    /**
+     * A test package can call this to read the counters of the result cache.
+     */
+    QueryResultCache getResultCacheForTest() {
+        return mResultCache;
+    }
+
+    /**
+     * A test package that writes the database directly calls this, so that the provider
+     * doesn't answer from what it read before.
+     */
+    void invalidateCachesForTest() {
+        mRowCache.invalidateAll();
+        mResultCache.onWrite();
+    }
+
+    /**
+     * A test package that writes notes to the database directly calls this to build the
+     * full-text index again from the notes, since the provider writes the index itself.
+     */
+    void rebuildSearchIndexForTest() {
+        mOpenHelper.rebuildSearchIndex(mOpenHelper.getWritableDatabase());
+        invalidateCachesForTest();
+    }
+
+    /**
+     * A test package calls this to make the import of a note fail sooner when its client stops
+     * writing.
+     */
+    void setImportTimeoutForTest(long timeoutMillis) {
+        mImportTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * A test package calls this to wait for the notes written through streams to be imported.
+     */
+    void awaitImportsForTest() throws InterruptedException {
+        synchronized (mRunningImports) {
+            while (mRunningImports[0] > 0) {
+                mRunningImports.wait();
+            }
+        }
+    }
+
+    /**
+     * A test package that times the database calls this to make every query read it.
+     */
+    void setCachesEnabledForTest(boolean enabled) {
+        mCachesEnabled = enabled;
+    }
 }
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.os.Bundle;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps the columns of the notes read recently by their ID, so that reading a note again, such
+ * as when the editor comes back to the foreground, doesn't go to the database. A row holds the
+ * columns that were read of it; a read of columns it doesn't hold yet goes to the database and
+ * adds them.
+ *
+ * The cache holds the least recently used rows up to a size in bytes, estimated from their
+ * values. The provider forgets a note's row whenever it writes the note. A read from the
+ * database that a write overlapped may have read the note before the write: the cache counts
+ * its invalidations, and drops the values of a read that started before the last one.
+ */
+class NoteRowCache {
+
+    /**
+     * The columns a row can hold, which are the columns of a note ID URI.
+     */
+    static final String[] COLUMNS = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_NOTE_SIZE,
+            NotePad.Notes.COLUMN_NAME_NOTE_VERSION,
+            NotePad.Notes.COLUMN_NAME_NOTE_TRUNCATED,
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_CATEGORY,
+            NotePad.Notes.COLUMN_NAME_PINNED,
+            NotePad.Notes.COLUMN_NAME_CATEGORY_ID
+    };
+
+    // The estimated size in bytes of a row without its values, and of a number value.
+    private static final int ROW_BYTES = 64;
+    private static final int NUMBER_BYTES = 16;
+
+    // The values of the columns read of one note, and their estimated size.
+    private static final class Row {
+        final Object[] mValues = new Object[COLUMNS.length];
+        final boolean[] mRead = new boolean[COLUMNS.length];
+        int mBytes = ROW_BYTES;
+    }
+
+    private final LinkedHashMap<Long, Row> mRows = new LinkedHashMap<Long, Row>(16, 0.75f, true);
+
+    // The size the rows are kept under, and their size now.
+    private final int mMaxBytes;
+    private int mBytes;
+
+    // The number of invalidations so far. A read records it before it starts.
+    private long mGeneration;
+
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+    private long mInvalidationCount;
+
+    /**
+     * @param maxBytes The estimated size in bytes the rows are kept under. A row larger than a
+     * quarter of it, such as one holding the text of a long note, isn't kept.
+     */
+    NoteRowCache(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the indexes in {@link #COLUMNS} of the columns of a projection, or null if the
+     * cache can't hold one of them.
+     *
+     * @param projection The columns, or null for all of {@link #COLUMNS}.
+     */
+    static int[] getColumnIndexes(String[] projection) {
+        if (projection == null) {
+            projection = COLUMNS;
+        }
+        int[] indexes = new int[projection.length];
+        for (int index = 0; index < projection.length; index++) {
+            indexes[index] = -1;
+            for (int column = 0; column < COLUMNS.length; column++) {
+                if (COLUMNS[column].equals(projection[index])) {
+                    indexes[index] = column;
+                    break;
+                }
+            }
+            if (indexes[index] < 0) {
+                return null;
+            }
+        }
+        return indexes;
+    }
+
+    /**
+     * Returns the number of invalidations so far, to pass to {@link #put} with the values of a
+     * read that starts now.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Returns the values of columns of a note, or null if the cache doesn't hold all of them.
+     *
+     * @param columns The indexes in {@link #COLUMNS} of the columns.
+     */
+    synchronized Object[] get(long noteId, int[] columns) {
+        Row row = mRows.get(noteId);
+        if (row != null) {
+            Object[] values = new Object[columns.length];
+            for (int index = 0; index < columns.length; index++) {
+                if (!row.mRead[columns[index]]) {
+                    row = null;
+                    break;
+                }
+                values[index] = row.mValues[columns[index]];
+            }
+            if (row != null) {
+                mHitCount++;
+                return values;
+            }
+        }
+        mMissCount++;
+        return null;
+    }
+
+    /**
+     * Adds the values of columns read of a note to its row, unless the note may have been
+     * written since the read started.
+     *
+     * @param columns The indexes in {@link #COLUMNS} of the columns.
+     * @param values The values of the columns, in order: null, Long or String.
+     * @param generation The value of {@link #getGeneration} before the read started.
+     */
+    synchronized void put(long noteId, int[] columns, Object[] values, long generation) {
+        if (generation != mGeneration) {
+            return;
+        }
+        Row row = mRows.remove(noteId);
+        if (row != null) {
+            mBytes -= row.mBytes;
+        } else {
+            row = new Row();
+        }
+        for (int index = 0; index < columns.length; index++) {
+            int column = columns[index];
+            if (!row.mRead[column]) {
+                row.mRead[column] = true;
+                row.mValues[column] = values[index];
+                row.mBytes += sizeOf(values[index]);
+            }
+        }
+        if (row.mBytes > mMaxBytes / 4) {
+            return;
+        }
+        mRows.put(noteId, row);
+        mBytes += row.mBytes;
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * Forgets the row of a note that was written.
+     */
+    synchronized void invalidate(long noteId) {
+        mGeneration++;
+        mInvalidationCount++;
+        Row row = mRows.remove(noteId);
+        if (row != null) {
+            mBytes -= row.mBytes;
+        }
+    }
+
+    /**
+     * Forgets every row, when notes were written without their IDs being known.
+     */
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mInvalidationCount++;
+        mRows.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * Evicts the least recently used rows until the rows are under a size.
+     *
+     * @param maxBytes The estimated size in bytes to stay under, 0 to evict every row.
+     */
+    synchronized void trimToSize(int maxBytes) {
+        Iterator<Row> eldest = mRows.values().iterator();
+        while (mBytes > maxBytes && eldest.hasNext()) {
+            mBytes -= eldest.next().mBytes;
+            eldest.remove();
+            mEvictionCount++;
+        }
+    }
+
+    /**
+     * Returns the size the rows are kept under.
+     */
+    int getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * Returns the counters and the size of the cache, under the keys of
+     * {@link NotePad.RowCacheStats}.
+     */
+    synchronized Bundle getStats() {
+        Bundle stats = new Bundle();
+        stats.putLong(NotePad.RowCacheStats.HITS, mHitCount);
+        stats.putLong(NotePad.RowCacheStats.MISSES, mMissCount);
+        stats.putLong(NotePad.RowCacheStats.EVICTIONS, mEvictionCount);
+        stats.putLong(NotePad.RowCacheStats.INVALIDATIONS, mInvalidationCount);
+        stats.putInt(NotePad.RowCacheStats.ROWS, mRows.size());
+        stats.putInt(NotePad.RowCacheStats.BYTES, mBytes);
+        stats.putInt(NotePad.RowCacheStats.MAX_BYTES, mMaxBytes);
+        return stats;
+    }
+
+    // Returns the estimated size in bytes of a value.
+    private static int sizeOf(Object value) {
+        if (value instanceof String) {
+            return 40 + 2 * ((String) value).length();
+        }
+        return NUMBER_BYTES;
+    }
+}
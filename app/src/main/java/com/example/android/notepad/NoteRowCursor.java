@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.AbstractCursor;
+
+/**
+ * A cursor over the one row of a note ID URI, read through the provider's
+ * {@link NoteRowCache}. It has no row if the note doesn't exist. Requerying it reads the note
+ * again through the cache, so an editor that requeries its note each time it comes back reads
+ * it from memory unless it was written meanwhile.
+ */
+class NoteRowCursor extends AbstractCursor {
+
+    private final NotePadProvider mProvider;
+    private final long mNoteId;
+    private final String[] mColumnNames;
+    private final int[] mColumns;
+
+    // The values of the row, or null if the note doesn't exist.
+    private Object[] mValues;
+
+    /**
+     * @param columnNames The names of the cursor's columns.
+     * @param columns The indexes in {@link NoteRowCache#COLUMNS} of the columns.
+     */
+    NoteRowCursor(NotePadProvider provider, long noteId, String[] columnNames, int[] columns) {
+        mProvider = provider;
+        mNoteId = noteId;
+        mColumnNames = columnNames;
+        mColumns = columns;
+        mValues = provider.readNoteRow(noteId, columns);
+    }
+
+    @Override
+    public boolean requery() {
+        mValues = mProvider.readNoteRow(mNoteId, mColumns);
+        return super.requery();
+    }
+
+    @Override
+    public int getCount() {
+        return mValues == null ? 0 : 1;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public String getString(int column) {
+        Object value = get(column);
+        return value == null ? null : value.toString();
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        Object value = get(column);
+        if (value instanceof Long) {
+            return (Long) value;
+        }
+        // Text that isn't a number reads as 0, as it does from SQLite.
+        try {
+            return value == null ? 0 : Long.parseLong((String) value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public int getType(int column) {
+        Object value = get(column);
+        if (value == null) {
+            return FIELD_TYPE_NULL;
+        }
+        return value instanceof Long ? FIELD_TYPE_INTEGER : FIELD_TYPE_STRING;
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return get(column) == null;
+    }
+
+    // Returns the value of a column of the row.
+    private Object get(int column) {
+        if (column < 0 || column >= mColumnNames.length) {
+            throw new IndexOutOfBoundsException("Column " + column + " out of "
+                    + mColumnNames.length);
+        }
+        if (mValues == null || getPosition() != 0) {
+            throw new IndexOutOfBoundsException("No row at position " + getPosition());
+        }
+        return mValues[column];
+    }
+}
@@ -0,0 +1,537 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the editor's changes to notes behind the UI thread. A save only records the columns to
+ * write; the saves of one note are merged, later values winning, and written in one update on a
+ * background thread once no save has come for a short delay, or for at most a longer delay
+ * after the first one. {@link #flush()} writes the pending saves right away, still off the
+ * calling thread.
+ *
+ * The writes of all notes go through one thread in the order they were flushed, so a later
+ * save of a note is never overwritten by an earlier one. A save may hold a patch of the note's
+ * text rather than the text; it applies to the text as the note's earlier saves leave it, and
+ * is merged with them. The saver keeps the version each note's text had when it last read or
+ * wrote it, and writes a patch for that version only: a patch the provider rejects, or one for
+ * a note another client wrote meanwhile, isn't lost but handed back to its
+ * {@link PatchListener}, which saves the whole text instead. The time each flush takes and the
+ * number of saves per write are logged under the "NoteSaver" tag, at the DEBUG level.
+ */
+class NoteSaver {
+
+    private static final String TAG = "NoteSaver";
+
+    // How long the saver waits for more saves before it writes the pending ones.
+    static final long IDLE_DELAY_MILLIS = 1000;
+
+    // How long after the first pending save the saver writes, even if saves keep coming.
+    static final long MAX_DELAY_MILLIS = 5000;
+
+    /**
+     * The source of the uptime the saver's delays are measured in. Tests give the saver one
+     * they set, so the time of a write doesn't depend on how fast the test runs.
+     */
+    interface Clock {
+        long uptimeMillis();
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long uptimeMillis() {
+            return SystemClock.uptimeMillis();
+        }
+    };
+
+    /**
+     * Saves the whole text of a note in place of a patch that couldn't be written, since the
+     * note's text isn't the one the patch applies to anymore. It is called on the main thread.
+     */
+    interface PatchListener {
+        void onPatchRejected(Uri noteUri);
+    }
+
+    /**
+     * Reads a note for {@link #readWithPendingValues}.
+     */
+    interface NoteReader {
+        /**
+         * Returns the note's stored values, with the
+         * {@link NotePad.Notes#COLUMN_NAME_NOTE_VERSION} of its text, or null if the note is
+         * gone. It is called on the saver's thread.
+         */
+        ContentValues read();
+
+        /**
+         * Receives what {@link #read} returned, and the columns saved to the note and not
+         * written yet as {@link #getPendingValues} returns them. It is called on the main
+         * thread.
+         *
+         * @param conflict True if a patch saved to the note doesn't fit the stored text, which
+         * another client wrote since the saver last read or wrote it. The pending values leave
+         * the patch out, and its listener is asked for the whole text.
+         */
+        void onRead(ContentValues stored, ContentValues pending, boolean conflict);
+    }
+
+    private static NoteSaver sInstance;
+
+    private final ContentResolver mResolver;
+    private final long mDelayMillis;
+    private final long mMaxDelayMillis;
+    private final Clock mClock;
+    private final Handler mHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            write();
+        }
+    };
+
+    // The values not written yet, by note URI, in the order the notes were first saved.
+    private final LinkedHashMap<Uri, ContentValues> mPending =
+            new LinkedHashMap<Uri, ContentValues>();
+
+    // The values being written by the current flush, by note URI.
+    private final LinkedHashMap<Uri, ContentValues> mWriting =
+            new LinkedHashMap<Uri, ContentValues>();
+
+    // The listeners of the pending patches, by note URI.
+    private final HashMap<Uri, PatchListener> mListeners = new HashMap<Uri, PatchListener>();
+
+    // The version of each note's text as the saver last read or wrote it, by note URI. A note
+    // is missing once the saver doesn't know it, such as after it wrote the whole text over
+    // another client's. Only used on the saver's thread.
+    private final HashMap<Uri, Long> mVersions = new HashMap<Uri, Long>();
+
+    // The uptime at which the oldest pending save was made, and the one at which the pending
+    // saves are written, or 0.
+    private long mFirstPendingTime;
+    private long mFlushTime;
+
+    // The number of saves, of updates written, and of flushes so far, and the time the flushes
+    // took.
+    private int mSaveCount;
+    private int mWriteCount;
+    private int mFlushCount;
+    private long mFlushNanos;
+    private long mMaxFlushNanos;
+
+    /**
+     * Returns the saver of the application's notes.
+     */
+    static synchronized NoteSaver getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new NoteSaver(context.getApplicationContext().getContentResolver(),
+                    IDLE_DELAY_MILLIS, MAX_DELAY_MILLIS, SYSTEM_CLOCK);
+        }
+        return sInstance;
+    }
+
+    NoteSaver(ContentResolver resolver, long delayMillis, long maxDelayMillis, Clock clock) {
+        mResolver = resolver;
+        mDelayMillis = delayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+        mClock = clock;
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Records columns to write to a note. They are written later, with the other saves of the
+     * note made meanwhile.
+     */
+    void save(Uri noteUri, ContentValues values) {
+        save(noteUri, values, null);
+    }
+
+    /**
+     * Records columns to write to a note, like {@link #save(Uri, ContentValues)}.
+     *
+     * @param listener Saves the whole text if a patch the values hold can't be written, or
+     * null.
+     */
+    synchronized void save(Uri noteUri, ContentValues values, PatchListener listener) {
+        if (listener != null && values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE_PATCH)) {
+            mListeners.put(noteUri, listener);
+        }
+        ContentValues pending = mPending.get(noteUri);
+        if (pending == null) {
+            mPending.put(noteUri, new ContentValues(values));
+        } else {
+            merge(pending, values);
+        }
+        mSaveCount++;
+
+        long now = mClock.uptimeMillis();
+        if (mFirstPendingTime == 0) {
+            mFirstPendingTime = now;
+        }
+        mFlushTime = Math.min(now + mDelayMillis, mFirstPendingTime + mMaxDelayMillis);
+        mHandler.removeCallbacks(mFlush);
+        mHandler.postDelayed(mFlush, mFlushTime - now);
+    }
+
+    /**
+     * Drops the saves of a note not written yet, such as before the note is deleted. Once no
+     * save is pending, the next one waits its full delays again.
+     */
+    synchronized void cancel(Uri noteUri) {
+        mPending.remove(noteUri);
+        mListeners.remove(noteUri);
+        if (mPending.isEmpty()) {
+            mHandler.removeCallbacks(mFlush);
+            mFirstPendingTime = 0;
+            mFlushTime = 0;
+        }
+    }
+
+    /**
+     * Writes the pending saves now, on the saver's thread. Returns without waiting for them.
+     */
+    void flush() {
+        mHandler.removeCallbacks(mFlush);
+        mHandler.post(mFlush);
+    }
+
+    /**
+     * Writes the pending saves now, on the saver's thread, then runs a callback on the main
+     * thread. A save that fails to be written is still pending when the callback runs.
+     */
+    void flush(final Runnable onWritten) {
+        flush();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mMainHandler.post(onWritten);
+            }
+        });
+    }
+
+    /**
+     * Returns the columns saved to a note and not written yet, merged, or null if there are
+     * none. The editor shows them instead of the note's stored values, which they will replace.
+     */
+    synchronized ContentValues getPendingValues(Uri noteUri) {
+        ContentValues writing = mWriting.get(noteUri);
+        ContentValues pending = mPending.get(noteUri);
+        if (writing == null && pending == null) {
+            return null;
+        }
+        ContentValues values = new ContentValues();
+        if (writing != null) {
+            values.putAll(writing);
+        }
+        if (pending != null) {
+            values.putAll(pending);
+        }
+        return values;
+    }
+
+    /**
+     * Reads a note's stored values on the saver's thread, between its writes, and hands them
+     * with the columns saved to the note and not written yet to the reader on the main thread.
+     * No save is both in what the read sees and in the pending values, so a patch is applied
+     * once; the calling thread doesn't wait for a write under way. The saver takes the version
+     * of the note's text from the read.
+     */
+    void readWithPendingValues(final Uri noteUri, final NoteReader reader) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final ContentValues stored = reader.read();
+                final ContentValues pending;
+                final boolean conflict;
+                synchronized (NoteSaver.this) {
+                    Long known = mVersions.get(noteUri);
+                    Long version = stored == null ? null
+                            : stored.getAsLong(NotePad.Notes.COLUMN_NAME_NOTE_VERSION);
+                    ContentValues values = mPending.get(noteUri);
+                    conflict = values != null
+                            && values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE_PATCH)
+                            && (known == null || !known.equals(version));
+                    if (conflict) {
+                        values.remove(NotePad.Notes.COLUMN_NAME_NOTE_PATCH);
+                        if (values.size() == 0) {
+                            mPending.remove(noteUri);
+                        }
+                        rejectPatch(noteUri, mListeners.remove(noteUri));
+                    }
+                    if (version != null) {
+                        mVersions.put(noteUri, version);
+                    }
+                    pending = getPendingValues(noteUri);
+                }
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        reader.onRead(stored, pending, conflict);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Waits until the saves flushed before the call are written. Only used by tests.
+     *
+     * @return false if they weren't written in time.
+     */
+    boolean waitForWritesForTest(long timeoutMillis) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        });
+        return latch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the uptime, by the saver's clock, at which the pending saves are written, or 0 if
+     * none are pending. Only used by tests.
+     */
+    synchronized long getFlushTimeForTest() {
+        return mFlushTime;
+    }
+
+    /**
+     * Stops the saver's thread, dropping the saves not written yet. Only used by tests, which
+     * make a saver each.
+     */
+    void quitForTest() {
+        mHandler.getLooper().quit();
+    }
+
+    /**
+     * Returns the number of saves so far. Only used by tests.
+     */
+    synchronized int getSaveCountForTest() {
+        return mSaveCount;
+    }
+
+    /**
+     * Returns the number of updates written so far. Only used by tests.
+     */
+    synchronized int getWriteCountForTest() {
+        return mWriteCount;
+    }
+
+    // Merges the columns of a save into the ones pending for its note. A patch of the text
+    // applies to the pending text, or follows the pending patch; a whole text replaces a
+    // pending patch.
+    private static void merge(ContentValues pending, ContentValues values) {
+        byte[] patch = values.getAsByteArray(NotePad.Notes.COLUMN_NAME_NOTE_PATCH);
+        if (patch != null) {
+            values = new ContentValues(values);
+            values.remove(NotePad.Notes.COLUMN_NAME_NOTE_PATCH);
+            EditJournal journal = EditJournal.decode(patch);
+            if (pending.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+                String note = pending.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE,
+                        journal.apply(note == null ? "" : note));
+            } else if (pending.containsKey(NotePad.Notes.COLUMN_NAME_NOTE_PATCH)) {
+                EditJournal merged = EditJournal.decode(
+                        pending.getAsByteArray(NotePad.Notes.COLUMN_NAME_NOTE_PATCH));
+                merged.append(journal);
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE_PATCH, merged.encode());
+            } else {
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE_PATCH, patch);
+            }
+        } else if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            pending.remove(NotePad.Notes.COLUMN_NAME_NOTE_PATCH);
+        }
+        pending.putAll(values);
+    }
+
+    // Writes the pending saves, one update per note. Runs on the saver's thread.
+    private void write() {
+        HashMap<Uri, PatchListener> listeners;
+        synchronized (this) {
+            mHandler.removeCallbacks(mFlush);
+            if (mPending.isEmpty()) {
+                return;
+            }
+            mWriting.putAll(mPending);
+            mPending.clear();
+            listeners = new HashMap<Uri, PatchListener>(mListeners);
+            mListeners.clear();
+            mFirstPendingTime = 0;
+            mFlushTime = 0;
+        }
+
+        long start = System.nanoTime();
+        int writes = 0;
+        LinkedHashMap<Uri, ContentValues> failed = new LinkedHashMap<Uri, ContentValues>();
+        for (Map.Entry<Uri, ContentValues> entry : mWriting.entrySet()) {
+            Uri noteUri = entry.getKey();
+            ContentValues values = entry.getValue();
+            int count;
+            try {
+                if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE_PATCH)) {
+                    count = writePatch(noteUri, values, listeners.get(noteUri));
+                } else if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+                    count = writeText(noteUri, values);
+                } else {
+                    count = mResolver.update(noteUri, values, null, null);
+                }
+            } catch (RuntimeException e) {
+                // The saves are written again with the next flush; the other notes are still
+                // written.
+                Log.w(TAG, "Failed to save " + noteUri + ", retrying", e);
+                failed.put(noteUri, values);
+                continue;
+            }
+            if (count > 0) {
+                writes++;
+            } else {
+                // The note was deleted meanwhile.
+                Log.w(TAG, "Dropped the saves of " + noteUri + ", which no longer exists");
+            }
+        }
+        long nanos = System.nanoTime() - start;
+
+        synchronized (this) {
+            mWriting.clear();
+            requeue(failed, listeners);
+            mWriteCount += writes;
+            mFlushCount++;
+            mFlushNanos += nanos;
+            mMaxFlushNanos = Math.max(mMaxFlushNanos, nanos);
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Wrote " + writes + " notes in " + nanos / 1000
+                        + "us; average flush " + mFlushNanos / mFlushCount / 1000
+                        + "us, max " + mMaxFlushNanos / 1000 + "us; " + mSaveCount
+                        + " saves in " + mWriteCount + " writes");
+            }
+        }
+    }
+
+    // Puts saves that failed to be written back before the saves made to their notes since,
+    // with the listeners of their patches, and schedules their next write. Must hold the lock.
+    private void requeue(LinkedHashMap<Uri, ContentValues> failed,
+            HashMap<Uri, PatchListener> listeners) {
+        if (failed.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<Uri, ContentValues> entry : failed.entrySet()) {
+            Uri noteUri = entry.getKey();
+            ContentValues values = entry.getValue();
+            ContentValues pending = mPending.remove(noteUri);
+            if (pending != null) {
+                merge(values, pending);
+            }
+            mPending.put(noteUri, values);
+            PatchListener listener = listeners.get(noteUri);
+            if (listener != null && !mListeners.containsKey(noteUri)) {
+                mListeners.put(noteUri, listener);
+            }
+        }
+
+        long now = mClock.uptimeMillis();
+        if (mFirstPendingTime == 0) {
+            mFirstPendingTime = now;
+        }
+        mFlushTime = Math.min(now + mDelayMillis, mFirstPendingTime + mMaxDelayMillis);
+        mHandler.removeCallbacks(mFlush);
+        mHandler.postDelayed(mFlush, mFlushTime - now);
+    }
+
+    // Writes a save holding a patch, for the version of the text the saver knows. Each update
+    // that writes the text raises its version by one. If the saver doesn't know the version,
+    // or the provider rejects the patch since another client wrote the note, the save's other
+    // columns are written without the patch, and its listener saves the whole text. Returns
+    // the number of notes written, 0 if the note no longer exists.
+    private int writePatch(Uri noteUri, ContentValues values, PatchListener listener) {
+        Long version = mVersions.get(noteUri);
+        if (version != null) {
+            EditJournal journal = EditJournal.decode(
+                    values.getAsByteArray(NotePad.Notes.COLUMN_NAME_NOTE_PATCH));
+            journal.setBaseVersion(version);
+            ContentValues patched = new ContentValues(values);
+            patched.put(NotePad.Notes.COLUMN_NAME_NOTE_PATCH, journal.encode());
+            try {
+                int count = mResolver.update(noteUri, patched, null, null);
+                if (count > 0) {
+                    mVersions.put(noteUri, version + 1);
+                }
+                return count;
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Patch of " + noteUri + " rejected", e);
+            }
+        }
+        mVersions.remove(noteUri);
+        ContentValues others = new ContentValues(values);
+        others.remove(NotePad.Notes.COLUMN_NAME_NOTE_PATCH);
+        if (others.size() > 0 && mResolver.update(noteUri, others, null, null) == 0) {
+            return 0;
+        }
+        rejectPatch(noteUri, listener);
+        return 1;
+    }
+
+    // Writes a save holding the whole text. It is written on the version of the text the saver
+    // knows, so the saver knows the version it leaves; if another client wrote the note since,
+    // it is written over that, and the saver no longer knows the version. Returns the number
+    // of notes written, 0 if the note no longer exists.
+    private int writeText(Uri noteUri, ContentValues values) {
+        Long version = mVersions.get(noteUri);
+        if (version != null && mResolver.update(noteUri, values,
+                NotePad.Notes.COLUMN_NAME_NOTE_VERSION + " = ?",
+                new String[] { version.toString() }) > 0) {
+            mVersions.put(noteUri, version + 1);
+            return 1;
+        }
+        mVersions.remove(noteUri);
+        return mResolver.update(noteUri, values, null, null);
+    }
+
+    // Asks the listener of a patch that can't be written for the whole text.
+    private void rejectPatch(final Uri noteUri, final PatchListener listener) {
+        if (listener == null) {
+            Log.w(TAG, "Dropped a patch of " + noteUri + " that doesn't fit its text");
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onPatchRejected(noteUri);
+            }
+        });
+    }
+}
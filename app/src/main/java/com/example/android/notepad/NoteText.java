@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+
+import java.io.IOException;
+
+/**
+ * Reads the text of a note through its {@link NotePad.NoteChunks} directory, for the notes too
+ * long for their note column. Each chunk is read in its own cursor window, so a note of any
+ * length can be copied to a file with one chunk in memory at a time.
+ */
+final class NoteText {
+
+    private static final String[] PROJECTION = new String[] {
+            NotePad.NoteChunks.COLUMN_NAME_TEXT
+    };
+
+    // This class cannot be instantiated
+    private NoteText() {
+    }
+
+    /**
+     * Returns the whole text of a note, or null if its chunks couldn't be queried.
+     *
+     * @param noteUri The note ID URI of the note.
+     */
+    static String read(ContentResolver resolver, Uri noteUri) {
+        StringBuilder text = new StringBuilder();
+        try {
+            if (!copy(resolver, noteUri, text)) {
+                return null;
+            }
+        } catch (IOException e) {
+            // A StringBuilder doesn't throw
+            throw new AssertionError(e);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Appends the text of a note to a writer or a builder, a chunk at a time.
+     *
+     * @param noteUri The note ID URI of the note.
+     * @return false if the chunks couldn't be queried.
+     */
+    static boolean copy(ContentResolver resolver, Uri noteUri, Appendable out)
+            throws IOException {
+        Cursor cursor = resolver.query(
+                Uri.withAppendedPath(noteUri, NotePad.NoteChunks.CONTENT_DIRECTORY),
+                PROJECTION, null, null, null);
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                out.append(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return true;
+    }
+}
@@ -19,6 +19,7 @@ package com.example.android.notepad;
 import com.example.android.notepad.NotePad;
 
 import android.app.ListActivity;
+import android.content.AsyncQueryHandler;
 import android.content.ClipboardManager;
 import android.content.ClipData;
 import android.content.ComponentName;
@@ -26,14 +27,28 @@ import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
+import android.graphics.Typeface;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.text.SpannableString;
+import android.text.Spanned;
 import android.text.TextUtils;
 import android.text.format.DateUtils;
+import android.text.style.BackgroundColorSpan;
+import android.text.style.StyleSpan;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 import android.util.Log;
 import android.view.ContextMenu;
 import android.view.Menu;
@@ -41,6 +56,7 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ContextMenu.ContextMenuInfo;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ListView;
 import android.widget.SearchView;
@@ -48,12 +64,7 @@ import android.widget.SimpleCursorAdapter;
 import android.widget.TextView;
 import android.content.ContentValues;
 import android.widget.Spinner;
-import android.widget.ArrayAdapter;
 import android.widget.EditText;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
 
 
 /**
@@ -61,9 +72,13 @@ import java.util.Set;
  * provided in the incoming Intent if there is one, otherwise it defaults to displaying the
  * contents of the {@link NotePadProvider}.
  *
- * NOTE: Notice that the provider operations in this Activity are taking place on the UI thread.
- * This is not a good practice. It is only done here to make the code more readable. A real
- * application should use the {@link android.content.AsyncQueryHandler} or
+ * The pages of the list and the count of search results are queried on worker threads, so
+ * typing a search or picking a category never waits for the provider. A list query that a
+ * newer one supersedes is cancelled, and from Jelly Bean on the provider stops its scan.
+ *
+ * NOTE: Notice that the other provider operations in this Activity are taking place on the UI
+ * thread. This is not a good practice. It is only done here to make the code more readable. A
+ * real application should use the {@link android.content.AsyncQueryHandler} or
  * {@link android.os.AsyncTask} object to perform operations asynchronously on a separate thread.
  */
 public class NotesList extends ListActivity {
@@ -82,16 +97,99 @@ public class NotesList extends ListActivity {
             NotePad.Notes.COLUMN_NAME_PINNED // 4
     };
 
+    /**
+     * The columns of a search, ranked by relevance: the list's, and each note's rank and
+     * snippet
+     */
+    private static final String[] SEARCH_PROJECTION = new String[] {
+            NotePad.Notes._ID, // 0
+            NotePad.Notes.COLUMN_NAME_TITLE, // 1
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, // 2
+            NotePad.Notes.COLUMN_NAME_CATEGORY, // 3
+            NotePad.Notes.COLUMN_NAME_PINNED, // 4
+            NotePad.Notes.COLUMN_NAME_RANK, // 5
+            NotePad.Notes.COLUMN_NAME_SNIPPET, // 6
+            NotePad.Notes.COLUMN_NAME_SNIPPET_HIGHLIGHTS // 7
+    };
+
     /** The index of the title column */
     private static final int COLUMN_INDEX_TITLE = 1;
     private static final int COLUMN_INDEX_MODIFIED = 2;
+    private static final int COLUMN_INDEX_PINNED = 4;
+    private static final int COLUMN_INDEX_RANK = 5;
+    private static final int COLUMN_INDEX_SNIPPET_HIGHLIGHTS = 7;
+
+    /**
+     * The columns of the category filter's entries
+     */
+    private static final String[] CATEGORY_PROJECTION = new String[] {
+            NotePad.Categories._ID, // 0
+            NotePad.Categories.COLUMN_NAME_NAME // 1
+    };
+
+    /** The ID of the category filter's entry that shows every note */
+    private static final long ALL_CATEGORIES_ID = 0;
+
+    /** The number of notes loaded at a time */
+    private static final int PAGE_SIZE = 50;
+
+    /** How close to the end of the loaded notes the list scrolls before the next page loads */
+    private static final int PREFETCH_DISTANCE = 10;
+
+    /** How long typing pauses before the search text is searched for */
+    private static final long SEARCH_DELAY_MILLIS = 300;
+
+    /** The most notes a search result can hold for a longer search text to refine it */
+    private static final int REFINE_LIMIT = 500;
 
     private SimpleCursorAdapter mAdapter;
+
+    // The loaded pages of the list, and whether there are notes after them.
+    private PagedCursor mNotes;
+    private boolean mHasMoreNotes;
+    private boolean mNextPageRequested;
+
+    // The list query running on a worker thread, or null. Only its result is shown; starting
+    // another query cancels it.
+    private ListQuery mListQuery;
+
+    // The lookups of changed notes running on worker threads, by note ID. Only the latest
+    // lookup of a note is patched into the list, and reloading the list cancels them all.
+    private final Map<Long, NoteQuery> mNoteQueries = new HashMap<Long, NoteQuery>();
+
+    // The filters the loaded list was queried with. The current ones differ while a search
+    // waits for typing to pause, or while the list query for them runs.
+    private String mNotesFilter;
+    private long mNotesCategoryId = ALL_CATEGORIES_ID;
+
+    // Searches for the current search text once typing pauses.
+    private final Handler mSearchHandler = new Handler();
+    private final Runnable mSearch = new Runnable() {
+        @Override
+        public void run() {
+            reloadNotes(PAGE_SIZE);
+        }
+    };
+
+    // The number of list queries started, and of those that refined a previous search. Only
+    // read by tests.
+    private int mListQueryCount;
+    private int mRefinedQueryCount;
+
+    // Reloads the list when the notes change while it is shown.
+    private ContentObserver mNotesObserver;
+
     private SearchView mSearchView;
     private String mCurrentFilter;
     private String mCurrentCategoryFilter;
+    private long mCurrentCategoryId = ALL_CATEGORIES_ID;
     private TextView mSearchResultCount;
 
+    // Counts the search results off the UI thread. Only the answer to the latest count request
+    // is shown; earlier ones are stale.
+    private CountHandler mCountHandler;
+    private int mCountRequest;
+
     /**
      * onCreate is called when Android starts this Activity from scratch.
      */
@@ -125,12 +223,57 @@ public class NotesList extends ListActivity {
         final ListView listView = getListView();
         listView.setOnCreateContextMenuListener(this);
 
-        /* Performs a managed query. The Activity handles closing and requerying the cursor
-         * when needed.
-         *
-         * Please see the introductory note about performing provider operations on the UI thread.
+        /*
+         * Loads the next page of notes when the list is scrolled close to the end of the loaded
+         * ones. The page is loaded after the scroll, not during the layout that reports it.
+         */
+        listView.setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                    int totalItemCount) {
+                if (mHasMoreNotes && !mNextPageRequested
+                        && firstVisibleItem + visibleItemCount
+                                >= totalItemCount - PREFETCH_DISTANCE) {
+                    mNextPageRequested = true;
+                    view.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            loadNextPage();
+                        }
+                    });
+                }
+            }
+        });
+
+        /*
+         * The list reloads itself when the notes change, instead of the adapter requerying.
+         * When the provider says which note changed and how, only that note's row is patched.
+         * Before Jelly Bean, observers aren't told the URI, so the list is reloaded.
          */
-        Cursor cursor = queryNotes(null);
+        mNotesObserver = new ContentObserver(new Handler()) {
+            @Override
+            public void onChange(boolean selfChange) {
+                // A reload still running may have read the notes before the change.
+                reloadNotes(mListQuery != null && mListQuery.mAfter == null
+                        ? mListQuery.mLimit : getLoadedCount());
+            }
+
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                String change = uri == null ? null
+                        : uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_CHANGE);
+                if (change == null || mNotes == null
+                        || (mListQuery != null && mListQuery.mAfter == null)) {
+                    onChange(selfChange);
+                } else {
+                    patchNote(ContentUris.parseId(uri), change);
+                }
+            }
+        };
 
         /*
          * The following two arrays create a "map" between columns in the cursor and view IDs
@@ -152,15 +295,25 @@ public class NotesList extends ListActivity {
         // noteslist_item.xml
         int[] viewIDs = { R.id.note_title, R.id.note_timestamp, R.id.note_category, R.id.note_pinned };
 
-        // Creates the backing adapter for the ListView.
+        // Creates the backing adapter for the ListView. Its cursor is set when the first page
+        // of notes is loaded, in onResume(). The rows of a search also show their snippet.
+        final int highlightColor = getHighlightColor();
         SimpleCursorAdapter adapter
             = new SimpleCursorAdapter(
                       this,                             // The Context for the ListView
                       R.layout.noteslist_item,          // Points to the XML for a list item
-                      cursor,                           // The cursor to get items from
+                      null,                             // The cursor to get items from
                       dataColumns,
-                      viewIDs
-              );
+                      viewIDs,
+                      0                                 // Don't requery on changes
+              ) {
+                  @Override
+                  public void bindView(View view, Context context, Cursor cursor) {
+                      super.bindView(view, context, cursor);
+                      bindSnippet((TextView) view.findViewById(R.id.note_snippet), cursor,
+                              highlightColor);
+                  }
+              };
 
         // Sets the ListView's adapter to be the cursor adapter that was just created.
         adapter.setViewBinder((view, cursor1, columnIndex) -> {
@@ -182,7 +335,7 @@ public class NotesList extends ListActivity {
                 }
                 return true;
             } else if (view.getId() == R.id.note_pinned) {
-                int pinned = cursor1.getInt(4); // COLUMN_INDEX_PINNED
+                int pinned = cursor1.getInt(COLUMN_INDEX_PINNED);
                 view.setVisibility(pinned == 1 ? View.VISIBLE : View.GONE);
                 return true;
             }
@@ -194,6 +347,7 @@ public class NotesList extends ListActivity {
 
         mSearchView = (SearchView) findViewById(R.id.search_view);
         mSearchResultCount = (TextView) findViewById(R.id.search_result_count);
+        mCountHandler = new CountHandler(getContentResolver());
         
         // Ensure SearchView is expanded and visible
         mSearchView.setIconified(false);
@@ -226,9 +380,7 @@ public class NotesList extends ListActivity {
             public boolean onQueryTextSubmit(String query) {
                 // Update filter without modifying SearchView text (user just typed it)
                 mCurrentFilter = TextUtils.isEmpty(query) ? null : query;
-                Cursor newCursor = queryNotes(mCurrentFilter);
-                mAdapter.changeCursor(newCursor);
-                updateSearchResultCount(newCursor);
+                reloadNotes(PAGE_SIZE);
                 updateFilterContainerVisibility();
                 // Keep the search view expanded
                 mSearchView.clearFocus();
@@ -239,9 +391,7 @@ public class NotesList extends ListActivity {
             public boolean onQueryTextChange(String newText) {
                 // Update filter without modifying SearchView text (user is typing)
                 mCurrentFilter = TextUtils.isEmpty(newText) ? null : newText;
-                Cursor newCursor = queryNotes(mCurrentFilter);
-                mAdapter.changeCursor(newCursor);
-                updateSearchResultCount(newCursor);
+                searchNotes();
                 updateFilterContainerVisibility();
                 return false; // Return false to allow SearchView to update its text normally
             }
@@ -249,7 +399,6 @@ public class NotesList extends ListActivity {
 
         mSearchView.setOnCloseListener(() -> {
             filterNotes(null);
-            mCurrentCategoryFilter = null;
             updateCategoryFilterSpinner();
             // Don't close the search view, keep it expanded
             mSearchView.setIconified(false);
@@ -429,6 +578,7 @@ public class NotesList extends ListActivity {
             // Clear search
             mCurrentFilter = null;
             mCurrentCategoryFilter = null;
+            mCurrentCategoryId = ALL_CATEGORIES_ID;
             updateCategoryFilterSpinner();
             if (mSearchView != null) {
                 mSearchView.setQuery("", false);
@@ -605,7 +755,7 @@ public class NotesList extends ListActivity {
         Cursor cursor = getContentResolver().query(noteUri, 
                 new String[]{
                     NotePad.Notes.COLUMN_NAME_TITLE,
-                    NotePad.Notes.COLUMN_NAME_NOTE,
+                    NotePad.Notes.COLUMN_NAME_NOTE_SIZE,
                     NotePad.Notes.COLUMN_NAME_CATEGORY,
                     NotePad.Notes.COLUMN_NAME_CREATE_DATE,
                     NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
@@ -619,7 +769,6 @@ public class NotesList extends ListActivity {
         }
 
         String title = cursor.getString(0);
-        String content = cursor.getString(1);
         String category = cursor.getString(2);
         long createDate = cursor.getLong(3);
         long modifyDate = cursor.getLong(4);
@@ -648,7 +797,9 @@ public class NotesList extends ListActivity {
                     sdf.format(new java.util.Date(createDate)) + "\n");
             writer.write(getString(R.string.export_modified) + ": " + 
                     sdf.format(new java.util.Date(modifyDate)) + "\n");
-            writer.write("\n" + getString(R.string.export_content) + ":\n" + content);
+            writer.write("\n" + getString(R.string.export_content) + ":\n");
+            // The text is copied a chunk at a time, so a long note is never whole in memory.
+            NoteText.copy(getContentResolver(), noteUri, writer);
             writer.close();
 
             android.widget.Toast.makeText(this, 
@@ -698,50 +849,547 @@ public class NotesList extends ListActivity {
             startActivity(new Intent(Intent.ACTION_EDIT, uri).setClassName(/* TODO: provide the application ID. For example: */ getPackageName(), "com.example.android.notepad.NoteEditor"));
         }
     }
-    private Cursor queryNotes(String filter) {
-        String selection = null;
-        String[] selectionArgs = null;
-        List<String> conditions = new ArrayList<>();
-        List<String> args = new ArrayList<>();
-        
-        // Text search filter
-        if (!TextUtils.isEmpty(filter)) {
-            String like = "%" + filter.trim() + "%";
-            conditions.add("(" + NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ? OR " +
-                    NotePad.Notes.COLUMN_NAME_NOTE + " LIKE ? OR " +
-                    NotePad.Notes.COLUMN_NAME_CATEGORY + " LIKE ?)");
-            args.add(like);
-            args.add(like);
-            args.add(like);
+    /**
+     * Starts querying one page of the notes matching the current filters, sorted by pinned
+     * state first, then by modification date, on a worker thread. The list query running
+     * before is cancelled: its result would be stale.
+     *
+     * @param filter The search text, or null.
+     * @param categoryId The ID of the category to list, or ALL_CATEGORIES_ID.
+     * @param candidates The IDs of the only notes that can match, or null.
+     * @param after The key of the last note of the previous page, or null for the first page.
+     * @param limit The maximum number of notes to return.
+     */
+    private void startListQuery(String filter, long categoryId, long[] candidates,
+            String after, int limit) {
+        cancelListQuery();
+        if (after == null) {
+            cancelNoteQueries();
         }
-        
-        // Category filter
-        if (!TextUtils.isEmpty(mCurrentCategoryFilter) && 
-            !mCurrentCategoryFilter.equals(getString(R.string.all_categories))) {
-            conditions.add(NotePad.Notes.COLUMN_NAME_CATEGORY + " = ?");
-            args.add(mCurrentCategoryFilter);
+        mListQuery = new ListQuery(filter, categoryId, candidates, after, limit);
+        mListQuery.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        mListQueryCount++;
+        if (candidates != null) {
+            mRefinedQueryCount++;
         }
-        
-        if (!conditions.isEmpty()) {
-            selection = TextUtils.join(" AND ", conditions);
-            selectionArgs = args.toArray(new String[args.size()]);
+    }
+
+    // Cancels the list query running on a worker thread, if any.
+    private void cancelListQuery() {
+        if (mListQuery != null) {
+            mListQuery.abort();
+            mListQuery = null;
         }
-        
-        // Sort by pinned first, then by modification date
-        String sortOrder = NotePad.Notes.COLUMN_NAME_PINNED + " DESC, " + 
-                          NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " DESC";
-        ContentResolver resolver = getContentResolver();
-        Cursor cursor = resolver.query(
-                getIntent().getData(),
-                PROJECTION,
-                selection,
-                selectionArgs,
-                sortOrder
-        );
-        return cursor;
+    }
+
+    // Cancels the lookups of changed notes running on worker threads: the list they would
+    // patch is being replaced.
+    private void cancelNoteQueries() {
+        for (NoteQuery query : mNoteQueries.values()) {
+            query.abort();
+        }
+        mNoteQueries.clear();
+    }
+
+    /**
+     * Queries the provider on a worker thread. The rows are read into the cursor's window on
+     * the worker thread too, since that is when SQLite does the scan. From Jelly Bean on, the
+     * query passes a cancellation signal to the provider, so a cancelled query stops scanning
+     * instead of running to the end for nothing.
+     */
+    private abstract class ListTask extends AsyncTask<Void, Void, Cursor> {
+
+        // The search text of the query, or null.
+        final String mFilter;
+
+        private final ContentResolver mResolver;
+        private final Uri mUri;
+        private final String mSelection;
+        private final String[] mSelectionArgs;
+
+        // Only created from Jelly Bean on.
+        private final CancellationSignal mCancellationSignal;
+
+        ListTask(String filter, Uri uri, String selection, String[] selectionArgs) {
+            mFilter = filter;
+            mResolver = getContentResolver();
+            mUri = uri;
+            mSelection = selection;
+            mSelectionArgs = selectionArgs;
+            mCancellationSignal = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+                    ? new CancellationSignal() : null;
+        }
+
+        // Cancels the query, stopping the provider's scan if it already started.
+        void abort() {
+            cancel(false);
+            if (mCancellationSignal != null) {
+                mCancellationSignal.cancel();
+            }
+        }
+
+        @Override
+        protected Cursor doInBackground(Void... params) {
+            Cursor cursor = null;
+            try {
+                if (mCancellationSignal != null) {
+                    cursor = mResolver.query(mUri, getProjection(mFilter), mSelection,
+                            mSelectionArgs, getSortOrder(mFilter), mCancellationSignal);
+                } else {
+                    cursor = mResolver.query(mUri, getProjection(mFilter), mSelection,
+                            mSelectionArgs, getSortOrder(mFilter));
+                }
+                if (cursor != null) {
+                    cursor.getCount();
+                }
+                return cursor;
+            } catch (RuntimeException e) {
+                if (cursor != null) {
+                    cursor.close();
+                }
+                // A cancelled query throws OperationCanceledException, which is expected.
+                if (isCancelled()) {
+                    return null;
+                }
+                throw e;
+            }
+        }
+
+        @Override
+        protected void onCancelled(Cursor rows) {
+            if (rows != null) {
+                rows.close();
+            }
+        }
+    }
+
+    /**
+     * Queries one page of the list on a worker thread, and hands it to the list on the UI
+     * thread unless a newer query superseded it.
+     */
+    private class ListQuery extends ListTask {
+
+        // The category filter of the query.
+        final long mCategoryId;
+
+        // The key the page starts after, or null for the first page, and its size.
+        final String mAfter;
+        final int mLimit;
+
+        ListQuery(String filter, long categoryId, long[] candidates, String after, int limit) {
+            super(filter, getPageUri(filter, after, limit),
+                    getPageSelection(categoryId, candidates),
+                    getCategorySelectionArgs(categoryId));
+            mCategoryId = categoryId;
+            mAfter = after;
+            mLimit = limit;
+        }
+
+        @Override
+        protected void onPostExecute(Cursor page) {
+            if (mListQuery != this || isFinishing()) {
+                if (page != null) {
+                    page.close();
+                }
+                return;
+            }
+            mListQuery = null;
+            if (mAfter == null) {
+                showNotes(page, mFilter, mCategoryId, mLimit);
+            } else {
+                addPage(page);
+            }
+        }
+    }
+
+    /**
+     * Reads one changed note again, in the list projection, on a worker thread, if it matches
+     * the filters of the list, and patches it into the list on the UI thread unless a newer
+     * lookup of the same note or a reload of the list superseded it.
+     */
+    private class NoteQuery extends ListTask {
+
+        final long mNoteId;
+
+        // How the note changed, see NotePad.Notes#QUERY_PARAMETER_CHANGE.
+        final String mChange;
+
+        NoteQuery(long noteId, String change) {
+            super(mNotesFilter, getListUri(mNotesFilter),
+                    getNoteSelection(mNotesCategoryId),
+                    getNoteSelectionArgs(noteId, mNotesCategoryId));
+            mNoteId = noteId;
+            mChange = change;
+        }
+
+        @Override
+        protected void onPostExecute(Cursor note) {
+            if (mNoteQueries.get(mNoteId) != this || isFinishing()) {
+                if (note != null) {
+                    note.close();
+                }
+                return;
+            }
+            mNoteQueries.remove(mNoteId);
+            applyPatch(mNoteId, mChange, note);
+        }
+    }
+
+    // Returns the URI of one page of the list.
+    private Uri getPageUri(String filter, String after, int limit) {
+        Uri.Builder uri = getListUri(filter).buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT,
+                        Integer.toString(limit));
+        if (after != null) {
+            uri.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_AFTER, after);
+        }
+        return uri.build();
+    }
+
+    /**
+     * Returns the selection of one page of the list, of the category and among the candidate
+     * notes, if any. The IDs are numbers, so they are written into the selection rather than
+     * bound, which keeps them clear of the limit on the number of arguments.
+     */
+    private static String getPageSelection(long categoryId, long[] candidates) {
+        String selection = categoryId == ALL_CATEGORIES_ID
+                ? null : NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ?";
+        if (candidates != null) {
+            StringBuilder ids = new StringBuilder(NotePad.Notes._ID).append(" IN (");
+            for (int index = 0; index < candidates.length; index++) {
+                ids.append(index == 0 ? "" : ",").append(candidates[index]);
+            }
+            ids.append(')');
+            selection = selection == null ? ids.toString() : selection + " AND " + ids;
+        }
+        return selection;
+    }
+
+    // Returns the color the matches of a search are highlighted with, in the activity's theme.
+    @SuppressWarnings("deprecation")
+    private int getHighlightColor() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                ? getColor(R.color.search_highlight)
+                : getResources().getColor(R.color.search_highlight);
+    }
+
+    // Returns the selection of one note, if it is of the category.
+    private static String getNoteSelection(long categoryId) {
+        return categoryId == ALL_CATEGORIES_ID ? NotePad.Notes._ID + " = ?"
+                : NotePad.Notes._ID + " = ? AND " + NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ?";
+    }
+
+    private static String[] getNoteSelectionArgs(long noteId, long categoryId) {
+        return categoryId == ALL_CATEGORIES_ID ? new String[] { Long.toString(noteId) }
+                : new String[] { Long.toString(noteId), Long.toString(categoryId) };
+    }
+
+    // Returns the columns of the list: a search also returns the rank and snippet of each note.
+    private static String[] getProjection(String filter) {
+        return TextUtils.isEmpty(filter) ? PROJECTION : SEARCH_PROJECTION;
+    }
+
+    // Returns the order of the list: a search is ordered by relevance.
+    private static String getSortOrder(String filter) {
+        return TextUtils.isEmpty(filter)
+                ? NotePad.Notes.LIST_SORT_ORDER : NotePad.Notes.SEARCH_SORT_ORDER;
+    }
+
+    /**
+     * Shows the snippet of a search result, with its matches highlighted, or hides the view if
+     * the row has no snippet.
+     */
+    private static void bindSnippet(TextView view, Cursor cursor, int highlightColor) {
+        int snippetColumn = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_SNIPPET);
+        String snippet = snippetColumn < 0 ? null : cursor.getString(snippetColumn);
+        if (TextUtils.isEmpty(snippet)) {
+            view.setVisibility(View.GONE);
+            return;
+        }
+        SpannableString text = new SpannableString(snippet);
+        int[] highlights = SearchRanker.parseHighlights(
+                cursor.getString(COLUMN_INDEX_SNIPPET_HIGHLIGHTS));
+        for (int index = 0; index + 1 < highlights.length; index += 2) {
+            int start = Math.max(0, highlights[index]);
+            int end = Math.min(snippet.length(), highlights[index + 1]);
+            if (start < end) {
+                text.setSpan(new BackgroundColorSpan(highlightColor), start, end,
+                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                text.setSpan(new StyleSpan(Typeface.BOLD), start, end,
+                        Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+        }
+        view.setText(text);
+        view.setVisibility(View.VISIBLE);
+    }
+
+    // Returns the URI counting the notes that match the search text, or all of the notes if
+    // there is no search text.
+    private static Uri getCountUri(String filter) {
+        if (TextUtils.isEmpty(filter)) {
+            return NotePad.Notes.CONTENT_COUNT_URI;
+        }
+        return NotePad.Notes.CONTENT_COUNT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_FILTER, filter.trim())
+                .build();
+    }
+
+    // Returns the URI listing the notes that match the search text, answered by the provider's
+    // full-text index, or all of the notes if there is no search text.
+    private Uri getListUri(String filter) {
+        if (TextUtils.isEmpty(filter)) {
+            return getIntent().getData();
+        }
+        return NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_FILTER, filter.trim())
+                .build();
+    }
+
+    // Returns the arguments of the category filter, or null if all categories are shown.
+    private static String[] getCategorySelectionArgs(long categoryId) {
+        if (categoryId != ALL_CATEGORIES_ID) {
+            return new String[] { Long.toString(categoryId) };
+        }
+        return null;
+    }
+
+    /**
+     * Starts replacing the list with the first notes matching the current filters. The list
+     * shown meanwhile stays until the new one is loaded.
+     *
+     * @param limit The number of notes to load at once. Reloading as many notes as are loaded
+     * keeps the scroll position of the list.
+     */
+    private void reloadNotes(int limit) {
+        mSearchHandler.removeCallbacks(mSearch);
+        startListQuery(mCurrentFilter, mCurrentCategoryId, null, null, limit);
+    }
+
+    /**
+     * Searches for the search text as it is typed. The list query running for the previous
+     * text is cancelled right away. A text that refines the one the list shows is searched for
+     * at once among the notes the list holds; any other waits for typing to pause, so that a
+     * word typed quickly is searched for once.
+     */
+    private void searchNotes() {
+        mSearchHandler.removeCallbacks(mSearch);
+        cancelListQuery();
+
+        long[] candidates = getRefinementCandidates();
+        if (candidates != null) {
+            // The result can't hold more notes than the candidates, so it is loaded whole.
+            startListQuery(mCurrentFilter, mCurrentCategoryId, candidates, null,
+                    candidates.length + 1);
+        } else if (mCurrentFilter == null) {
+            reloadNotes(PAGE_SIZE);
+        } else {
+            mSearchHandler.postDelayed(mSearch, SEARCH_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Returns the IDs of the notes the list holds if they are all of the notes that can match
+     * the current filters, or null. That is the case when the list holds the whole result of
+     * the same category and a search text that the current one only makes longer: each of the
+     * current text's words starts with the word at the same place in the list's text, if there
+     * is one, so any note matching the current text matches the list's. Notes that changed
+     * since were patched into the list with the list's text.
+     */
+    private long[] getRefinementCandidates() {
+        if (mNotes == null || mHasMoreNotes || mCurrentFilter == null
+                || mCurrentCategoryId != mNotesCategoryId
+                || mNotes.getCount() > REFINE_LIMIT) {
+            return null;
+        }
+        String[] words = mCurrentFilter.trim().split("\\s+");
+        String[] listWords = mNotesFilter == null
+                ? new String[0] : mNotesFilter.trim().split("\\s+");
+        if (listWords.length > words.length) {
+            return null;
+        }
+        for (int index = 0; index < listWords.length; index++) {
+            if (!words[index].startsWith(listWords[index])) {
+                return null;
+            }
+        }
+
+        long[] candidates = new long[mNotes.getCount()];
+        for (int position = 0; position < candidates.length; position++) {
+            mNotes.moveToPosition(position);
+            candidates[position] = mNotes.getLong(0);
+        }
+        return candidates;
+    }
+
+    /**
+     * Replaces the list with a first page of notes, and updates the result count.
+     */
+    private void showNotes(Cursor page, String filter, long categoryId, int limit) {
+        mHasMoreNotes = page != null && page.getCount() >= limit;
+        mNotes = page == null ? null : new PagedCursor(page);
+        mNotesFilter = filter;
+        mNotesCategoryId = categoryId;
+        mNextPageRequested = false;
+
+        // Closes the cursor of the previous list.
+        mAdapter.changeCursor(mNotes);
+        updateSearchResultCount();
+    }
+
+    /**
+     * Starts loading the next page of notes, if there is one and no list query is running
+     * yet. The page starts after the last loaded note, so notes patched into the list
+     * meanwhile are neither skipped nor loaded twice.
+     */
+    private void loadNextPage() {
+        mNextPageRequested = false;
+        if (mNotes == null || !mHasMoreNotes || mListQuery != null) {
+            return;
+        }
+        if (mNotes.getCount() == 0) {
+            reloadNotes(PAGE_SIZE);
+            return;
+        }
+        mNotes.moveToLast();
+        startListQuery(mNotesFilter, mNotesCategoryId, null, getPageKey(mNotes), PAGE_SIZE);
+    }
+
+    // Appends a page of notes to the list.
+    private void addPage(Cursor page) {
+        mHasMoreNotes = page != null && page.getCount() >= PAGE_SIZE;
+        if (page != null) {
+            mNotes.addPage(page);
+            mAdapter.notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Applies the change of one note to the loaded list. A deleted note's row is removed at
+     * once; any other note is read again on a worker thread first, and patched in when it is
+     * read. A lookup of the note still running is cancelled, and the change it was for is
+     * kept if the new one is only an update.
+     */
+    private void patchNote(long noteId, String change) {
+        NoteQuery previous = mNoteQueries.remove(noteId);
+        if (previous != null) {
+            previous.abort();
+            if (NotePad.Notes.CHANGE_UPDATE.equals(change)) {
+                change = previous.mChange;
+            }
+        }
+        if (NotePad.Notes.CHANGE_DELETE.equals(change)) {
+            applyPatch(noteId, change, null);
+            return;
+        }
+        NoteQuery query = new NoteQuery(noteId, change);
+        mNoteQueries.put(noteId, query);
+        query.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Patches the change of one note into the loaded list: removes the note's row, then puts
+     * the note read again, if it still matches the filters, at its place in the list order if
+     * its place is among the loaded notes. A note whose place is past them is loaded with the
+     * page it belongs to.
+     *
+     * @param note The note read again, or null if it was deleted. It is closed.
+     */
+    private void applyPatch(long noteId, String change, Cursor note) {
+        // A next page still loading may have been read before the change, and is loaded again
+        // after the patched list.
+        boolean pageLoading = mListQuery != null;
+        cancelListQuery();
+
+        int position = mNotes.findRow(0, noteId);
+        if (position >= 0) {
+            mNotes.removeRow(position);
+        }
+
+        if (note != null) {
+            if (note.moveToFirst()) {
+                int place = findPlace(note);
+                if (place < mNotes.getCount() || !mHasMoreNotes) {
+                    mNotes.insertRow(place, note);
+                }
+            }
+            note.close();
+        }
+
+        mAdapter.notifyDataSetChanged();
+
+        // Inserts and deletes change the number of matches.
+        if (!NotePad.Notes.CHANGE_UPDATE.equals(change)) {
+            updateSearchResultCount();
+        }
+
+        if (pageLoading) {
+            loadNextPage();
+        }
+    }
+
+    /**
+     * Returns the position at which the note at the cursor's position belongs in the loaded
+     * list, ordered by {@link NotePad.Notes#LIST_SORT_ORDER}, or by
+     * {@link NotePad.Notes#SEARCH_SORT_ORDER} for a search.
+     */
+    private int findPlace(Cursor note) {
+        int low = 0;
+        int high = mNotes.getCount();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            mNotes.moveToPosition(middle);
+            if (compareListOrder(mNotes, note) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // Compares the list positions of the notes at the two cursors' positions.
+    private int compareListOrder(Cursor a, Cursor b) {
+        if (!TextUtils.isEmpty(mNotesFilter)) {
+            int result = Double.compare(b.getDouble(COLUMN_INDEX_RANK),
+                    a.getDouble(COLUMN_INDEX_RANK));
+            return result != 0 ? result : compareDescending(a.getLong(0), b.getLong(0));
+        }
+        int result = compareDescending(a.getLong(COLUMN_INDEX_PINNED),
+                b.getLong(COLUMN_INDEX_PINNED));
+        if (result == 0) {
+            result = compareDescending(a.getLong(COLUMN_INDEX_MODIFIED),
+                    b.getLong(COLUMN_INDEX_MODIFIED));
+        }
+        if (result == 0) {
+            result = compareDescending(a.getLong(0), b.getLong(0));
+        }
+        return result;
+    }
+
+    private static int compareDescending(long a, long b) {
+        return a > b ? -1 : (a == b ? 0 : 1);
+    }
+
+    // Returns the number of notes in the list, at least one page.
+    private int getLoadedCount() {
+        return mNotes == null ? PAGE_SIZE : Math.max(PAGE_SIZE, mNotes.getCount());
+    }
+
+    /**
+     * Returns the key of the note at the cursor's position, to pass to the provider to get the
+     * page that follows it.
+     */
+    private String getPageKey(Cursor cursor) {
+        if (!TextUtils.isEmpty(mNotesFilter)) {
+            return cursor.getDouble(COLUMN_INDEX_RANK) + "," + cursor.getLong(0);
+        }
+        return cursor.getInt(COLUMN_INDEX_PINNED) + ","
+                + cursor.getLong(COLUMN_INDEX_MODIFIED) + ","
+                + cursor.getLong(0);
     }
 
     private void filterNotes(String constraint) {
+        String previousFilter = mCurrentFilter;
         mCurrentFilter = TextUtils.isEmpty(constraint) ? null : constraint;
         
         // Update search view to show the current query
@@ -786,11 +1434,10 @@ public class NotesList extends ListActivity {
             }
         }
         
-        Cursor newCursor = queryNotes(mCurrentFilter);
-        mAdapter.changeCursor(newCursor);
-        
-        // Update search result count
-        updateSearchResultCount(newCursor);
+        // Reloads the notes, and the result count. The same list keeps as many notes loaded as
+        // it had, so that it keeps its scroll position.
+        reloadNotes(TextUtils.equals(previousFilter, mCurrentFilter)
+                ? getLoadedCount() : PAGE_SIZE);
         
         // Show/hide filter container
         updateFilterContainerVisibility();
@@ -810,89 +1457,166 @@ public class NotesList extends ListActivity {
         Spinner categorySpinner = (Spinner) findViewById(R.id.category_filter_spinner);
         if (categorySpinner == null) return;
         
-        // Get all categories from database
-        Cursor cursor = getContentResolver().query(
-                getIntent().getData(),
-                new String[]{NotePad.Notes.COLUMN_NAME_CATEGORY},
+        // Gets the categories in use, one row each, from the provider's categories table
+        Cursor categories = getContentResolver().query(
+                NotePad.Categories.CONTENT_URI,
+                CATEGORY_PROJECTION,
                 null,
                 null,
-                null
+                NotePad.Categories.DEFAULT_SORT_ORDER
         );
+
+        // Puts the "all categories" entry first
+        MatrixCursor allCategories = new MatrixCursor(CATEGORY_PROJECTION, 1);
+        allCategories.addRow(new Object[] { ALL_CATEGORIES_ID, getString(R.string.all_categories) });
+        Cursor entries = categories == null ? allCategories
+                : new MergeCursor(new Cursor[] { allCategories, categories });
         
-        Set<String> categories = new HashSet<>();
-        categories.add(getString(R.string.all_categories));
-        
-        if (cursor != null) {
-            int categoryIndex = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_CATEGORY);
-            while (cursor.moveToNext()) {
-                String category = cursor.getString(categoryIndex);
-                if (category != null && !category.trim().isEmpty()) {
-                    categories.add(category);
+        SimpleCursorAdapter adapter = (SimpleCursorAdapter) categorySpinner.getAdapter();
+        if (adapter != null) {
+            // Closes the cursor of the previous entries.
+            adapter.changeCursor(entries);
+        } else {
+            adapter = new SimpleCursorAdapter(
+                    this,
+                    android.R.layout.simple_spinner_item,
+                    entries,
+                    new String[] { NotePad.Categories.COLUMN_NAME_NAME },
+                    new int[] { android.R.id.text1 },
+                    0
+            );
+            adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+            categorySpinner.setAdapter(adapter);
+            
+            categorySpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+                @Override
+                public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                    if (id == mCurrentCategoryId) {
+                        return;
+                    }
+                    Cursor entry = (Cursor) parent.getItemAtPosition(position);
+                    mCurrentCategoryId = id;
+                    mCurrentCategoryFilter = id == ALL_CATEGORIES_ID ? null : entry.getString(1);
+                    // Update filter without modifying SearchView
+                    reloadNotes(PAGE_SIZE);
+                    updateFilterContainerVisibility();
                 }
-            }
-            cursor.close();
-        }
-        
-        List<String> categoryList = new ArrayList<>(categories);
-        ArrayAdapter<String> adapter = new ArrayAdapter<>(
-                this,
-                android.R.layout.simple_spinner_item,
-                categoryList
-        );
-        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
-        categorySpinner.setAdapter(adapter);
-        
-        categorySpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
-            @Override
-            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
-                String selectedCategory = (String) parent.getItemAtPosition(position);
-                if (selectedCategory.equals(getString(R.string.all_categories))) {
+
+                @Override
+                public void onNothingSelected(AdapterView<?> parent) {
+                    mCurrentCategoryId = ALL_CATEGORIES_ID;
                     mCurrentCategoryFilter = null;
-                } else {
-                    mCurrentCategoryFilter = selectedCategory;
                 }
-                // Update filter without modifying SearchView
-                Cursor newCursor = queryNotes(mCurrentFilter);
-                mAdapter.changeCursor(newCursor);
-                updateSearchResultCount(newCursor);
-                updateFilterContainerVisibility();
-            }
-
-            @Override
-            public void onNothingSelected(AdapterView<?> parent) {
-                mCurrentCategoryFilter = null;
-            }
-        });
+            });
+        }
+        
+        // Keeps the selected category, if it still has notes
+        categorySpinner.setSelection(findCategoryPosition(adapter, mCurrentCategoryId));
     }
     
     private void updateCategoryFilterSpinner() {
         Spinner categorySpinner = (Spinner) findViewById(R.id.category_filter_spinner);
         if (categorySpinner != null && categorySpinner.getAdapter() != null) {
-            ArrayAdapter<String> adapter = (ArrayAdapter<String>) categorySpinner.getAdapter();
-            int position = adapter.getPosition(getString(R.string.all_categories));
-            if (position >= 0) {
-                categorySpinner.setSelection(position);
+            categorySpinner.setSelection(findCategoryPosition(
+                    (SimpleCursorAdapter) categorySpinner.getAdapter(), ALL_CATEGORIES_ID));
+        }
+    }
+
+    // Returns the position of the category in the spinner, or that of "all categories".
+    private static int findCategoryPosition(SimpleCursorAdapter adapter, long categoryId) {
+        for (int position = 0; position < adapter.getCount(); position++) {
+            if (adapter.getItemId(position) == categoryId) {
+                return position;
             }
         }
+        return 0;
     }
     
-    private void updateSearchResultCount(Cursor cursor) {
+    private void updateSearchResultCount() {
         if (mSearchResultCount == null) return;
         
-        boolean hasFilter = !TextUtils.isEmpty(mCurrentFilter) || 
-                           (!TextUtils.isEmpty(mCurrentCategoryFilter) && 
-                            !mCurrentCategoryFilter.equals(getString(R.string.all_categories)));
+        boolean hasFilter = !TextUtils.isEmpty(mNotesFilter)
+                || mNotesCategoryId != ALL_CATEGORIES_ID;
         
-        if (hasFilter && cursor != null) {
-            int count = cursor.getCount();
-            String countText = getString(R.string.search_results_count, count);
-            mSearchResultCount.setText(countText);
-            mSearchResultCount.setVisibility(View.VISIBLE);
-        } else {
+        // Drops the count still running for the previous filters.
+        mCountHandler.cancelOperation(CountHandler.TOKEN_COUNT);
+        mCountRequest++;
+        if (!hasFilter) {
             mSearchResultCount.setVisibility(View.GONE);
+            return;
+        }
+
+        // Counts the matches in the provider, since the list only holds the loaded pages. The
+        // count comes in after the first page is shown.
+        String[] selectionArgs = getCategorySelectionArgs(mNotesCategoryId);
+        mCountHandler.startQuery(
+                CountHandler.TOKEN_COUNT,
+                mCountRequest,
+                getCountUri(mNotesFilter),
+                null,
+                selectionArgs == null ? null : NotePad.Notes.COLUMN_NAME_CATEGORY_ID + " = ?",
+                selectionArgs,
+                null
+        );
+    }
+
+    /**
+     * Shows the count of search results that the provider returns on a worker thread.
+     */
+    private class CountHandler extends AsyncQueryHandler {
+
+        static final int TOKEN_COUNT = 1;
+
+        CountHandler(ContentResolver resolver) {
+            super(resolver);
+        }
+
+        @Override
+        protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
+            if (cursor == null) {
+                return;
+            }
+            try {
+                if ((Integer) cookie == mCountRequest && !isFinishing() && cursor.moveToFirst()) {
+                    mSearchResultCount.setText(
+                            getString(R.string.search_results_count, cursor.getInt(0)));
+                    mSearchResultCount.setVisibility(View.VISIBLE);
+                }
+            } finally {
+                cursor.close();
+            }
         }
     }
     
+    /**
+     * Returns the search text of the notes the list shows. Only used by tests.
+     */
+    String getShownFilterForTest() {
+        return mNotesFilter;
+    }
+
+    /**
+     * Returns the number of list queries started so far. Only used by tests.
+     */
+    int getListQueryCountForTest() {
+        return mListQueryCount;
+    }
+
+    /**
+     * Returns the number of list queries that refined a previous search. Only used by tests.
+     */
+    int getRefinedQueryCountForTest() {
+        return mRefinedQueryCount;
+    }
+
+    /**
+     * Returns whether a list query or a lookup of a changed note is running. Only used by
+     * tests.
+     */
+    boolean isLoadingForTest() {
+        return mListQuery != null || !mNoteQueries.isEmpty();
+    }
+
     private void showSearchOptions() {
         // This can be expanded to show more search options
         // For now, just ensure the category filter is visible when searching
@@ -917,13 +1641,32 @@ public class NotesList extends ListActivity {
             mSearchView.setIconified(false);
         }
         filterNotes(mCurrentFilter);
+        getContentResolver().registerContentObserver(NotePad.Notes.CONTENT_URI, true,
+                mNotesObserver);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        // The list is reloaded in onResume(), so changes made while it is hidden are not missed.
+        getContentResolver().unregisterContentObserver(mNotesObserver);
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        mSearchHandler.removeCallbacks(mSearch);
+        cancelListQuery();
+        cancelNoteQueries();
+        if (mCountHandler != null) {
+            mCountHandler.cancelOperation(CountHandler.TOKEN_COUNT);
+        }
         if (mAdapter != null) {
             mAdapter.changeCursor(null);
         }
+        Spinner categorySpinner = (Spinner) findViewById(R.id.category_filter_spinner);
+        if (categorySpinner != null && categorySpinner.getAdapter() != null) {
+            ((SimpleCursorAdapter) categorySpinner.getAdapter()).changeCursor(null);
+        }
     }
 }
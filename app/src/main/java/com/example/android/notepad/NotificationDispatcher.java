@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sends the provider's change notifications in coalesced groups instead of one per write. Each
+ * observer of a changed URI requeries its cursor when notified, so a burst of writes that
+ * notifies once per write makes every observer requery once per write.
+ *
+ * Changed URIs are collected until no write has come for a short delay, or for at most a
+ * longer delay after the first one, then sent together. Sending collapses them: the changes of
+ * one item merge into one, more than {@link #MAX_ITEM_CHANGES} changed items of a directory
+ * become one change of the directory, and a URI is dropped when one of its ancestors changed,
+ * since observers of a URI are notified of changes to its ancestors. While a transaction is
+ * held open with {@link #hold()}, nothing is sent, so no observer requeries before the changes
+ * it is told about are committed.
+ *
+ * An item URI carries the kind of change in its {@link NotePad.Notes#QUERY_PARAMETER_CHANGE}
+ * query parameter, so observers can patch the item instead of reloading the directory. Beyond
+ * {@link #MAX_ITEM_CHANGES} items, patching them one at a time costs more than a reload.
+ */
+class NotificationDispatcher {
+
+    // The number of changed items of a directory sent one by one; more become a change of the
+    // directory.
+    static final int MAX_ITEM_CHANGES = 8;
+
+    private final ContentResolver mResolver;
+
+    // How long the dispatcher waits for more changes before it sends the pending ones.
+    private final long mDelayMillis;
+
+    // How long after the first pending change the dispatcher sends, even if changes keep coming.
+    private final long mMaxDelayMillis;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    // The changed URIs not sent yet, in the order they first changed.
+    private final LinkedHashSet<Uri> mPending = new LinkedHashSet<Uri>();
+
+    // The uptime at which the oldest pending change was scheduled, or 0.
+    private long mFirstPendingTime;
+
+    // The number of open holds.
+    private int mHolds;
+
+    // The number of notifications sent so far.
+    private int mDispatchCount;
+
+    NotificationDispatcher(ContentResolver resolver, long delayMillis, long maxDelayMillis) {
+        mResolver = resolver;
+        mDelayMillis = delayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Records that the data at the URI changed. Observers are notified later, with the other
+     * changes made meanwhile.
+     */
+    synchronized void notifyChange(Uri uri) {
+        mPending.add(uri);
+        schedule();
+    }
+
+    /**
+     * Holds back notifications until the matching {@link #release()}. Call it before a
+     * transaction begins, and release it in a finally block after the transaction ends.
+     */
+    synchronized void hold() {
+        mHolds++;
+        mHandler.removeCallbacks(mFlush);
+    }
+
+    /**
+     * Releases a hold. Once no hold is left, the pending changes are sent after the usual delay.
+     */
+    synchronized void release() {
+        mHolds--;
+        schedule();
+    }
+
+    /**
+     * Sends the pending changes now, unless a hold is open.
+     */
+    void flush() {
+        List<Uri> uris;
+        synchronized (this) {
+            mHandler.removeCallbacks(mFlush);
+            if (mHolds > 0 || mPending.isEmpty()) {
+                return;
+            }
+            uris = coalesce(mPending);
+            mPending.clear();
+            mFirstPendingTime = 0;
+            mDispatchCount += uris.size();
+        }
+
+        // Notifies outside of the lock; observers may call back into the provider.
+        for (Uri uri : uris) {
+            mResolver.notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Returns the number of notifications sent so far. Only used by tests.
+     */
+    synchronized int getDispatchCountForTest() {
+        return mDispatchCount;
+    }
+
+    // Schedules the pending changes to be sent, if there are any and no hold is open.
+    private void schedule() {
+        if (mHolds > 0 || mPending.isEmpty()) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        if (mFirstPendingTime == 0) {
+            mFirstPendingTime = now;
+        }
+        mHandler.removeCallbacks(mFlush);
+        mHandler.postAtTime(mFlush, Math.min(now + mDelayMillis,
+                mFirstPendingTime + mMaxDelayMillis));
+    }
+
+    /**
+     * Collapses changed URIs into the fewest URIs whose notifications reach the same observers.
+     */
+    static List<Uri> coalesce(Collection<Uri> uris) {
+
+        // Merges the changes of each item, keyed by the item's URI without its query.
+        LinkedHashMap<Uri, Uri> items = new LinkedHashMap<Uri, Uri>();
+        for (Uri uri : uris) {
+            Uri item = uri.buildUpon().clearQuery().build();
+            Uri previous = items.get(item);
+            items.put(item, previous == null ? uri : mergeChanges(previous, uri));
+        }
+
+        // Counts the changed items in each directory.
+        HashMap<Uri, Integer> childCounts = new HashMap<Uri, Integer>();
+        for (Uri item : items.keySet()) {
+            Uri parent = getParent(item);
+            if (parent != null) {
+                Integer count = childCounts.get(parent);
+                childCounts.put(parent, count == null ? 1 : count + 1);
+            }
+        }
+
+        // Replaces the items of a directory with too many changes by the directory.
+        LinkedHashSet<Uri> collapsed = new LinkedHashSet<Uri>();
+        for (Map.Entry<Uri, Uri> entry : items.entrySet()) {
+            Uri parent = getParent(entry.getKey());
+            collapsed.add(parent != null && childCounts.get(parent) > MAX_ITEM_CHANGES
+                    ? parent : entry.getValue());
+        }
+
+        // Drops the URIs that a changed ancestor covers.
+        List<Uri> result = new ArrayList<Uri>(collapsed);
+        for (Iterator<Uri> iterator = result.iterator(); iterator.hasNext();) {
+            Uri uri = iterator.next();
+            for (Uri other : collapsed) {
+                if (isAncestor(other, uri)) {
+                    iterator.remove();
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Merges two changes of one item into the change an observer of the item needs to see: an
+     * item inserted then updated is still new, and a deletion overrides anything before it.
+     * Otherwise the later change wins.
+     */
+    private static Uri mergeChanges(Uri earlier, Uri later) {
+        String earlierChange = earlier.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_CHANGE);
+        String laterChange = later.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_CHANGE);
+        if (NotePad.Notes.CHANGE_INSERT.equals(earlierChange)
+                && NotePad.Notes.CHANGE_UPDATE.equals(laterChange)) {
+            return earlier;
+        }
+        return later;
+    }
+
+    // Returns the URI of the directory holding the URI, or null if it has no path.
+    private static Uri getParent(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (segments.isEmpty()) {
+            return null;
+        }
+        Uri.Builder parent = new Uri.Builder()
+                .scheme(uri.getScheme())
+                .authority(uri.getAuthority());
+        for (int index = 0; index < segments.size() - 1; index++) {
+            parent.appendPath(segments.get(index));
+        }
+        return parent.build();
+    }
+
+    // Returns true if the ancestor's path is a proper prefix of the URI's path.
+    private static boolean isAncestor(Uri ancestor, Uri uri) {
+        if (!String.valueOf(ancestor.getAuthority()).equals(uri.getAuthority())) {
+            return false;
+        }
+        List<String> ancestorSegments = ancestor.getPathSegments();
+        List<String> segments = uri.getPathSegments();
+        return ancestorSegments.size() < segments.size()
+                && ancestorSegments.equals(segments.subList(0, ancestorSegments.size()));
+    }
+}
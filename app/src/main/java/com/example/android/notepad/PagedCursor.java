@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A cursor over a list that is loaded one page at a time. The rows of each page are copied out
+ * of the page's cursor, which is closed right away, so the loaded pages don't each hold a window
+ * and a content observer. Pages are appended as the list is scrolled, and single rows can be
+ * inserted or removed as the notes they show change, without reloading the list.
+ *
+ * Unlike {@link android.database.MergeCursor}, the rows can change after the cursor is handed
+ * to an adapter. The adapter must then be told with notifyDataSetChanged().
+ */
+class PagedCursor extends AbstractCursor {
+
+    // The loaded rows, in list order. Each row holds a Long, Double, String, byte[] or null per
+    // column.
+    private final List<Object[]> mRows = new ArrayList<Object[]>();
+
+    private final String[] mColumnNames;
+
+    // The row at the current position.
+    private Object[] mCurrentRow;
+
+    /**
+     * Creates a cursor holding one page.
+     *
+     * @param firstPage The first page of the list. It defines the columns of every page.
+     */
+    PagedCursor(Cursor firstPage) {
+        mColumnNames = firstPage.getColumnNames();
+        addPage(firstPage);
+    }
+
+    /**
+     * Appends the rows of a page to the end of the list, and closes the page.
+     */
+    void addPage(Cursor page) {
+        try {
+            page.moveToPosition(-1);
+            while (page.moveToNext()) {
+                mRows.add(copyRow(page));
+            }
+        } finally {
+            page.close();
+        }
+    }
+
+    /**
+     * Inserts the row at the cursor's current position into the list, at the given position.
+     */
+    void insertRow(int position, Cursor row) {
+        mRows.add(position, copyRow(row));
+    }
+
+    /**
+     * Removes the row at the given position from the list.
+     */
+    void removeRow(int position) {
+        mRows.remove(position);
+    }
+
+    /**
+     * Returns the position of the first row whose value in the column is the given number, or
+     * -1 if there is none.
+     */
+    int findRow(int column, long value) {
+        for (int position = 0; position < mRows.size(); position++) {
+            Object cell = mRows.get(position)[column];
+            if (cell instanceof Long && (Long) cell == value) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    // Copies the values of the cursor's current row.
+    private Object[] copyRow(Cursor cursor) {
+        Object[] row = new Object[mColumnNames.length];
+        for (int column = 0; column < row.length; column++) {
+            switch (cursor.getType(column)) {
+                case FIELD_TYPE_INTEGER:
+                    row[column] = cursor.getLong(column);
+                    break;
+                case FIELD_TYPE_FLOAT:
+                    row[column] = cursor.getDouble(column);
+                    break;
+                case FIELD_TYPE_BLOB:
+                    row[column] = cursor.getBlob(column);
+                    break;
+                case FIELD_TYPE_NULL:
+                    row[column] = null;
+                    break;
+                default:
+                    row[column] = cursor.getString(column);
+                    break;
+            }
+        }
+        return row;
+    }
+
+    @Override
+    public int getCount() {
+        return mRows.size();
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        mCurrentRow = mRows.get(newPosition);
+        return true;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public String getString(int column) {
+        Object value = mCurrentRow[column];
+        return value == null ? null : value.toString();
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        Object value = mCurrentRow[column];
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return value == null ? 0 : Long.parseLong(value.toString());
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return (float) getDouble(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        Object value = mCurrentRow[column];
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        return value == null ? 0 : Double.parseDouble(value.toString());
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        Object value = mCurrentRow[column];
+        return value instanceof byte[] ? (byte[]) value : null;
+    }
+
+    @Override
+    public int getType(int column) {
+        Object value = mCurrentRow[column];
+        if (value == null) {
+            return FIELD_TYPE_NULL;
+        } else if (value instanceof Long) {
+            return FIELD_TYPE_INTEGER;
+        } else if (value instanceof Double) {
+            return FIELD_TYPE_FLOAT;
+        } else if (value instanceof byte[]) {
+            return FIELD_TYPE_BLOB;
+        }
+        return FIELD_TYPE_STRING;
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return mCurrentRow[column] == null;
+    }
+}
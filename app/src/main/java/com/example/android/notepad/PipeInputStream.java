@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the end of a pipe that a client writes, failing once the client leaves the pipe idle
+ * for longer than a timeout, or once the client ends it with an error where the pipe is a
+ * reliable one. The platform can only wait on a pipe with a timeout from Lollipop; before it,
+ * a read waits for as long as the client keeps the pipe open.
+ *
+ * Closing the stream leaves the pipe open, so that its owner can close it with or without an
+ * error.
+ */
+class PipeInputStream extends InputStream {
+
+    private final ParcelFileDescriptor mPipe;
+    private final FileInputStream mInput;
+    private final long mTimeoutMillis;
+
+    /**
+     * @param pipe The end of the pipe to read.
+     * @param timeoutMillis The longest a read waits for the client to write.
+     */
+    PipeInputStream(ParcelFileDescriptor pipe, long timeoutMillis) {
+        mPipe = pipe;
+        mInput = new FileInputStream(pipe.getFileDescriptor());
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            awaitInput();
+        }
+        int read = mInput.read(b, off, len);
+        if (read < 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // A client that crashed or failed ends the pipe the way one that finished does.
+            mPipe.checkError();
+        }
+        return read;
+    }
+
+    // Waits for the pipe to have something to read, or to end.
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void awaitInput() throws IOException {
+        StructPollfd[] pollfds = { new StructPollfd() };
+        pollfds[0].fd = mPipe.getFileDescriptor();
+        pollfds[0].events = (short) OsConstants.POLLIN;
+        long deadline = SystemClock.uptimeMillis() + mTimeoutMillis;
+        while (true) {
+            long remaining = deadline - SystemClock.uptimeMillis();
+            if (remaining <= 0) {
+                throw new IOException("Timed out waiting for the client to write");
+            }
+            try {
+                if (Os.poll(pollfds, (int) Math.min(remaining, Integer.MAX_VALUE)) > 0) {
+                    return;
+                }
+            } catch (ErrnoException e) {
+                if (e.errno != OsConstants.EINTR) {
+                    throw e.rethrowAsIOException();
+                }
+            }
+        }
+    }
+
+    /**
+     * Does nothing: the owner of the pipe closes it.
+     */
+    @Override
+    public void close() {
+    }
+}
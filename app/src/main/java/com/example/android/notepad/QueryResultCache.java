@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps the rows of recent queries, so that a query repeated while nothing was written, such as
+ * the list reloading its first page when it comes back to the foreground, doesn't go to the
+ * database. A result is keyed by its URI, projection, selection, arguments and sort order.
+ *
+ * Any write moves the cache to a new write generation, and a result is only returned while the
+ * generation it was read in is the current one. A read that a write overlapped may have read
+ * the notes before the write, so its result is only kept if the generation didn't move while
+ * it ran. The cache holds the least recently used results up to a size in bytes, estimated from
+ * their values; results with many rows, such as a whole list, aren't kept at all.
+ */
+class QueryResultCache {
+
+    // The estimated size in bytes of a result and of a row without their values, and of a
+    // number value.
+    private static final int RESULT_BYTES = 128;
+    private static final int ROW_BYTES = 32;
+    private static final int NUMBER_BYTES = 16;
+
+    // The rows of one query, and their estimated size.
+    private static final class Result {
+        final long mGeneration;
+        final String[] mColumnNames;
+        final Object[][] mRows;
+        final int mBytes;
+
+        Result(long generation, String[] columnNames, Object[][] rows, int bytes) {
+            mGeneration = generation;
+            mColumnNames = columnNames;
+            mRows = rows;
+            mBytes = bytes;
+        }
+    }
+
+    private final LinkedHashMap<String, Result> mResults =
+            new LinkedHashMap<String, Result>(16, 0.75f, true);
+
+    // The size the results are kept under, and their size now.
+    private final int mMaxBytes;
+    private int mBytes;
+
+    // The largest number of rows of a result that is kept.
+    private final int mMaxRows;
+
+    // The number of writes so far. A read records it before it starts.
+    private long mGeneration;
+
+    private long mHitCount;
+    private long mMissCount;
+
+    /**
+     * @param maxBytes The estimated size in bytes the results are kept under. A result larger
+     * than a quarter of it isn't kept.
+     * @param maxRows The largest number of rows of a result that is kept.
+     */
+    QueryResultCache(int maxBytes, int maxRows) {
+        mMaxBytes = maxBytes;
+        mMaxRows = maxRows;
+    }
+
+    /**
+     * Returns the key of a query's result.
+     */
+    static String getKey(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        StringBuilder key = new StringBuilder(uri.toString()).append('\0');
+        appendArray(key, projection);
+        appendString(key, selection);
+        appendArray(key, selectionArgs);
+        appendString(key, sortOrder);
+        return key.toString();
+    }
+
+    /**
+     * Returns the number of writes so far, to pass to {@link #put} with the cursor of a query
+     * that starts now.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Returns a cursor over the result of a query, or null if the cache doesn't hold it or a
+     * write happened since it was read.
+     */
+    synchronized Cursor get(String key) {
+        Result result = mResults.get(key);
+        if (result != null && result.mGeneration != mGeneration) {
+            mResults.remove(key);
+            mBytes -= result.mBytes;
+            result = null;
+        }
+        if (result == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        return newCursor(result);
+    }
+
+    /**
+     * Keeps the result of a query, unless it has too many rows or a write happened since the
+     * query started. The cursor is read and closed if its result is kept.
+     *
+     * @param generation The value of {@link #getGeneration} before the query started.
+     * @return The cursor to return for the query: the given one if its result isn't kept, or
+     * else a cursor over the kept result.
+     */
+    Cursor put(String key, Cursor cursor, long generation) {
+        int count = cursor.getCount();
+        if (count > mMaxRows) {
+            return cursor;
+        }
+
+        String[] columnNames = cursor.getColumnNames();
+        Object[][] rows = new Object[count][];
+        int bytes = RESULT_BYTES + key.length() * 2;
+        try {
+            cursor.moveToPosition(-1);
+            for (int position = 0; cursor.moveToNext(); position++) {
+                Object[] row = new Object[columnNames.length];
+                for (int column = 0; column < row.length; column++) {
+                    row[column] = getValue(cursor, column);
+                    bytes += sizeOf(row[column]);
+                }
+                rows[position] = row;
+                bytes += ROW_BYTES;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        Result result = new Result(generation, columnNames, rows, bytes);
+        synchronized (this) {
+            if (generation == mGeneration && bytes <= mMaxBytes / 4) {
+                Result previous = mResults.put(key, result);
+                if (previous != null) {
+                    mBytes -= previous.mBytes;
+                }
+                mBytes += bytes;
+                trimToSize(mMaxBytes);
+            }
+        }
+        return newCursor(result);
+    }
+
+    /**
+     * Moves to a new write generation, so that no result read before is returned again. Call
+     * it after a write commits.
+     */
+    synchronized void onWrite() {
+        mGeneration++;
+    }
+
+    /**
+     * Evicts the least recently used results until the results are under a size.
+     *
+     * @param maxBytes The estimated size in bytes to stay under, 0 to evict every result.
+     */
+    synchronized void trimToSize(int maxBytes) {
+        Iterator<Result> eldest = mResults.values().iterator();
+        while (mBytes > maxBytes && eldest.hasNext()) {
+            mBytes -= eldest.next().mBytes;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Returns the size the results are kept under.
+     */
+    int getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * Returns the number of queries answered by the cache so far.
+     */
+    synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * Returns the number of queries the cache couldn't answer so far.
+     */
+    synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Returns a cursor over a copy of the rows of a cursor, which is read and closed. Used for a
+     * result that must be read before the transaction it is queried in ends, and that is read
+     * whole anyway, such as a count or a ranked page of a search.
+     */
+    static Cursor copy(Cursor cursor) {
+        try {
+            MatrixCursor rows = new MatrixCursor(cursor.getColumnNames(), cursor.getCount());
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext()) {
+                Object[] row = new Object[cursor.getColumnCount()];
+                for (int column = 0; column < row.length; column++) {
+                    row[column] = getValue(cursor, column);
+                }
+                rows.addRow(row);
+            }
+            return rows;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static Cursor newCursor(Result result) {
+        MatrixCursor cursor = new MatrixCursor(result.mColumnNames, result.mRows.length);
+        for (Object[] row : result.mRows) {
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    // Returns the value of a column of the cursor's row, as the type SQLite holds it in.
+    private static Object getValue(Cursor cursor, int column) {
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_NULL:
+                return null;
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(column);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return cursor.getDouble(column);
+            case Cursor.FIELD_TYPE_BLOB:
+                return cursor.getBlob(column);
+            default:
+                return cursor.getString(column);
+        }
+    }
+
+    // Returns the estimated size in bytes of a value.
+    private static int sizeOf(Object value) {
+        if (value instanceof String) {
+            return 40 + 2 * ((String) value).length();
+        }
+        if (value instanceof byte[]) {
+            return NUMBER_BYTES + ((byte[]) value).length;
+        }
+        return NUMBER_BYTES;
+    }
+
+    // Appends a string of a key, telling null apart from any string.
+    private static void appendString(StringBuilder key, String value) {
+        if (value == null) {
+            key.append('\1');
+        } else {
+            key.append(value.length()).append(':').append(value);
+        }
+        key.append('\0');
+    }
+
+    // Appends an array of strings of a key, telling null apart from any array.
+    private static void appendArray(StringBuilder key, String[] values) {
+        if (values == null) {
+            key.append('\1').append('\0');
+            return;
+        }
+        key.append(values.length).append('\0');
+        for (String value : values) {
+            appendString(key, value);
+        }
+    }
+}
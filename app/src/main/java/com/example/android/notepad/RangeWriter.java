@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Writes a stream of text to a channel as UTF-8, keeping only the bytes within a range of the
+ * stream. The text is encoded through a buffer, which is written to the channel each time it
+ * fills up. Text whose encoded size is known can be skipped without reading it while it ends
+ * before the range, and nothing is encoded once the range is written.
+ */
+class RangeWriter {
+
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer;
+    private final CharsetEncoder mEncoder = Charset.forName("UTF-8").newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    // The first byte of the range, and the byte after it.
+    private final long mStart;
+    private final long mEnd;
+
+    // The position in the stream of the first byte in the buffer.
+    private long mPosition;
+
+    // The high surrogate that ended the last text written, or 0.
+    private char mHighSurrogate;
+
+    /**
+     * @param channel The channel to write to.
+     * @param buffer The buffer to encode through. It must be empty.
+     * @param offset The position in the stream of the first byte to write.
+     * @param length The maximum number of bytes to write.
+     */
+    RangeWriter(FileChannel channel, ByteBuffer buffer, long offset, long length) {
+        mChannel = channel;
+        mBuffer = buffer;
+        mStart = offset;
+        mEnd = length > Long.MAX_VALUE - offset ? Long.MAX_VALUE : offset + length;
+    }
+
+    /**
+     * Returns true once the whole range is written, or lies in the buffer.
+     */
+    boolean isDone() {
+        return mPosition + mBuffer.position() >= mEnd;
+    }
+
+    /**
+     * Skips text of the given encoded size if it ends before the range.
+     *
+     * @return true if the text was skipped, false if it must be written.
+     */
+    boolean skip(long bytes) {
+        long next = mPosition + mBuffer.position();
+        if (next + bytes > mStart || mHighSurrogate != 0) {
+            return false;
+        }
+
+        // Whatever is in the buffer lies before the range too.
+        mPosition = next + bytes;
+        mBuffer.clear();
+        return true;
+    }
+
+    /**
+     * Appends text to the stream.
+     */
+    void write(String text) throws IOException {
+        if (mHighSurrogate != 0) {
+            // The text before ended with the first half of a character that may start this one.
+            text = mHighSurrogate + text;
+            mHighSurrogate = 0;
+        }
+        CharBuffer in = CharBuffer.wrap(text);
+        encode(in, false);
+
+        // The encoder leaves a high surrogate that ends its input unread, for the next text.
+        if (in.hasRemaining() && !isDone()) {
+            mHighSurrogate = in.get();
+        }
+    }
+
+    /**
+     * Ends the stream, and writes what is left of the range in the buffer to the channel.
+     */
+    void finish() throws IOException {
+        CharBuffer in = mHighSurrogate != 0
+                ? CharBuffer.wrap(String.valueOf(mHighSurrogate)) : CharBuffer.allocate(0);
+        mHighSurrogate = 0;
+        encode(in, true);
+        while (!isDone()) {
+            CoderResult result = mEncoder.flush(mBuffer);
+            if (result.isUnderflow()) {
+                break;
+            }
+            drain();
+        }
+        drain();
+    }
+
+    // Encodes text into the buffer, draining it each time it fills up, until the text is
+    // encoded or the range is written.
+    private void encode(CharBuffer in, boolean endOfInput) throws IOException {
+        while (!isDone()) {
+            CoderResult result = mEncoder.encode(in, mBuffer, endOfInput);
+            if (result.isUnderflow()) {
+                return;
+            }
+            if (result.isOverflow()) {
+                drain();
+            } else {
+                result.throwException();
+            }
+        }
+    }
+
+    // Writes the part of the buffer within the range to the channel, and empties the buffer.
+    private void drain() throws IOException {
+        int count = mBuffer.position();
+        int to = (int) Math.max(0, Math.min(count, mEnd - mPosition));
+        int from = (int) Math.max(0, Math.min(to, mStart - mPosition));
+        mBuffer.limit(to);
+        mBuffer.position(from);
+        while (mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+        mBuffer.clear();
+        mPosition += count;
+    }
+}
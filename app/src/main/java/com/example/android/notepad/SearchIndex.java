@@ -0,0 +1,520 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Writes the rows of the full-text index, and builds the queries that find notes in it and the
+ * snippets of what they find.
+ *
+ * A note has one row in the index, whose docid is the note's _ID, with its title, category and
+ * the text of a note stored whole. The text of a chunked note is indexed a chunk at a time
+ * instead, in a row of its own for each chunk, so no row and no write holds more than one
+ * chunk of it. The docid of such a row is {@link #CHUNK_DOCID_BASE} plus the _ID of its chunk;
+ * {@link #noteIdOf} maps any docid back to its note. A chunk's row also holds the end of the
+ * chunk before it, so a word, or a run of CJK characters, that a chunk boundary cuts is still
+ * found whole.
+ *
+ * The index keeps no copy of the text it indexes: it reads the text of its rows from
+ * {@link NotePadProvider#FTS_TEXT_TABLE_NAME}, which is empty but while a row is removed. The
+ * provider writes the rows itself, split by {@link CjkTokenizer}, and removes a row by putting
+ * back the text it was written with, which it reads from the note. Before Jelly Bean, SQLite
+ * can't read the text of an index from another table, and the index keeps its own copy.
+ */
+final class SearchIndex {
+
+    /**
+     * The docid of the index row of the chunk with _ID 0. Larger than any note _ID the
+     * provider assigns.
+     */
+    static final long CHUNK_DOCID_BASE = 1L << 62;
+
+    // The number of characters at the end of a chunk the row of the next chunk repeats. A
+    // token cut by the start of these is repeated whole, up to twice as many characters.
+    private static final int CARRY_LENGTH = 32;
+
+    // The number of characters of a long note read at a time to find the first match of a
+    // search for its snippet, and the number read after the window that holds it.
+    private static final int WINDOW_LENGTH = 4 * 1024;
+    private static final int CONTEXT_LENGTH = 256;
+
+    // Orders the hits of a snippet by their first token.
+    private static final Comparator<int[]> HIT_ORDER = new Comparator<int[]>() {
+        @Override
+        public int compare(int[] first, int[] second) {
+            return first[0] < second[0] ? -1 : (first[0] == second[0] ? 0 : 1);
+        }
+    };
+
+    private SearchIndex() {
+    }
+
+    /**
+     * Returns the SQL expression of the _ID of the note an index row belongs to.
+     *
+     * @param docid The SQL expression of the docid of the row.
+     */
+    static String noteIdOf(String docid) {
+        return "(CASE WHEN " + docid + " < " + CHUNK_DOCID_BASE + " THEN " + docid
+                + " ELSE (SELECT " + NotePadProvider.BODIES_COLUMN_NOTE_ID + " FROM "
+                + NotePadProvider.CHUNKS_TABLE_NAME + " WHERE "
+                + NotePadProvider.CHUNKS_COLUMN_ID + " = " + docid + " - " + CHUNK_DOCID_BASE
+                + ") END)";
+    }
+
+    /**
+     * Returns the SQL query of the _IDs of the notes that hold every phrase of a search, in
+     * any of their rows. A query with one MATCH would only find the notes that hold them all
+     * in one row, which the chunks of a note split.
+     *
+     * @param phrases The quoted phrases of the search, see
+     * {@link NotePadProvider#buildMatchPhrases}.
+     */
+    static String queryNotesMatching(List<String> phrases) {
+        StringBuilder query = new StringBuilder();
+        for (String phrase : phrases) {
+            if (query.length() > 0) {
+                query.append(" INTERSECT ");
+            }
+            query.append("SELECT ").append(noteIdOf("docid")).append(" FROM ")
+                    .append(NotePadProvider.FTS_TABLE_NAME).append(" WHERE ")
+                    .append(NotePadProvider.FTS_TABLE_NAME).append(" MATCH ")
+                    .append(DatabaseUtils.sqlEscapeString(phrase));
+        }
+        return query.toString();
+    }
+
+    /**
+     * Returns the MATCH expression of the rows that hold any phrase of a search.
+     *
+     * @param phrases The quoted phrases of the search.
+     */
+    static String matchAny(List<String> phrases) {
+        StringBuilder match = new StringBuilder();
+        for (String phrase : phrases) {
+            if (match.length() > 0) {
+                match.append(" OR ");
+            }
+            match.append(phrase);
+        }
+        return match.toString();
+    }
+
+    /**
+     * Writes the index row of a note.
+     *
+     * @param note The text of the note, or null if it is chunked.
+     */
+    static void indexNote(SQLiteDatabase db, long noteId, String title, String note,
+            String category) {
+        insertRow(db, noteId, title, note, category);
+    }
+
+    /**
+     * Removes the index row of a note, given the text it was written with by
+     * {@link #indexNote}.
+     */
+    static void unindexNote(SQLiteDatabase db, long noteId, String title, String note,
+            String category) {
+        deleteRow(db, noteId, title, note, category);
+    }
+
+    /**
+     * Writes the index row of one chunk of a note.
+     *
+     * @param chunkId The _ID of the chunk.
+     * @param previousTail The {@link #tail} of the chunk before it, or null if it is the first
+     * one.
+     * @param chunk The text of the chunk.
+     */
+    static void indexChunk(SQLiteDatabase db, long chunkId, String previousTail, String chunk) {
+        insertRow(db, CHUNK_DOCID_BASE + chunkId, null, join(previousTail, chunk), null);
+    }
+
+    /**
+     * Removes the index row of one chunk of a note, given the text it was written with by
+     * {@link #indexChunk}.
+     */
+    static void unindexChunk(SQLiteDatabase db, long chunkId, String previousTail,
+            String chunk) {
+        deleteRow(db, CHUNK_DOCID_BASE + chunkId, null, join(previousTail, chunk), null);
+    }
+
+    /**
+     * Returns the text of the index row of a chunk: the chunk, after the end of the chunk
+     * before it.
+     *
+     * @param previousTail The {@link #tail} of the chunk before it, or null if it is the first
+     * one.
+     */
+    static String join(String previousTail, String chunk) {
+        return previousTail == null ? chunk : previousTail + chunk;
+    }
+
+    // Writes a row of the index, with its text split into bigrams.
+    private static void insertRow(SQLiteDatabase db, long docid, String title, String note,
+            String category) {
+        db.execSQL("INSERT INTO " + NotePadProvider.FTS_TABLE_NAME + " (docid,"
+                + NotePad.Notes.COLUMN_NAME_TITLE + "," + NotePad.Notes.COLUMN_NAME_NOTE + ","
+                + NotePad.Notes.COLUMN_NAME_CATEGORY + ") VALUES (?,?,?,?)",
+                new Object[] { docid, CjkTokenizer.segment(title), CjkTokenizer.segment(note),
+                        CjkTokenizer.segment(category) });
+    }
+
+    // Removes a row of the index. The index finds the terms to remove in the text it reads for
+    // the row, so the text is put in the text table until the row is gone.
+    private static void deleteRow(SQLiteDatabase db, long docid, String title, String note,
+            String category) {
+        Object[] bindArgs = { docid };
+        db.execSQL("INSERT INTO " + NotePadProvider.FTS_TEXT_TABLE_NAME + " (docid,"
+                + NotePad.Notes.COLUMN_NAME_TITLE + "," + NotePad.Notes.COLUMN_NAME_NOTE + ","
+                + NotePad.Notes.COLUMN_NAME_CATEGORY + ") VALUES (?,?,?,?)",
+                new Object[] { docid, CjkTokenizer.segment(title), CjkTokenizer.segment(note),
+                        CjkTokenizer.segment(category) });
+        db.execSQL("DELETE FROM " + NotePadProvider.FTS_TABLE_NAME + " WHERE docid = ?",
+                bindArgs);
+        db.execSQL("DELETE FROM " + NotePadProvider.FTS_TEXT_TABLE_NAME + " WHERE docid = ?",
+                bindArgs);
+    }
+
+    /**
+     * Returns the window of a stored text that holds the first match of a search: the text is
+     * read a window at a time, each window after the end of the one before it, up to the first
+     * window that holds a phrase, so a match near the start of a long note reads and splits
+     * only the start of it. The window is given a little of the text that follows it, so the
+     * snippet has words after the match.
+     *
+     * @param text The text, from its start.
+     * @param previousTail The {@link #tail} of the chunk before the text, or null if the text
+     * is a whole note or its first chunk.
+     * @param phrases The quoted phrases of the search, see
+     * {@link NotePadProvider#buildMatchPhrases}.
+     * @return The window, split into bigrams, or null if no window holds a phrase.
+     * @throws IOException if the text can't be read.
+     */
+    static Excerpt findWindow(Reader text, String previousTail, List<String> phrases)
+            throws IOException {
+        List<List<String>> queries = new ArrayList<List<String>>();
+        List<Boolean> prefixes = new ArrayList<Boolean>();
+        parsePhrases(phrases, queries, prefixes);
+
+        StringBuilder window = new StringBuilder(previousTail == null ? "" : previousTail);
+        boolean cutStart = previousTail != null;
+        char[] buffer = new char[WINDOW_LENGTH];
+        while (true) {
+            boolean end = !append(text, window, buffer, WINDOW_LENGTH);
+            String segmented = CjkTokenizer.segment(window.toString());
+            if (!findHits(segmented, queries, prefixes).isEmpty()) {
+                if (!end) {
+                    end = !append(text, window, buffer, CONTEXT_LENGTH);
+                    segmented = CjkTokenizer.segment(window.toString());
+                }
+                return new Excerpt(segmented, cutStart, !end);
+            }
+            if (end) {
+                return null;
+            }
+            String tail = tail(window);
+            window.setLength(0);
+            window.append(tail);
+            cutStart = true;
+        }
+    }
+
+    // Appends up to the given number of characters of a text to a window. Returns false if the
+    // text ended before.
+    private static boolean append(Reader text, StringBuilder window, char[] buffer, int length)
+            throws IOException {
+        while (length > 0) {
+            int count = text.read(buffer, 0, Math.min(length, buffer.length));
+            if (count < 0) {
+                return false;
+            }
+            window.append(buffer, 0, count);
+            length -= count;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the snippet of a row that matches a search, the way SQLite's snippet() returns
+     * it, which can't read the text the index doesn't keep: the run of tokens of the column
+     * that holds the most phrases of the search, with the tokens of every phrase between the
+     * marks, and an ellipsis where the column goes on.
+     *
+     * @param columns The text of the row's title, note and category, or nulls. The text of a
+     * long note is the window of it {@link #findWindow} returns.
+     * @param phrases The quoted phrases of the search, see
+     * {@link NotePadProvider#buildMatchPhrases}.
+     * @param start The mark before a match.
+     * @param end The mark after a match.
+     * @param ellipsis The mark where the column goes on.
+     * @param tokens The number of tokens of the snippet.
+     * @return The snippet, split into bigrams, or null if no column holds a phrase.
+     */
+    static String snippet(Excerpt[] columns, List<String> phrases, String start, String end,
+            String ellipsis, int tokens) {
+        List<List<String>> queries = new ArrayList<List<String>>();
+        List<Boolean> prefixes = new ArrayList<Boolean>();
+        parsePhrases(phrases, queries, prefixes);
+
+        String snippet = null;
+        long bestScore = 0;
+        for (Excerpt excerpt : columns) {
+            if (excerpt == null) {
+                continue;
+            }
+            String column = excerpt.mText;
+            List<int[]> bounds = tokenize(column);
+            List<int[]> hits = findHits(column, bounds, queries, prefixes);
+            if (hits.isEmpty()) {
+                continue;
+            }
+
+            // Finds the run of tokens starting at a hit that holds the most phrases, then the
+            // most hits.
+            int[] counts = new int[queries.size()];
+            int distinct = 0;
+            int last = 0;
+            int bestFirst = -1;
+            int bestEnd = 0;
+            long columnScore = 0;
+            for (int index = 0; index < hits.size(); index++) {
+                int first = hits.get(index)[0];
+                for (; last < hits.size() && hits.get(last)[0] < first + tokens; last++) {
+                    if (counts[hits.get(last)[2]]++ == 0) {
+                        distinct++;
+                    }
+                }
+                long score = (long) distinct << 32 | (last - index);
+                if (score > columnScore) {
+                    columnScore = score;
+                    bestFirst = first;
+                    int[] hit = hits.get(last - 1);
+                    bestEnd = hit[0] + hit[1];
+                }
+                if (--counts[hits.get(index)[2]] == 0) {
+                    distinct--;
+                }
+            }
+            if (columnScore <= bestScore) {
+                continue;
+            }
+            bestScore = columnScore;
+
+            // Centers the hits in the snippet, within the column.
+            int first = bestFirst - Math.max(0, tokens - (bestEnd - bestFirst)) / 2;
+            first = Math.max(0, Math.min(first, bounds.size() - tokens));
+            int limit = Math.min(first + tokens, bounds.size());
+            boolean[] matched = new boolean[bounds.size()];
+            for (int[] hit : hits) {
+                for (int token = hit[0]; token < hit[0] + hit[1]; token++) {
+                    matched[token] = true;
+                }
+            }
+
+            StringBuilder text = new StringBuilder();
+            int from = 0;
+            if (first > 0 || excerpt.mCutStart) {
+                text.append(ellipsis);
+                from = bounds.get(first)[0];
+            }
+            for (int token = first; token < limit; token++) {
+                int[] tokenBounds = bounds.get(token);
+                text.append(column, from, tokenBounds[0]);
+                if (matched[token]) {
+                    text.append(start);
+                }
+                text.append(column, tokenBounds[0], tokenBounds[1]);
+                if (matched[token]) {
+                    text.append(end);
+                }
+                from = tokenBounds[1];
+            }
+            if (limit < bounds.size() || excerpt.mCutEnd) {
+                text.append(ellipsis);
+            } else {
+                text.append(column, from, column.length());
+            }
+            snippet = text.toString();
+        }
+        return snippet;
+    }
+
+    // Splits the quoted phrases of a search into their tokens, and whether their last token is
+    // a prefix. The phrases without a token are left out.
+    private static void parsePhrases(List<String> phrases, List<List<String>> queries,
+            List<Boolean> prefixes) {
+        for (String phrase : phrases) {
+            String query = phrase.substring(1, phrase.length() - 1);
+            boolean prefix = query.endsWith("*");
+            if (prefix) {
+                query = query.substring(0, query.length() - 1);
+            }
+            List<String> queryTokens = new ArrayList<String>();
+            for (int[] bounds : tokenize(query)) {
+                queryTokens.add(lowerCase(query, bounds));
+            }
+            if (!queryTokens.isEmpty()) {
+                queries.add(queryTokens);
+                prefixes.add(prefix);
+            }
+        }
+    }
+
+    // Returns the hits of the phrases in a column, see findHits(String, List, List, List).
+    private static List<int[]> findHits(String column, List<List<String>> queries,
+            List<Boolean> prefixes) {
+        return findHits(column, tokenize(column), queries, prefixes);
+    }
+
+    // Returns the hits of the phrases in a column, as their first token, their number of tokens
+    // and their phrase, in the order of the column.
+    private static List<int[]> findHits(String column, List<int[]> bounds,
+            List<List<String>> queries, List<Boolean> prefixes) {
+        List<String> columnTokens = new ArrayList<String>(bounds.size());
+        for (int[] token : bounds) {
+            columnTokens.add(lowerCase(column, token));
+        }
+        List<int[]> hits = new ArrayList<int[]>();
+        for (int phrase = 0; phrase < queries.size(); phrase++) {
+            List<String> query = queries.get(phrase);
+            for (int first = 0; first + query.size() <= columnTokens.size(); first++) {
+                if (matches(columnTokens, first, query, prefixes.get(phrase))) {
+                    hits.add(new int[] { first, query.size(), phrase });
+                }
+            }
+        }
+        Collections.sort(hits, HIT_ORDER);
+        return hits;
+    }
+
+    // Returns true if the tokens of a phrase follow each other in a column from a token on.
+    private static boolean matches(List<String> columnTokens, int first, List<String> query,
+            boolean prefix) {
+        for (int index = 0; index < query.size(); index++) {
+            String token = columnTokens.get(first + index);
+            boolean last = index == query.size() - 1;
+            if (last && prefix ? !token.startsWith(query.get(index))
+                    : !token.equals(query.get(index))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns the start and end of each token of a text, as the index's tokenizer finds them.
+    private static List<int[]> tokenize(String text) {
+        List<int[]> tokens = new ArrayList<int[]>();
+        int start = -1;
+        for (int index = 0; index <= text.length(); index++) {
+            boolean inToken = index < text.length() && isTokenCharacter(text.charAt(index));
+            if (inToken && start < 0) {
+                start = index;
+            } else if (!inToken && start >= 0) {
+                tokens.add(new int[] { start, index });
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    // Returns a token of a text with its ASCII letters in lower case, as the tokenizer folds it.
+    private static String lowerCase(String text, int[] bounds) {
+        char[] token = new char[bounds[1] - bounds[0]];
+        text.getChars(bounds[0], bounds[1], token, 0);
+        for (int index = 0; index < token.length; index++) {
+            if (token[index] >= 'A' && token[index] <= 'Z') {
+                token[index] += 'a' - 'A';
+            }
+        }
+        return new String(token);
+    }
+
+    /**
+     * Returns the end of a chunk the row of the next chunk repeats: its last characters,
+     * widened to the start of the token they cut.
+     */
+    static String tail(CharSequence chunk) {
+        int length = chunk.length();
+        int start = Math.max(0, length - CARRY_LENGTH);
+        int limit = Math.max(0, length - 2 * CARRY_LENGTH);
+        while (start > limit && isTokenCharacter(chunk.charAt(start - 1))
+                && isTokenCharacter(chunk.charAt(start))) {
+            start--;
+        }
+        if (start > 0 && start < length && Character.isLowSurrogate(chunk.charAt(start))) {
+            start--;
+        }
+        return chunk.subSequence(start, length).toString();
+    }
+
+    /**
+     * Returns the {@link #tail} of a chunk read from its start, keeping no more of it than the
+     * tail can take.
+     *
+     * @throws IOException if the chunk can't be read.
+     */
+    static String tail(Reader chunk) throws IOException {
+        StringBuilder end = new StringBuilder();
+        char[] buffer = new char[WINDOW_LENGTH];
+        int count;
+        while ((count = chunk.read(buffer)) >= 0) {
+            end.append(buffer, 0, count);
+            if (end.length() > 2 * CARRY_LENGTH + 1) {
+                end.delete(0, end.length() - (2 * CARRY_LENGTH + 1));
+            }
+        }
+        return tail(end);
+    }
+
+    // Returns true if the index's tokenizer keeps the character in a token.
+    private static boolean isTokenCharacter(char ch) {
+        return ch >= 0x80 || Character.isLetterOrDigit(ch);
+    }
+
+    /**
+     * A text a snippet is cut from: a column of a row, or a window of a long note, which the
+     * note's text may go on before and after.
+     */
+    static final class Excerpt {
+
+        final String mText;
+        final boolean mCutStart;
+        final boolean mCutEnd;
+
+        /**
+         * @param text The text, split into bigrams.
+         * @param cutStart True if the note goes on before the text.
+         * @param cutEnd True if the note goes on after the text.
+         */
+        Excerpt(String text, boolean cutStart, boolean cutEnd) {
+            mText = text;
+            mCutStart = cutStart;
+            mCutEnd = cutEnd;
+        }
+    }
+}
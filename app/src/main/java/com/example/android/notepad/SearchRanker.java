@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ranks the notes matching a search, for {@link NotePad.Notes#SEARCH_SORT_ORDER}. The relevance
+ * of a note is its BM25 score, computed from the statistics the full-text index returns for
+ * the note in {@link #MATCHINFO_FORMAT}, so the note's text is never read: each column of the
+ * index is scored on its own and weighted, a match in the title counting more than one in the
+ * text. The relevance is then raised for notes modified recently and for pinned notes.
+ *
+ * Also turns the snippets {@link SearchIndex#snippet} cuts from the notes, with their matches
+ * marked, into text and highlighted ranges.
+ */
+final class SearchRanker {
+
+    /**
+     * The format of the matchinfo() blob the ranks are computed from: the numbers of phrases,
+     * columns and notes, the average number of tokens of each column, the number of tokens of
+     * each of the note's columns, and the hits of each phrase in each column.
+     */
+    static final String MATCHINFO_FORMAT = "pcnalx";
+
+    /**
+     * The marks {@link SearchIndex#snippet} puts around a match, which {@link #splitSnippet}
+     * removes.
+     */
+    static final String MATCH_START = "\u0002";
+    static final String MATCH_END = "\u0003";
+
+    // The BM25 parameters: how quickly repeating a term stops counting, and how much the length
+    // of a column lowers the score of a match in it.
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    // The weights of the title, note and category columns of the index, in order.
+    private static final double[] COLUMN_WEIGHTS = { 2.0, 1.0, 0.5 };
+
+    // A note modified today ranks up to RECENCY_BOOST times higher, half as much once it is
+    // RECENCY_HALF_LIFE_DAYS old; a pinned note PINNED_BOOST times higher.
+    private static final double RECENCY_BOOST = 0.5;
+    private static final double RECENCY_HALF_LIFE_DAYS = 30;
+    private static final double PINNED_BOOST = 0.25;
+
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000;
+
+    // The ages are counted from the start of the current day, so the ranks don't move while
+    // the pages of one search are loaded.
+    private final long mToday;
+
+    /**
+     * @param now The current time, in milliseconds.
+     */
+    SearchRanker(long now) {
+        mToday = now - now % DAY_MILLIS;
+    }
+
+    /**
+     * Returns the rank of a note.
+     *
+     * @param matchInfo The note's matchinfo() blob, in {@link #MATCHINFO_FORMAT}, or null if
+     * there are no search terms, in which case every note is equally relevant.
+     * @param pinned True if the note is pinned.
+     * @param modified The modification time of the note.
+     */
+    double rank(byte[] matchInfo, boolean pinned, long modified) {
+        double relevance = matchInfo == null ? 1 : relevance(matchInfo);
+        double ageDays = Math.max(0, mToday - modified) / (double) DAY_MILLIS;
+        double recency = 1 + RECENCY_BOOST * Math.pow(0.5, ageDays / RECENCY_HALF_LIFE_DAYS);
+        return relevance * recency * (pinned ? 1 + PINNED_BOOST : 1);
+    }
+
+    /**
+     * Returns the BM25 score of a note, summed over the phrases and the weighted columns.
+     *
+     * @param matchInfo The note's matchinfo() blob, in {@link #MATCHINFO_FORMAT}.
+     */
+    static double relevance(byte[] matchInfo) {
+        // The blob holds unsigned 32-bit ints in the byte order of the device.
+        IntBuffer ints = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+        int phrases = ints.get(0);
+        int columns = ints.get(1);
+        double notes = unsigned(ints.get(2));
+        int averages = 3;
+        int lengths = averages + columns;
+        int hits = lengths + columns;
+
+        double score = 0;
+        for (int phrase = 0; phrase < phrases; phrase++) {
+            for (int column = 0; column < columns; column++) {
+                int hit = hits + 3 * (column + phrase * columns);
+                double frequency = unsigned(ints.get(hit));
+                if (frequency == 0) {
+                    continue;
+                }
+                double notesWithHits = unsigned(ints.get(hit + 2));
+                double inverse = Math.log(1 + (notes - notesWithHits + 0.5)
+                        / (notesWithHits + 0.5));
+                double average = unsigned(ints.get(averages + column));
+                double length = unsigned(ints.get(lengths + column));
+                double norm = average > 0 ? 1 - B + B * length / average : 1;
+                double weight = column < COLUMN_WEIGHTS.length ? COLUMN_WEIGHTS[column] : 1;
+                score += weight * inverse * frequency * (K1 + 1) / (frequency + K1 * norm);
+            }
+        }
+        return score;
+    }
+
+    /**
+     * Combines the matchinfo() blobs of two rows of the full-text index that hold the text of
+     * one note, see {@link SearchIndex}: the lengths of their columns and their hits in them
+     * are added up, the statistics of the whole index are kept.
+     *
+     * @param first The blob of one row, in {@link #MATCHINFO_FORMAT}.
+     * @param second The blob of the other row, of the same search.
+     * @return The blob of the note.
+     */
+    static byte[] combine(byte[] first, byte[] second) {
+        byte[] combined = first.clone();
+        IntBuffer ints = ByteBuffer.wrap(combined).order(ByteOrder.nativeOrder()).asIntBuffer();
+        IntBuffer others = ByteBuffer.wrap(second).order(ByteOrder.nativeOrder()).asIntBuffer();
+        int phrases = ints.get(0);
+        int columns = ints.get(1);
+        int lengths = 3 + columns;
+        int hits = lengths + columns;
+        for (int column = 0; column < columns; column++) {
+            ints.put(lengths + column, ints.get(lengths + column) + others.get(lengths + column));
+        }
+        for (int hit = hits; hit < hits + 3 * phrases * columns; hit += 3) {
+            ints.put(hit, ints.get(hit) + others.get(hit));
+        }
+        return combined;
+    }
+
+    /**
+     * Returns true if every phrase of a search has a hit in the note.
+     *
+     * @param matchInfo The note's matchinfo() blob, in {@link #MATCHINFO_FORMAT}.
+     */
+    static boolean matchesAll(byte[] matchInfo) {
+        IntBuffer ints = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+        int phrases = ints.get(0);
+        int columns = ints.get(1);
+        int hits = 3 + 2 * columns;
+        for (int phrase = 0; phrase < phrases; phrase++) {
+            boolean found = false;
+            for (int column = 0; column < columns && !found; column++) {
+                found = ints.get(hits + 3 * (column + phrase * columns)) != 0;
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes the match marks from a snippet of the full-text index, and joins back the text
+     * the index holds split by {@link CjkTokenizer}. Ranges that meet or overlap are merged.
+     *
+     * @return The text of the snippet, and the ranges of its matches, in the format of
+     * {@link NotePad.Notes#COLUMN_NAME_SNIPPET_HIGHLIGHTS}.
+     */
+    static String[] splitSnippet(String marked) {
+        StringBuilder text = new StringBuilder(marked.length());
+        List<Integer> ranges = new ArrayList<Integer>();
+        int start = -1;
+        boolean skip = false;
+        for (int index = 0; index < marked.length(); index++) {
+            char ch = marked.charAt(index);
+            if (ch == MATCH_START.charAt(0)) {
+                start = text.length();
+            } else if (ch == MATCH_END.charAt(0)) {
+                int count = ranges.size();
+                if (start >= 0 && start < text.length()) {
+                    if (count > 0 && start <= ranges.get(count - 1)) {
+                        ranges.set(count - 1, text.length());
+                    } else {
+                        ranges.add(start);
+                        ranges.add(text.length());
+                    }
+                }
+                start = -1;
+            } else if (ch == CjkTokenizer.BIGRAM_SEPARATOR) {
+                skip = true;
+            } else if (ch == CjkTokenizer.RUN_SEPARATOR) {
+                // Only sets tokens apart.
+            } else if (skip) {
+                // The token starts with the last character of the token before it, so a match
+                // of the token covers that character too.
+                if (start == text.length() && start > 0) {
+                    start -= Character.charCount(text.codePointBefore(start));
+                }
+                skip = Character.isHighSurrogate(ch);
+            } else {
+                text.append(ch);
+            }
+        }
+
+        StringBuilder highlights = new StringBuilder();
+        for (int index = 0; index < ranges.size(); index += 2) {
+            if (index > 0) {
+                highlights.append(' ');
+            }
+            highlights.append(ranges.get(index)).append(',').append(ranges.get(index + 1));
+        }
+        return new String[] { text.toString(), highlights.toString() };
+    }
+
+    /**
+     * Returns the ranges of {@link NotePad.Notes#COLUMN_NAME_SNIPPET_HIGHLIGHTS}, as the start
+     * and end offsets of each range in turn.
+     *
+     * @param highlights The ranges, may be null.
+     * @throws IllegalArgumentException if the ranges are malformed.
+     */
+    static int[] parseHighlights(String highlights) {
+        if (highlights == null || highlights.isEmpty()) {
+            return new int[0];
+        }
+        String[] ranges = highlights.split(" ");
+        int[] offsets = new int[ranges.length * 2];
+        for (int index = 0; index < ranges.length; index++) {
+            int comma = ranges[index].indexOf(',');
+            if (comma < 0) {
+                throw new IllegalArgumentException("Invalid highlights " + highlights);
+            }
+            offsets[2 * index] = Integer.parseInt(ranges[index].substring(0, comma));
+            offsets[2 * index + 1] = Integer.parseInt(ranges[index].substring(comma + 1));
+        }
+        return offsets;
+    }
+
+    private static double unsigned(int value) {
+        return value & 0xffffffffL;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps the write statements of one database compiled between calls, keyed by their SQL. A
+ * statement with bound parameters is parsed and planned once, then executed again with new
+ * arguments, instead of being compiled from a new SQL string each time.
+ *
+ * The cache holds the least recently used statements up to its capacity. A statement is taken
+ * out of the cache while it executes, so no other thread can bind it or close it meanwhile; a
+ * second thread running the same SQL at that moment compiles a statement of its own. The cache
+ * lock is never held while a statement executes, so a thread waiting for the database can't
+ * block one that holds it.
+ */
+class StatementCache {
+
+    private final int mCapacity;
+
+    private final LinkedHashMap<String, SQLiteStatement> mStatements;
+
+    // The database the cached statements were compiled against.
+    private SQLiteDatabase mDatabase;
+
+    /**
+     * @param capacity The maximum number of statements kept compiled.
+     */
+    StatementCache(int capacity) {
+        mCapacity = capacity;
+        mStatements = new LinkedHashMap<String, SQLiteStatement>(capacity, 0.75f, true);
+    }
+
+    /**
+     * Executes an UPDATE or DELETE statement with the given arguments, compiling it only if it
+     * isn't cached.
+     *
+     * @param bindArgs The values of the statement's parameters, in order.
+     * @return The number of rows the statement changed.
+     */
+    int executeUpdateDelete(SQLiteDatabase db, String sql, Object... bindArgs) {
+        SQLiteStatement statement = acquire(db, sql);
+        try {
+            statement.clearBindings();
+            for (int index = 0; index < bindArgs.length; index++) {
+                DatabaseUtils.bindObjectToProgram(statement, index + 1, bindArgs[index]);
+            }
+            return statement.executeUpdateDelete();
+        } finally {
+            release(db, sql, statement);
+        }
+    }
+
+    /**
+     * Executes an INSERT statement with the given arguments, compiling it only if it isn't
+     * cached.
+     *
+     * @param bindArgs The values of the statement's parameters, in order.
+     * @return The rowid of the inserted row.
+     */
+    long executeInsert(SQLiteDatabase db, String sql, Object... bindArgs) {
+        SQLiteStatement statement = acquire(db, sql);
+        try {
+            statement.clearBindings();
+            for (int index = 0; index < bindArgs.length; index++) {
+                DatabaseUtils.bindObjectToProgram(statement, index + 1, bindArgs[index]);
+            }
+            return statement.executeInsert();
+        } finally {
+            release(db, sql, statement);
+        }
+    }
+
+    /**
+     * Closes and forgets every cached statement.
+     */
+    synchronized void clear() {
+        for (SQLiteStatement statement : mStatements.values()) {
+            statement.close();
+        }
+        mStatements.clear();
+        mDatabase = null;
+    }
+
+    // Takes the statement for the SQL out of the cache, or compiles it.
+    private synchronized SQLiteStatement acquire(SQLiteDatabase db, String sql) {
+        if (db != mDatabase) {
+            clear();
+            mDatabase = db;
+        }
+        SQLiteStatement statement = mStatements.remove(sql);
+        return statement != null ? statement : db.compileStatement(sql);
+    }
+
+    // Puts an executed statement back in the cache, evicting the least recently used one if the
+    // cache is full. Closes it instead if the cache moved to another database, or already holds
+    // a statement for the SQL.
+    private synchronized void release(SQLiteDatabase db, String sql, SQLiteStatement statement) {
+        if (db != mDatabase || mStatements.containsKey(sql)) {
+            statement.close();
+            return;
+        }
+        mStatements.put(sql, statement);
+        if (mStatements.size() > mCapacity) {
+            Iterator<SQLiteStatement> eldest = mStatements.values().iterator();
+            eldest.next().close();
+            eldest.remove();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads one stored text, a body or a chunk, a window at a time, so that a reader that stops
+ * early reads and inflates no more of the text than it used. A text stored as TEXT is read with
+ * substr() a window of characters at a time; one stored compressed by {@link BodyCodec} is read
+ * with substr() a window of bytes at a time, and inflated as it is read.
+ */
+final class StoredTextReader extends Reader {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // The number of characters, or of compressed bytes, read from the database at once.
+    private static final int WINDOW_LENGTH = 4 * 1024;
+
+    private final SQLiteDatabase mDb;
+
+    // The query of a window of the text: its arguments are the start of the window, counted
+    // from 1, its length, and the key of the row.
+    private final String mWindowQuery;
+
+    private final String mKey;
+
+    // The reader of a compressed text, or null if the text is read as characters.
+    private final Reader mInflated;
+
+    // The window of characters being read, the next character to return, and the start of the
+    // next window.
+    private String mWindow = "";
+    private int mWindowPosition;
+    private long mNext = 1;
+    private boolean mEnd;
+
+    /**
+     * @param table The table holding the text.
+     * @param column The column holding the text.
+     * @param keyColumn The column that selects the row of the text.
+     * @param key The value of the key column.
+     */
+    StoredTextReader(SQLiteDatabase db, String table, String column, String keyColumn,
+            long key) {
+        mDb = db;
+        mKey = Long.toString(key);
+        mWindowQuery = "SELECT substr(" + column + ",?,?) FROM " + table + " WHERE "
+                + keyColumn + " = ?";
+        String type = DatabaseUtils.stringForQuery(db, "SELECT ifnull((SELECT typeof(" + column
+                + ") FROM " + table + " WHERE " + keyColumn + " = ?),'null')",
+                new String[] { mKey });
+        mEnd = !"text".equals(type) && !"blob".equals(type);
+        mInflated = "blob".equals(type)
+                ? new InputStreamReader(new InflaterInputStream(new BlobStream()), UTF_8)
+                : null;
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int length) throws IOException {
+        if (mInflated != null) {
+            return mInflated.read(buffer, offset, length);
+        }
+        if (length == 0) {
+            return 0;
+        }
+        if (mWindowPosition == mWindow.length()) {
+            if (mEnd) {
+                return -1;
+            }
+            mWindow = readWindow();
+            mWindowPosition = 0;
+            if (mWindow.length() < WINDOW_LENGTH) {
+                mEnd = true;
+            }
+            if (mWindow.length() == 0) {
+                return -1;
+            }
+        }
+        int count = Math.min(length, mWindow.length() - mWindowPosition);
+        mWindow.getChars(mWindowPosition, mWindowPosition + count, buffer, offset);
+        mWindowPosition += count;
+        return count;
+    }
+
+    // Nothing is left open between reads, but the inflater of a compressed text.
+    @Override
+    public void close() {
+        if (mInflated != null) {
+            try {
+                mInflated.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    // Reads the next window of the text, as characters, or "" past its end.
+    private String readWindow() {
+        Cursor cursor = mDb.rawQuery(mWindowQuery, new String[] {
+                Long.toString(mNext), Integer.toString(WINDOW_LENGTH), mKey });
+        try {
+            mNext += WINDOW_LENGTH;
+            return cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getString(0) : "";
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * The compressed bytes of a text, read from the database a window at a time.
+     */
+    private class BlobStream extends InputStream {
+
+        private byte[] mBytes = new byte[0];
+        private int mPosition;
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (mPosition == mBytes.length) {
+                if (mEnd) {
+                    return -1;
+                }
+                Cursor cursor = mDb.rawQuery(mWindowQuery, new String[] {
+                        Long.toString(mNext), Integer.toString(WINDOW_LENGTH), mKey });
+                try {
+                    mNext += WINDOW_LENGTH;
+                    mBytes = cursor.moveToFirst() && !cursor.isNull(0)
+                            ? cursor.getBlob(0) : new byte[0];
+                } finally {
+                    cursor.close();
+                }
+                mPosition = 0;
+                if (mBytes.length < WINDOW_LENGTH) {
+                    mEnd = true;
+                }
+                if (mBytes.length == 0) {
+                    return -1;
+                }
+            }
+            int count = Math.min(length, mBytes.length - mPosition);
+            System.arraycopy(mBytes, mPosition, buffer, offset, count);
+            mPosition += count;
+            return count;
+        }
+    }
+}
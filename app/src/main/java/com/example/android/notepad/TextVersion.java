@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.text.Editable;
+import android.text.TextUtils;
+import android.text.TextWatcher;
+
+/**
+ * Tells whether an edited text differs from a reference text, such as the text a note had when
+ * it was opened, without comparing them on every check. As the text's watcher it counts the
+ * edits, and keeps the length of the text and a sum of a hash of each of its chars, updated by
+ * the chars each edit removes and inserts; an edit costs its own size. A text still at the
+ * version it was checked at needs no new check; one whose length or sum differs from the
+ * reference's differs from it. Only a text edited back to the reference's length and sum is
+ * compared char by char, once per version.
+ */
+class TextVersion implements TextWatcher {
+
+    // The number of edits so far, and the length and hash sum of the text after them.
+    private long mVersion;
+    private int mLength;
+    private long mSum;
+
+    // The length and hash sum of the reference text.
+    private int mReferenceLength;
+    private long mReferenceSum;
+
+    // The version the text was last compared to the reference at, and whether it differed.
+    private long mCheckedVersion = -1;
+    private boolean mDiffers;
+
+    /**
+     * Returns the number of edits made to the text, which changes with every edit.
+     */
+    long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Starts tracking a text set without the watcher, such as a note loaded into the editor.
+     * The version only changes if the text isn't the one tracked so far.
+     */
+    void load(CharSequence text) {
+        long sum = sum(text, 0, text.length());
+        if (text.length() != mLength || sum != mSum) {
+            mLength = text.length();
+            mSum = sum;
+            mVersion++;
+        }
+    }
+
+    /**
+     * Sets the text that {@link #differs} compares to.
+     */
+    void setReference(CharSequence reference) {
+        mReferenceLength = reference == null ? 0 : reference.length();
+        mReferenceSum = reference == null ? 0 : sum(reference, 0, reference.length());
+        mCheckedVersion = -1;
+    }
+
+    /**
+     * Returns true if the text differs from the reference.
+     *
+     * @param text The tracked text.
+     * @param reference The reference text, as last passed to {@link #setReference}.
+     */
+    boolean differs(CharSequence text, CharSequence reference) {
+        if (mVersion != mCheckedVersion) {
+            // Edits undone give back the reference's length and sum; only they need comparing.
+            mDiffers = mLength != mReferenceLength || mSum != mReferenceSum
+                    || !TextUtils.equals(text, reference == null ? "" : reference);
+            mCheckedVersion = mVersion;
+        }
+        return mDiffers;
+    }
+
+    @Override
+    public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        mSum -= sum(s, start, start + count);
+    }
+
+    @Override
+    public void onTextChanged(CharSequence s, int start, int before, int count) {
+        mSum += sum(s, start, start + count);
+        mLength += count - before;
+        mVersion++;
+    }
+
+    @Override
+    public void afterTextChanged(Editable s) {
+    }
+
+    // Returns the sum of the hashes of a range of chars, which doesn't depend on their order.
+    private static long sum(CharSequence text, int start, int end) {
+        long sum = 0;
+        for (int index = start; index < end; index++) {
+            // The finalizer of SplitMix64, which spreads each char over all the bits.
+            long hash = text.charAt(index) + 0x9E3779B97F4A7C15L;
+            hash = (hash ^ (hash >>> 30)) * 0xBF58476D1CE4E5B9L;
+            hash = (hash ^ (hash >>> 27)) * 0x94D049BB133111EBL;
+            sum += hash ^ (hash >>> 31);
+        }
+        return sum;
+    }
+}
@@ -58,6 +58,9 @@ public class TitleEditor extends Activity {
     // A URI object for the note whose title is being edited.
     private Uri mUri;
 
+    // The title as last read or saved, so that an unchanged title isn't written.
+    private String mSavedTitle;
+
     /**
      * This method is called by Android when the Activity is first started. From the incoming
      * Intent, it determines what kind of editing is desired, and then does it.
@@ -113,7 +116,8 @@ public class TitleEditor extends Activity {
             mCursor.moveToFirst();
 
             // Displays the current title text in the EditText object.
-            mText.setText(mCursor.getString(COLUMN_INDEX_TITLE));
+            mSavedTitle = mCursor.getString(COLUMN_INDEX_TITLE);
+            mText.setText(mSavedTitle);
         }
     }
 
@@ -126,7 +130,7 @@ public class TitleEditor extends Activity {
      * to it to complete their work. The act of going away should save everything and leave the
      * Activity in a state where Android can destroy it if necessary.
      *
-     * Updates the note with the text currently in the text box.
+     * Updates the note with the text currently in the text box, if it changed.
      */
     @Override
     protected void onPause() {
@@ -134,14 +138,15 @@ public class TitleEditor extends Activity {
 
         // Verifies that the query made in onCreate() actually worked. If it worked, then the
         // Cursor object is not null. If it is *empty*, then mCursor.getCount() == 0.
-
-        if (mCursor != null) {
+        // An unchanged title isn't written.
+        String title = mText.getText().toString();
+        if (mCursor != null && !title.equals(mSavedTitle)) {
 
             // Creates a values map for updating the provider.
             ContentValues values = new ContentValues();
 
             // In the values map, sets the title to the current contents of the edit box.
-            values.put(NotePad.Notes.COLUMN_NAME_TITLE, mText.getText().toString());
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
 
             /*
              * Updates the provider with the note's new title.
@@ -157,6 +162,7 @@ public class TitleEditor extends Activity {
                 null,    // No selection criteria is used, so no "where" columns are needed.
                 null     // No "where" columns are used, so no "where" values are needed.
             );
+            mSavedTitle = title;
 
         }
     }